@@ -0,0 +1,59 @@
+package ChatApplication;
+
+import java.nio.*;
+
+/**
+ * A ChatConnection with no socket, for the benchmarks. Frames go to an
+ * OutboundQueue, as on a real connection, or are only counted when there
+ * is none, so the cost measured is the server's and not the network's.
+ */
+final class BenchConnection implements ChatConnection {
+
+    private final String username;
+    private final OutboundQueue queue;
+    private long clientId = -1;
+    long frames;
+
+    BenchConnection(String username, OutboundQueue queue) {
+        this.username = username;
+        this.queue = queue;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public long getClientId() {
+        return clientId;
+    }
+
+    public void setClientId(long id) {
+        clientId = id;
+    }
+
+    public WireProtocol getProtocol() {
+        return WireProtocol.BINARY;
+    }
+
+    public void sendFrame(ByteBuffer frame) {
+        frames++;
+        if (queue != null) {
+            queue.offer(frame);
+        }
+    }
+
+    public int getQueueDepth() {
+        return queue == null ? 0 : queue.depth();
+    }
+
+    public long getLagMillis() {
+        return queue == null ? 0 : queue.lagMillis();
+    }
+
+    public long getRetainedBytes() {
+        return 0;
+    }
+
+    public void close() {
+    }
+}
@@ -0,0 +1,53 @@
+package ChatApplication;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ClientRegistry with 100 or 10k clients: a walk over every client, as the
+ * queue report and /rooms do, a lookup by username for /msg, and a client
+ * joining and leaving while the registry is full.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClientRegistryBenchmark {
+
+    @Param({ "100", "10000" })
+    public int clients;
+
+    private ClientRegistry registry;
+    private String middle;
+    private final BenchConnection churn = new BenchConnection("churn", null);
+
+    @Setup
+    public void setUp() {
+        registry = new ClientRegistry();
+        for (int i = 0; i < clients; i++) {
+            registry.register(new BenchConnection("user" + i, null));
+        }
+        middle = "user" + clients / 2;
+    }
+
+    @Benchmark
+    public void iterate(Blackhole hole) {
+        for (ChatConnection client : registry) {
+            hole.consume(client.getClientId());
+        }
+    }
+
+    @Benchmark
+    public ChatConnection findByUsername() {
+        return registry.find(middle);
+    }
+
+    @Benchmark
+    public boolean registerAndUnregister() {
+        registry.register(churn);
+        return registry.unregister(churn);
+    }
+}
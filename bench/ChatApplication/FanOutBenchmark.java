@@ -0,0 +1,56 @@
+package ChatApplication;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * One broadcast to a room of 1, 100 or 10k members, through
+ * ChatRooms.Room.post() as ChatServer.transfer() does: the line is encoded
+ * once and each member is handed the shared frame. The shard runs the
+ * fan-out on the benchmark thread, so the score is the whole cost of one
+ * broadcast; divide by recipients for the cost per member. "queued" puts
+ * each frame on a real OutboundQueue, as a connection would.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FanOutBenchmark {
+
+    @Param({ "1", "100", "10000" })
+    public int recipients;
+
+    @Param({ "counted", "queued" })
+    public String delivery;
+
+    private static final Executor SAME_THREAD = new Executor() {
+        public void execute(Runnable task) {
+            task.run();
+        }
+    };
+
+    private final Executor[] shards = { SAME_THREAD };
+    private ChatRooms.Room room;
+    private long sequence;
+
+    @Setup
+    public void setUp() {
+        ChatRooms rooms = new ChatRooms(1);
+        for (int i = 0; i < recipients; i++) {
+            OutboundQueue queue = "queued".equals(delivery)
+                    ? new OutboundQueue(OutboundQueue.Policy.DROP_OLDEST, OutboundQueue.DEFAULT_CAPACITY, 0) : null;
+            rooms.join(new BenchConnection("user" + i, queue), ChatRooms.LOBBY);
+        }
+        room = rooms.get(ChatRooms.LOBBY);
+    }
+
+    @Benchmark
+    public WireProtocol.Broadcast broadcast() {
+        WireProtocol.Broadcast broadcast = new WireProtocol.Broadcast("10:00:00 Alice: line " + sequence++ + "\n");
+        room.post(shards, broadcast);
+        return broadcast;
+    }
+}
@@ -0,0 +1,82 @@
+package ChatApplication;
+
+import java.io.*;
+import java.nio.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * MessageHandler through Java serialization, as older clients still send
+ * it, against the same line through BinaryCodec. Serializing opens a new
+ * object stream each time, which is what a message costs a client that
+ * resets or reconnects; the stream variants keep one stream open, as a
+ * long-lived connection does.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageHandlerBenchmark {
+
+    @Param({ "16", "256", "4096" })
+    public int length;
+
+    private MessageHandler message;
+    private byte[] serialized;
+    private ByteBuffer frame;
+    private BinaryCodec.Decoder decoder;
+    private ByteArrayOutputStream bytes;
+    private ObjectOutputStream stream;
+
+    @Setup
+    public void setUp() throws IOException {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < length) {
+            text.append("chat line text ");
+        }
+        message = new MessageHandler(text.substring(0, length));
+        serialized = serialize();
+        frame = BinaryCodec.encode(BinaryCodec.TYPE_CHAT, message.getMessage());
+        //decodes frames only; the hello is read once here
+        decoder = new BinaryCodec.Decoder();
+        decoder.decode(BinaryCodec.hello());
+        bytes = new ByteArrayOutputStream();
+        stream = new ObjectOutputStream(bytes);
+    }
+
+    @Benchmark
+    public byte[] serialize() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 + length);
+        ObjectOutputStream objects = new ObjectOutputStream(out);
+        objects.writeObject(message);
+        objects.flush();
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public Object deserialize() throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+    }
+
+    //One more object on an open stream, reset each time as the server does for older clients
+    @Benchmark
+    public int serializeOnStream() throws IOException {
+        bytes.reset();
+        stream.reset();
+        stream.writeObject(message);
+        stream.flush();
+        return bytes.size();
+    }
+
+    @Benchmark
+    public ByteBuffer binaryEncode() {
+        return BinaryCodec.encode(BinaryCodec.TYPE_CHAT, message.getMessage());
+    }
+
+    @Benchmark
+    public Object binaryDecode() throws IOException {
+        return decoder.decode(frame.duplicate());
+    }
+}
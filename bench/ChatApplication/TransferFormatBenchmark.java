@@ -0,0 +1,64 @@
+package ChatApplication;
+
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * The line ChatServer.transfer() builds for every broadcast. The String
+ * variants are how it used to: a timestamp from SimpleDateFormat, the room
+ * for rooms other than the lobby, and the text; the DateTimeFormatter one
+ * for comparison. The LineBuffer variants are how it does now: the cached
+ * second from LineClock and the text as UTF-8, into one reused array.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferFormatBenchmark {
+
+    private final SimpleDateFormat date = new SimpleDateFormat("hh:mm:ss");
+    private final DateTimeFormatter time = DateTimeFormatter.ofPattern("hh:mm:ss");
+    private final String message = "Alice: are we still on for lunch at noon?";
+    private final String room = "general";
+    private final LineClock clock = new LineClock();
+    private final LineBuffer line = new LineBuffer(256);
+    private final byte[] text = message.getBytes(StandardCharsets.UTF_8);
+
+    @Benchmark
+    public String lobbyLine() {
+        return date.format(new Date()) + " " + "" + message + "\n";
+    }
+
+    @Benchmark
+    public String roomLine() {
+        return date.format(new Date()) + " " + "#" + room + " " + message + "\n";
+    }
+
+    @Benchmark
+    public String timestampOnly() {
+        return date.format(new Date());
+    }
+
+    @Benchmark
+    public String dateTimeFormatterLine() {
+        return LocalTime.now().format(time) + " " + message + "\n";
+    }
+
+    @Benchmark
+    public LineBuffer lineBufferLobbyLine() {
+        return line.clear().append(clock.bytes()).append((byte) ' ').append(text).append((byte) '\n');
+    }
+
+    @Benchmark
+    public LineBuffer lineBufferRoomLine() {
+        return line.clear().append(clock.bytes()).append((byte) ' ').append((byte) '#').append(room).append((byte) ' ')
+                .append(text).append((byte) '\n');
+    }
+}
@@ -0,0 +1,482 @@
+/**
+ * Multiple Client Chat Application
+ * BinaryCodec is the compact wire protocol that replaces Java serialization
+ * between Client and Server. Each side opens with a five byte hello, "CHAT"
+ * followed by the highest protocol version it speaks, and both then use the
+ * lower of the two versions. After the hello every frame is a four byte
+ * payload length, a type byte and the payload as UTF-8:
+ *   USERNAME    client to server, once, the name to join with
+ *   CHAT        a chat line; a message from a client, a broadcast from the server
+ *   DISCONNECT  client to server, no payload, the client is leaving
+ *   DEFLATED    version 2, a chat line compressed by ChatCompression; sent
+ *               instead of CHAT by either side when the line is long enough
+ *               and both hellos said version 2 or later
+ *   TRACED      version 3, a chat line sampled by MessageTracer: a count
+ *               byte, that many eight byte timestamps, then the line as
+ *               UTF-8, never compressed. A client sends one stamp, when it
+ *               sent the line; the server adds when it read it, began and
+ *               finished decoding it, took the broadcast lock and posted
+ *               it, in that order
+ * A serialized stream starts with 0xACED instead of "CH", which is how the
+ * server tells old clients apart (see WireProtocol).
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+final class BinaryCodec {
+
+	static final byte VERSION = 3;
+	//first version that accepts DEFLATED frames
+	static final byte COMPRESSION_VERSION = 2;
+	//first version that accepts TRACED frames
+	static final byte TRACE_VERSION = 3;
+	static final int HELLO_LENGTH = 5;
+	static final int HEADER_LENGTH = 5;
+	//a frame claiming more than this is treated as a corrupt stream rather than buffered
+	static final int MAX_PAYLOAD_LENGTH = 16 * 1024 * 1024;
+
+	static final byte TYPE_USERNAME = 1;
+	static final byte TYPE_CHAT = 2;
+	static final byte TYPE_DISCONNECT = 3;
+	static final byte TYPE_DEFLATED = 4;
+	static final byte TYPE_TRACED = 5;
+
+	static final byte[] MAGIC = { 'C', 'H', 'A', 'T' };
+	private static final byte[] HELLO = { 'C', 'H', 'A', 'T', VERSION };
+
+	private BinaryCodec() {
+	}
+
+	//Hello this side sends before its first frame
+	static ByteBuffer hello() {
+		return ByteBuffer.wrap(HELLO).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Encodes one frame into a read-only direct buffer that, like
+	 * LegacyCodec.encodeString, is meant to be shared between recipients.
+	 */
+	static ByteBuffer encode(byte type, String text) {
+		byte[] payload = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer out = ByteBuffer.allocateDirect(HEADER_LENGTH + payload.length);
+		out.putInt(payload.length);
+		out.put(type);
+		out.put(payload);
+		out.flip();
+		return out.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Encodes a chat line as a DEFLATED frame if its payload is at least
+	 * threshold bytes and compressing shrinks it, otherwise as a CHAT frame.
+	 * Only for peers that negotiated COMPRESSION_VERSION.
+	 */
+	static ByteBuffer encodeChat(String text, int threshold) {
+		byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+		if (payload.length < threshold) {
+			return plainChat(payload);
+		}
+		byte[] frame = new byte[HEADER_LENGTH + ChatCompression.LENGTH_PREFIX + payload.length];
+		int end = ChatCompression.compress(payload, frame, HEADER_LENGTH);
+		if (end < 0) {
+			return plainChat(payload);
+		}
+		ByteBuffer out = ByteBuffer.allocateDirect(end);
+		out.putInt(end - HEADER_LENGTH);
+		out.put(TYPE_DEFLATED);
+		out.put(frame, HEADER_LENGTH, end - HEADER_LENGTH);
+		out.flip();
+		return out.asReadOnlyBuffer();
+	}
+
+	private static ByteBuffer plainChat(byte[] payload) {
+		ByteBuffer out = ByteBuffer.allocateDirect(HEADER_LENGTH + payload.length);
+		out.putInt(payload.length);
+		out.put(TYPE_CHAT);
+		out.put(payload);
+		out.flip();
+		return out.asReadOnlyBuffer();
+	}
+
+	//A broadcast with the trace's stamps, for peers that negotiated TRACE_VERSION
+	static ByteBuffer encodeTraced(MessageTracer.Trace trace, String text) {
+		byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer out = ByteBuffer.allocateDirect(HEADER_LENGTH + tracedLength(payload.length));
+		putTraced(out, trace, payload, payload.length);
+		out.flip();
+		return out.asReadOnlyBuffer();
+	}
+
+	private static int tracedLength(int textLength) {
+		return 1 + 8 * MessageTracer.Trace.STAMPS + textLength;
+	}
+
+	private static void putTraced(ByteBuffer out, MessageTracer.Trace trace, byte[] text, int textLength) {
+		out.putInt(tracedLength(textLength));
+		out.put(TYPE_TRACED);
+		out.put((byte) MessageTracer.Trace.STAMPS);
+		out.putLong(trace.clientSent);
+		out.putLong(trace.serverReceived);
+		out.putLong(trace.serverDecoding);
+		out.putLong(trace.serverDecoded);
+		out.putLong(trace.serverLocked);
+		out.putLong(trace.serverPosted);
+		out.put(text, 0, textLength);
+	}
+
+	/**
+	 * As encode(TYPE_CHAT, text), from the first length bytes of the line's
+	 * UTF-8 into a FramePool frame, or null if the line does not fit a slot
+	 * or no slot is free, and it has to be encoded the allocating way.
+	 */
+	static ByteBuffer pooledChat(byte[] text, int length) {
+		FramePool pool = FramePool.SHARED;
+		int slot = pool.acquire(HEADER_LENGTH + length);
+		if (slot < 0) {
+			return null;
+		}
+		ByteBuffer out = pool.writer(slot);
+		out.putInt(length);
+		out.put(TYPE_CHAT);
+		out.put(text, 0, length);
+		return pool.frame(slot, out.position());
+	}
+
+	//As encodeTraced(), into a FramePool frame; null as for pooledChat()
+	static ByteBuffer pooledTraced(MessageTracer.Trace trace, byte[] text, int length) {
+		FramePool pool = FramePool.SHARED;
+		int slot = pool.acquire(HEADER_LENGTH + tracedLength(length));
+		if (slot < 0) {
+			return null;
+		}
+		ByteBuffer out = pool.writer(slot);
+		putTraced(out, trace, text, length);
+		return pool.frame(slot, out.position());
+	}
+
+	//Joins CHAT frames into one; UTF-8 concatenates byte for byte, so no text is decoded
+	static ByteBuffer concatChats(List<ByteBuffer> frames) {
+		long length = 0;
+		for (ByteBuffer frame : frames) {
+			length += frame.remaining() - HEADER_LENGTH;
+		}
+		if (length > MAX_PAYLOAD_LENGTH) {
+			throw new IllegalArgumentException("joined frame too long: " + length);
+		}
+		ByteBuffer out = ByteBuffer.allocateDirect(HEADER_LENGTH + (int) length);
+		out.putInt((int) length);
+		out.put(TYPE_CHAT);
+		for (ByteBuffer frame : frames) {
+			ByteBuffer payload = frame.duplicate();
+			payload.position(payload.position() + HEADER_LENGTH);
+			out.put(payload);
+		}
+		out.flip();
+		return out.asReadOnlyBuffer();
+	}
+
+	//Lays frames end to end; compressed frames cannot be merged without inflating them
+	static ByteBuffer concatFrames(List<ByteBuffer> frames) {
+		long length = 0;
+		for (ByteBuffer frame : frames) {
+			length += frame.remaining();
+		}
+		if (length > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("joined frames too long: " + length);
+		}
+		ByteBuffer out = ByteBuffer.allocateDirect((int) length);
+		for (ByteBuffer frame : frames) {
+			out.put(frame.duplicate());
+		}
+		out.flip();
+		return out.asReadOnlyBuffer();
+	}
+
+	//Blocking counterparts for peers that use streams
+
+	static void writeHello(OutputStream out) throws IOException {
+		out.write(HELLO);
+	}
+
+	//Reads the peer's hello and returns the version both sides will speak
+	static int readHello(DataInput in) throws IOException {
+		byte[] hello = new byte[HELLO_LENGTH];
+		in.readFully(hello);
+		return negotiate(ByteBuffer.wrap(hello));
+	}
+
+	static void writeFrame(DataOutput out, byte type, String text) throws IOException {
+		byte[] payload = text == null ? new byte[0] : text.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(payload.length);
+		out.writeByte(type);
+		out.write(payload);
+	}
+
+	//Writes a chat line, compressed if the negotiated version allows and it is long enough
+	static void writeChat(DataOutput out, int version, String text) throws IOException {
+		if (version < COMPRESSION_VERSION) {
+			writeFrame(out, TYPE_CHAT, text);
+			return;
+		}
+		ByteBuffer frame = encodeChat(text, ChatCompression.THRESHOLD);
+		byte[] bytes = new byte[frame.remaining()];
+		frame.get(bytes);
+		out.write(bytes);
+	}
+
+	//A chat line stamped with when this side sent it; only if the negotiated version is TRACE_VERSION or later
+	static void writeTraced(DataOutput out, long sentAt, String text) throws IOException {
+		byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(1 + 8 + payload.length);
+		out.writeByte(TYPE_TRACED);
+		out.writeByte(1);
+		out.writeLong(sentAt);
+		out.write(payload);
+	}
+
+	//Blocks for the next frame; see toMessage() for what it returns
+	static Object readFrame(DataInput in) throws IOException {
+		int length = checkLength(in.readInt());
+		byte type = in.readByte();
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		if (type == TYPE_TRACED) {
+			return traced(ByteBuffer.wrap(payload), length);
+		}
+		if (type == TYPE_DEFLATED) {
+			return toMessage(type, ChatCompression.decompress(payload, 0, length, MAX_PAYLOAD_LENGTH));
+		}
+		return toMessage(type, new String(payload, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Frames decode to the objects the serialized protocol always carried,
+	 * so the server handles both protocols the same way: the username as a
+	 * String, chat and disconnect as MessageHandler. TRACED frames are
+	 * decoded by traced().
+	 */
+	static Object toMessage(byte type, String text) throws StreamCorruptedException {
+		switch (type) {
+		case TYPE_USERNAME:
+			return text;
+		case TYPE_CHAT:
+		case TYPE_DEFLATED:
+			return new MessageHandler(text);
+		case TYPE_DISCONNECT:
+			return new MessageHandler();
+		default:
+			throw new StreamCorruptedException(String.format("unknown frame type 0x%02X", type));
+		}
+	}
+
+	/**
+	 * The TRACED payload of length bytes at the buffer's position, consumed.
+	 * Stamps are taken in the documented order; missing ones are 0 and any
+	 * beyond those known are skipped.
+	 */
+	static MessageTracer.TracedMessage traced(ByteBuffer in, int length) throws StreamCorruptedException {
+		int stamps = length < 1 ? -1 : in.get() & 0xFF;
+		if (stamps < 0 || 1 + 8 * stamps > length) {
+			throw new StreamCorruptedException("invalid traced frame");
+		}
+		long[] values = new long[Math.max(stamps, MessageTracer.Trace.STAMPS)];
+		for (int i = 0; i < stamps; i++) {
+			values[i] = in.getLong();
+		}
+		MessageTracer.Trace trace = new MessageTracer.Trace(values[0]);
+		trace.serverReceived = values[1];
+		trace.serverDecoding = values[2];
+		trace.serverDecoded = values[3];
+		trace.serverLocked = values[4];
+		trace.serverPosted = values[5];
+		return new MessageTracer.TracedMessage(Decoder.readUtf8(in, length - 1 - 8 * stamps), trace);
+	}
+
+	private static int negotiate(ByteBuffer hello) throws StreamCorruptedException {
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (hello.get() != MAGIC[i]) {
+				throw new StreamCorruptedException("invalid protocol hello");
+			}
+		}
+		int version = hello.get();
+		if (version < 1) {
+			throw new StreamCorruptedException("invalid protocol version " + version);
+		}
+		return Math.min(version, VERSION);
+	}
+
+	private static int checkLength(int length) throws StreamCorruptedException {
+		if (length < 0 || length > MAX_PAYLOAD_LENGTH) {
+			throw new StreamCorruptedException("invalid frame length " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * A CHAT frame's line as the UTF-8 it arrived in, for a server that can
+	 * broadcast it without making a String of it. getMessage() still makes
+	 * one, on first use. A decoder that reuses messages hands out the same
+	 * ChatLine for every CHAT frame, so it is only valid until the next
+	 * decode().
+	 */
+	static final class ChatLine extends MessageHandler {
+
+		private static final long serialVersionUID = 1L;
+
+		private byte[] bytes = new byte[64];
+		private int length;
+
+		ChatLine() {
+			super(null);
+		}
+
+		private void read(ByteBuffer in, int length) {
+			if (bytes.length < length) {
+				bytes = new byte[Math.max(length, bytes.length * 2)];
+			}
+			in.get(bytes, 0, length);
+			this.length = length;
+			message = null;
+		}
+
+		//The line is the first length() bytes
+		byte[] bytes() {
+			return bytes;
+		}
+
+		int length() {
+			return length;
+		}
+
+		//A room command such as /join, rather than chat
+		boolean isCommand() {
+			return length > 0 && bytes[0] == '/';
+		}
+
+		public String getMessage() {
+			if (message == null) {
+				message = new String(bytes, 0, length, StandardCharsets.UTF_8);
+			}
+			return message;
+		}
+	}
+
+	/**
+	 * Incremental decoder for one inbound connection, reading straight from
+	 * the event loop's buffer. decode() returns null when only part of a
+	 * frame is buffered, leaving the position at the start of that frame.
+	 */
+	static final class Decoder implements WireProtocol.Decoder {
+
+		//the one CHAT message handed out again and again, or null if each frame gets a new one
+		private final ChatLine reused;
+		private int version;
+		private int required;
+
+		Decoder() {
+			this(false);
+		}
+
+		//With reuse, CHAT frames decode to one ChatLine, overwritten by the next: for a caller done with each before decoding on
+		Decoder(boolean reuse) {
+			this.reused = reuse ? new ChatLine() : null;
+		}
+
+		public Object decode(ByteBuffer in) throws IOException {
+			if (version == 0) {
+				if (in.remaining() < HELLO_LENGTH) {
+					required = HELLO_LENGTH;
+					return null;
+				}
+				version = negotiate(in);
+			}
+			if (in.remaining() < HEADER_LENGTH) {
+				required = HEADER_LENGTH;
+				return null;
+			}
+			int start = in.position();
+			int length = checkLength(in.getInt(start));
+			if (in.remaining() < HEADER_LENGTH + length) {
+				required = HEADER_LENGTH + length;
+				return null;
+			}
+			byte type = in.get(start + 4);
+			in.position(start + HEADER_LENGTH);
+			String text;
+			if (type == TYPE_TRACED) {
+				if (version < TRACE_VERSION) {
+					throw new StreamCorruptedException("traced frame from a version " + version + " client");
+				}
+				MessageTracer.TracedMessage message = traced(in, length);
+				required = 0;
+				return message;
+			} else if (type == TYPE_DEFLATED) {
+				if (version < COMPRESSION_VERSION) {
+					throw new StreamCorruptedException("compressed frame from a version " + version + " client");
+				}
+				text = inflate(in, length);
+			} else if (type == TYPE_CHAT && reused != null) {
+				reused.read(in, length);
+				required = 0;
+				return reused;
+			} else {
+				text = readUtf8(in, length);
+			}
+			required = 0;
+			return toMessage(type, text);
+		}
+
+		public int required() {
+			return required;
+		}
+
+		//Frames are independent, so nothing outlives the frame being decoded
+		public long retainedBytes() {
+			return 0;
+		}
+
+		//Negotiated version, or 0 before the hello has arrived
+		int version() {
+			return version;
+		}
+
+		//Clients that speak version 2 are sent long broadcasts compressed, and from version 3 traced lines with their stamps
+		public WireProtocol protocol() {
+			if (version >= TRACE_VERSION) {
+				return WireProtocol.BINARY_TRACED;
+			}
+			return version >= COMPRESSION_VERSION ? WireProtocol.BINARY_DEFLATE : WireProtocol.BINARY;
+		}
+
+		private static String inflate(ByteBuffer in, int length) throws StreamCorruptedException {
+			String text;
+			if (in.hasArray()) {
+				text = ChatCompression.decompress(in.array(), in.arrayOffset() + in.position(), length, MAX_PAYLOAD_LENGTH);
+				in.position(in.position() + length);
+			} else {
+				byte[] payload = new byte[length];
+				in.get(payload);
+				text = ChatCompression.decompress(payload, 0, length, MAX_PAYLOAD_LENGTH);
+			}
+			return text;
+		}
+
+		private static String readUtf8(ByteBuffer in, int length) {
+			String text;
+			if (in.hasArray()) {
+				text = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+				in.position(in.position() + length);
+			} else {
+				byte[] payload = new byte[length];
+				in.get(payload);
+				text = new String(payload, StandardCharsets.UTF_8);
+			}
+			return text;
+		}
+	}
+}
@@ -0,0 +1,451 @@
+/**
+ * Multiple Client Chat Application
+ * ChatClient is a client without a window, for bots and load generation.
+ * connect() joins a server under a username, send() queues a chat line and
+ * returns at once, and a Listener hears every line the server sends.
+ *
+ * Clients do not have threads of their own. A Group runs a few selector
+ * loops, like the server's SelectorEngine, and every client is a
+ * non-blocking channel on one of them: thousands of clients in one JVM are
+ * a few threads, and an idle client holds no buffers. Lines queued while
+ * the socket is busy are written together in one write.
+ *
+ * A sample of lines is sent traced, and the stages of every traced line
+ * received are recorded in the group's MessageTracer.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public final class ChatClient implements Closeable {
+
+	//selector loops of the shared group used by connect(host, port, username, listener)
+	static final String LOOPS_PROPERTY = "chat.client.loops";
+	//about one line in this many is sent traced (0 none), if the server speaks BinaryCodec.TRACE_VERSION
+	static final String TRACE_EVERY_PROPERTY = "chat.client.traceEvery";
+	//lines encoded into one write at most, so one busy client does not hold up its loop
+	static final int MAX_WRITE_BYTES = 64 * 1024;
+
+	//Callbacks run on the client's loop, shared with other clients; they must not block
+	public interface Listener {
+
+		//A line from the server: a broadcast, a private message or a reply to a room command
+		void received(ChatClient client, String message);
+
+		//The connection has ended; cause is null after close()
+		void closed(ChatClient client, IOException cause);
+	}
+
+	//stands for the disconnect frame in the outbox
+	private static final String DISCONNECT = new String("disconnect");
+	private static Group shared;
+
+	private final String username;
+	private final SocketChannel channel;
+	private final Group.Loop loop;
+	private final Listener listener;
+	private final int capacity;
+	private final ConcurrentLinkedQueue<String> outbox = new ConcurrentLinkedQueue<String>();
+	private final AtomicInteger unsent = new AtomicInteger();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			try {
+				flush();
+			} catch (IOException e) {
+				closeNow(e);
+			}
+		}
+	};
+	private final BinaryCodec.Decoder decoder = new BinaryCodec.Decoder();
+	//loop only: bytes the socket has not taken yet, and how many queued lines they hold
+	private ByteBuffer outbound;
+	private int outboundLines;
+	private boolean disconnectWritten;
+	private ByteBuffer inbound;
+	private SelectionKey key;
+	private volatile boolean closing;
+	private volatile boolean closed;
+
+	private ChatClient(String username, SocketChannel channel, Group.Loop loop, Listener listener, int capacity) {
+		this.username = username;
+		this.channel = channel;
+		this.loop = loop;
+		this.listener = listener;
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Connects to a server on the shared group and joins as username. Blocks
+	 * only until the TCP connection is open; the hello and username are sent
+	 * from the loop, and lines sent before the server answers wait for it.
+	 */
+	public static ChatClient connect(String host, int port, String username, Listener listener) throws IOException {
+		return sharedGroup().connect(host, port, username, listener);
+	}
+
+	//The group behind connect(host, port, username, listener), started on first use
+	static synchronized Group sharedGroup() throws IOException {
+		if (shared == null) {
+			shared = new Group(Integer.getInteger(LOOPS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+		}
+		return shared;
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	/**
+	 * Queues a chat line without waiting for the socket. Returns false if
+	 * chat.client.sendQueue lines are already waiting, or the client is
+	 * closing or closed.
+	 */
+	public boolean send(String text) {
+		if (text == null || closing) {
+			return false;
+		}
+		if (unsent.incrementAndGet() > capacity) {
+			unsent.decrementAndGet();
+			return false;
+		}
+		outbox.add(text);
+		scheduleFlush();
+		return true;
+	}
+
+	//Sends a disconnect after the lines already queued; the listener is told when the server has closed
+	public void close() {
+		if (closing) {
+			return;
+		}
+		closing = true;
+		outbox.add(DISCONNECT);
+		scheduleFlush();
+	}
+
+	public boolean isOpen() {
+		return !closed;
+	}
+
+	//Lines queued or being written, not yet taken by the socket
+	public int pending() {
+		return unsent.get();
+	}
+
+	public long sent() {
+		return sent.get();
+	}
+
+	public long received() {
+		return received.get();
+	}
+
+	//Version agreed with the server, or 0 until its hello has arrived
+	int version() {
+		return decoder.version();
+	}
+
+	private void scheduleFlush() {
+		if (flushScheduled.compareAndSet(false, true)) {
+			loop.execute(flushTask);
+		}
+	}
+
+	//Runs on the loop once the channel is registered
+	private void start(SelectionKey key) throws IOException {
+		this.key = key;
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		BinaryCodec.writeHello(out);
+		BinaryCodec.writeFrame(out, BinaryCodec.TYPE_USERNAME, username);
+		outbound = ByteBuffer.wrap(bytes.toByteArray());
+		flushScheduled.set(true);
+		flush();
+	}
+
+	//Writes what is queued until the socket is full or nothing is left (loop thread only)
+	private void flush() throws IOException {
+		while (!closed) {
+			if (outbound != null) {
+				channel.write(outbound);
+				if (outbound.hasRemaining()) {
+					setWriteInterest(true);
+					return;
+				}
+				outbound = null;
+				unsent.addAndGet(-outboundLines);
+				sent.addAndGet(outboundLines);
+				outboundLines = 0;
+				if (disconnectWritten) {
+					//the server closes once it has read the disconnect; closing first could reset it unread
+					channel.shutdownOutput();
+					setWriteInterest(false);
+					return;
+				}
+			}
+			//chat waits for the server's hello, so it can be compressed if both sides can
+			if (version() == 0 || !encodeQueued()) {
+				setWriteInterest(false);
+				flushScheduled.set(false);
+				//a line queued after the outbox was found empty must not be stranded
+				if (version() == 0 || outbox.isEmpty() || !flushScheduled.compareAndSet(false, true)) {
+					return;
+				}
+			}
+		}
+	}
+
+	//Encodes queued lines into one buffer; false if there were none
+	private boolean encodeQueued() throws IOException {
+		ByteArrayOutputStream bytes = loop.scratch;
+		bytes.reset();
+		DataOutputStream out = new DataOutputStream(bytes);
+		String text;
+		while (bytes.size() < MAX_WRITE_BYTES && (text = outbox.poll()) != null) {
+			if (text == DISCONNECT) {
+				BinaryCodec.writeFrame(out, BinaryCodec.TYPE_DISCONNECT, null);
+				disconnectWritten = true;
+				break;
+			}
+			if (version() >= BinaryCodec.TRACE_VERSION && loop.tracer().sample()) {
+				BinaryCodec.writeTraced(out, MessageTracer.now(), text);
+			} else {
+				BinaryCodec.writeChat(out, version(), text);
+			}
+			outboundLines++;
+		}
+		if (bytes.size() == 0) {
+			return false;
+		}
+		outbound = ByteBuffer.wrap(bytes.toByteArray());
+		return true;
+	}
+
+	private void setWriteInterest(boolean enabled) {
+		if (key != null && key.isValid()) {
+			int ops = enabled ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+			if (key.interestOps() != ops) {
+				key.interestOps(ops);
+			}
+		}
+	}
+
+	//Called by the loop when the channel is readable; bytes go to the loop's buffer, only a partial frame is kept
+	private void onReadable(ByteBuffer shared) throws IOException {
+		shared.clear();
+		int count = channel.read(shared);
+		if (count < 0) {
+			closeNow(closing ? null : new EOFException("server closed the connection"));
+			return;
+		}
+		long readAt = MessageTracer.now();
+		shared.flip();
+		ByteBuffer in = shared;
+		if (inbound != null) {
+			inbound = append(inbound, shared);
+			in = inbound;
+		}
+		boolean greeted = version() > 0;
+		Object frame;
+		while (!closed && (frame = decoder.decode(in)) != null) {
+			if (!(frame instanceof MessageHandler) || ((MessageHandler) frame).diconnectClient()) {
+				throw new StreamCorruptedException("expected a chat line");
+			}
+			received.incrementAndGet();
+			if (frame instanceof MessageTracer.TracedMessage) {
+				loop.tracer().delivered(((MessageTracer.TracedMessage) frame).trace, readAt);
+			}
+			listener.received(this, ((MessageHandler) frame).getMessage());
+		}
+		if (closed || !in.hasRemaining()) {
+			inbound = null;
+		} else if (in == shared) {
+			inbound = ByteBuffer.allocate(Math.max(in.remaining(), decoder.required()));
+			inbound.put(in);
+			inbound.flip();
+		}
+		if (!greeted && version() > 0 && !outbox.isEmpty() && flushScheduled.compareAndSet(false, true)) {
+			flush();
+		}
+	}
+
+	//Appends data after the pending bytes, compacting or growing the buffer as needed
+	private ByteBuffer append(ByteBuffer pending, ByteBuffer data) {
+		int needed = pending.remaining() + data.remaining();
+		if (pending.capacity() >= needed) {
+			pending.compact();
+			pending.put(data);
+			pending.flip();
+			return pending;
+		}
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, Math.max(decoder.required(), pending.capacity() * 2)));
+		grown.put(pending);
+		grown.put(data);
+		grown.flip();
+		return grown;
+	}
+
+	private void closeNow(IOException cause) {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		closing = true;
+		outbox.clear();
+		unsent.set(0);
+		outbound = null;
+		inbound = null;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+		listener.closed(this, cause);
+	}
+
+	/**
+	 * A few selector loops shared by many clients. Clients are spread over
+	 * the loops as they connect; each client's callbacks always run on its
+	 * own loop.
+	 */
+	public static final class Group implements Closeable {
+
+		private final Loop[] loops;
+		private final AtomicInteger nextLoop = new AtomicInteger();
+		private final MessageTracer tracer = new MessageTracer(Integer.getInteger(TRACE_EVERY_PROPERTY, 100));
+		private volatile boolean running = true;
+
+		public Group(int loopCount) throws IOException {
+			loops = new Loop[Math.max(1, loopCount)];
+			for (int i = 0; i < loops.length; i++) {
+				loops[i] = new Loop(i);
+				loops[i].start();
+			}
+		}
+
+		public ChatClient connect(String host, int port, String username, Listener listener) throws IOException {
+			if (!running) {
+				throw new IOException("client group closed");
+			}
+			final SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+			channel.socket().setTcpNoDelay(true);
+			channel.configureBlocking(false);
+			final Loop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+			final ChatClient client = new ChatClient(username, channel, loop, listener,
+					Integer.getInteger(ClientSender.CAPACITY_PROPERTY, ClientSender.DEFAULT_CAPACITY));
+			loop.execute(new Runnable() {
+				public void run() {
+					try {
+						client.start(channel.register(loop.selector, SelectionKey.OP_READ, client));
+					} catch (IOException e) {
+						client.closeNow(e);
+					}
+				}
+			});
+			return client;
+		}
+
+		int loopCount() {
+			return loops.length;
+		}
+
+		//Stages of the traced lines this group's clients have received
+		MessageTracer tracer() {
+			return tracer;
+		}
+
+		//Drops every connection without a disconnect and stops the loops
+		public void close() {
+			running = false;
+			for (Loop loop : loops) {
+				loop.selector.wakeup();
+			}
+		}
+
+		final class Loop extends Thread implements Executor {
+
+			private final Selector selector;
+			private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+			private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(SelectorEngine.READ_BUFFER_SIZE);
+			//where this loop's clients encode their lines before writing
+			final ByteArrayOutputStream scratch = new ByteArrayOutputStream(MAX_WRITE_BYTES);
+
+			Loop(int index) throws IOException {
+				super("chat-client-loop-" + index);
+				setDaemon(true);
+				selector = Selector.open();
+			}
+
+			MessageTracer tracer() {
+				return tracer;
+			}
+
+			public void execute(Runnable task) {
+				tasks.add(task);
+				if (Thread.currentThread() != this) {
+					selector.wakeup();
+				}
+			}
+
+			public void run() {
+				while (running) {
+					try {
+						if (tasks.isEmpty()) {
+							selector.select();
+						} else {
+							selector.selectNow();
+						}
+					} catch (IOException e) {
+						System.err.println("Client error : " + e);
+						break;
+					}
+					Runnable task;
+					while ((task = tasks.poll()) != null) {
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							System.err.println("Client error : " + e);
+						}
+					}
+					Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+					while (selected.hasNext()) {
+						SelectionKey key = selected.next();
+						selected.remove();
+						ChatClient client = (ChatClient) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable()) {
+								client.onReadable(readBuffer);
+							}
+							if (key.isValid() && key.isWritable()) {
+								client.flush();
+							}
+						} catch (IOException e) {
+							client.closeNow(e);
+						} catch (RuntimeException e) {
+							client.closeNow(new IOException(e));
+						}
+					}
+				}
+				for (SelectionKey key : selector.keys()) {
+					((ChatClient) key.attachment()).closeNow(new IOException("client group closed"));
+				}
+				try {
+					selector.close();
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * Multiple Client Chat Application
+ * ChatCompression deflates chat lines for the binary protocol. Both sides
+ * prime zlib with the same preset dictionary of text that recurs in chat
+ * (timestamps, join and leave notices, commands, common words), so even a
+ * line of a few hundred bytes finds matches from its first byte instead of
+ * paying to spell everything out once. A compressed payload is the length
+ * of the text, then a zlib stream, whose checksum also catches a peer that
+ * was built with a different dictionary.
+ *
+ * Deflaters and inflaters are kept per thread: setting one up allocates
+ * native zlib state, which would otherwise cost more than a short line.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.zip.*;
+
+final class ChatCompression {
+
+	//payloads shorter than this many bytes are sent as they are
+	static final String THRESHOLD_PROPERTY = "chat.compressThreshold";
+	static final int DEFAULT_THRESHOLD = 256;
+	//zlib level 1 to 9
+	static final String LEVEL_PROPERTY = "chat.compressLevel";
+	static final int DEFAULT_LEVEL = Deflater.BEST_SPEED;
+
+	static final int THRESHOLD = Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD);
+	static final int LEVEL = Integer.getInteger(LEVEL_PROPERTY, DEFAULT_LEVEL);
+
+	//uncompressed length ahead of the zlib stream
+	static final int LENGTH_PREFIX = 4;
+
+	/**
+	 * The preset dictionary. zlib finds the end of a dictionary cheapest to
+	 * refer to, so the most common strings come last. Changing it changes
+	 * the protocol: it needs a new BinaryCodec version.
+	 */
+	static final byte[] DICTIONARY = (
+			"https://www. .com/ .org/ .html Exception at java. error: null "
+			+ "please could would should about because really think thanks thank you "
+			+ "sorry what when where which there their they them then than "
+			+ "have has had been was were will with from this that just know like "
+			+ "yes no ok okay lol :) :( haha hi hey hello everyone anyone morning "
+			+ "Commands: /join <room>, /leave, /rooms, /msg <user> <text> "
+			+ "Rooms: lobby (1) No user named Usage: /msg -> "
+			+ " left.\n joined.\n disconnected.\n connected\n #general #java #lobby "
+			+ "the and you for not but are can all out get one our any how its "
+			+ "10:00:00 11:15:30 12:30:45 01:45:15 02:50:20 "
+			+ " is it to of in on at a I ? ! . , : \n").getBytes(StandardCharsets.UTF_8);
+
+	private static final ThreadLocal<Deflater> DEFLATERS = new ThreadLocal<Deflater>() {
+		protected Deflater initialValue() {
+			return new Deflater(LEVEL);
+		}
+	};
+
+	private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>() {
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private ChatCompression() {
+	}
+
+	/**
+	 * Compresses payload into out starting at offset: the length prefix,
+	 * then the zlib stream. Returns the offset after the compressed bytes,
+	 * or -1 if they would not have been smaller than payload, in which case
+	 * it should be sent as it is. out needs LENGTH_PREFIX + payload.length
+	 * bytes after offset.
+	 */
+	static int compress(byte[] payload, byte[] out, int offset) {
+		Deflater deflater = DEFLATERS.get();
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(payload);
+		deflater.finish();
+		ByteBuffer.wrap(out, offset, LENGTH_PREFIX).putInt(payload.length);
+		int end = offset + LENGTH_PREFIX;
+		int limit = offset + payload.length;
+		while (!deflater.finished() && end < limit) {
+			end += deflater.deflate(out, end, limit - end);
+		}
+		return deflater.finished() ? end : -1;
+	}
+
+	/**
+	 * Decompresses one payload written by compress(). A length above
+	 * maxLength, or a stream that does not inflate to exactly that length,
+	 * is treated as a corrupt stream rather than buffered.
+	 */
+	static String decompress(byte[] in, int offset, int length, int maxLength) throws StreamCorruptedException {
+		if (length < LENGTH_PREFIX) {
+			throw new StreamCorruptedException("compressed payload too short");
+		}
+		int textLength = ByteBuffer.wrap(in, offset, LENGTH_PREFIX).getInt();
+		if (textLength < 0 || textLength > maxLength) {
+			throw new StreamCorruptedException("invalid compressed length " + textLength);
+		}
+		Inflater inflater = INFLATERS.get();
+		inflater.reset();
+		inflater.setInput(in, offset + LENGTH_PREFIX, length - LENGTH_PREFIX);
+		//one spare byte, so a stream longer than it claims is caught instead of cut short
+		byte[] text = new byte[textLength + 1];
+		int produced = 0;
+		try {
+			while (!inflater.finished()) {
+				int n = inflater.inflate(text, produced, text.length - produced);
+				produced += n;
+				if (n == 0) {
+					if (inflater.needsDictionary()) {
+						inflater.setDictionary(DICTIONARY);
+					} else if (inflater.needsInput() || produced == text.length) {
+						break;
+					}
+				}
+			}
+		} catch (DataFormatException | IllegalArgumentException error) {
+			throw new StreamCorruptedException("invalid compressed payload: " + error.getMessage());
+		}
+		if (!inflater.finished() || produced != textLength || inflater.getRemaining() != 0) {
+			throw new StreamCorruptedException("compressed payload does not match its length");
+		}
+		return new String(text, 0, textLength, StandardCharsets.UTF_8);
+	}
+}
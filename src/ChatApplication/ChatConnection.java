@@ -0,0 +1,48 @@
+/**
+ * Multiple Client Chat Application
+ * ChatConnection is the server's view of one connected client, whichever
+ * engine (a blocking HandleAClient thread or a selector-driven NioConnection)
+ * is carrying it.
+ */
+
+package ChatApplication;
+
+import java.nio.*;
+
+interface ChatConnection {
+
+	String getUsername();
+
+	//Id given by the ClientRegistry when the client joined; -1 before that
+	long getClientId();
+
+	void setClientId(long id);
+
+	//Shard whose thread sends this client its broadcasts; stays the same while the client is connected
+	default int getShard() {
+		return 0;
+	}
+
+	//Protocol the client spoke when it connected; decides how broadcasts are encoded for it
+	WireProtocol getProtocol();
+
+	//Queues an encoded frame, shared with other recipients, for this client's writer; never blocks on the socket
+	void sendFrame(ByteBuffer frame);
+
+	//Messages waiting in the client's outbound queue
+	int getQueueDepth();
+
+	//Age of the oldest message still waiting to be written
+	long getLagMillis();
+
+	//Serialization state kept for this client: our inbound handle table plus the estimated size of the client's
+	long getRetainedBytes();
+
+	void close();
+
+	//Sends one last frame, such as why the client is turned away, then closes
+	default void closeWith(ByteBuffer frame) {
+		sendFrame(frame);
+		close();
+	}
+}
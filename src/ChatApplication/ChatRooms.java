@@ -0,0 +1,292 @@
+/**
+ * Multiple Client Chat Application
+ * ChatRooms is the subscription index from room name to the clients in it.
+ * Every client is in exactly one room, starting in the lobby, and a line it
+ * sends goes only to that room, so a broadcast costs one write per member of
+ * the room rather than one per client on the server.
+ * Joining and leaving only lock the hash bin of the room concerned, and a
+ * broadcast walks a room's member array without a lock, a copy or an
+ * iterator, so membership changes never wait for a broadcast in flight,
+ * nor it for them, and a broadcast allocates nothing to reach its members.
+ * A room disappears when its last member leaves.
+ * Members are split by shard (ChatConnection.getShard()). A broadcast goes
+ * as one task to the mailbox of each shard with members in the room, and
+ * each shard sends it to its own members, so the fan-out runs on all
+ * shards in parallel instead of on the sender's thread.
+ */
+
+package ChatApplication;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.regex.*;
+
+final class ChatRooms {
+
+	static final String LOBBY = "lobby";
+	static final int MAX_NAME_LENGTH = 32;
+
+	private static final Pattern ROOM_NAME = Pattern.compile("[A-Za-z0-9_-]{1," + MAX_NAME_LENGTH + "}");
+
+	/**
+	 * The members of a room on one shard. A member keeps its slot until it
+	 * leaves, and a slot left free is taken by the next to join, so the
+	 * array only grows (by copying) when the shard has more members than
+	 * ever before. Joining and leaving happen under the room's hash bin
+	 * lock, one at a time; broadcasts read without a lock and, like
+	 * ClientRegistry, may or may not reach a member joining meanwhile.
+	 */
+	static final class Members implements Iterable<ChatConnection> {
+
+		private volatile AtomicReferenceArray<ChatConnection> slots = new AtomicReferenceArray<ChatConnection>(4);
+		//slots in use are all below end
+		private volatile int end;
+		private volatile int size;
+		//writers only
+		private final Map<ChatConnection, Integer> slotOf = new HashMap<ChatConnection, Integer>();
+		private final ArrayDeque<Integer> freeSlots = new ArrayDeque<Integer>();
+
+		private void add(ChatConnection member) {
+			if (slotOf.containsKey(member)) {
+				return;
+			}
+			Integer slot = freeSlots.poll();
+			if (slot == null) {
+				slot = end;
+				if (slot == slots.length()) {
+					AtomicReferenceArray<ChatConnection> grown = new AtomicReferenceArray<ChatConnection>(slot * 2);
+					for (int i = 0; i < slot; i++) {
+						grown.set(i, slots.get(i));
+					}
+					slots = grown;
+				}
+				end = slot + 1;
+			}
+			slots.set(slot, member);
+			slotOf.put(member, slot);
+			size++;
+		}
+
+		private void remove(ChatConnection member) {
+			Integer slot = slotOf.remove(member);
+			if (slot != null) {
+				slots.set(slot, null);
+				freeSlots.push(slot);
+				size--;
+			}
+		}
+
+		int size() {
+			return size;
+		}
+
+		boolean isEmpty() {
+			return size == 0;
+		}
+
+		//Queues the broadcast for every member
+		void send(WireProtocol.Broadcast broadcast) {
+			AtomicReferenceArray<ChatConnection> members = slots;
+			int count = Math.min(end, members.length());
+			for (int i = 0; i < count; i++) {
+				ChatConnection member = members.get(i);
+				if (member != null) {
+					broadcast.sendTo(member);
+				}
+			}
+		}
+
+		//Weakly consistent, like send()
+		public Iterator<ChatConnection> iterator() {
+			final AtomicReferenceArray<ChatConnection> members = slots;
+			final int count = Math.min(end, members.length());
+			return new Iterator<ChatConnection>() {
+				private int index;
+				private ChatConnection upcoming = advance();
+
+				private ChatConnection advance() {
+					while (index < count) {
+						ChatConnection member = members.get(index++);
+						if (member != null) {
+							return member;
+						}
+					}
+					return null;
+				}
+
+				public boolean hasNext() {
+					return upcoming != null;
+				}
+
+				public ChatConnection next() {
+					if (upcoming == null) {
+						throw new NoSuchElementException();
+					}
+					ChatConnection member = upcoming;
+					upcoming = advance();
+					return member;
+				}
+			};
+		}
+	}
+
+	static final class Room implements Iterable<ChatConnection> {
+
+		final String name;
+		private final Members[] members;
+
+		private Room(String name, int shards) {
+			this.name = name;
+			this.members = new Members[shards];
+			for (int i = 0; i < shards; i++) {
+				members[i] = new Members();
+			}
+		}
+
+		boolean isLobby() {
+			return LOBBY.equals(name);
+		}
+
+		//Weakly consistent, like ClientRegistry: members joining meanwhile may or may not be reached
+		public Iterator<ChatConnection> iterator() {
+			return new Iterator<ChatConnection>() {
+				private int shard;
+				private Iterator<ChatConnection> current = members[0].iterator();
+
+				public boolean hasNext() {
+					while (!current.hasNext() && shard + 1 < members.length) {
+						current = members[++shard].iterator();
+					}
+					return current.hasNext();
+				}
+
+				public ChatConnection next() {
+					if (!hasNext()) {
+						throw new NoSuchElementException();
+					}
+					return current.next();
+				}
+			};
+		}
+
+		//The members one shard sends to
+		Iterable<ChatConnection> members(int shard) {
+			return members[shard];
+		}
+
+		int size() {
+			int size = 0;
+			for (Members part : members) {
+				size += part.size();
+			}
+			return size;
+		}
+
+		/**
+		 * Posts the broadcast to the mailbox of every shard with members here,
+		 * one task per shard. Each shard then sends it to its own members.
+		 * Shards run their mailboxes in order, so posting under one lock keeps
+		 * every client's view of the broadcasts in the same order.
+		 */
+		void post(Executor[] shards, WireProtocol.Broadcast broadcast) {
+			broadcast.posting();
+			for (int i = 0; i < members.length; i++) {
+				if (!members[i].isEmpty()) {
+					broadcast.postingTo();
+					shards[i].execute(broadcast.to(i, members[i]));
+				}
+			}
+			broadcast.shardDone();
+		}
+
+		private Members part(ChatConnection client) {
+			return members[client.getShard() % members.length];
+		}
+	}
+
+	private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<String, Room>();
+	private final ConcurrentHashMap<ChatConnection, Room> roomOf = new ConcurrentHashMap<ChatConnection, Room>();
+	private final int shards;
+
+	ChatRooms() {
+		this(1);
+	}
+
+	ChatRooms(int shards) {
+		this.shards = Math.max(1, shards);
+	}
+
+	int shardCount() {
+		return shards;
+	}
+
+	static boolean isValidName(String name) {
+		return name != null && ROOM_NAME.matcher(name).matches();
+	}
+
+	/**
+	 * Moves a client into the named room, creating the room if needed.
+	 * Returns the room the client was in before, or null if it was in none
+	 * or already in this one.
+	 */
+	Room join(final ChatConnection client, String name) {
+		if (!isValidName(name)) {
+			throw new IllegalArgumentException("invalid room name: " + name);
+		}
+		Room previous = roomOf.get(client);
+		if (previous != null && previous.name.equals(name)) {
+			return null;
+		}
+		Room room = rooms.compute(name, new BiFunction<String, Room, Room>() {
+			public Room apply(String key, Room existing) {
+				Room room = existing == null ? new Room(key, shards) : existing;
+				room.part(client).add(client);
+				return room;
+			}
+		});
+		roomOf.put(client, room);
+		if (previous != null) {
+			remove(client, previous);
+		}
+		return previous;
+	}
+
+	//Takes a client out of whatever room it is in, e.g. when it disconnects; returns that room
+	Room leave(ChatConnection client) {
+		Room room = roomOf.remove(client);
+		if (room != null) {
+			remove(client, room);
+		}
+		return room;
+	}
+
+	//The room a client is in, or null if it has not joined one
+	Room roomOf(ChatConnection client) {
+		return roomOf.get(client);
+	}
+
+	Room get(String name) {
+		return rooms.get(name);
+	}
+
+	//Current rooms by name with their member counts
+	SortedMap<String, Integer> sizes() {
+		SortedMap<String, Integer> sizes = new TreeMap<String, Integer>();
+		for (Room room : rooms.values()) {
+			sizes.put(room.name, room.size());
+		}
+		return sizes;
+	}
+
+	private void remove(final ChatConnection client, Room room) {
+		//removal happens inside the bin lock so a concurrent join cannot add to a room being dropped
+		rooms.computeIfPresent(room.name, new BiFunction<String, Room, Room>() {
+			public Room apply(String key, Room existing) {
+				existing.part(client).remove(client);
+				return existing.size() == 0 ? null : existing;
+			}
+		});
+	}
+}
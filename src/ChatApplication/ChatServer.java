@@ -0,0 +1,833 @@
+
+
+/**
+ * Multiple Client Chat Application
+ * ChatServer is the server without its window: the engines, rooms, history,
+ * journal and cluster links. It has no Swing dependency, so it runs on a
+ * machine with no display. What used to be appended to the server window
+ * goes to a ServerLog instead, so neither a broadcast lock nor a network
+ * thread ever waits on the Event Dispatch Thread or a growing text area.
+ * Broadcasts are ordered per room, not across the server: each room hashes
+ * to a Lane whose lock is held only to put a line together and post it, so
+ * rooms in different lanes broadcast in parallel. Logging, journalling and
+ * relaying a line happen afterwards on one keeper thread, in posting order.
+ * Server is the windowed front end, showing the same log.
+ */
+
+package ChatApplication;
+
+import java.util.*;
+import java.io.*;
+import java.net.*; 
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+
+
+
+public class ChatServer {
+	
+	static final int PORT = 8001;
+	//port clients connect to, PORT unless set
+	static final String PORT_PROPERTY = "chat.server.port";
+	//"selector" (default) multiplexes clients over a few event loops,
+	//"threads" runs one platform thread per client, "virtual" one virtual thread per client
+	static final String ENGINE_PROPERTY = "chat.server.engine";
+	//number of shards: event loops, or fan-out threads in the thread-per-client engines
+	static final String LOOPS_PROPERTY = "chat.server.loops";
+	//how often, if at all, queue depths of lagging clients are written to the log
+	static final String QUEUE_REPORT_PROPERTY = "chat.server.queueReportSeconds";
+	//about one chat line in this many is traced through the server (0 none); lines traced by their client always are
+	static final String TRACE_EVERY_PROPERTY = "chat.server.traceEvery";
+	//initial read buffer of a thread-per-client connection; grown for large messages
+	static final int INPUT_BUFFER_SIZE = 8 * 1024;
+	//lanes rooms are spread over, a power of two
+	static final int LANES = 64;
+	
+	/**
+	 * Orders the broadcasts of the rooms hashing to it, so every member of
+	 * a room queues the room's lines in the same order. The lock is held
+	 * only while a line is put together, kept in the history and posted to
+	 * the shards' mailboxes, not during the fan-out; joining and leaving
+	 * do not take it.
+	 */
+	private static final class Lane {
+		//not a monitor: a virtual thread blocked on a socket write inside synchronized would pin its carrier
+		final ReentrantLock lock = new ReentrantLock();
+		//the line being broadcast, as UTF-8, and the broadcasts posting it; only used under lock
+		final LineBuffer line = new LineBuffer(256);
+		final WireProtocol.Broadcast.Pool broadcasts = new WireProtocol.Broadcast.Pool();
+	}
+	
+	//the hh:mm:ss every line starts with, formatted once a second; thread-safe
+	private final LineClock clock = new LineClock();
+	private final Lane[] lanes = new Lane[LANES];
+	//logs, journals and relays every line once posted, one at a time in posting order
+	private final ShardThread keeper = new ShardThread("chat-keeper");
+	//on the keeper, once a line broadcast here is posted; peers get this node's lines in posting order
+	private final WireProtocol.Broadcast.Sink posted = new WireProtocol.Broadcast.Sink() {
+		public void posted(String room, byte[] line, int length) {
+			keep(room, line, length);
+			if (cluster != null) {
+				cluster.relay(room, new String(line, 0, length, StandardCharsets.UTF_8));
+			}
+		}
+	};
+	//on the keeper, once a line relayed from another node is posted; it goes no further
+	private final WireProtocol.Broadcast.Sink relayed = new WireProtocol.Broadcast.Sink() {
+		public void posted(String room, byte[] line, int length) {
+			keep(room, line, length);
+		}
+	};
+	private final ServerLog log;
+	private ClientRegistry clientRegistry;
+	private ChatRooms rooms;
+	//mailboxes of the shards that fan broadcasts out, indexed by ChatConnection.getShard()
+	private Executor[] shards;
+	//peer links to the other servers of a cluster, or null when running alone
+	private ClusterNode cluster;
+	//every broadcast line on disk, or null when journalling is off; appended to by the keeper
+	private MessageJournal journal;
+	//recent lines replayed to clients as they join, or null when turned off
+	private HistoryRing history;
+	//what close() stops: the listening socket or selector engine, the thread accepting on it and the client threads
+	private volatile ServerSocketChannel serverSocket;
+	private volatile SelectorEngine engine;
+	private volatile Thread acceptThread;
+	private volatile ExecutorService clientThreads;
+	private volatile ScheduledExecutorService queueReporter;
+	private volatile boolean closed;
+	//counters and fan-out latency, over JMX and optionally chat.server.metricsPort
+	private final ServerMetrics metrics;
+	//per-stage latency of sampled lines, from client send to broadcast
+	private final MessageTracer tracer;
+	
+	ChatServer(ServerLog log) {
+		this.log = log;
+		log.log("Waiting for connections..........\n");
+		clientRegistry = new ClientRegistry();
+		rooms = new ChatRooms(Integer.getInteger(LOOPS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+		history = HistoryRing.fromSystemProperties();
+		tracer = new MessageTracer(Integer.getInteger(TRACE_EVERY_PROPERTY, 100));
+		metrics = new ServerMetrics(clientRegistry, WriteBatch.STATS, tracer);
+		for (int i = 0; i < lanes.length; i++) {
+			lanes[i] = new Lane();
+		}
+		keeper.start();
+	}
+	
+	ServerLog log() {
+		return log;
+	}
+	
+	ServerMetrics metrics() {
+		return metrics;
+	}
+	
+	//Starts the engine chosen by chat.server.engine and serves clients until the process exits
+	public void startServer() {
+		startServer(Integer.getInteger(PORT_PROPERTY, PORT));
+	}
+	
+	//As startServer(), on the given port
+	void startServer(int port) {
+		startQueueReport(Integer.getInteger(QUEUE_REPORT_PROPERTY, 0));
+		metrics.start(port);
+		try {
+			journal = MessageJournal.fromSystemProperties();
+			if (journal != null) {
+				final MessageJournal closing = journal;
+				//a last sync, so lines since the previous group commit survive a normal exit
+				Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+					public void run() {
+						try {
+							closing.close();
+						} catch (IOException ignored) {
+						}
+					}
+				}, "chat-journal-close"));
+			}
+		} catch (IOException ex) {
+			System.err.println("Journal error : " + ex);
+		}
+		try {
+			cluster = ClusterNode.fromSystemProperties(new ClusterListener());
+		} catch (IOException ex) {
+			System.err.println("Cluster error : " + ex);
+		}
+		String engine = System.getProperty(ENGINE_PROPERTY);
+		if ("threads".equals(engine)) {
+			startThreadPerClient(ThreadMode.PLATFORM, port);
+		} else if ("virtual".equals(engine)) {
+			startThreadPerClient(ThreadMode.VIRTUAL, port);
+		} else {
+			startSelectorEngine(port);
+		}
+	}
+	
+	private void startSelectorEngine(int port) {
+	        try {
+	            acceptThread = Thread.currentThread();
+	            engine = new SelectorEngine(new EngineListener(), rooms.shardCount());
+	            engine.bind(new InetSocketAddress(port));
+	            shards = engine.getLoops();
+	            engine.acceptLoop();
+	        } catch (IOException ex) {
+	            if (!closed) {
+	                System.err.println("Server error : " + ex);
+	            }
+	        }
+	    }
+	
+	private void startThreadPerClient(ThreadMode mode, int port) {
+		  
+	        acceptThread = Thread.currentThread();
+	        clientThreads = mode.newExecutor("chat-client");
+	        shards = ShardThread.startAll(rooms.shardCount());
+	        try {
+	        	// Create a server socket; a blocking channel so frames can be written without copying
+	            serverSocket = ServerSocketChannel.open();
+	            serverSocket.bind(new InetSocketAddress(port));
+	            while (true) {
+	            	// Socket Listen for connection request
+	                SocketChannel channel = serverSocket.accept();
+	                metrics.accepts.increment();
+	                log.log("New Client connected..........\n");
+	                clientThreads.execute(new HandleAClient(channel, clientThreads));
+	            }
+	        } catch (IOException ex) {
+	            //close() ends accept() by closing the socket under it
+	            if (!closed) {
+	                System.err.println("Server error : " + ex);
+	            }
+	        }
+	    }
+	
+	    /**
+	     * Stops taking clients and disconnects the ones connected, then waits
+	     * up to timeoutMillis for the accepting, client, shard and keeper
+	     * threads to end. Returns whether they all did. The server cannot be
+	     * started again; the journal is still closed by its shutdown hook.
+	     */
+	    boolean close(long timeoutMillis) throws InterruptedException {
+	        closed = true;
+	        if (engine != null) {
+	            engine.close();
+	        }
+	        if (serverSocket != null) {
+	            try {
+	                serverSocket.close();
+	            } catch (IOException ex) {
+	                System.err.println("Server error : " + ex);
+	            }
+	        }
+	        for (ChatConnection client : clientRegistry) {
+	            client.close();
+	        }
+	        if (clientThreads != null) {
+	            clientThreads.shutdownNow();
+	        }
+	        if (queueReporter != null) {
+	            queueReporter.shutdownNow();
+	        }
+	        if (cluster != null) {
+	            cluster.close();
+	        }
+	        metrics.stop();
+	        List<Thread> threads = new ArrayList<Thread>();
+	        if (acceptThread != null) {
+	            threads.add(acceptThread);
+	        }
+	        if (shards != null) {
+	            for (Executor shard : shards) {
+	                //event loops end once the engine is closed; shard threads only when interrupted
+	                if (shard instanceof ShardThread) {
+	                    ((ShardThread) shard).interrupt();
+	                }
+	                threads.add((Thread) shard);
+	            }
+	        }
+	        keeper.interrupt();
+	        threads.add(keeper);
+	        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+	        boolean stopped = clientThreads == null
+	                || clientThreads.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+	        for (Thread thread : threads) {
+	            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+	            stopped &= !thread.isAlive();
+	        }
+	        return stopped;
+	    }
+	
+	  
+	    //A client has sent its username: it is registered, starts out in the lobby and is sent the lobby's recent lines
+	    //A name already in use is refused: the client is told why and closed, and false returned
+	    private boolean joined(ChatConnection client) {
+	        if (clientRegistry.register(client) < 0) {
+	            log.log(new Date() + " " + client.getUsername() + " refused, name in use\n");
+	            client.closeWith(client.getProtocol().encode(timestamp() + " The name " + client.getUsername()
+	                    + " is already in use. Reconnect with another name.\n"));
+	            return false;
+	        }
+	        log.log(new Date() + " " + client.getUsername() + " connected\n");
+	        if (history == null) {
+	            rooms.join(client, ChatRooms.LOBBY);
+	            return true;
+	        }
+	        //the bulk of the backlog is copied and encoded without the lock, so joiners do not hold up broadcasts
+	        long upTo = history.count();
+	        ByteBuffer backlog = encode(client.getProtocol(), history.lines(ChatRooms.LOBBY, 0, upTo));
+	        Lane lane = lane(ChatRooms.LOBBY);
+	        lane.lock.lock();
+	        try {
+	            //only lines broadcast since are fetched here; any later one is posted after the backlog is queued
+	            rooms.join(client, ChatRooms.LOBBY);
+	            ByteBuffer since = encode(client.getProtocol(), history.lines(ChatRooms.LOBBY, upTo, history.count()));
+	            if (backlog != null) {
+	                client.sendFrame(backlog);
+	            }
+	            if (since != null) {
+	                client.sendFrame(since);
+	            }
+	        } finally {
+	            lane.lock.unlock();
+	        }
+	        return true;
+	    }
+	
+	    //Lines as one frame, so the backlog reaches the client in a single write (and compresses as a whole); null if there are none
+	    private static ByteBuffer encode(WireProtocol protocol, List<String> lines) {
+	        if (lines.isEmpty()) {
+	            return null;
+	        }
+	        StringBuilder joined = new StringBuilder();
+	        for (String line : lines) {
+	            joined.append(line);
+	        }
+	        return protocol.encode(joined.toString());
+	    }
+	
+	    private void left(ChatConnection client) {
+	        if (clientRegistry.unregister(client)) {
+	            ChatRooms.Room room = rooms.leave(client);
+	            if (room != null) {
+	                transfer(room, client.getUsername() + " disconnected.");
+	            }
+	        }
+	    }
+	
+	    //A decoded message; chat lines the decoder keeps as UTF-8 go to their room without becoming a String
+	    private void received(ChatConnection client, MessageHandler message, MessageTracer.Trace trace) {
+	        if (message instanceof BinaryCodec.ChatLine && !((BinaryCodec.ChatLine) message).isCommand()) {
+	            metrics.messagesIn.increment();
+	            ChatRooms.Room room = rooms.roomOf(client);
+	            if (room != null) {
+	                transfer(room, client.getUsername(), (BinaryCodec.ChatLine) message, trace);
+	            }
+	            return;
+	        }
+	        chat(client, message.getMessage(), trace);
+	    }
+	
+	    //A line typed by a client: a room command, or chat for the room it is in; trace is null unless it is sampled
+	    private void chat(ChatConnection client, String text, MessageTracer.Trace trace) {
+	        metrics.messagesIn.increment();
+	        String username = client.getUsername();
+	        if (text == null || !text.startsWith("/")) {
+	            ChatRooms.Room room = rooms.roomOf(client);
+	            if (room != null) {
+	                transfer(room, username + ": " + text, trace);
+	            }
+	            return;
+	        }
+	        String[] command = text.trim().split("\\s+", 2);
+	        if ("/join".equals(command[0]) || "/leave".equals(command[0])) {
+	            String name = "/leave".equals(command[0]) ? ChatRooms.LOBBY : command.length > 1 ? command[1] : "";
+	            if (!ChatRooms.isValidName(name)) {
+	                send(client, "Room names are 1 to " + ChatRooms.MAX_NAME_LENGTH + " letters, digits, '-' or '_'.");
+	                return;
+	            }
+	            ChatRooms.Room previous = rooms.join(client, name);
+	            if (previous != null) {
+	                transfer(previous, username + " left.");
+	                transfer(rooms.roomOf(client), username + " joined.");
+	            }
+	        } else if ("/msg".equals(command[0])) {
+	            String[] target = command.length > 1 ? command[1].split("\\s+", 2) : new String[0];
+	            if (target.length < 2) {
+	                send(client, "Usage: /msg <user> <text>");
+	                return;
+	            }
+	            String line = timestamp() + " " + username + " -> " + target[0] + ": " + target[1] + "\n";
+	            ChatConnection recipient = clientRegistry.sendTo(target[0], line);
+	            if (recipient == null) {
+	                send(client, "No user named " + target[0] + ".");
+	            } else if (recipient != client) {
+	                client.sendFrame(client.getProtocol().encode(line));
+	            }
+	        } else if ("/rooms".equals(command[0])) {
+	            StringBuilder list = new StringBuilder("Rooms:");
+	            for (Map.Entry<String, Integer> room : rooms.sizes().entrySet()) {
+	                list.append(' ').append(room.getKey()).append(" (").append(room.getValue()).append(')');
+	            }
+	            send(client, list.toString());
+	        } else {
+	            send(client, "Commands: /join <room>, /leave, /rooms, /msg <user> <text>");
+	        }
+	    }
+	
+	    //Sends to the members of one room, here and on every other node; rooms other than the lobby are named in the line
+	    private void transfer(ChatRooms.Room room, String message) {
+	        transfer(room, message, null);
+	    }
+
+	    private void transfer(ChatRooms.Room room, String message, MessageTracer.Trace trace) {
+	        Lane lane = lane(room.name);
+	        lane.lock.lock();
+	        try {
+	            if (trace != null) {
+	                trace.serverLocked = MessageTracer.now();
+	            }
+	            start(lane, room).append(message);
+	            broadcast(lane, room, trace);
+	        } finally {
+	            lane.lock.unlock();
+	        }
+	    }
+	
+	    //"username: text" with the text copied from the decoder's bytes, so a chat line allocates nothing on its way
+	    private void transfer(ChatRooms.Room room, String username, BinaryCodec.ChatLine text, MessageTracer.Trace trace) {
+	        Lane lane = lane(room.name);
+	        lane.lock.lock();
+	        try {
+	            if (trace != null) {
+	                trace.serverLocked = MessageTracer.now();
+	            }
+	            start(lane, room).append(username).append(": ").append(text.bytes(), 0, text.length());
+	            broadcast(lane, room, trace);
+	        } finally {
+	            lane.lock.unlock();
+	        }
+	    }
+	
+	    private Lane lane(String room) {
+	        return lanes[room.hashCode() & (LANES - 1)];
+	    }
+	
+	    //Under the lane's lock: starts the line with the time and, outside the lobby, the room
+	    private LineBuffer start(Lane lane, ChatRooms.Room room) {
+	        LineBuffer line = lane.line.clear().append(clock.bytes()).append((byte) ' ');
+	        if (!room.isLobby()) {
+	            line.append((byte) '#').append(room.name).append((byte) ' ');
+	        }
+	        return line;
+	    }
+	
+	    //Under the lane's lock: ends the line and sends it to the room; the keeper then logs, journals and relays it
+	    private void broadcast(Lane lane, ChatRooms.Room room, MessageTracer.Trace trace) {
+	        LineBuffer line = lane.line.append((byte) '\n');
+	        remember(room.name, line);
+	        metrics.broadcasts.increment();
+	        room.post(shards, lane.broadcasts.take(line, metrics.fanOut, trace).then(keeper, posted, room.name));
+	    }
+	
+	    //Under the lane's lock, before posting, so a client joining the lobby gets each line once: in its backlog or live
+	    //Only lobby lines are kept: joining clients are only shown the lobby's, so other rooms must not push them out
+	    private void remember(String room, LineBuffer line) {
+	        if (history != null && ChatRooms.LOBBY.equals(room)) {
+	            history.add(room, line.array(), 0, line.length());
+	        }
+	    }
+	
+	    //On the keeper, so the journal's one writer holds each room's lines in broadcast order
+	    private void keep(String room, byte[] line, int length) {
+	        log.log(line, 0, length);
+	        if (journal == null) {
+	            return;
+	        }
+	        try {
+	            journal.append(room, line, 0, length);
+	        } catch (IOException ex) {
+	            System.err.println("Journal error, journalling stopped : " + ex);
+	            journal = null;
+	        }
+	    }
+	
+	    //Sends only to one client, e.g. the answer to a command; like a direct message it skips the broadcast path
+	    private void send(ChatConnection client, String message) {
+	        client.sendFrame(client.getProtocol().encode(timestamp() + " " + message + "\n"));
+	    }
+	
+	    private String timestamp() {
+	        return clock.text();
+	    }
+	
+	
+	    //Appends "username: depth (lag)" for every client with messages still queued
+	    private void startQueueReport(int seconds) {
+	        if (seconds <= 0) {
+	            return;
+	        }
+	        ScheduledExecutorService reporter = queueReporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	            public Thread newThread(Runnable task) {
+	                Thread thread = new Thread(task, "chat-queue-report");
+	                thread.setDaemon(true);
+	                return thread;
+	            }
+	        });
+	        reporter.scheduleAtFixedRate(new Runnable() {
+	            public void run() {
+	                String report = queueReport();
+	                if (!report.isEmpty()) {
+	                    log.log(report);
+	                }
+	            }
+	        }, seconds, seconds, TimeUnit.SECONDS);
+	    }
+	
+	    //Also totals the serialization state held for clients, with the client holding the most,
+	    //how many frames each write system call carried and the traced stages
+	    String queueReport() {
+	        StringBuilder report = new StringBuilder();
+	        long retainedTotal = 0;
+	        long retainedMax = 0;
+	        String retainedMaxClient = null;
+	        for (ChatConnection client : clientRegistry) {
+	            int depth = client.getQueueDepth();
+	            if (depth > 0) {
+	                report.append("Queue ").append(client.getUsername()).append(": ").append(depth)
+	                      .append(" waiting, ").append(client.getLagMillis()).append(" ms behind\n");
+	            }
+	            long retained = client.getRetainedBytes();
+	            retainedTotal += retained;
+	            if (retained > retainedMax) {
+	                retainedMax = retained;
+	                retainedMaxClient = client.getUsername();
+	            }
+	        }
+	        if (WriteBatch.STATS.writes() > 0) {
+	            report.append(WriteBatch.STATS.report());
+	        }
+	        report.append(tracer.report());
+	        if (retainedMaxClient != null) {
+	            report.append("Retained stream state: ").append(retainedTotal).append(" bytes, most ")
+	                  .append(retainedMax).append(" for ").append(retainedMaxClient).append("\n");
+	        }
+	        return report.toString();
+	    }
+	
+	    //A line broadcast on another node goes to this node's members of its room, and no further
+	    private class ClusterListener implements ClusterNode.Listener {
+	
+	        public void relayed(String origin, String room, String text) {
+	            Lane lane = lane(room);
+	            lane.lock.lock();
+	            try {
+	                LineBuffer line = lane.line.clear().append(text);
+	                remember(room, line);
+	                WireProtocol.Broadcast broadcast = lane.broadcasts.take(line, metrics.fanOut, null).then(keeper, relayed, room);
+	                ChatRooms.Room members = rooms.get(room);
+	                if (members != null) {
+	                    metrics.broadcasts.increment();
+	                    members.post(shards, broadcast);
+	                } else {
+	                    //no members here: posted to no shard, so only the keeper sees it
+	                    broadcast.posting();
+	                    broadcast.shardDone();
+	                }
+	            } finally {
+	                lane.lock.unlock();
+	            }
+	        }
+	    }
+	
+	    //Join/chat/disconnect handling for clients carried by the selector engine
+	    private class EngineListener implements SelectorEngine.Listener {
+
+	        public void connected(NioConnection connection) {
+	            metrics.accepts.increment();
+	            log.log("New Client connected..........\n");
+	        }
+
+	        public void read(NioConnection connection, int bytes) {
+	            metrics.bytesIn.add(bytes);
+	        }
+
+	        public void joined(NioConnection connection) {
+	            ChatServer.this.joined(connection);
+	        }
+
+	        public void received(NioConnection connection, MessageHandler message) {
+	            if (!message.diconnectClient()) {
+	                ChatServer.this.received(connection, message, tracer.received(message, connection.readAt(), connection.decodingAt()));
+	            } else {
+	                connection.close();
+	            }
+	        }
+
+	        public void closed(NioConnection connection) {
+	            left(connection);
+	        }
+	    }
+
+	    class HandleAClient implements Runnable, ChatConnection {
+
+	        SocketChannel channel;
+	        Socket socket;
+	        volatile WireProtocol protocol;
+	        WireProtocol.Decoder decoder;
+	        LegacyCodec.ResetTracker resets;
+	        ByteBuffer input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+	        String username;
+	        volatile long clientId = -1;
+	        MessageHandler message;
+	        //MessageTracer.now() of the last read, and of the last decode started
+	        long readAt;
+	        long decodingAt;
+	        final OutboundQueue queue = OutboundQueue.fromSystemProperties();
+	        final Executor writerThreads;
+
+	        HandleAClient(SocketChannel channel, Executor writerThreads) {
+	            this.channel = channel;
+	            this.socket = channel.socket();
+	            this.writerThreads = writerThreads;
+	        }
+
+	        //The handshake runs on the client's own thread so a slow client cannot stall accept()
+	        private boolean join() {
+	            try {
+	                WireProtocol detected = detectProtocol();
+	                decoder = detected.newDecoder();
+	                if (detected == WireProtocol.LEGACY) {
+	                    resets = LegacyCodec.ResetTracker.fromSystemProperties();
+	                }
+	                queue.setProtocol(detected);
+	                protocol = detected;
+	                write(protocol.greeting());
+	                Object name = readFrame();
+	                if (!(name instanceof String)) {
+	                    throw new StreamCorruptedException("expected username");
+	                }
+	                username = (String) name;
+	                //the hello has been read by now, so broadcasts can be encoded as negotiated
+	                if (decoder.protocol() != protocol) {
+	                    queue.setProtocol(decoder.protocol());
+	                    protocol = decoder.protocol();
+	                }
+	                writerThreads.execute(new Runnable() {
+	                    public void run() {
+	                        writeQueued();
+	                    }
+	                });
+	                return joined(this);
+	            } catch (IOException e) {
+	                System.err.println(e);
+	                close();
+	                return false;
+	            }
+	        }
+
+	        public void run() {
+	            if (!join()) {
+	                return;
+	            }
+	            while (true) {
+	                try {
+	                    Object frame = readFrame();
+	                    if (!(frame instanceof MessageHandler)) {
+	                        throw new StreamCorruptedException("expected MessageHandler");
+	                    }
+	                    message = (MessageHandler) frame;
+	                } catch (IOException error) {
+	                    if (!closed) {
+	                        System.err.println("No client found" + error);
+	                    }
+	                    break;
+	                }
+	                if (!message.diconnectClient()) {
+	                	received(this, message, tracer.received(message, readAt, decodingAt));
+	                } else {
+	                    break;
+	                }
+	            }
+	            left(this);
+	            close();
+	        }
+
+	        //Next username String or MessageHandler, decoded by the same codecs the selector engine uses
+	        private Object readFrame() throws IOException {
+	            while (true) {
+	                decodingAt = MessageTracer.now();
+	                Object frame = decoder.decode(unread());
+	                input.compact();
+	                if (frame != null) {
+	                    //a large message does not keep its buffer once it has been read
+	                    if (input.position() == 0 && input.capacity() > INPUT_BUFFER_SIZE) {
+	                        input = ByteBuffer.allocate(INPUT_BUFFER_SIZE);
+	                    }
+	                    return frame;
+	                }
+	                fill(decoder.required());
+	            }
+	        }
+
+	        private WireProtocol detectProtocol() throws IOException {
+	            while (true) {
+	                WireProtocol detected = WireProtocol.detect(unread());
+	                input.compact();
+	                if (detected != null) {
+	                    return detected;
+	                }
+	                fill(WireProtocol.DETECT_LENGTH);
+	            }
+	        }
+
+	        //Flips the input buffer for reading; it is compact()ed back before the next fill()
+	        private ByteBuffer unread() {
+	            input.flip();
+	            return input;
+	        }
+
+	        //Reads more bytes, first growing the buffer if it cannot hold required bytes
+	        private void fill(int required) throws IOException {
+	            if (required > input.capacity()) {
+	                ByteBuffer grown = ByteBuffer.allocate(Math.max(required, input.capacity() * 2));
+	                input.flip();
+	                grown.put(input);
+	                input = grown;
+	            }
+	            int count = channel.read(input);
+	            if (count < 0) {
+	                throw new EOFException();
+	            }
+	            readAt = MessageTracer.now();
+	            metrics.bytesIn.add(count);
+	        }
+
+	        public String getUsername() {
+	            return username;
+	        }
+
+	        public long getClientId() {
+	            return clientId;
+	        }
+
+	        public void setClientId(long id) {
+	            clientId = id;
+	        }
+
+	        //Thread-per-client connections are spread over the shards by id
+	        public int getShard() {
+	            return (int) Math.floorMod(clientId, (long) rooms.shardCount());
+	        }
+
+	        public WireProtocol getProtocol() {
+	            return protocol;
+	        }
+
+	        public void close() {
+	            queue.close();
+	            try {
+	                socket.close();
+	            } catch (IOException error) {
+	                System.err.println("Closed Connection : " + error);
+	            }
+	        }
+
+	        //Only queues the frame; writeQueued() does the socket write
+	        public void sendFrame(ByteBuffer frame) {
+	            if (!queue.offer(frame)) {
+	                System.err.println("Slow consumer disconnected : " + username);
+	                close();
+	            }
+	        }
+
+	        public int getQueueDepth() {
+	            return queue.depth();
+	        }
+
+	        public long getLagMillis() {
+	            return queue.lagMillis();
+	        }
+
+	        public long getRetainedBytes() {
+	            if (protocol == null) {
+	                return 0;
+	            }
+	            return decoder.retainedBytes() + (resets == null ? 0 : resets.retainedBytes());
+	        }
+
+	        //Written here rather than queued, so it is out before the socket closes
+	        public void closeWith(ByteBuffer frame) {
+	            try {
+	                write(frame);
+	            } catch (IOException error) {
+	                System.err.println("Closed Connection : " + error);
+	            }
+	            close();
+	        }
+
+	        private void write(ByteBuffer frame) throws IOException {
+	            while (frame.hasRemaining()) {
+	                channel.write(frame);
+	            }
+	        }
+
+	        //Writer loop, on its own thread so a full TCP window only stalls this client
+	        //whatever has queued up meanwhile goes out in one gathering write
+	        private void writeQueued() {
+	            WriteBatch batch = WriteBatch.fromSystemProperties();
+	            try {
+	                ByteBuffer frame;
+	                while ((frame = queue.take()) != null) {
+	                    batch.add(frame, resets);
+	                    while (batch.canAdd()) {
+	                        frame = queue.poll();
+	                        if (frame == null) {
+	                            long linger = batch.lingerNanos(System.nanoTime());
+	                            frame = linger > 0 ? queue.poll(linger, TimeUnit.NANOSECONDS) : null;
+	                            if (frame == null) {
+	                                break;
+	                            }
+	                        }
+	                        batch.add(frame, resets);
+	                    }
+	                    while (!batch.write(channel)) {
+	                        // a blocking channel normally takes the whole batch in one call
+	                    }
+	                }
+	            } catch (IOException error) {
+	                System.err.println("Closed Connection : " + error);
+	                close();
+	            } catch (InterruptedException error) {
+	                close();
+	            } finally {
+	                //frames taken from the queue but not written hold FramePool slots
+	                batch.clear();
+	            }
+	        }
+	    }//close Handle class
+
+	
+	//Headless entry point: logs to chat.server.logFile, or to standard output
+	public static void main(String[] args) throws IOException {
+		ServerLog log = ServerLog.fromSystemProperties();
+		ServerLog.Sink file = ServerLog.fileSinkFromSystemProperties();
+		log.addSink(file != null ? file : new ServerLog.StreamSink(System.out));
+		closeOnExit(log);
+		new ChatServer(log).startServer();
+	}
+	
+	//Writes out events still queued when the process exits
+	static void closeOnExit(final ServerLog log) {
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+			public void run() {
+				log.close();
+			}
+		}, "chat-log-close"));
+	}
+	
+}//Close ChatServer class
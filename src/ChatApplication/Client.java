@@ -21,25 +21,40 @@ import java.awt.*;
 import java.io.*;
 import java.net.*; 
 import java.awt.event.*;
+import java.util.concurrent.atomic.*;
 
 
 
 
 public class Client extends JFrame {
 	
+	//lines of scrollback the window keeps
+	static final String WINDOW_LINES_PROPERTY = "chat.client.windowLines";
+	//server to connect to
+	static final String HOST_PROPERTY = "chat.client.host";
+	static final String PORT_PROPERTY = "chat.client.port";
+	//shortest time between two updates of the log for incoming messages
+	static final String FRAME_MILLIS_PROPERTY = "chat.client.frameMillis";
+	
 	private String username;
-	private ObjectOutputStream outputStreamToServer; 
-	private ObjectInputStream inputStreamFromServer;
+	private DataOutputStream outputStreamToServer; 
+	private DataInputStream inputStreamFromServer;
+	//version agreed with the server; from 2, long lines are sent compressed
+	private int protocolVersion;
 	private Socket socket;
 	private JTextField sendBoxField;
 	private JTextField nameField;	 
-	private JTextArea chatLogArea;
+	private LogView chatLogArea;
 	private JPanel panelUsername;
 	private JPanel panelInput;
 	private JPanel panelChat;
 	private JPanel panelTop;
 	private JButton connectButton;
 	private JButton sendButton;
+	//messages waiting to be sent and how long sending took
+	private JLabel statusLabel;
+	//writes to the server off the event dispatch thread
+	private ClientSender sender;
 	
 	
 	
@@ -49,16 +64,17 @@ public class Client extends JFrame {
 		
 		sendBoxField = new JTextField();
 		nameField = new JTextField();
-		chatLogArea = new JTextArea();
+		chatLogArea = new LogView(Integer.getInteger(WINDOW_LINES_PROPERTY, LogView.DEFAULT_CAPACITY),
+				Integer.getInteger(FRAME_MILLIS_PROPERTY, LogView.DEFAULT_FRAME_MILLIS));
 		panelUsername = new JPanel();
 		panelInput = new JPanel();
 		panelChat = new JPanel();
 		panelTop = new JPanel();
 		connectButton = new JButton("Connect");
 		sendButton = new JButton("   Send   ");
+		statusLabel = new JLabel(" ");
 		sendBoxField.setHorizontalAlignment(JTextField.LEFT);		
 		nameField.setHorizontalAlignment(JTextField.LEFT);		
-		chatLogArea.setEditable(false);		
 		panelUsername.setLayout(new BorderLayout());
 		panelUsername.add(new JLabel(" Username "), BorderLayout.WEST);
 		panelUsername.add(nameField, BorderLayout.CENTER);
@@ -69,6 +85,7 @@ public class Client extends JFrame {
 		panelInput.add(sendButton, BorderLayout.EAST);		
 		panelChat.setLayout(new BorderLayout());		
 		panelChat.add(new JScrollPane(chatLogArea), BorderLayout.CENTER);		
+		panelChat.add(statusLabel, BorderLayout.SOUTH);
 		panelTop.setLayout(new GridLayout(2,1));
 		panelTop.add(panelUsername);
 		panelTop.add(panelInput);		
@@ -109,21 +126,54 @@ public class Client extends JFrame {
 	private class sendListener implements ActionListener{
 		@Override
 		public void actionPerformed(ActionEvent eventp){
-				try {
-					outputStreamToServer.writeObject(new MessageHandler(sendBoxField.getText()));
+				//only queued here; the text stays in the box if it could not be
+				if (sender != null && sender.send(sendBoxField.getText())) {
 					sendBoxField.setText("");
-				} catch (IOException e1) {
-					e1.printStackTrace();
+				} else {
+					statusLabel.setText(sender == null || sender.failure() != null ? " Not connected" : " Too many messages waiting, try again");
 				}
 			}
 		}
 	
+	//Shows the sender's progress; updates from the sender thread are folded into one per EDT turn
+	private class StatusUpdater implements ClientSender.Listener, Runnable {
+		
+		private final AtomicBoolean scheduled = new AtomicBoolean();
+		
+		public void changed(ClientSender sender) {
+			if (scheduled.compareAndSet(false, true)) {
+				SwingUtilities.invokeLater(this);
+			}
+		}
+		
+		public void run() {
+			scheduled.set(false);
+			statusLabel.setText(status(sender));
+		}
+	}
+	
+	static String status(ClientSender sender) {
+		if (sender.failure() != null) {
+			return " Not connected: " + sender.failure().getMessage();
+		}
+		StringBuilder status = new StringBuilder(" ");
+		if (sender.pending() > 0) {
+			status.append("Sending ").append(sender.pending()).append(" | ");
+		}
+		return status.append(String.format("%d sent, last %.1f ms, average %.1f ms, slowest %.1f ms", sender.sent(),
+				sender.lastLatencyNanos() / 1e6, sender.averageLatencyNanos() / 1e6, sender.maxLatencyNanos() / 1e6)).toString();
+	}
+	
 	
 	public void startConnectionWithServer(){
 		try {
-			socket = new Socket("localhost", 8001);
-			outputStreamToServer = new ObjectOutputStream(socket.getOutputStream());
-			inputStreamFromServer = new ObjectInputStream(socket.getInputStream());
+			socket = new Socket(System.getProperty(HOST_PROPERTY, "localhost"), Integer.getInteger(PORT_PROPERTY, ChatServer.PORT));
+			//binary protocol; the server still accepts the serialized protocol of older clients
+			outputStreamToServer = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			BinaryCodec.writeHello(outputStreamToServer);
+			outputStreamToServer.flush();
+			inputStreamFromServer = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			protocolVersion = BinaryCodec.readHello(inputStreamFromServer);
 			
 		}
 		catch (IOException ex)
@@ -135,13 +185,9 @@ public class Client extends JFrame {
 	
 		new HandleServerClient().start();
 		
-		try
-        {
-			outputStreamToServer.writeObject(username);
-		}
-		catch (IOException ex){
-			System.err.println(ex);
-		}
+		sender = new ClientSender(outputStreamToServer, protocolVersion,
+				Integer.getInteger(ClientSender.CAPACITY_PROPERTY, ClientSender.DEFAULT_CAPACITY), new StatusUpdater());
+		sender.sendUsername(username);
 	}
               
 	
@@ -153,9 +199,12 @@ public class Client extends JFrame {
                 try
                 {
                     System.out.println("Exited");
-                    outputStreamToServer.writeObject(new MessageHandler());
+                    //whatever is still queued goes first, if the server takes it within a second
+                    if (sender != null) {
+                        sender.close(1000);
+                    }
                 }
-                catch(IOException e)
+                catch(InterruptedException e)
                 {
                     e.printStackTrace();
                 }
@@ -168,10 +217,11 @@ public class Client extends JFrame {
 		public void run(){
 			while(true){
 				try{
-					String msg = (String) inputStreamFromServer.readObject();
-					chatLogArea.append(msg);
+					MessageHandler msg = (MessageHandler) BinaryCodec.readFrame(inputStreamFromServer);
+					//only queued here; the log takes everything received in a frame in one update on the EDT
+					chatLogArea.append(msg.getMessage());
 				}
-				catch (IOException | ClassNotFoundException e){
+				catch (IOException e){
 					System.err.println(e);
 				}
 			}
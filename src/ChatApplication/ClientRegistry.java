@@ -0,0 +1,88 @@
+/**
+ * Multiple Client Chat Application
+ * ClientRegistry holds the clients that have joined the chat, keyed by the
+ * connection id it hands out when a client registers, with a second index by
+ * username that routes direct messages. A username belongs to one client at
+ * a time: a second client asking for it is refused, so a direct message
+ * always reaches the client that took the name. Registration and removal
+ * are a few hash-map operations with no lock, so joins and disconnects
+ * never wait for a broadcast in progress, and a broadcast iterates the live
+ * map directly instead of copying it: the iteration sees every client
+ * registered before it started and is never disturbed by clients joining
+ * or leaving meanwhile.
+ * Removed clients leave nothing behind, so the cost of a broadcast follows
+ * the clients connected now, not how many have come and gone.
+ */
+
+package ChatApplication;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+final class ClientRegistry implements Iterable<ChatConnection> {
+
+	private final ConcurrentHashMap<Long, ChatConnection> clients = new ConcurrentHashMap<Long, ChatConnection>();
+	private final ConcurrentHashMap<String, ChatConnection> byUsername = new ConcurrentHashMap<String, ChatConnection>();
+	private final AtomicLong nextId = new AtomicLong();
+
+	//Adds a client that has sent its username and gives it its connection id; -1, adding nothing, if the name is taken
+	long register(ChatConnection client) {
+		if (byUsername.putIfAbsent(client.getUsername(), client) != null) {
+			return -1;
+		}
+		long id = nextId.getAndIncrement();
+		client.setClientId(id);
+		clients.put(id, client);
+		return id;
+	}
+
+	//Removes a client; false if it was not registered or has already been removed
+	boolean unregister(ChatConnection client) {
+		if (!clients.remove(client.getClientId(), client)) {
+			return false;
+		}
+		byUsername.remove(client.getUsername(), client);
+		return true;
+	}
+
+	ChatConnection get(long id) {
+		return clients.get(id);
+	}
+
+	//The client registered under this name, or null
+	ChatConnection find(String username) {
+		return byUsername.get(username);
+	}
+
+	/**
+	 * Sends a line to the named client only: one map lookup and one encode,
+	 * whatever the number of clients, and no broadcast lock.
+	 * Returns the recipient, or null if nobody has that name.
+	 */
+	ChatConnection sendTo(String username, String line) {
+		ChatConnection recipient = byUsername.get(username);
+		if (recipient != null) {
+			recipient.sendFrame(recipient.getProtocol().encode(line));
+		}
+		return recipient;
+	}
+
+	//Weakly consistent: no copy is taken and the iterator never throws ConcurrentModificationException
+	public Iterator<ChatConnection> iterator() {
+		return clients.values().iterator();
+	}
+
+	int size() {
+		return clients.size();
+	}
+
+	boolean isEmpty() {
+		return clients.isEmpty();
+	}
+
+	//Connection ids handed out so far, i.e. clients that have ever joined
+	long issuedIds() {
+		return nextId.get();
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * Multiple Client Chat Application
+ * ClientSender writes a Client's frames to the server from its own thread,
+ * so the Swing event thread only ever adds a message to a queue and goes
+ * back to the user. If the network or server is slow, messages wait in the
+ * queue and the window says how many; typing carries on. Whatever has
+ * queued up by the time the thread gets to it is written together and
+ * flushed once.
+ *
+ * The latency of each message, from the user pressing Send to its bytes
+ * being handed to the socket, is recorded for the status line.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+final class ClientSender {
+
+	//messages that may be waiting for, or being written to, the socket before Send is refused
+	static final String CAPACITY_PROPERTY = "chat.client.sendQueue";
+	static final int DEFAULT_CAPACITY = 1024;
+
+	//Told on the sender's thread, and on the caller's for a newly queued message; must not block
+	interface Listener {
+
+		void changed(ClientSender sender);
+	}
+
+	private static final class Pending {
+		final byte type;
+		final String text;
+		final long queuedAt = System.nanoTime();
+
+		Pending(byte type, String text) {
+			this.type = type;
+			this.text = text;
+		}
+	}
+
+	private final DataOutputStream out;
+	private final int version;
+	private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<Pending>();
+	private final int capacity;
+	private final Listener listener;
+	private final Thread thread;
+	private final AtomicInteger unsent = new AtomicInteger();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private volatile long lastLatencyNanos;
+	private volatile long maxLatencyNanos;
+	//held to queue a message, to close and to fail, so nothing is queued behind the disconnect or after a failure
+	private final ReentrantLock lock = new ReentrantLock();
+	private volatile IOException failure;
+	private volatile boolean closing;
+
+	ClientSender(DataOutputStream out, int version, int capacity, Listener listener) {
+		this.out = out;
+		this.version = version;
+		this.capacity = Math.max(1, capacity);
+		this.listener = listener;
+		thread = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "chat-client-sender");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//Queues the username; the server expects it before any chat
+	boolean sendUsername(String username) {
+		return offer(new Pending(BinaryCodec.TYPE_USERNAME, username));
+	}
+
+	/**
+	 * Queues a chat line without waiting for the socket. Returns false if
+	 * the queue is full, the connection has failed or the sender is closed.
+	 */
+	boolean send(String text) {
+		return offer(new Pending(BinaryCodec.TYPE_CHAT, text));
+	}
+
+	/**
+	 * Queues a disconnect behind whatever is still pending and waits up to
+	 * timeoutMillis for it to be written. Nothing can be sent afterwards.
+	 */
+	void close(long timeoutMillis) throws InterruptedException {
+		lock.lock();
+		try {
+			if (!closing && failure == null) {
+				unsent.incrementAndGet();
+				queue.add(new Pending(BinaryCodec.TYPE_DISCONNECT, null));
+			}
+			closing = true;
+		} finally {
+			lock.unlock();
+		}
+		thread.join(timeoutMillis);
+	}
+
+	//Messages queued or being written, not yet handed to the socket
+	int pending() {
+		return unsent.get();
+	}
+
+	long sent() {
+		return sent.get();
+	}
+
+	long lastLatencyNanos() {
+		return lastLatencyNanos;
+	}
+
+	long maxLatencyNanos() {
+		return maxLatencyNanos;
+	}
+
+	long averageLatencyNanos() {
+		long count = sent.get();
+		return count == 0 ? 0 : totalLatencyNanos.get() / count;
+	}
+
+	//Why the sender stopped, or null while it is working
+	IOException failure() {
+		return failure;
+	}
+
+	private boolean offer(Pending message) {
+		lock.lock();
+		try {
+			if (closing || failure != null) {
+				return false;
+			}
+			//counted first, so the sender never sees it written before it was counted
+			if (unsent.incrementAndGet() > capacity) {
+				unsent.decrementAndGet();
+				return false;
+			}
+			queue.add(message);
+		} finally {
+			lock.unlock();
+		}
+		listener.changed(this);
+		return true;
+	}
+
+	private void drain() {
+		List<Pending> batch = new ArrayList<Pending>();
+		try {
+			while (true) {
+				batch.add(queue.take());
+				queue.drainTo(batch);
+				boolean disconnect = false;
+				for (Pending message : batch) {
+					if (message.type == BinaryCodec.TYPE_CHAT) {
+						BinaryCodec.writeChat(out, version, message.text);
+					} else {
+						BinaryCodec.writeFrame(out, message.type, message.text);
+					}
+					disconnect |= message.type == BinaryCodec.TYPE_DISCONNECT;
+				}
+				out.flush();
+				long now = System.nanoTime();
+				for (Pending message : batch) {
+					record(now - message.queuedAt);
+				}
+				unsent.addAndGet(-batch.size());
+				batch.clear();
+				listener.changed(this);
+				if (disconnect) {
+					return;
+				}
+			}
+		} catch (IOException error) {
+			lock.lock();
+			try {
+				failure = error;
+				queue.clear();
+				unsent.set(0);
+			} finally {
+				lock.unlock();
+			}
+			System.err.println(error);
+			listener.changed(this);
+		} catch (InterruptedException error) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void record(long latency) {
+		lastLatencyNanos = latency;
+		if (latency > maxLatencyNanos) {
+			maxLatencyNanos = latency;
+		}
+		totalLatencyNanos.addAndGet(latency);
+		sent.incrementAndGet();
+	}
+}
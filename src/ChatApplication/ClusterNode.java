@@ -0,0 +1,598 @@
+/**
+ * Multiple Client Chat Application
+ * ClusterNode links several Server instances so their clients share rooms.
+ * Nodes form a full mesh of TCP peer links. A line broadcast by transfer()
+ * on one node is relayed once to every peer, and each peer fans it out to
+ * its own members of the room without relaying it further.
+ *
+ * Membership: a node dials the peers it is configured with. After the
+ * hello, both sides of a link send each other the addresses of the nodes
+ * they are linked to, so a node seeded with one peer finds the rest.
+ * Addresses whose link drops are redialled in the background, until
+ * chat.cluster.forgetAfterDials dials in a row have failed; then the
+ * address is forgotten, so a node that is gone for good stops costing the
+ * rest a connect attempt every interval. It is learned again if it comes
+ * back and dials in. If two nodes dial each other at once, both keep the
+ * link dialled by the node with the smaller id.
+ *
+ * Ordering and dedup: every relayed line carries its origin node, that
+ * node's incarnation (its start time) and a sequence number assigned in
+ * broadcast order. A link delivers in order, and a line that is not newer
+ * than the last one seen from the same origin incarnation is dropped, so a
+ * line delivered twice while a link is being replaced shows up only once.
+ * Only the newest incarnation of each origin is remembered.
+ *
+ * Resending: a node keeps its last chat.cluster.resendLines relayed lines.
+ * Each side's hello carries its incarnation, and the other side answers
+ * with the last line it has seen from that incarnation. Lines after it,
+ * relayed while the link was down or being replaced, are sent before any
+ * new line. Lines no longer kept, and any gap in an origin's sequence
+ * numbers, are counted and logged rather than passing unnoticed.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+final class ClusterNode {
+
+	//port for peer links; the node only joins a cluster when this is set
+	static final String PORT_PROPERTY = "chat.cluster.port";
+	//comma-separated host:port addresses of nodes to dial
+	static final String PEERS_PROPERTY = "chat.cluster.peers";
+	//host peers should use to reach this node
+	static final String HOST_PROPERTY = "chat.cluster.host";
+	//name of this node, unique in the cluster; defaults to its host:port
+	static final String NODE_ID_PROPERTY = "chat.cluster.nodeId";
+	//relayed lines kept for resending to a peer whose link dropped
+	static final String RESEND_LINES_PROPERTY = "chat.cluster.resendLines";
+	static final int DEFAULT_RESEND_LINES = 4096;
+	//failed dials in a row after which an address is forgotten
+	static final String FORGET_AFTER_DIALS_PROPERTY = "chat.cluster.forgetAfterDials";
+	static final int DEFAULT_FORGET_AFTER_DIALS = 30;
+
+	static final long RECONNECT_MILLIS = 2000;
+	static final int MAX_FRAME_LENGTH = BinaryCodec.MAX_PAYLOAD_LENGTH + 1024;
+	//frames waiting for a peer before the link is dropped and redialled
+	static final int LINK_QUEUE_CAPACITY = 64 * 1024;
+	static final long LINK_MAX_LAG_MILLIS = 30000;
+
+	static final byte TYPE_HELLO = 1;
+	static final byte TYPE_MEMBERS = 2;
+	static final byte TYPE_RELAY = 3;
+	static final byte TYPE_RESUME = 4;
+
+	private static final int HEADER_LENGTH = 5;
+
+	//Lines relayed from other nodes, called on the thread reading the link they arrived on
+	interface Listener {
+
+		void relayed(String origin, String room, String line);
+	}
+
+	private final String nodeId;
+	private final long incarnation = System.currentTimeMillis();
+	private final Listener listener;
+	private final ConcurrentHashMap<String, PeerLink> links = new ConcurrentHashMap<String, PeerLink>();
+	private final Set<String> knownAddresses = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final Set<String> dialing = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	//dials in a row that failed, by address
+	private final ConcurrentHashMap<String, Integer> failedDials = new ConcurrentHashMap<String, Integer>();
+	private final int forgetAfterDials;
+	//by origin node: the newest incarnation seen and its last line
+	private final ConcurrentHashMap<String, Seen> lastSeen = new ConcurrentHashMap<String, Seen>();
+	private final AtomicLong sequence = new AtomicLong();
+	//the frames of the last lines relayed, by sequence number modulo their number
+	private final ByteBuffer[] sent;
+	//numbers, keeps and sends each line, and resumes links, so a resumed link misses no line and gets none twice
+	private final ReentrantLock relayLock = new ReentrantLock();
+	private final AtomicLong duplicates = new AtomicLong();
+	private final AtomicLong gaps = new AtomicLong();
+	private final ExecutorService threads = Executors.newCachedThreadPool(daemonThreads("chat-cluster"));
+	private final ScheduledExecutorService reconnector = Executors.newSingleThreadScheduledExecutor(daemonThreads("chat-cluster-reconnect"));
+	private ServerSocket serverSocket;
+	private String address;
+	private volatile boolean running;
+
+	ClusterNode(String nodeId, Listener listener) {
+		this(nodeId, listener, DEFAULT_RESEND_LINES);
+	}
+
+	ClusterNode(String nodeId, Listener listener, int resendLines) {
+		this(nodeId, listener, resendLines, DEFAULT_FORGET_AFTER_DIALS);
+	}
+
+	ClusterNode(String nodeId, Listener listener, int resendLines, int forgetAfterDials) {
+		this.nodeId = nodeId;
+		this.listener = listener;
+		this.sent = new ByteBuffer[Math.max(1, resendLines)];
+		this.forgetAfterDials = Math.max(1, forgetAfterDials);
+	}
+
+	//Node configured by the chat.cluster.* properties and started, or null if clustering is off
+	static ClusterNode fromSystemProperties(Listener listener) throws IOException {
+		Integer port = Integer.getInteger(PORT_PROPERTY);
+		if (port == null) {
+			return null;
+		}
+		String host = System.getProperty(HOST_PROPERTY, InetAddress.getLocalHost().getHostAddress());
+		List<String> seeds = new ArrayList<String>();
+		for (String peer : System.getProperty(PEERS_PROPERTY, "").split(",")) {
+			if (!peer.trim().isEmpty()) {
+				seeds.add(peer.trim());
+			}
+		}
+		ClusterNode node = new ClusterNode(System.getProperty(NODE_ID_PROPERTY, host + ":" + port), listener,
+				Integer.getInteger(RESEND_LINES_PROPERTY, DEFAULT_RESEND_LINES),
+				Integer.getInteger(FORGET_AFTER_DIALS_PROPERTY, DEFAULT_FORGET_AFTER_DIALS));
+		node.start(host, port, seeds);
+		return node;
+	}
+
+	/**
+	 * Listens for peers on host:port (port 0 picks a free one), advertises
+	 * that address to them and dials the seeds.
+	 */
+	void start(String host, int port, Collection<String> seeds) throws IOException {
+		serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(host, port));
+		address = host + ":" + serverSocket.getLocalPort();
+		running = true;
+		threads.execute(new Runnable() {
+			public void run() {
+				acceptLoop();
+			}
+		});
+		for (String seed : seeds) {
+			learn(seed);
+		}
+		reconnector.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				for (String known : knownAddresses) {
+					dial(known);
+				}
+			}
+		}, RECONNECT_MILLIS, RECONNECT_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	String getNodeId() {
+		return nodeId;
+	}
+
+	//host:port peers reach this node on
+	String getAddress() {
+		return address;
+	}
+
+	//Addresses this node dials when not linked to them
+	Set<String> knownAddresses() {
+		return new TreeSet<String>(knownAddresses);
+	}
+
+	//Ids of the nodes this node currently has a link to
+	Set<String> peers() {
+		return new TreeSet<String>(links.keySet());
+	}
+
+	//Relayed lines dropped because they had already been delivered
+	long duplicateCount() {
+		return duplicates.get();
+	}
+
+	//Relayed lines found missing from an origin's sequence, never delivered here
+	long gapCount() {
+		return gaps.get();
+	}
+
+	//Closes every peer link, as a network failure would; the reconnector dials them again
+	void dropLinks() {
+		for (PeerLink link : links.values()) {
+			link.close();
+		}
+	}
+
+	/**
+	 * Sends a broadcast line to every peer node. Call it in broadcast order,
+	 * from one thread (the server's keeper): sequence numbers follow the
+	 * calls, and each link keeps the frames in that order.
+	 */
+	void relay(String room, String line) {
+		relayLock.lock();
+		try {
+			//kept even with no link up, for the peers that come back
+			long seq = sequence.incrementAndGet();
+			ByteBuffer frame = encode(TYPE_RELAY, nodeId, incarnation, seq, room, line);
+			sent[(int) (seq % sent.length)] = frame;
+			for (PeerLink link : links.values()) {
+				if (link.resumed) {
+					link.send(frame);
+				}
+			}
+		} finally {
+			relayLock.unlock();
+		}
+	}
+
+	void close() {
+		running = false;
+		reconnector.shutdownNow();
+		try {
+			if (serverSocket != null) {
+				serverSocket.close();
+			}
+		} catch (IOException ignored) {
+		}
+		for (PeerLink link : links.values()) {
+			link.close();
+		}
+		threads.shutdownNow();
+	}
+
+	private void acceptLoop() {
+		while (running) {
+			try {
+				startLink(serverSocket.accept(), false, null);
+			} catch (IOException e) {
+				if (running) {
+					System.err.println("Cluster error : " + e);
+				}
+			}
+		}
+	}
+
+	//Remembers a node address and dials it if it is new
+	private void learn(String peerAddress) {
+		if (!peerAddress.equals(address) && knownAddresses.add(peerAddress)) {
+			dial(peerAddress);
+		}
+	}
+
+	private void dial(final String peerAddress) {
+		if (!running || isLinked(peerAddress) || !dialing.add(peerAddress)) {
+			return;
+		}
+		threads.execute(new Runnable() {
+			public void run() {
+				try {
+					int colon = peerAddress.lastIndexOf(':');
+					Socket socket = new Socket();
+					socket.connect(new InetSocketAddress(peerAddress.substring(0, colon),
+							Integer.parseInt(peerAddress.substring(colon + 1))), (int) RECONNECT_MILLIS);
+					failedDials.remove(peerAddress);
+					startLink(socket, true, peerAddress);
+				} catch (IOException | RuntimeException e) {
+					//the reconnector tries again, up to forgetAfterDials times in a row
+					failed(peerAddress);
+				} finally {
+					dialing.remove(peerAddress);
+				}
+			}
+		});
+	}
+
+	private void failed(String peerAddress) {
+		Integer failures = failedDials.get(peerAddress);
+		failures = failures == null ? 1 : failures + 1;
+		if (failures < forgetAfterDials) {
+			failedDials.put(peerAddress, failures);
+			return;
+		}
+		failedDials.remove(peerAddress);
+		if (knownAddresses.remove(peerAddress)) {
+			System.err.println("Cluster peer forgotten after " + failures + " failed dials : " + peerAddress);
+		}
+	}
+
+	private boolean isLinked(String peerAddress) {
+		for (PeerLink link : links.values()) {
+			if (peerAddress.equals(link.peerAddress)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void startLink(Socket socket, boolean dialed, String peerAddress) throws IOException {
+		socket.setTcpNoDelay(true);
+		final PeerLink link = new PeerLink(socket, dialed, peerAddress);
+		link.send(encode(TYPE_HELLO, nodeId, address, incarnation));
+		threads.execute(new Runnable() {
+			public void run() {
+				link.writeLoop();
+			}
+		});
+		threads.execute(new Runnable() {
+			public void run() {
+				link.readLoop();
+			}
+		});
+	}
+
+	//Called once the peer's hello has arrived; false if the link is a duplicate and was closed
+	private boolean register(PeerLink link) {
+		if (link.peerId.equals(nodeId)) {
+			link.close();
+			return false;
+		}
+		//both ends apply the same rule, so they keep the same one of two crossing links
+		String keeper = nodeId.compareTo(link.peerId) < 0 ? nodeId : link.peerId;
+		while (true) {
+			PeerLink existing = links.putIfAbsent(link.peerId, link);
+			if (existing == null) {
+				return true;
+			}
+			if (existing.dialer().equals(keeper) || !link.dialer().equals(keeper)) {
+				link.close();
+				return false;
+			}
+			if (links.replace(link.peerId, existing, link)) {
+				existing.close();
+				return true;
+			}
+		}
+	}
+
+	//True the first time a line is seen; false for a line from an origin that is not newer than the last one
+	private boolean firstDelivery(String origin, long originIncarnation, long seq) {
+		Seen next = new Seen(originIncarnation, seq);
+		while (true) {
+			Seen last = lastSeen.putIfAbsent(origin, next);
+			if (last == null) {
+				return true;
+			}
+			//a line from an earlier run of the origin is as stale as one already seen
+			if (originIncarnation < last.incarnation || originIncarnation == last.incarnation && seq <= last.sequence) {
+				duplicates.incrementAndGet();
+				return false;
+			}
+			if (lastSeen.replace(origin, last, next)) {
+				if (originIncarnation == last.incarnation && seq > last.sequence + 1) {
+					long missing = seq - last.sequence - 1;
+					gaps.addAndGet(missing);
+					System.err.println("Cluster gap : " + missing + " lines from " + origin + " lost before line " + seq);
+				}
+				return true;
+			}
+		}
+	}
+
+	//Last line seen from this incarnation of the origin, 0 if none
+	private long lastSeenFrom(String origin, long originIncarnation) {
+		Seen last = lastSeen.get(origin);
+		return last != null && last.incarnation == originIncarnation ? last.sequence : 0;
+	}
+
+	/**
+	 * Queues the lines a peer has not seen, then lets relay() send to it.
+	 * A peer that has seen nothing from this incarnation gets the lines
+	 * relayed since its hello arrived.
+	 */
+	private void resume(PeerLink link, long lastSeenHere) {
+		relayLock.lock();
+		try {
+			long from = (lastSeenHere > 0 ? lastSeenHere : link.linkedAt) + 1;
+			long to = sequence.get();
+			long oldest = Math.max(1, to - sent.length + 1);
+			if (from < oldest) {
+				gaps.addAndGet(oldest - from);
+				System.err.println("Cluster resend : " + (oldest - from) + " lines for " + link.peerId + " no longer kept");
+				from = oldest;
+			}
+			for (long seq = from; seq <= to; seq++) {
+				link.send(sent[(int) (seq % sent.length)]);
+			}
+			link.resumed = true;
+		} finally {
+			relayLock.unlock();
+		}
+	}
+
+	//The newest incarnation of an origin node and the last line seen from it
+	private static final class Seen {
+
+		final long incarnation;
+		final long sequence;
+
+		Seen(long incarnation, long sequence) {
+			this.incarnation = incarnation;
+			this.sequence = sequence;
+		}
+	}
+
+	private final class PeerLink {
+
+		private final Socket socket;
+		private final boolean dialed;
+		private final OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DISCONNECT, LINK_QUEUE_CAPACITY, LINK_MAX_LAG_MILLIS);
+		private volatile String peerId;
+		private volatile String peerAddress;
+		//this node's last line when the peer's hello arrived
+		private volatile long linkedAt;
+		//set once the lines the peer missed are queued; relay() only sends to resumed links
+		private volatile boolean resumed;
+
+		PeerLink(Socket socket, boolean dialed, String peerAddress) {
+			this.socket = socket;
+			this.dialed = dialed;
+			this.peerAddress = peerAddress;
+		}
+
+		//Id of the node that opened this link
+		String dialer() {
+			return dialed ? nodeId : peerId;
+		}
+
+		void send(ByteBuffer frame) {
+			if (!queue.offer(frame)) {
+				System.err.println("Cluster peer too slow, relinking : " + peerId);
+				close();
+			}
+		}
+
+		void close() {
+			queue.close();
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+			if (peerId != null) {
+				links.remove(peerId, this);
+			}
+		}
+
+		void writeLoop() {
+			try {
+				OutputStream buffered = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+				WritableByteChannel out = Channels.newChannel(buffered);
+				ByteBuffer frame;
+				while ((frame = queue.take()) != null) {
+					out.write(frame.duplicate());
+					//flush once the queue is drained, so a burst goes out in few writes
+					while ((frame = queue.poll()) != null) {
+						out.write(frame.duplicate());
+					}
+					buffered.flush();
+				}
+			} catch (IOException e) {
+				close();
+			} catch (InterruptedException e) {
+				close();
+			}
+		}
+
+		void readLoop() {
+			try {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+				while (true) {
+					int length = in.readInt();
+					if (length < 0 || length > MAX_FRAME_LENGTH) {
+						throw new StreamCorruptedException("invalid cluster frame length " + length);
+					}
+					byte type = in.readByte();
+					byte[] payload = new byte[length];
+					in.readFully(payload);
+					if (!handle(type, ByteBuffer.wrap(payload))) {
+						return;
+					}
+				}
+			} catch (IOException e) {
+				if (running && peerId != null) {
+					System.err.println("Cluster link closed : " + peerId + " " + e);
+				}
+			} finally {
+				close();
+			}
+		}
+
+		private boolean handle(byte type, ByteBuffer payload) throws IOException {
+			if (peerId == null && type != TYPE_HELLO) {
+				throw new StreamCorruptedException("expected cluster hello");
+			}
+			switch (type) {
+			case TYPE_HELLO:
+				peerId = readString(payload);
+				peerAddress = readString(payload);
+				knownAddresses.add(peerAddress);
+				linkedAt = sequence.get();
+				if (!register(this)) {
+					return false;
+				}
+				//only nodes linked now, so addresses of nodes that are gone do not spread
+				List<Object> members = new ArrayList<Object>();
+				for (PeerLink link : links.values()) {
+					if (link.peerAddress != null && link != this) {
+						members.add(link.peerAddress);
+					}
+				}
+				members.add(address);
+				send(encode(TYPE_MEMBERS, members.toArray()));
+				if (payload.remaining() >= 8) {
+					//the peer resends too: tell it the last line seen from it, and it answers in kind
+					send(encode(TYPE_RESUME, lastSeenFrom(peerId, payload.getLong())));
+				} else {
+					//a peer too old to ask for a resend gets the lines from now on
+					resumed = true;
+				}
+				return true;
+			case TYPE_MEMBERS:
+				while (payload.hasRemaining()) {
+					learn(readString(payload));
+				}
+				return true;
+			case TYPE_RELAY:
+				String origin = readString(payload);
+				long originIncarnation = payload.getLong();
+				long seq = payload.getLong();
+				String room = readString(payload);
+				String line = readString(payload);
+				if (firstDelivery(origin, originIncarnation, seq)) {
+					listener.relayed(origin, room, line);
+				}
+				return true;
+			case TYPE_RESUME:
+				resume(this, payload.getLong());
+				return true;
+			default:
+				throw new StreamCorruptedException(String.format("unknown cluster frame type 0x%02X", type));
+			}
+		}
+	}
+
+	//Frame of length, type and fields: Strings as length-prefixed UTF-8, Longs as eight bytes
+	static ByteBuffer encode(byte type, Object... fields) {
+		byte[][] strings = new byte[fields.length][];
+		int length = 0;
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i] instanceof Long) {
+				length += 8;
+			} else {
+				strings[i] = ((String) fields[i]).getBytes(StandardCharsets.UTF_8);
+				length += 4 + strings[i].length;
+			}
+		}
+		ByteBuffer out = ByteBuffer.allocate(HEADER_LENGTH + length);
+		out.putInt(length);
+		out.put(type);
+		for (int i = 0; i < fields.length; i++) {
+			if (fields[i] instanceof Long) {
+				out.putLong((Long) fields[i]);
+			} else {
+				out.putInt(strings[i].length);
+				out.put(strings[i]);
+			}
+		}
+		out.flip();
+		return out.asReadOnlyBuffer();
+	}
+
+	private static String readString(ByteBuffer in) throws StreamCorruptedException {
+		int length = in.getInt();
+		if (length < 0 || length > in.remaining()) {
+			throw new StreamCorruptedException("invalid string length " + length);
+		}
+		String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+		in.position(in.position() + length);
+		return value;
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, name + "-" + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+}
@@ -0,0 +1,177 @@
+/**
+ * Multiple Client Chat Application
+ * FramePool holds the direct buffers broadcast frames are encoded into, so
+ * the broadcast path reuses the same memory instead of allocating a direct
+ * buffer per line and leaving it to the garbage collector. The pool is one
+ * direct buffer cut into chat.server.framePoolSlots slots of
+ * chat.server.framePoolSlotBytes bytes, allocated once.
+ *
+ * A pooled frame is a read-only slice of its slot, shared by every
+ * recipient like any other frame, and reference counted: whoever passes it
+ * on retains it first, and whoever is done with it (the writer once it is
+ * written, a queue that drops it) releases it. The slot is reused when the
+ * count reaches 0. A frame that does not fit a slot, or arrives with every
+ * slot in use, is allocated as before; retain() and release() ignore
+ * frames that are not pooled, so callers need not tell the two apart.
+ */
+
+package ChatApplication;
+
+import java.nio.*;
+import java.util.concurrent.atomic.*;
+
+final class FramePool {
+
+	static final String SLOTS_PROPERTY = "chat.server.framePoolSlots";
+	static final String SLOT_BYTES_PROPERTY = "chat.server.framePoolSlotBytes";
+	static final int DEFAULT_SLOTS = 4096;
+	static final int DEFAULT_SLOT_BYTES = 512;
+	//slots looked at for a free one before giving up and allocating
+	private static final int PROBES = 64;
+
+	//The pool broadcasts are encoded into, shared by every server in the process
+	static final FramePool SHARED = new FramePool(Integer.getInteger(SLOTS_PROPERTY, DEFAULT_SLOTS),
+			Integer.getInteger(SLOT_BYTES_PROPERTY, DEFAULT_SLOT_BYTES));
+
+	private final int slotBytes;
+	//read-only, for the readers' cursors
+	private final ByteBuffer arena;
+	private final ByteBuffer[] writers;
+	private final ByteBuffer[] frames;
+	private final AtomicIntegerArray refs;
+	//slot index + 1 by the frame's identity hash, open addressing; never changes once built
+	private final int[] index;
+	private final AtomicInteger next = new AtomicInteger();
+	private final AtomicLong misses = new AtomicLong();
+
+	FramePool(int slots, int slotBytes) {
+		slots = Math.max(0, slots);
+		this.slotBytes = Math.max(BinaryCodec.HEADER_LENGTH, slotBytes);
+		ByteBuffer memory = ByteBuffer.allocateDirect(slots * this.slotBytes);
+		arena = memory.asReadOnlyBuffer();
+		writers = new ByteBuffer[slots];
+		frames = new ByteBuffer[slots];
+		refs = new AtomicIntegerArray(slots);
+		index = new int[Integer.highestOneBit(Math.max(1, slots * 2 - 1)) * 2];
+		for (int i = 0; i < slots; i++) {
+			memory.limit((i + 1) * this.slotBytes).position(i * this.slotBytes);
+			writers[i] = memory.slice();
+			frames[i] = writers[i].asReadOnlyBuffer();
+			int at = hash(frames[i]);
+			while (index[at] != 0) {
+				at = (at + 1) & (index.length - 1);
+			}
+			index[at] = i + 1;
+		}
+	}
+
+	private int hash(ByteBuffer frame) {
+		int h = System.identityHashCode(frame);
+		return (h ^ h >>> 16) & (index.length - 1);
+	}
+
+	int slotBytes() {
+		return slotBytes;
+	}
+
+	/**
+	 * A free slot for a frame of length bytes, with the one reference the
+	 * caller now holds, or -1 if the frame is too long or no slot is free
+	 * nearby. Fill writer(slot), then share frame(slot, length).
+	 */
+	int acquire(int length) {
+		if (length <= slotBytes) {
+			int slots = refs.length();
+			for (int probe = 0; probe < PROBES && probe < slots; probe++) {
+				int slot = Math.floorMod(next.getAndIncrement(), slots);
+				if (refs.get(slot) == 0 && refs.compareAndSet(slot, 0, 1)) {
+					return slot;
+				}
+			}
+		}
+		misses.incrementAndGet();
+		return -1;
+	}
+
+	//The slot's memory, cleared for writing; only the holder of a just-acquired slot writes to it
+	ByteBuffer writer(int slot) {
+		ByteBuffer writer = writers[slot];
+		writer.clear();
+		return writer;
+	}
+
+	//The slot's first length bytes as the frame to share; readers use duplicates or cursors, never move it
+	ByteBuffer frame(int slot, int length) {
+		ByteBuffer frame = frames[slot];
+		frame.limit(length).position(0);
+		return frame;
+	}
+
+	//The slot of a pooled frame, or -1 for any other buffer
+	int slotOf(ByteBuffer frame) {
+		if (!frame.isDirect() || !frame.isReadOnly() || frame.capacity() != slotBytes) {
+			return -1;
+		}
+		for (int at = hash(frame);; at = (at + 1) & (index.length - 1)) {
+			int slot = index[at] - 1;
+			if (slot < 0) {
+				return -1;
+			}
+			if (frames[slot] == frame) {
+				return slot;
+			}
+		}
+	}
+
+	//Another holder of the frame, e.g. the queue it is offered to; nothing if it is not pooled
+	void retain(ByteBuffer frame) {
+		int slot = slotOf(frame);
+		if (slot >= 0) {
+			refs.incrementAndGet(slot);
+		}
+	}
+
+	void release(ByteBuffer frame) {
+		int slot = slotOf(frame);
+		if (slot >= 0) {
+			release(slot);
+		}
+	}
+
+	void release(int slot) {
+		if (refs.decrementAndGet(slot) < 0) {
+			refs.incrementAndGet(slot);
+			throw new IllegalStateException("frame slot " + slot + " released more often than retained");
+		}
+	}
+
+	/**
+	 * A view of a pooled frame's bytes for one reader, whose position moves
+	 * as the frame is written out. The cursor is reused if given, so a
+	 * writer keeps one per batch position instead of a duplicate per frame.
+	 */
+	ByteBuffer cursor(int slot, ByteBuffer frame, ByteBuffer reuse) {
+		ByteBuffer cursor = reuse != null ? reuse : arena.duplicate();
+		int start = slot * slotBytes;
+		cursor.clear();
+		cursor.position(start + frame.position());
+		cursor.limit(start + frame.limit());
+		return cursor;
+	}
+
+	//Frames allocated because they did not fit a slot or none was free
+	long misses() {
+		return misses.get();
+	}
+
+	//Slots held by a frame not yet written or dropped everywhere
+	int inUse() {
+		int used = 0;
+		for (int i = 0; i < refs.length(); i++) {
+			if (refs.get(i) > 0) {
+				used++;
+			}
+		}
+		return used;
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * Multiple Client Chat Application
+ * HistoryRing keeps the most recent broadcast lines, with their rooms, so a
+ * client that joins can be shown what was said just before. The lines live
+ * in one direct buffer of fixed size, allocated once, so however many pass
+ * through, the history adds nothing for the garbage collector to trace or
+ * copy. The oldest lines are overwritten as new ones arrive.
+ *
+ * Writers add lines under the write lock, one at a time, each from under
+ * the lock ordering its own room's broadcasts. Readers never block them:
+ * they copy what they need under an optimistic StampedLock read and check
+ * afterwards that nothing was overwritten meanwhile, retrying if so. Only
+ * after a few failed attempts, with broadcasts arriving faster than a copy
+ * completes, does a reader take the read lock and make the writer wait
+ * for one copy.
+ */
+
+package ChatApplication;
+
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+final class HistoryRing {
+
+	//lines kept for replay; 0 turns history off
+	static final String LINES_PROPERTY = "chat.server.historyLines";
+	//size of the off-heap buffer holding them
+	static final String BYTES_PROPERTY = "chat.server.historyBytes";
+	static final int DEFAULT_LINES = 100;
+	static final int DEFAULT_BYTES = 256 * 1024;
+
+	private static final int OPTIMISTIC_ATTEMPTS = 3;
+	//room length and line length, then room and line
+	private static final int RECORD_HEADER = 2 + 4;
+
+	private final ByteBuffer ring;
+	private final int capacity;
+	//absolute start of each record, by sequence number modulo the number of lines kept
+	private final long[] starts;
+	private final StampedLock lock = new StampedLock();
+	private final AtomicLong fallbacks = new AtomicLong();
+	private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER);
+	//the room of the line being added, encoded into the same array every time
+	private final LineBuffer roomBytes = new LineBuffer(64);
+	private long head;
+	private volatile long count;
+
+	HistoryRing(int lines, int bytes) {
+		this.capacity = Math.max(1, bytes);
+		this.ring = ByteBuffer.allocateDirect(capacity);
+		this.starts = new long[Math.max(1, lines)];
+	}
+
+	//History configured by the chat.server.history* properties, or null if turned off
+	static HistoryRing fromSystemProperties() {
+		int lines = Integer.getInteger(LINES_PROPERTY, DEFAULT_LINES);
+		return lines <= 0 ? null : new HistoryRing(lines, Integer.getInteger(BYTES_PROPERTY, DEFAULT_BYTES));
+	}
+
+	//Lines added so far; the next line added gets this sequence number
+	long count() {
+		return count;
+	}
+
+	//Reads that had to take the read lock because broadcasts kept overwriting their copy
+	long fallbacks() {
+		return fallbacks.get();
+	}
+
+	/**
+	 * Adds a broadcast line. Lines of one room are kept in the order they
+	 * are added. A line too long to fit in the buffer is not kept.
+	 */
+	void add(String room, String line) {
+		byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8);
+		add(room, lineBytes, 0, lineBytes.length);
+	}
+
+	//The same for a line already encoded as UTF-8; allocates nothing
+	void add(String room, byte[] line, int offset, int lineLength) {
+		long stamp = lock.writeLock();
+		try {
+			//encoded under the lock, as writers share the array
+			roomBytes.clear().append(room);
+			int roomLength = roomBytes.length();
+			int length = RECORD_HEADER + roomLength + lineLength;
+			long sequence = count;
+			if (length > capacity) {
+				//an empty slot rather than a gap, so sequence numbers still match count
+				starts[(int) (sequence % starts.length)] = Long.MIN_VALUE;
+			} else {
+				starts[(int) (sequence % starts.length)] = head;
+				header.clear();
+				header.putShort((short) roomLength).putInt(lineLength);
+				put(header.array(), 0, RECORD_HEADER);
+				put(roomBytes.array(), 0, roomLength);
+				put(line, offset, lineLength);
+			}
+			count = sequence + 1;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * The lines of one room with sequence numbers from (inclusive) to to
+	 * (exclusive) that are still kept, oldest first.
+	 */
+	List<String> lines(String room, long from, long to) {
+		for (int attempt = 0;; attempt++) {
+			boolean locked = attempt >= OPTIMISTIC_ATTEMPTS;
+			long stamp = locked ? lock.readLock() : lock.tryOptimisticRead();
+			if (stamp == 0) {
+				Thread.yield();
+				continue;
+			}
+			try {
+				List<String> lines = copy(room, from, to);
+				if (locked || lock.validate(stamp)) {
+					if (locked) {
+						fallbacks.incrementAndGet();
+					}
+					return lines;
+				}
+			} catch (RuntimeException torn) {
+				//an optimistic read saw a half-written record; validate() will fail and the copy is retried
+				if (locked) {
+					throw torn;
+				}
+			} finally {
+				if (locked) {
+					lock.unlockRead(stamp);
+				}
+			}
+		}
+	}
+
+	private List<String> copy(String room, long from, long to) {
+		long added = count;
+		long end = Math.min(to, added);
+		//slots of lines older than the last starts.length have been reused
+		long first = Math.max(Math.max(from, 0), added - starts.length);
+		long oldest = head - capacity;
+		List<String> lines = new ArrayList<String>();
+		if (first >= end) {
+			return lines;
+		}
+		//one bulk copy of the bytes the wanted records span, then decoded from the copy
+		long spanStart = Long.MAX_VALUE;
+		for (long sequence = first; sequence < end; sequence++) {
+			long start = starts[(int) (sequence % starts.length)];
+			if (start >= oldest) {
+				spanStart = Math.min(spanStart, start);
+			}
+		}
+		if (spanStart == Long.MAX_VALUE) {
+			return lines;
+		}
+		byte[] span = new byte[(int) (head - spanStart)];
+		ByteBuffer source = ring.duplicate();
+		int offset = (int) (spanStart % capacity);
+		int firstPart = Math.min(span.length, capacity - offset);
+		source.position(offset);
+		source.get(span, 0, firstPart);
+		source.position(0);
+		source.get(span, firstPart, span.length - firstPart);
+		ByteBuffer records = ByteBuffer.wrap(span);
+		byte[] roomBytes = room.getBytes(StandardCharsets.UTF_8);
+		for (long sequence = first; sequence < end; sequence++) {
+			long start = starts[(int) (sequence % starts.length)];
+			if (start < spanStart) {
+				continue;
+			}
+			records.position((int) (start - spanStart));
+			int roomLength = records.getShort();
+			int lineLength = records.getInt();
+			boolean match = roomLength == roomBytes.length;
+			for (int i = 0; match && i < roomLength; i++) {
+				match = span[records.position() + i] == roomBytes[i];
+			}
+			if (match) {
+				lines.add(new String(span, records.position() + roomLength, lineLength, StandardCharsets.UTF_8));
+			}
+		}
+		return lines;
+	}
+
+	//Copies bytes in at the head, wrapping around the end of the buffer
+	private void put(byte[] bytes, int from, int length) {
+		int offset = (int) (head % capacity);
+		int firstPart = Math.min(length, capacity - offset);
+		ring.position(offset);
+		ring.put(bytes, from, firstPart);
+		if (firstPart < length) {
+			ring.position(0);
+			ring.put(bytes, from + firstPart, length - firstPart);
+		}
+		head += length;
+	}
+}
@@ -0,0 +1,88 @@
+/**
+ * Multiple Client Chat Application
+ * LatencyHistogram counts latencies in nanoseconds into log-linear buckets,
+ * like HdrHistogram: every power of two is split into 128 buckets, so any
+ * percentile is reported within 1% of the true value while the histogram
+ * stays a fixed 60 KB however many values are recorded. record() is a
+ * single atomic increment and may be called from any number of threads.
+ */
+
+package ChatApplication;
+
+import java.util.concurrent.atomic.*;
+
+final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 7;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	//values below this have a bucket each
+	private static final int LINEAR = 2 * SUB_BUCKETS;
+	private static final int BUCKETS = LINEAR + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	//Negative values, from clocks read on different threads, count as 0
+	void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucket(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		long highest;
+		while (value > (highest = max.get()) && !max.compareAndSet(highest, value)) {
+		}
+	}
+
+	long count() {
+		return count.get();
+	}
+
+	long max() {
+		return max.get();
+	}
+
+	double mean() {
+		long recorded = count.get();
+		return recorded == 0 ? 0 : (double) total.get() / recorded;
+	}
+
+	/**
+	 * The value at or below which the given percent of recorded values lie,
+	 * as the highest value of its bucket; 0 if nothing was recorded.
+	 */
+	long percentile(double percent) {
+		long recorded = count.get();
+		if (recorded == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percent / 100.0 * recorded));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) {
+				return Math.min(highestIn(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	static int bucket(long value) {
+		if (value < LINEAR) {
+			return (int) value;
+		}
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		return LINEAR + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	static long highestIn(int bucket) {
+		if (bucket < LINEAR) {
+			return bucket;
+		}
+		int shift = (bucket - LINEAR) / SUB_BUCKETS + 1;
+		long top = (bucket - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		long highest = ((top + 1) << shift) - 1;
+		return highest < 0 ? Long.MAX_VALUE : highest;
+	}
+}
@@ -0,0 +1,580 @@
+/**
+ * Multiple Client Chat Application
+ * LegacyCodec speaks the subset of the Java serialization stream format that
+ * Client and Server have always exchanged: a username String, MessageHandler
+ * objects from the client, and broadcast Strings from the server.
+ * It lets the server talk to unmodified ObjectOutputStream /
+ * ObjectInputStream peers without a blocking stream per connection.
+ * A serialized stream keeps every object it carries in a handle table until
+ * the writer resets it, and old clients never do. The codec bounds that
+ * state on both sides of a connection: Decoder keeps only a window of recent
+ * handles, and ResetTracker tells the writer when to send TC_RESET so the
+ * client's ObjectInputStream lets go of the broadcasts it has read.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.nio.*;
+import java.util.*;
+
+final class LegacyCodec {
+
+	static final short STREAM_MAGIC = (short) 0xaced;
+	static final short STREAM_VERSION = 5;
+
+	static final byte TC_NULL = (byte) 0x70;
+	static final byte TC_REFERENCE = (byte) 0x71;
+	static final byte TC_CLASSDESC = (byte) 0x72;
+	static final byte TC_OBJECT = (byte) 0x73;
+	static final byte TC_STRING = (byte) 0x74;
+	static final byte TC_ENDBLOCKDATA = (byte) 0x78;
+	static final byte TC_RESET = (byte) 0x79;
+	static final byte TC_LONGSTRING = (byte) 0x7C;
+
+	static final int BASE_WIRE_HANDLE = 0x7e0000;
+	static final byte SC_SERIALIZABLE = 0x02;
+
+	static final String MESSAGE_CLASS = MessageHandler.class.getName();
+
+	//most recent inbound handles a decoder keeps for back-references
+	static final String HANDLE_WINDOW_PROPERTY = "chat.server.legacyHandleWindow";
+	//broadcast bytes written to a serialized-stream client between resets
+	static final String RESET_BYTES_PROPERTY = "chat.server.legacyResetBytes";
+	static final int DEFAULT_HANDLE_WINDOW = 1024;
+	static final long DEFAULT_RESET_BYTES = 1024 * 1024;
+	//class descriptors are kept outside the window, up to this many between resets
+	static final int MAX_CLASS_DESCRIPTORS = 64;
+	//a frame is buffered whole before it is decoded, so a peer may not announce more than a binary frame's payload
+	static final int MAX_FRAME_LENGTH = BinaryCodec.MAX_PAYLOAD_LENGTH;
+
+	private static final byte[] STREAM_HEADER = { (byte) 0xac, (byte) 0xed, 0x00, 0x05 };
+	private static final byte[] RESET = { TC_RESET };
+
+	private LegacyCodec() {
+	}
+
+	//Stream header every ObjectOutputStream writes before its first object
+	static ByteBuffer streamHeader() {
+		return ByteBuffer.wrap(STREAM_HEADER).asReadOnlyBuffer();
+	}
+
+	//Makes an ObjectInputStream peer forget every object it has read so far
+	static ByteBuffer reset() {
+		return ByteBuffer.wrap(RESET).asReadOnlyBuffer();
+	}
+
+	/**
+	 * Encodes a top-level String exactly as ObjectOutputStream.writeObject
+	 * would. The result is a read-only direct buffer meant to be encoded once
+	 * and shared: every recipient writes its own duplicate() of it, so a
+	 * broadcast is neither re-encoded nor copied per recipient.
+	 */
+	static ByteBuffer encodeString(String s) {
+		int utfLength = utfLength(s);
+		ByteBuffer out = ByteBuffer.allocateDirect(stringHeaderLength(utfLength) + utfLength);
+		putStringHeader(out, utfLength);
+		putUtf(out, s);
+		out.flip();
+		return out.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Joins encoded String frames into one frame carrying their concatenated
+	 * text. Modified UTF-8 concatenates byte for byte, so no text is decoded.
+	 */
+	static ByteBuffer concatStrings(List<ByteBuffer> frames) {
+		long utfLength = 0;
+		for (ByteBuffer frame : frames) {
+			utfLength += frame.remaining() - stringHeaderLength(frame);
+		}
+		if (utfLength > Integer.MAX_VALUE - 16) {
+			throw new IllegalArgumentException("joined string too long: " + utfLength);
+		}
+		ByteBuffer out = ByteBuffer.allocateDirect(stringHeaderLength((int) utfLength) + (int) utfLength);
+		putStringHeader(out, (int) utfLength);
+		for (ByteBuffer frame : frames) {
+			ByteBuffer payload = frame.duplicate();
+			payload.position(payload.position() + stringHeaderLength(frame));
+			out.put(payload);
+		}
+		out.flip();
+		return out.asReadOnlyBuffer();
+	}
+
+	private static int stringHeaderLength(int utfLength) {
+		return utfLength > 0xFFFF ? 9 : 3;
+	}
+
+	private static int stringHeaderLength(ByteBuffer frame) {
+		return frame.get(frame.position()) == TC_LONGSTRING ? 9 : 3;
+	}
+
+	private static void putStringHeader(ByteBuffer out, int utfLength) {
+		if (utfLength > 0xFFFF) {
+			out.put(TC_LONGSTRING);
+			out.putLong(utfLength);
+		} else {
+			out.put(TC_STRING);
+			out.putShort((short) utfLength);
+		}
+	}
+
+	//Length of s in the modified UTF-8 used by DataOutput.writeUTF
+	static int utfLength(String s) {
+		int length = 0;
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				length++;
+			} else if (c > 0x07FF) {
+				length += 3;
+			} else {
+				length += 2;
+			}
+		}
+		return length;
+	}
+
+	static void putUtf(ByteBuffer out, String s) {
+		for (int i = 0, n = s.length(); i < n; i++) {
+			char c = s.charAt(i);
+			if (c >= 0x0001 && c <= 0x007F) {
+				out.put((byte) c);
+			} else if (c > 0x07FF) {
+				out.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			} else {
+				out.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	/**
+	 * Incremental decoder for one inbound connection.
+	 * decode() returns the next complete top-level object (a String or a
+	 * MessageHandler) or null when the buffer holds only part of one, in which
+	 * case the buffer position is left untouched and required() tells how many
+	 * bytes must be buffered before it is worth trying again.
+	 */
+	static final class Decoder implements WireProtocol.Decoder {
+
+		private static final Underflow UNDERFLOW = new Underflow();
+
+		private final HandleTable handles;
+		private boolean headerRead;
+		private int frameStart;
+		private int required;
+
+		Decoder() {
+			this(Integer.getInteger(HANDLE_WINDOW_PROPERTY, DEFAULT_HANDLE_WINDOW));
+		}
+
+		Decoder(int handleWindow) {
+			handles = new HandleTable(handleWindow);
+		}
+
+		public Object decode(ByteBuffer in) throws IOException {
+			if (in.remaining() < required) {
+				return null;
+			}
+			frameStart = in.position();
+			int handleMark = handles.size();
+			try {
+				if (!headerRead) {
+					need(in, 4);
+					if (in.getShort() != STREAM_MAGIC || in.getShort() != STREAM_VERSION) {
+						throw new StreamCorruptedException("invalid stream header");
+					}
+					headerRead = true;
+					frameStart = in.position();
+				}
+				while (peek(in) == TC_RESET) {
+					in.get();
+					handles.clear();
+					handleMark = 0;
+					frameStart = in.position();
+				}
+				Object result = readTopLevel(in);
+				required = 0;
+				handles.commit();
+				return result;
+			} catch (Underflow underflow) {
+				in.position(frameStart);
+				handles.rollback(handleMark);
+				return null;
+			}
+		}
+
+		public int required() {
+			return required;
+		}
+
+		//Handles assigned since the last reset, including those no longer retained
+		int handleCount() {
+			return handles.size();
+		}
+
+		public long retainedBytes() {
+			return handles.retainedBytes();
+		}
+
+		public WireProtocol protocol() {
+			return WireProtocol.LEGACY;
+		}
+
+		private Object readTopLevel(ByteBuffer in) throws IOException, Underflow {
+			byte tc = peek(in);
+			switch (tc) {
+			case TC_STRING:
+			case TC_LONGSTRING:
+			case TC_REFERENCE:
+			case TC_NULL:
+				return readStringValue(in);
+			case TC_OBJECT:
+				return readMessage(in);
+			default:
+				throw new StreamCorruptedException(String.format("unexpected type code 0x%02X", tc));
+			}
+		}
+
+		private MessageHandler readMessage(ByteBuffer in) throws IOException, Underflow {
+			in.get();
+			ClassInfo info = readClassDesc(in);
+			MessageHandler message = new MessageHandler((String) null);
+			handles.add(message);
+			for (int i = 0; i < info.typeCodes.length; i++) {
+				Object value = readFieldValue(in, info.typeCodes[i]);
+				//the type codes come from the peer's class descriptor, so they are checked rather than trusted
+				if ("message".equals(info.names[i])) {
+					if (value != null && !(value instanceof String)) {
+						throw new StreamCorruptedException("message field is not a String");
+					}
+					message.message = (String) value;
+				} else if ("disconnect".equals(info.names[i])) {
+					if (!(value instanceof Boolean)) {
+						throw new StreamCorruptedException("disconnect field is not a boolean");
+					}
+					message.disconnect = (Boolean) value;
+				}
+			}
+			return message;
+		}
+
+		private ClassInfo readClassDesc(ByteBuffer in) throws IOException, Underflow {
+			need(in, 1);
+			byte tc = in.get();
+			if (tc == TC_REFERENCE) {
+				Object ref = handle(in);
+				if (!(ref instanceof ClassInfo)) {
+					throw new StreamCorruptedException("reference is not a class descriptor");
+				}
+				return (ClassInfo) ref;
+			}
+			if (tc != TC_CLASSDESC) {
+				throw new StreamCorruptedException(String.format("unexpected class descriptor 0x%02X", tc));
+			}
+			String className = readUtf(in, readUnsignedShort(in));
+			if (!MESSAGE_CLASS.equals(className)) {
+				throw new InvalidClassException(className, "not accepted by the chat server");
+			}
+			need(in, 11);
+			in.getLong();
+			byte flags = in.get();
+			if ((flags & SC_SERIALIZABLE) == 0) {
+				throw new InvalidClassException(className, "not serializable");
+			}
+			int fieldCount = in.getShort() & 0xFFFF;
+			ClassInfo info = new ClassInfo(fieldCount);
+			handles.add(info);
+			for (int i = 0; i < fieldCount; i++) {
+				need(in, 1);
+				info.typeCodes[i] = (char) in.get();
+				info.names[i] = readUtf(in, readUnsignedShort(in));
+				if (info.typeCodes[i] == 'L' || info.typeCodes[i] == '[') {
+					readStringValue(in);
+				}
+			}
+			need(in, 2);
+			if (in.get() != TC_ENDBLOCKDATA || in.get() != TC_NULL) {
+				throw new InvalidClassException(className, "unexpected class annotation or superclass");
+			}
+			return info;
+		}
+
+		private Object readFieldValue(ByteBuffer in, char typeCode) throws IOException, Underflow {
+			switch (typeCode) {
+			case 'Z':
+				need(in, 1);
+				return in.get() != 0;
+			case 'B':
+				need(in, 1);
+				return in.get();
+			case 'C':
+			case 'S':
+				need(in, 2);
+				return in.getShort();
+			case 'I':
+			case 'F':
+				need(in, 4);
+				return in.getInt();
+			case 'J':
+			case 'D':
+				need(in, 8);
+				return in.getLong();
+			case 'L':
+				return readStringValue(in);
+			default:
+				throw new StreamCorruptedException("unsupported field type " + typeCode);
+			}
+		}
+
+		private String readStringValue(ByteBuffer in) throws IOException, Underflow {
+			need(in, 1);
+			byte tc = in.get();
+			String value;
+			switch (tc) {
+			case TC_NULL:
+				return null;
+			case TC_REFERENCE:
+				Object ref = handle(in);
+				if (ref != null && !(ref instanceof String)) {
+					throw new StreamCorruptedException("reference is not a String");
+				}
+				return (String) ref;
+			case TC_STRING:
+				value = readUtf(in, readUnsignedShort(in));
+				break;
+			case TC_LONGSTRING:
+				need(in, 8);
+				long length = in.getLong();
+				if (length < 0 || length > MAX_FRAME_LENGTH) {
+					throw new StreamCorruptedException("string too long: " + length);
+				}
+				value = readUtf(in, (int) length);
+				break;
+			default:
+				throw new StreamCorruptedException(String.format("expected a String, found 0x%02X", tc));
+			}
+			handles.add(value);
+			return value;
+		}
+
+		private Object handle(ByteBuffer in) throws IOException, Underflow {
+			need(in, 4);
+			return handles.get(in.getInt() - BASE_WIRE_HANDLE);
+		}
+
+		private int readUnsignedShort(ByteBuffer in) throws IOException, Underflow {
+			need(in, 2);
+			return in.getShort() & 0xFFFF;
+		}
+
+		private String readUtf(ByteBuffer in, int length) throws IOException, Underflow {
+			need(in, length);
+			char[] chars = new char[length];
+			int count = 0;
+			int end = in.position() + length;
+			while (in.position() < end) {
+				int b = in.get() & 0xFF;
+				if (b < 0x80) {
+					chars[count++] = (char) b;
+				} else if ((b >> 5) == 0x06 && in.position() < end) {
+					chars[count++] = (char) (((b & 0x1F) << 6) | (in.get() & 0x3F));
+				} else if ((b >> 4) == 0x0E && in.position() + 1 < end) {
+					chars[count++] = (char) (((b & 0x0F) << 12) | ((in.get() & 0x3F) << 6) | (in.get() & 0x3F));
+				} else {
+					throw new UTFDataFormatException("malformed input around byte " + in.position());
+				}
+			}
+			return new String(chars, 0, count);
+		}
+
+		private byte peek(ByteBuffer in) throws IOException, Underflow {
+			need(in, 1);
+			return in.get(in.position());
+		}
+
+		//required() is what the caller buffers before the next try, so it is capped before it is reported
+		private void need(ByteBuffer in, int n) throws IOException, Underflow {
+			if (in.remaining() < n) {
+				long frame = (long) in.position() - frameStart + n;
+				if (frame > MAX_FRAME_LENGTH) {
+					throw new StreamCorruptedException("frame too long: " + frame);
+				}
+				required = (int) frame;
+				throw UNDERFLOW;
+			}
+		}
+	}
+
+	/**
+	 * Inbound handle table that keeps only the most recent handles (plus the
+	 * class descriptors, which any later object may reference) instead of
+	 * everything since the last reset. Chat clients write a fresh
+	 * MessageHandler and String per message and never refer back to old ones;
+	 * a reference beyond the window is reported as a corrupt stream. Like
+	 * OutboundQueue, the ring starts small and only grows towards the window.
+	 */
+	private static final class HandleTable {
+
+		private static final int INITIAL_SLOTS = 8;
+
+		private final int window;
+		private Object[] slots = new Object[INITIAL_SLOTS];
+		private final HashMap<Integer, ClassInfo> classes = new HashMap<Integer, ClassInfo>();
+		//values overwritten by the frame being decoded, restored if it turns out to be incomplete
+		private final ArrayList<Object> evicted = new ArrayList<Object>();
+		private int size;
+		private volatile long retainedBytes;
+
+		HandleTable(int window) {
+			if (window < 1) {
+				throw new IllegalArgumentException("handle window must be positive: " + window);
+			}
+			this.window = window;
+		}
+
+		int size() {
+			return size;
+		}
+
+		long retainedBytes() {
+			return retainedBytes;
+		}
+
+		void add(Object value) throws StreamCorruptedException {
+			if (value instanceof ClassInfo) {
+				if (classes.size() == MAX_CLASS_DESCRIPTORS) {
+					throw new StreamCorruptedException("too many class descriptors");
+				}
+				classes.put(size, (ClassInfo) value);
+			}
+			if (size == slots.length && slots.length < window) {
+				grow();
+			}
+			int slot = size % slots.length;
+			evicted.add(slots[slot]);
+			retainedBytes += sizeOf(value) - sizeOf(slots[slot]);
+			slots[slot] = value;
+			size++;
+		}
+
+		Object get(int index) throws StreamCorruptedException {
+			if (index < 0 || index >= size) {
+				throw new StreamCorruptedException("invalid handle value");
+			}
+			ClassInfo info = classes.get(index);
+			if (info != null) {
+				return info;
+			}
+			if (index < size - slots.length) {
+				throw new StreamCorruptedException("handle " + index + " is no longer retained");
+			}
+			return slots[index % slots.length];
+		}
+
+		//The frame was decoded completely; what it evicted is gone for good
+		void commit() {
+			evicted.clear();
+		}
+
+		//Undoes the handles added since mark by a frame that was not complete yet
+		void rollback(int mark) {
+			while (size > mark) {
+				size--;
+				int slot = size % slots.length;
+				Object previous = evicted.remove(evicted.size() - 1);
+				retainedBytes += sizeOf(previous) - sizeOf(slots[slot]);
+				slots[slot] = previous;
+				classes.remove(size);
+			}
+			evicted.clear();
+		}
+
+		void clear() {
+			Arrays.fill(slots, null);
+			classes.clear();
+			evicted.clear();
+			size = 0;
+			retainedBytes = 0;
+		}
+
+		//Growing while a frame is only partly decoded is safe: the slots it evicted were still empty
+		private void grow() {
+			Object[] grown = new Object[Math.min(window, slots.length * 2)];
+			for (int index = Math.max(0, size - slots.length); index < size; index++) {
+				grown[index % grown.length] = slots[index % slots.length];
+			}
+			slots = grown;
+		}
+
+		//Rough heap cost of a retained value; a trend to watch, not an exact measurement
+		private static long sizeOf(Object value) {
+			if (value instanceof String) {
+				return 40 + 2L * ((String) value).length();
+			}
+			if (value instanceof ClassInfo) {
+				return 64 + 16L * ((ClassInfo) value).names.length;
+			}
+			return value == null ? 0 : 24;
+		}
+	}
+
+	/**
+	 * Counts the broadcast bytes an ObjectInputStream peer has read since its
+	 * last reset; every String it reads stays in its handle table until then.
+	 * The connection's writer calls written() after each frame and writes the
+	 * TC_RESET it returns, if any, before the next one. Our frames never refer
+	 * back to earlier ones, so a reset can go between any two of them.
+	 */
+	static final class ResetTracker {
+
+		private final long limit;
+		private volatile long retainedBytes;
+
+		ResetTracker(long limit) {
+			this.limit = limit;
+		}
+
+		static ResetTracker fromSystemProperties() {
+			return new ResetTracker(Long.getLong(RESET_BYTES_PROPERTY, DEFAULT_RESET_BYTES));
+		}
+
+		//Called by the connection's single writer for each whole frame it sends, in order
+		ByteBuffer written(int frameLength) {
+			long retained = retainedBytes + frameLength;
+			if (retained >= limit) {
+				retainedBytes = 0;
+				return reset();
+			}
+			retainedBytes = retained;
+			return null;
+		}
+
+		//Frame bytes the peer is holding on to, roughly what its handle table retains
+		long retainedBytes() {
+			return retainedBytes;
+		}
+	}
+
+	private static final class ClassInfo {
+		final char[] typeCodes;
+		final String[] names;
+
+		ClassInfo(int fieldCount) {
+			typeCodes = new char[fieldCount];
+			names = new String[fieldCount];
+		}
+	}
+
+	private static final class Underflow extends Exception {
+		private static final long serialVersionUID = 1L;
+
+		Underflow() {
+			super("incomplete frame", null, false, false);
+		}
+	}
+}
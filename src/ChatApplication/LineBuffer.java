@@ -0,0 +1,121 @@
+/**
+ * Multiple Client Chat Application
+ * LineBuffer puts text together as UTF-8 in a byte array it keeps from one
+ * line to the next, so the broadcast path builds each line without a
+ * String, a StringBuilder or a fresh byte array. The array only grows, when
+ * a line is longer than any before it. One thread at a time.
+ */
+
+package ChatApplication;
+
+import java.nio.charset.*;
+
+final class LineBuffer {
+
+	private byte[] bytes;
+	private int length;
+
+	LineBuffer(int initialBytes) {
+		bytes = new byte[Math.max(16, initialBytes)];
+	}
+
+	LineBuffer clear() {
+		length = 0;
+		return this;
+	}
+
+	int length() {
+		return length;
+	}
+
+	//Drops what was appended after the first length bytes
+	void setLength(int length) {
+		if (length < 0 || length > this.length) {
+			throw new IndexOutOfBoundsException("length " + length + " of " + this.length);
+		}
+		this.length = length;
+	}
+
+	//The bytes so far are the first length() of it; valid until the next append
+	byte[] array() {
+		return bytes;
+	}
+
+	LineBuffer append(byte b) {
+		ensure(1);
+		bytes[length++] = b;
+		return this;
+	}
+
+	LineBuffer append(byte[] src) {
+		return append(src, 0, src.length);
+	}
+
+	LineBuffer append(byte[] src, int offset, int count) {
+		ensure(count);
+		System.arraycopy(src, offset, bytes, length, count);
+		length += count;
+		return this;
+	}
+
+	LineBuffer appendInt(int value) {
+		ensure(4);
+		putInt(length, value);
+		length += 4;
+		return this;
+	}
+
+	//Overwrites four bytes already appended, e.g. a length written before what it measures
+	void putInt(int at, int value) {
+		bytes[at] = (byte) (value >>> 24);
+		bytes[at + 1] = (byte) (value >>> 16);
+		bytes[at + 2] = (byte) (value >>> 8);
+		bytes[at + 3] = (byte) value;
+	}
+
+	//Encodes as String.getBytes(UTF_8) does, a lone surrogate becoming '?'
+	LineBuffer append(CharSequence text) {
+		int count = text.length();
+		ensure(count);
+		for (int i = 0; i < count; i++) {
+			char c = text.charAt(i);
+			if (c < 0x80) {
+				ensure(1);
+				bytes[length++] = (byte) c;
+			} else if (c < 0x800) {
+				ensure(2);
+				bytes[length++] = (byte) (0xC0 | c >> 6);
+				bytes[length++] = (byte) (0x80 | c & 0x3F);
+			} else if (Character.isHighSurrogate(c) && i + 1 < count && Character.isLowSurrogate(text.charAt(i + 1))) {
+				int code = Character.toCodePoint(c, text.charAt(++i));
+				ensure(4);
+				bytes[length++] = (byte) (0xF0 | code >> 18);
+				bytes[length++] = (byte) (0x80 | code >> 12 & 0x3F);
+				bytes[length++] = (byte) (0x80 | code >> 6 & 0x3F);
+				bytes[length++] = (byte) (0x80 | code & 0x3F);
+			} else if (Character.isSurrogate(c)) {
+				ensure(1);
+				bytes[length++] = '?';
+			} else {
+				ensure(3);
+				bytes[length++] = (byte) (0xE0 | c >> 12);
+				bytes[length++] = (byte) (0x80 | c >> 6 & 0x3F);
+				bytes[length++] = (byte) (0x80 | c & 0x3F);
+			}
+		}
+		return this;
+	}
+
+	//Allocates; for the paths that still need the line as a String
+	public String toString() {
+		return new String(bytes, 0, length, StandardCharsets.UTF_8);
+	}
+
+	private void ensure(int more) {
+		if (length + more > bytes.length) {
+			byte[] grown = new byte[Math.max(length + more, bytes.length * 2)];
+			System.arraycopy(bytes, 0, grown, 0, length);
+			bytes = grown;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * Multiple Client Chat Application
+ * LineClock is the "hh:mm:ss" that starts every line the server sends, as
+ * text and as UTF-8. It is formatted once per second and shared, instead of
+ * a Date and a SimpleDateFormat run for every broadcast: reading it costs a
+ * clock read and a volatile load, and only the first reader of a new second
+ * formats it, allocating the one String and byte array that second needs.
+ * Safe for any number of threads.
+ */
+
+package ChatApplication;
+
+import java.nio.charset.*;
+import java.time.*;
+import java.time.format.*;
+
+final class LineClock {
+
+	private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("hh:mm:ss");
+
+	//One second's stamp, replaced whole so a reader never sees the text of one second with the bytes of another
+	private static final class Second {
+
+		final long epochSecond;
+		final String text;
+		final byte[] bytes;
+
+		Second(long epochSecond) {
+			this.epochSecond = epochSecond;
+			this.text = Instant.ofEpochSecond(epochSecond).atZone(ZoneId.systemDefault()).toLocalTime().format(FORMAT);
+			this.bytes = text.getBytes(StandardCharsets.UTF_8);
+		}
+	}
+
+	private volatile Second current = new Second(epochSecond());
+
+	private static long epochSecond() {
+		return Math.floorDiv(System.currentTimeMillis(), 1000L);
+	}
+
+	private Second now() {
+		long second = epochSecond();
+		Second stamp = current;
+		if (stamp.epochSecond != second) {
+			//threads racing here format the same text, and any of them may win
+			stamp = new Second(second);
+			current = stamp;
+		}
+		return stamp;
+	}
+
+	String text() {
+		return now().text;
+	}
+
+	//Shared: read it, never write to it
+	byte[] bytes() {
+		return now().bytes;
+	}
+}
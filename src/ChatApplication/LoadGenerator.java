@@ -0,0 +1,298 @@
+/**
+ * Multiple Client Chat Application
+ * LoadGenerator drives a real ChatServer with thousands of ChatClients and
+ * reports throughput and delivery latency. Unless chat.load.host names a
+ * running server, it starts one in the same JVM, headless, with the engine
+ * chosen by chat.server.engine, so broadcasts go through the server's own
+ * rooms and connection handling.
+ *
+ * Messages are sent on a fixed schedule, not one after another: message i
+ * is due at start + i / rate, and its latency is measured from when it was
+ * due until each room member receives it. A stalled server therefore shows
+ * up as latency for every message that should have been sent meanwhile,
+ * instead of quietly slowing the generator down (coordinated omission).
+ * send() never blocks, so the schedule only slips if this JVM runs out of
+ * CPU; messages ChatClient refuses are counted, not retried.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+public final class LoadGenerator {
+
+	static final String CLIENTS_PROPERTY = "chat.load.clients";
+	//new connections per second
+	static final String CONNECT_RATE_PROPERTY = "chat.load.connectRate";
+	//chat lines per second, from all clients together
+	static final String MESSAGE_RATE_PROPERTY = "chat.load.messageRate";
+	static final String MESSAGE_BYTES_PROPERTY = "chat.load.messageBytes";
+	//clients are spread evenly over this many rooms, the lobby being one
+	static final String ROOMS_PROPERTY = "chat.load.rooms";
+	static final String SECONDS_PROPERTY = "chat.load.seconds";
+	//sent but not measured, while connections settle and the JIT warms up
+	static final String WARMUP_SECONDS_PROPERTY = "chat.load.warmupSeconds";
+	//a server to load instead of starting one; its port is chat.server.port
+	static final String HOST_PROPERTY = "chat.load.host";
+
+	//starts every payload: the nanoTime the line was due, then padding
+	static final String MARKER = "load@";
+
+	private final int clients;
+	private final double connectRate;
+	private final double messageRate;
+	private final int messageBytes;
+	private final int rooms;
+	private final double seconds;
+	private final double warmupSeconds;
+
+	LoadGenerator(int clients, double connectRate, double messageRate, int messageBytes, int rooms, double seconds,
+			double warmupSeconds) {
+		this.clients = Math.max(1, clients);
+		this.connectRate = connectRate;
+		this.messageRate = messageRate;
+		this.messageBytes = messageBytes;
+		this.rooms = Math.max(1, Math.min(rooms, this.clients));
+		this.seconds = seconds;
+		this.warmupSeconds = Math.max(0, warmupSeconds);
+	}
+
+	static LoadGenerator fromSystemProperties() {
+		return new LoadGenerator(Integer.getInteger(CLIENTS_PROPERTY, 1000),
+				doubleProperty(CONNECT_RATE_PROPERTY, 500), doubleProperty(MESSAGE_RATE_PROPERTY, 1000),
+				Integer.getInteger(MESSAGE_BYTES_PROPERTY, 100), Integer.getInteger(ROOMS_PROPERTY, 1),
+				doubleProperty(SECONDS_PROPERTY, 30), doubleProperty(WARMUP_SECONDS_PROPERTY, 5));
+	}
+
+	private static double doubleProperty(String name, double defaultValue) {
+		String value = System.getProperty(name);
+		return value == null ? defaultValue : Double.parseDouble(value);
+	}
+
+	//What one run measured
+	static final class Report {
+
+		final LatencyHistogram latency = new LatencyHistogram();
+		//nanoTimes between which lines are measured; read by the client loops
+		volatile long measuredFrom;
+		volatile long measuredUntil;
+		//set once sending is over, so clients closed at the end are not counted as dropped
+		volatile boolean finished;
+		int connected;
+		int connectFailures;
+		long connectNanos;
+		long sent;
+		long refused;
+		long expected;
+		final AtomicLong delivered = new AtomicLong();
+		final AtomicInteger dropped = new AtomicInteger();
+		double seconds;
+		//how far the schedule ran behind at worst, in nanoseconds
+		long maxScheduleLag;
+		//where the time of the traced lines went, stage by stage
+		MessageTracer trace;
+
+		public String toString() {
+			return String.format("Connected %d clients in %.2f s (%.0f/s), %d failed, %d dropped during the run%n",
+					connected, connectNanos / 1e9, connected / Math.max(connectNanos / 1e9, 1e-9), connectFailures,
+					dropped.get())
+					+ String.format("Sent %d lines in %.1f s (%.0f/s), %d refused; delivered %d of %d (%.0f/s)%n", sent,
+							seconds, sent / seconds, refused, delivered.get(), expected, delivered.get() / seconds)
+					+ String.format("Delivery latency ms: p50 %.3f  p99 %.3f  p99.9 %.3f  max %.3f  mean %.3f%n",
+							latency.percentile(50) / 1e6, latency.percentile(99) / 1e6, latency.percentile(99.9) / 1e6,
+							latency.max() / 1e6, latency.mean() / 1e6)
+					+ String.format("Schedule fell behind by %.3f ms at most", maxScheduleLag / 1e6)
+					+ (trace == null || trace.report().isEmpty() ? "" : String.format("%n") + trace.report().trim());
+		}
+	}
+
+	/**
+	 * Connects the clients, sends for the warm-up and measured seconds, waits
+	 * for the last deliveries and disconnects.
+	 */
+	Report run(String host, int port) throws IOException, InterruptedException {
+		final Report report = new Report();
+		ChatClient.Listener listener = new ChatClient.Listener() {
+			public void received(ChatClient client, String message) {
+				long now = System.nanoTime();
+				//a joining client's backlog holds many lines; only those due in the measured window count
+				int at = message.indexOf(MARKER);
+				while (at >= 0) {
+					int start = at + MARKER.length();
+					int end = start < message.length() && message.charAt(start) == '-' ? start + 1 : start;
+					while (end < message.length() && Character.isDigit(message.charAt(end))) {
+						end++;
+					}
+					if (end > start && Character.isDigit(message.charAt(end - 1))) {
+						long due = Long.parseLong(message.substring(start, end));
+						if (due - report.measuredFrom >= 0 && due - report.measuredUntil < 0) {
+							report.latency.record(now - due);
+							report.delivered.incrementAndGet();
+						}
+					}
+					at = message.indexOf(MARKER, end);
+				}
+			}
+
+			public void closed(ChatClient client, IOException cause) {
+				if (cause != null && !report.finished) {
+					report.dropped.incrementAndGet();
+				}
+			}
+		};
+
+		ChatClient.Group group = new ChatClient.Group(
+				Integer.getInteger(ChatClient.LOOPS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+		report.trace = group.tracer();
+		try {
+			List<ChatClient> connected = new ArrayList<ChatClient>();
+			List<Integer> roomOf = new ArrayList<Integer>();
+			int[] members = new int[rooms];
+			long start = System.nanoTime();
+			for (int i = 0; i < clients; i++) {
+				awaitDue(start + (long) (i * 1e9 / connectRate));
+				try {
+					ChatClient client = group.connect(host, port, "load" + i, listener);
+					int room = i % rooms;
+					if (room > 0) {
+						client.send("/join room" + room);
+					}
+					connected.add(client);
+					roomOf.add(room);
+					members[room]++;
+				} catch (IOException e) {
+					report.connectFailures++;
+				}
+			}
+			report.connectNanos = System.nanoTime() - start;
+			report.connected = connected.size();
+			if (connected.isEmpty()) {
+				return report;
+			}
+
+			String padding = padding();
+			long interval = (long) (1e9 / messageRate);
+			long warmup = (long) (warmupSeconds * messageRate);
+			long total = warmup + (long) (seconds * messageRate);
+			start = System.nanoTime();
+			report.measuredFrom = start + warmup * interval;
+			report.measuredUntil = start + total * interval;
+			for (long i = 0; i < total; i++) {
+				long due = start + i * interval;
+				awaitDue(due);
+				report.maxScheduleLag = Math.max(report.maxScheduleLag, System.nanoTime() - due);
+				int sender = (int) (i % connected.size());
+				boolean measured = due - report.measuredFrom >= 0;
+				if (!connected.get(sender).send(MARKER + due + padding)) {
+					if (measured) {
+						report.refused++;
+					}
+				} else if (measured) {
+					report.sent++;
+					report.expected += members[roomOf.get(sender)];
+				}
+			}
+			report.seconds = (report.measuredUntil - report.measuredFrom) / 1e9;
+			awaitDeliveries(report);
+			report.finished = true;
+			for (ChatClient client : connected) {
+				client.close();
+			}
+			//a clean disconnect, so the server is not left with thousands of broken connections to clear
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			for (ChatClient client : connected) {
+				while (client.isOpen() && System.nanoTime() - deadline < 0) {
+					Thread.sleep(1);
+				}
+			}
+			return report;
+		} finally {
+			group.close();
+		}
+	}
+
+	//Characters after the marker and due time, so lines are about messageBytes long
+	private String padding() {
+		StringBuilder padding = new StringBuilder(" ");
+		for (int i = MARKER.length() + 20; i < messageBytes; i++) {
+			padding.append((char) ('a' + i % 26));
+		}
+		return padding.toString();
+	}
+
+	private static void awaitDue(long due) {
+		long wait;
+		while ((wait = due - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(wait);
+		}
+	}
+
+	//Until every expected delivery has arrived, or none has for a second
+	private static void awaitDeliveries(Report report) throws InterruptedException {
+		long last = -1;
+		long lastChange = System.nanoTime();
+		while (report.delivered.get() < report.expected
+				&& System.nanoTime() - lastChange < TimeUnit.SECONDS.toNanos(1)) {
+			Thread.sleep(10);
+			long delivered = report.delivered.get();
+			if (delivered != last) {
+				last = delivered;
+				lastChange = System.nanoTime();
+			}
+		}
+	}
+
+	/**
+	 * Starts a headless ChatServer on the port in a daemon thread and waits
+	 * until it accepts connections. Its log only goes to chat.server.logFile,
+	 * if set, so logging does not compete with the clients for the console.
+	 */
+	static ChatServer startServer(final int port) throws IOException, InterruptedException {
+		ServerLog log = ServerLog.fromSystemProperties();
+		ServerLog.Sink file = ServerLog.fileSinkFromSystemProperties();
+		if (file != null) {
+			log.addSink(file);
+		}
+		final ChatServer server = new ChatServer(log);
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				server.startServer(port);
+			}
+		}, "chat-load-server");
+		thread.setDaemon(true);
+		thread.start();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (true) {
+			try {
+				new Socket("localhost", port).close();
+				return server;
+			} catch (ConnectException e) {
+				if (System.nanoTime() - deadline > 0 || !thread.isAlive()) {
+					throw e;
+				}
+				Thread.sleep(10);
+			}
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		LoadGenerator generator = fromSystemProperties();
+		String host = System.getProperty(HOST_PROPERTY);
+		int port = Integer.getInteger(ChatServer.PORT_PROPERTY, ChatServer.PORT);
+		if (host == null) {
+			host = "localhost";
+			startServer(port);
+		}
+		System.out.println(String.format("Load: %d clients at %.0f/s over %d rooms, %.0f lines/s of %d bytes, %.0f s after %.0f s warm-up, against %s:%d (%s engine)",
+				generator.clients, generator.connectRate, generator.rooms, generator.messageRate, generator.messageBytes,
+				generator.seconds, generator.warmupSeconds, host, port,
+				System.getProperty(HOST_PROPERTY) != null ? "remote" : System.getProperty(ChatServer.ENGINE_PROPERTY, "selector")));
+		System.out.println(generator.run(host, port));
+		System.exit(0);
+	}
+}
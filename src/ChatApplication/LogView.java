@@ -0,0 +1,261 @@
+/**
+ * Multiple Client Chat Application
+ * LogView is the scrollback of the Server and Client windows. It replaces a
+ * JTextArea, whose document keeps every line ever appended and re-lays-out
+ * on each append, with a JList over a ring of the last few lines. Rows have
+ * a fixed height, so the list works out which rows are visible by
+ * arithmetic and paints only those; appending a line costs the same after
+ * a day of traffic as after a minute, and memory stops growing once the
+ * ring is full.
+ *
+ * append() may be called from any thread, like JTextArea.append(): lines
+ * from other threads are queued and added on the Event Dispatch Thread in
+ * one go, so a burst of messages is one update of the list, not many. With
+ * a frame interval, those updates are also spaced at least that far apart:
+ * a steady stream of thousands of messages a second is a few dozen updates,
+ * leaving the Event Dispatch Thread free for typing and painting.
+ */
+
+package ChatApplication;
+
+import java.awt.*;
+import java.awt.event.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.swing.*;
+
+class LogView extends JList<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	static final int DEFAULT_CAPACITY = 1000;
+	//about one screen refresh
+	static final int DEFAULT_FRAME_MILLIS = 16;
+
+	private final Lines lines;
+	private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<String>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final Runnable flushTask = new Runnable() {
+		public void run() {
+			flushScheduled.set(false);
+			flush();
+		}
+	};
+	//fires once on the Event Dispatch Thread when a frame has passed since the last update
+	private final javax.swing.Timer frameTimer;
+	private final long frameNanos;
+	private volatile long lastFlushNanos;
+	private int widest;
+
+	//Lines from other threads are added as soon as the Event Dispatch Thread gets to them
+	LogView(int capacity) {
+		this(capacity, 0);
+	}
+
+	//Lines from other threads are added at most once every frameMillis; 0 adds them as soon as possible
+	LogView(int capacity, int frameMillis) {
+		this(new Lines(Math.max(1, capacity)), Math.max(0, frameMillis));
+	}
+
+	private LogView(Lines lines, int frameMillis) {
+		super(lines);
+		this.lines = lines;
+		frameNanos = TimeUnit.MILLISECONDS.toNanos(frameMillis);
+		lastFlushNanos = System.nanoTime() - frameNanos;
+		if (frameMillis > 0) {
+			frameTimer = new javax.swing.Timer(frameMillis, new ActionListener() {
+				public void actionPerformed(ActionEvent event) {
+					flushTask.run();
+				}
+			});
+			frameTimer.setRepeats(false);
+		} else {
+			frameTimer = null;
+		}
+		setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+		setLayoutOrientation(VERTICAL);
+		setVisibleRowCount(20);
+	}
+
+	//Fixed row geometry is what lets the list skip measuring every row
+	public void setFont(Font font) {
+		super.setFont(font);
+		FontMetrics metrics = getFontMetrics(font);
+		setFixedCellHeight(metrics.getHeight());
+		widest = 0;
+		setFixedCellWidth(metrics.charWidth('m'));
+	}
+
+	//Lines kept before the oldest are dropped
+	int capacity() {
+		return lines.rows.length;
+	}
+
+	//Always false: the log is read-only, but still selectable
+	boolean isEditable() {
+		return false;
+	}
+
+	/**
+	 * Adds text as JTextArea.append() would: each "\n" ends a row, and
+	 * text after the last one is continued by the next append.
+	 */
+	void append(String text) {
+		if (text == null || text.isEmpty()) {
+			return;
+		}
+		pending.add(text);
+		if (SwingUtilities.isEventDispatchThread()) {
+			flush();
+		} else if (flushScheduled.compareAndSet(false, true)) {
+			long wait = frameNanos - (System.nanoTime() - lastFlushNanos);
+			if (frameTimer == null || wait <= 0) {
+				//the first line after a quiet spell is not held back
+				SwingUtilities.invokeLater(flushTask);
+			} else {
+				frameTimer.setInitialDelay((int) TimeUnit.NANOSECONDS.toMillis(wait + 999999));
+				frameTimer.restart();
+			}
+		}
+	}
+
+	//Time between updates from other threads, in milliseconds
+	int frameMillis() {
+		return (int) TimeUnit.NANOSECONDS.toMillis(frameNanos);
+	}
+
+	//What is shown, as text; includes lines still on their way to the Event Dispatch Thread
+	String getText() {
+		synchronized (lines) {
+			StringBuilder text = new StringBuilder();
+			for (int i = 0; i < lines.size; i++) {
+				text.append(lines.getElementAt(i));
+				if (i < lines.size - 1 || !lines.open) {
+					text.append('\n');
+				}
+			}
+			for (String queued : pending) {
+				text.append(queued);
+			}
+			return text.toString();
+		}
+	}
+
+	private void flush() {
+		lastFlushNanos = System.nanoTime();
+		boolean atBottom = isAtBottom();
+		boolean added = false;
+		synchronized (lines) {
+			String text;
+			while ((text = pending.poll()) != null) {
+				added = true;
+				int start = 0;
+				while (start < text.length()) {
+					int end = text.indexOf('\n', start);
+					String row = text.substring(start, end < 0 ? text.length() : end);
+					fitWidth(row);
+					lines.add(row, end >= 0);
+					start = end < 0 ? text.length() : end + 1;
+				}
+			}
+			if (added) {
+				lines.fireChanges();
+			}
+		}
+		if (added && atBottom && lines.size > 0) {
+			ensureIndexIsVisible(lines.size - 1);
+		}
+	}
+
+	//Grows the fixed width for a longer row; only the new row is measured
+	private void fitWidth(String row) {
+		if (row.length() <= widest) {
+			return;
+		}
+		widest = row.length();
+		int width = getFontMetrics(getFont()).stringWidth(row) + 8;
+		if (width > getFixedCellWidth()) {
+			setFixedCellWidth(width);
+		}
+	}
+
+	//Following the newest line, unless the user has scrolled up to read
+	private boolean isAtBottom() {
+		Rectangle visible = getVisibleRect();
+		return visible.height == 0 || visible.y + visible.height >= getHeight() - getFixedCellHeight();
+	}
+
+	/**
+	 * The ring of rows. Changes made by one flush are reported to the list
+	 * as at most one removal from the front, one change of the last row and
+	 * one addition at the end, however many lines arrived.
+	 */
+	static final class Lines extends AbstractListModel<String> {
+
+		private static final long serialVersionUID = 1L;
+
+		final String[] rows;
+		private long first;
+		int size;
+		//the last row has no "\n" yet and is continued by the next append
+		boolean open;
+		private int removed;
+		private int changedRow = -1;
+		private int added;
+
+		Lines(int capacity) {
+			rows = new String[capacity];
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public String getElementAt(int index) {
+			return rows[(int) ((first + index) % rows.length)];
+		}
+
+		void add(String row, boolean ended) {
+			if (open) {
+				int last = (int) ((first + size - 1) % rows.length);
+				rows[last] = rows[last] + row;
+				if (added == 0 && changedRow < 0) {
+					changedRow = size - 1;
+				}
+			} else {
+				if (size == rows.length) {
+					//the oldest row goes: one the list has shown, or one added since that it never saw
+					boolean shown = size > added;
+					first++;
+					size--;
+					if (shown) {
+						removed++;
+						changedRow = changedRow > 0 ? changedRow - 1 : -1;
+					} else {
+						added--;
+					}
+				}
+				rows[(int) ((first + size) % rows.length)] = row;
+				size++;
+				added++;
+			}
+			open = !ended;
+		}
+
+		void fireChanges() {
+			if (removed > 0) {
+				fireIntervalRemoved(this, 0, removed - 1);
+			}
+			if (changedRow >= 0) {
+				fireContentsChanged(this, changedRow, changedRow);
+			}
+			if (added > 0) {
+				fireIntervalAdded(this, size - added, size - 1);
+			}
+			removed = 0;
+			changedRow = -1;
+			added = 0;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+/**
+ * Multiple Client Chat Application
+ * Mailbox is the task queue of a shard: an event loop or a ShardThread. Any
+ * thread adds, only the shard takes, and neither ever blocks. A Task links
+ * itself into the queue, so posting one allocates nothing; the broadcast
+ * path only posts Tasks it keeps, so a mailbox adds no garbage per message.
+ * Other Runnables are wrapped in a Task of their own.
+ *
+ * A Task is in a mailbox at most once: adding one that is still waiting
+ * does nothing, as it has not run yet and will run once for both. It can be
+ * added again as soon as it starts running.
+ *
+ * This is D. Vyukov's intrusive multi-producer single-consumer queue: a
+ * producer swaps itself in as the tail and then links the old tail to it.
+ */
+
+package ChatApplication;
+
+import java.util.concurrent.atomic.*;
+
+final class Mailbox {
+
+	//A task that carries its own link
+	abstract static class Task implements Runnable {
+
+		private static final AtomicIntegerFieldUpdater<Task> QUEUED =
+				AtomicIntegerFieldUpdater.newUpdater(Task.class, "queued");
+
+		private volatile Task next;
+		private volatile int queued;
+	}
+
+	private static final class Wrapped extends Task {
+
+		private final Runnable task;
+
+		Wrapped(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			task.run();
+		}
+	}
+
+	//stands in for the queue's first node while it is empty; never run
+	private final Task stub = new Wrapped(null);
+	private final AtomicReference<Task> tail = new AtomicReference<Task>(stub);
+	//consumer only
+	private Task head = stub;
+
+	//Any thread
+	void add(Runnable task) {
+		Task node;
+		if (task instanceof Task) {
+			node = (Task) task;
+			if (!Task.QUEUED.compareAndSet(node, 0, 1)) {
+				return;
+			}
+		} else {
+			node = new Wrapped(task);
+		}
+		link(node);
+	}
+
+	private void link(Task node) {
+		node.next = null;
+		Task previous = tail.getAndSet(node);
+		//until this store a consumer sees the mailbox as not empty but cannot take the task yet
+		previous.next = node;
+	}
+
+	/**
+	 * Next task, oldest first, or null if there is none, or if the next one
+	 * is still being linked in by its producer, which then wakes the shard.
+	 * Consumer only.
+	 */
+	Runnable poll() {
+		Task first = head;
+		Task next = first.next;
+		if (first == stub) {
+			if (next == null) {
+				return null;
+			}
+			head = next;
+			first = next;
+			next = next.next;
+		}
+		if (next != null) {
+			head = next;
+			return taken(first);
+		}
+		if (first != tail.get()) {
+			return null;
+		}
+		//first is the last task: put the stub behind it so it can be unlinked
+		link(stub);
+		next = first.next;
+		if (next != null) {
+			head = next;
+			return taken(first);
+		}
+		return null;
+	}
+
+	//Whether nothing has been added that poll() has not returned; consumer only
+	boolean isEmpty() {
+		return head == stub && tail.get() == stub;
+	}
+
+	private static Task taken(Task task) {
+		//from here on adding it again queues it again
+		task.queued = 0;
+		return task;
+	}
+}
@@ -0,0 +1,448 @@
+/**
+ * Multiple Client Chat Application
+ * MessageJournal keeps every broadcast line on disk, in append-only segment
+ * files written through memory-mapped buffers. Appending is a copy into
+ * the mapping and never waits for the disk. How often the mapped pages are
+ * forced out is a SyncPolicy. GROUP (the default) forces them from a
+ * background thread every chat.server.journalSyncMillis, covering every
+ * line appended since the last sync. ALWAYS forces after each line. NONE
+ * leaves it to the operating system.
+ *
+ * Record layout: int payload length, int CRC32 of the payload, then the
+ * payload itself: long sequence, long timestamp, short room length, room
+ * and line, both UTF-8. A zero length marks the unwritten end of a segment.
+ * On opening, the journal resumes after the last intact record. It stops
+ * there at a bad checksum or a break in the sequence, which is what a crash
+ * part-way through a write leaves behind.
+ * Segments are named by the sequence number of their first record.
+ *
+ * A segment holds only its mapping: the file is closed as soon as it is
+ * mapped. The most recent chat.server.journalSegments segments are kept;
+ * rolling past that deletes the oldest, so a long-running server's disk,
+ * address space and segment list stay bounded.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+final class MessageJournal implements Closeable {
+
+	//directory for the journal; the server only keeps one when this is set
+	static final String DIR_PROPERTY = "chat.server.journalDir";
+	static final String SEGMENT_BYTES_PROPERTY = "chat.server.journalSegmentBytes";
+	static final String SYNC_PROPERTY = "chat.server.journalSync";
+	static final String SYNC_MILLIS_PROPERTY = "chat.server.journalSyncMillis";
+	//segments kept, the one being written included; 0 keeps every segment
+	static final String SEGMENTS_PROPERTY = "chat.server.journalSegments";
+	static final int DEFAULT_SEGMENT_BYTES = 64 * 1024 * 1024;
+	static final long DEFAULT_SYNC_MILLIS = 100;
+	static final int DEFAULT_SEGMENTS = 16;
+
+	static final String SUFFIX = ".journal";
+	private static final int RECORD_HEADER = 8;
+	private static final int PAYLOAD_HEADER = 8 + 8 + 2;
+
+	enum SyncPolicy {
+		//the operating system writes the pages back when it chooses
+		NONE,
+		//a background thread forces everything appended since its last run
+		GROUP,
+		//every append is forced before it returns; puts disk latency on the broadcast path
+		ALWAYS
+	}
+
+	//One journalled broadcast line
+	static final class Entry {
+
+		final long sequence;
+		final long timestamp;
+		final String room;
+		final String line;
+
+		Entry(long sequence, long timestamp, String room, String line) {
+			this.sequence = sequence;
+			this.timestamp = timestamp;
+			this.room = room;
+			this.line = line;
+		}
+	}
+
+	private static final class Segment {
+
+		final File file;
+		final long firstSequence;
+		final MappedByteBuffer buffer;
+		//last record appended here; read by the sync thread
+		volatile long lastSequence;
+
+		//A new segment starts empty even if its file exists; an existing one is mapped as found
+		Segment(File file, long firstSequence, int size, boolean empty) throws IOException {
+			this.file = file;
+			this.firstSequence = firstSequence;
+			//the mapping stays valid once the file is closed, so a segment holds no file descriptor
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				if (empty) {
+					//a file left behind a recovery break must not show its old records after the new ones
+					raf.setLength(0);
+				}
+				FileChannel channel = raf.getChannel();
+				this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+			}
+			this.lastSequence = firstSequence - 1;
+		}
+
+		void force() {
+			buffer.force();
+		}
+	}
+
+	private final File directory;
+	private final int segmentBytes;
+	private final SyncPolicy policy;
+	private final int keptSegments;
+	//oldest first, at most keptSegments; copied on each roll, which is cheap at that size
+	private final List<Segment> segments = new CopyOnWriteArrayList<Segment>();
+	//segments the writer has moved on from and the sync thread has not forced yet
+	private final ConcurrentLinkedQueue<Segment> retired = new ConcurrentLinkedQueue<Segment>();
+	private final CRC32 crc = new CRC32();
+	private final ScheduledExecutorService syncer;
+	private byte[] scratch = new byte[4096];
+	//wraps scratch, replaced only when scratch grows
+	private ByteBuffer scratchBuffer = ByteBuffer.wrap(scratch);
+	private final LineBuffer roomBytes = new LineBuffer(64);
+	private volatile Segment active;
+	private volatile long lastSequence;
+	private volatile long durableSequence;
+
+	MessageJournal(File directory, int segmentBytes, SyncPolicy policy, long syncMillis) throws IOException {
+		this(directory, segmentBytes, policy, syncMillis, DEFAULT_SEGMENTS);
+	}
+
+	MessageJournal(File directory, int segmentBytes, SyncPolicy policy, long syncMillis, int keptSegments) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("cannot create journal directory " + directory);
+		}
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		this.policy = policy;
+		this.keptSegments = Math.max(0, keptSegments);
+		recover();
+		if (policy == SyncPolicy.GROUP) {
+			syncer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable task) {
+					Thread thread = new Thread(task, "chat-journal-sync");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			syncer.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					sync();
+				}
+			}, syncMillis, syncMillis, TimeUnit.MILLISECONDS);
+		} else {
+			syncer = null;
+		}
+	}
+
+	//Journal configured by the chat.server.journal* properties, or null if journalling is off
+	static MessageJournal fromSystemProperties() throws IOException {
+		String directory = System.getProperty(DIR_PROPERTY);
+		if (directory == null) {
+			return null;
+		}
+		return new MessageJournal(new File(directory), Integer.getInteger(SEGMENT_BYTES_PROPERTY, DEFAULT_SEGMENT_BYTES),
+				SyncPolicy.valueOf(System.getProperty(SYNC_PROPERTY, SyncPolicy.GROUP.name()).toUpperCase()),
+				Long.getLong(SYNC_MILLIS_PROPERTY, DEFAULT_SYNC_MILLIS), Integer.getInteger(SEGMENTS_PROPERTY, DEFAULT_SEGMENTS));
+	}
+
+	/**
+	 * Appends one line and returns its sequence number. Single writer: the
+	 * server calls it from its keeper thread, in posting order.
+	 */
+	long append(String room, String line) throws IOException {
+		byte[] lineBytes = line.getBytes(StandardCharsets.UTF_8);
+		return append(room, lineBytes, 0, lineBytes.length);
+	}
+
+	//The same for a line already encoded as UTF-8; allocates nothing until a segment rolls
+	long append(String room, byte[] line, int offset, int lineLength) throws IOException {
+		roomBytes.clear().append(room);
+		int roomLength = roomBytes.length();
+		int length = PAYLOAD_HEADER + roomLength + lineLength;
+		long sequence = lastSequence + 1;
+		if (scratch.length < length) {
+			scratch = new byte[Math.max(length, scratch.length * 2)];
+			scratchBuffer = ByteBuffer.wrap(scratch);
+		}
+		scratchBuffer.clear();
+		scratchBuffer.putLong(sequence).putLong(System.currentTimeMillis()).putShort((short) roomLength);
+		scratchBuffer.put(roomBytes.array(), 0, roomLength).put(line, offset, lineLength);
+		crc.reset();
+		crc.update(scratch, 0, length);
+
+		Segment segment = active;
+		MappedByteBuffer buffer = segment.buffer;
+		//room for this record and the zero length that ends the segment
+		if (buffer.remaining() < RECORD_HEADER + length + 4) {
+			segment = roll(sequence, RECORD_HEADER + length + 4);
+			buffer = segment.buffer;
+		}
+		int position = buffer.position();
+		buffer.putInt(position + 4, (int) crc.getValue());
+		buffer.position(position + RECORD_HEADER);
+		buffer.put(scratch, 0, length);
+		//the length goes in last, so a record is never seen before its payload
+		buffer.putInt(position, length);
+		segment.lastSequence = sequence;
+		lastSequence = sequence;
+		if (policy == SyncPolicy.ALWAYS) {
+			segment.force();
+			durableSequence = sequence;
+		}
+		return sequence;
+	}
+
+	//Sequence number of the last line appended, 0 if none
+	long lastSequence() {
+		return lastSequence;
+	}
+
+	//Last line known to be on disk
+	long durableSequence() {
+		return durableSequence;
+	}
+
+	/**
+	 * Reads the journal in order from the given sequence number up to the
+	 * last line appended when the scan starts. Safe while lines are being
+	 * appended; lines appended during the scan are not included.
+	 */
+	Iterable<Entry> from(final long sequence) {
+		final long last = lastSequence;
+		final List<Segment> snapshot = new ArrayList<Segment>(segments);
+		return new Iterable<Entry>() {
+			public Iterator<Entry> iterator() {
+				return new Scan(snapshot, sequence, last);
+			}
+		};
+	}
+
+	//Forces everything appended so far out to disk
+	void sync() {
+		Segment current = active;
+		//records up to here are in the current segment or one retired before it
+		long target = current.lastSequence;
+		Segment old;
+		while ((old = retired.poll()) != null) {
+			old.force();
+		}
+		current.force();
+		if (target > durableSequence) {
+			durableSequence = target;
+		}
+	}
+
+	public void close() throws IOException {
+		if (syncer != null) {
+			syncer.shutdownNow();
+		}
+		if (policy != SyncPolicy.NONE) {
+			sync();
+		}
+	}
+
+	private Segment roll(long firstSequence, int needed) throws IOException {
+		Segment previous = active;
+		Segment next = new Segment(segmentFile(firstSequence), firstSequence, Math.max(segmentBytes, needed), true);
+		segments.add(next);
+		if (previous != null) {
+			previous.lastSequence = firstSequence - 1;
+			if (policy == SyncPolicy.GROUP) {
+				//added before the switch, so a sync that sees the new segment also finds this one
+				retired.add(previous);
+			} else if (policy == SyncPolicy.ALWAYS) {
+				previous.force();
+			}
+		}
+		active = next;
+		trim();
+		return next;
+	}
+
+	//Deletes the oldest segments beyond keptSegments; scans already under way keep their mappings
+	private void trim() {
+		while (keptSegments > 0 && segments.size() > keptSegments) {
+			Segment oldest = segments.remove(0);
+			if (!oldest.file.delete()) {
+				System.err.println("Journal error : cannot delete " + oldest.file);
+			}
+		}
+	}
+
+	private File segmentFile(long firstSequence) {
+		return new File(directory, String.format("%020d%s", firstSequence, SUFFIX));
+	}
+
+	//Opens the existing segments and finds where appending resumes
+	private void recover() throws IOException {
+		File[] files = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(SUFFIX);
+			}
+		});
+		Arrays.sort(files);
+		//the oldest segments may have been deleted, so the journal starts wherever its first file does
+		long expected = files.length == 0 ? 1 : firstSequence(files[0]);
+		int used = 0;
+		for (File file : files) {
+			long firstSequence = firstSequence(file);
+			if (firstSequence != expected) {
+				break;
+			}
+			used++;
+			Segment segment = new Segment(file, firstSequence, 0, false);
+			segments.add(segment);
+			ByteBuffer buffer = segment.buffer;
+			Entry entry;
+			while ((entry = read(buffer, expected)) != null) {
+				expected = entry.sequence + 1;
+			}
+			segment.lastSequence = expected - 1;
+			active = segment;
+			if (buffer.remaining() >= 4 && buffer.getInt(buffer.position()) != 0) {
+				//whatever follows the last intact record is torn and is overwritten from here
+				break;
+			}
+		}
+		//segments after a break can never be read back, and new segments may take their names
+		for (int i = used; i < files.length; i++) {
+			if (!files[i].delete()) {
+				throw new IOException("cannot delete unreadable journal segment " + files[i]);
+			}
+		}
+		lastSequence = expected - 1;
+		durableSequence = lastSequence;
+		if (active == null) {
+			roll(expected, 0);
+		}
+		trim();
+	}
+
+	private static long firstSequence(File file) {
+		return Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+	}
+
+	/**
+	 * Reads the record at the buffer's position and moves past it, or
+	 * returns null, leaving the position, at the end of the data or at a
+	 * record that is torn or out of sequence.
+	 */
+	private static Entry read(ByteBuffer buffer, long expected) {
+		int position = buffer.position();
+		if (buffer.remaining() < RECORD_HEADER) {
+			return null;
+		}
+		int length = buffer.getInt(position);
+		if (length < PAYLOAD_HEADER || length > buffer.remaining() - RECORD_HEADER) {
+			return null;
+		}
+		byte[] payload = new byte[length];
+		ByteBuffer source = buffer.duplicate();
+		source.position(position + RECORD_HEADER);
+		source.get(payload);
+		CRC32 check = new CRC32();
+		check.update(payload, 0, length);
+		if ((int) check.getValue() != buffer.getInt(position + 4)) {
+			return null;
+		}
+		ByteBuffer in = ByteBuffer.wrap(payload);
+		long sequence = in.getLong();
+		if (sequence != expected) {
+			return null;
+		}
+		long timestamp = in.getLong();
+		int roomLength = in.getShort() & 0xFFFF;
+		if (roomLength > in.remaining()) {
+			return null;
+		}
+		String room = new String(payload, in.position(), roomLength, StandardCharsets.UTF_8);
+		String line = new String(payload, in.position() + roomLength, in.remaining() - roomLength, StandardCharsets.UTF_8);
+		buffer.position(position + RECORD_HEADER + length);
+		return new Entry(sequence, timestamp, room, line);
+	}
+
+	//Walks the segments with read-only views of their mappings
+	private static final class Scan implements Iterator<Entry> {
+
+		private final Iterator<Segment> segments;
+		private final long from;
+		private final long last;
+		private ByteBuffer buffer;
+		private long expected;
+		private Entry next;
+
+		Scan(List<Segment> snapshot, long from, long last) {
+			List<Segment> needed = new ArrayList<Segment>();
+			for (int i = 0; i < snapshot.size(); i++) {
+				//skip segments that end before the first line wanted
+				if (i + 1 < snapshot.size() && snapshot.get(i + 1).firstSequence <= from) {
+					continue;
+				}
+				needed.add(snapshot.get(i));
+			}
+			this.segments = needed.iterator();
+			this.from = from;
+			this.last = last;
+			advance();
+		}
+
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		public Entry next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			Entry entry = next;
+			advance();
+			return entry;
+		}
+
+		private void advance() {
+			next = null;
+			while (true) {
+				if (buffer == null) {
+					if (!segments.hasNext()) {
+						return;
+					}
+					Segment segment = segments.next();
+					buffer = segment.buffer.duplicate();
+					buffer.position(0);
+					expected = segment.firstSequence;
+				}
+				if (expected > last) {
+					return;
+				}
+				Entry entry = read(buffer, expected);
+				if (entry == null) {
+					buffer = null;
+					continue;
+				}
+				expected++;
+				if (entry.sequence >= from) {
+					next = entry;
+					return;
+				}
+			}
+		}
+	}
+}
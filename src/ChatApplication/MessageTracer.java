@@ -0,0 +1,166 @@
+/**
+ * Multiple Client Chat Application
+ * MessageTracer follows a sample of chat lines from the client that sent
+ * them to every client that receives them, and keeps a LatencyHistogram of
+ * each stage on the way:
+ *   NETWORK_IN    client send to server read
+ *   INBOUND_QUEUE server read to decoding it, behind lines read with it
+ *   DECODE        decoding the frame into a message
+ *   LOCK_WAIT     decoded to the room's lane lock held
+ *   UNDER_LOCK    lock held to broadcast posted: formatting, history
+ *   FAN_OUT       posted to every shard having queued it (server only)
+ *   DELIVERY      posted to read by the receiving client (clients only)
+ *   END_TO_END    client send to read by the receiving client (clients only)
+ * A traced line carries its stamps in BinaryCodec TRACED frames, so a
+ * client sees the server's stages of every line it receives. Stamps are
+ * nanoseconds since the epoch from now(): exact within one JVM, and
+ * between JVMs only as close as their wall clocks.
+ */
+
+package ChatApplication;
+
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+final class MessageTracer {
+
+	enum Stage {
+		NETWORK_IN, INBOUND_QUEUE, DECODE, LOCK_WAIT, UNDER_LOCK, FAN_OUT, DELIVERY, END_TO_END
+	}
+
+	//the wall clock once, then nanoTime: high resolution and never going backwards
+	private static final long EPOCH_NANOS;
+	private static final long START_NANOS;
+
+	static {
+		Instant start = Instant.now();
+		START_NANOS = System.nanoTime();
+		EPOCH_NANOS = start.getEpochSecond() * 1000000000L + start.getNano();
+	}
+
+	private final int every;
+	private final LatencyHistogram[] stages = new LatencyHistogram[Stage.values().length];
+
+	//Traces about one line in every; 0 traces none, though lines already traced by their sender are still recorded
+	MessageTracer(int every) {
+		this.every = Math.max(0, every);
+		for (int i = 0; i < stages.length; i++) {
+			stages[i] = new LatencyHistogram();
+		}
+	}
+
+	static long now() {
+		return EPOCH_NANOS + (System.nanoTime() - START_NANOS);
+	}
+
+	//Whether to trace the next line; no shared counter, so the loops do not contend
+	boolean sample() {
+		return every > 0 && (every == 1 || ThreadLocalRandom.current().nextInt(every) == 0);
+	}
+
+	LatencyHistogram stage(Stage stage) {
+		return stages[stage.ordinal()];
+	}
+
+	//Stamps of one traced line; 0 for a stamp not taken, such as the send time of a line the server chose to trace
+	static final class Trace {
+
+		static final int STAMPS = 6;
+
+		long clientSent;
+		long serverReceived;
+		long serverDecoding;
+		long serverDecoded;
+		long serverLocked;
+		long serverPosted;
+		//records the server's stages once the broadcast has fanned out; null on clients
+		MessageTracer tracer;
+
+		Trace(long clientSent) {
+			this.clientSent = clientSent;
+		}
+
+		//Each shard has queued the broadcast
+		void fannedOut() {
+			if (tracer != null) {
+				tracer.serverStages(this, now());
+			}
+		}
+	}
+
+	//A chat line that arrived in a TRACED frame
+	static final class TracedMessage extends MessageHandler {
+
+		private static final long serialVersionUID = 1L;
+
+		//carried in TRACED frames, never by Java serialization
+		final transient Trace trace;
+
+		TracedMessage(String message, Trace trace) {
+			super(message);
+			this.trace = trace;
+		}
+	}
+
+	/**
+	 * Server side: the trace of a line read at readAt, whose decoding began
+	 * at decodingAt and has just finished, stamped and recorded by this
+	 * tracer, or null if the line is not traced. Lines their client traced
+	 * always are; others are sampled.
+	 */
+	Trace received(MessageHandler message, long readAt, long decodingAt) {
+		Trace trace;
+		if (message instanceof TracedMessage) {
+			trace = ((TracedMessage) message).trace;
+		} else if (sample()) {
+			trace = new Trace(0);
+		} else {
+			return null;
+		}
+		trace.serverReceived = readAt;
+		trace.serverDecoding = decodingAt;
+		trace.serverDecoded = now();
+		trace.tracer = this;
+		return trace;
+	}
+
+	private void serverStages(Trace trace, long fannedOut) {
+		recordCommon(trace);
+		record(Stage.FAN_OUT, trace.serverPosted, fannedOut);
+	}
+
+	//Client side: a traced line read at readAt
+	void delivered(Trace trace, long readAt) {
+		recordCommon(trace);
+		record(Stage.DELIVERY, trace.serverPosted, readAt);
+		record(Stage.END_TO_END, trace.clientSent, readAt);
+	}
+
+	private void recordCommon(Trace trace) {
+		record(Stage.NETWORK_IN, trace.clientSent, trace.serverReceived);
+		record(Stage.INBOUND_QUEUE, trace.serverReceived, trace.serverDecoding);
+		record(Stage.DECODE, trace.serverDecoding, trace.serverDecoded);
+		record(Stage.LOCK_WAIT, trace.serverDecoded, trace.serverLocked);
+		record(Stage.UNDER_LOCK, trace.serverLocked, trace.serverPosted);
+	}
+
+	private void record(Stage stage, long from, long to) {
+		if (from != 0 && to != 0) {
+			stages[stage.ordinal()].record(to - from);
+		}
+	}
+
+	//One line per stage that has samples, in microseconds; empty if nothing was traced
+	String report() {
+		StringBuilder report = new StringBuilder();
+		for (Stage stage : Stage.values()) {
+			LatencyHistogram histogram = stages[stage.ordinal()];
+			if (histogram.count() > 0) {
+				report.append(String.format("Trace %-13s p50 %.1f  p99 %.1f  p99.9 %.1f  max %.1f us (%d samples)%n",
+						stage, histogram.percentile(50) / 1e3, histogram.percentile(99) / 1e3,
+						histogram.percentile(99.9) / 1e3, histogram.max() / 1e3, histogram.count()));
+			}
+		}
+		return report.toString();
+	}
+}
@@ -0,0 +1,354 @@
+/**
+ * Multiple Client Chat Application
+ * NioConnection is one non-blocking client owned by a SelectorEngine event
+ * loop. An idle connection holds no buffers: inbound bytes are read into the
+ * loop's shared buffer and only a partial frame is copied aside. Outbound
+ * messages go through a bounded OutboundQueue that only the owning loop
+ * drains, so senders never touch the socket; the loop sends whatever is
+ * queued in one gathering write through a WriteBatch. Nothing is sent until the
+ * client's first bytes show which WireProtocol it speaks.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.atomic.*;
+
+final class NioConnection implements ChatConnection {
+
+	private final SocketChannel channel;
+	private final SelectorEngine.EventLoop loop;
+	private final SelectorEngine.Listener listener;
+	private final OutboundQueue queue;
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	//a Mailbox.Task, so scheduling a flush allocates nothing
+	private final Runnable flushTask = new Mailbox.Task() {
+		public void run() {
+			try {
+				flush();
+			} catch (IOException e) {
+				System.err.println("Closed Connection : " + e);
+				closeNow();
+			}
+		}
+	};
+	private SelectionKey key;
+	private volatile WireProtocol protocol;
+	private WireProtocol.Decoder decoder;
+	private LegacyCodec.ResetTracker resets;
+	private final Runnable lingerTask = new Runnable() {
+		public void run() {
+			lingering = false;
+			flushTask.run();
+		}
+	};
+	private final WriteBatch batch;
+	private volatile boolean lingering;
+	private ByteBuffer inbound;
+	//MessageTracer.now() of the last read, when the frames it completed arrived, and of the last decode started
+	private long readAt;
+	private long decodingAt;
+	private volatile String username;
+	private volatile long clientId = -1;
+	private volatile boolean closed;
+
+	NioConnection(SocketChannel channel, SelectorEngine.EventLoop loop, SelectorEngine.Listener listener,
+			OutboundQueue queue) {
+		this(channel, loop, listener, queue, WriteBatch.fromSystemProperties());
+	}
+
+	NioConnection(SocketChannel channel, SelectorEngine.EventLoop loop, SelectorEngine.Listener listener,
+			OutboundQueue queue, WriteBatch batch) {
+		this.channel = channel;
+		this.loop = loop;
+		this.listener = listener;
+		this.queue = queue;
+		this.batch = batch;
+	}
+
+	void attach(SelectionKey key) {
+		this.key = key;
+	}
+
+	//Runs on the loop once the protocol is known, before the client can join and be sent anything
+	private void sendGreeting() throws IOException {
+		batch.add(protocol.greeting(), null);
+		flushScheduled.set(true);
+		flush();
+	}
+
+	public String getUsername() {
+		return username;
+	}
+
+	public long getClientId() {
+		return clientId;
+	}
+
+	public void setClientId(long id) {
+		clientId = id;
+	}
+
+	public int getShard() {
+		return loop.index;
+	}
+
+	public WireProtocol getProtocol() {
+		return protocol;
+	}
+
+	//Only queues the frame; the owning loop does the write
+	public void sendFrame(ByteBuffer frame) {
+		if (closed) {
+			FramePool.SHARED.release(frame);
+			return;
+		}
+		if (!queue.offer(frame)) {
+			System.err.println("Slow consumer disconnected : " + username);
+			loop.execute(new Runnable() {
+				public void run() {
+					closeNow();
+				}
+			});
+			return;
+		}
+		if (flushScheduled.compareAndSet(false, true)) {
+			loop.execute(flushTask);
+		} else if (lingering && queue.depth() == batch.maxFrames()) {
+			//enough frames for a full batch: no need to wait out the linger
+			loop.execute(flushTask);
+		}
+	}
+
+	public int getQueueDepth() {
+		return queue.depth();
+	}
+
+	public long getLagMillis() {
+		return queue.lagMillis();
+	}
+
+	public long getRetainedBytes() {
+		//protocol is written last, so once it is visible so are the decoder and tracker
+		if (protocol == null) {
+			return 0;
+		}
+		return decoder.retainedBytes() + (resets == null ? 0 : resets.retainedBytes());
+	}
+
+	boolean isClosed() {
+		return closed;
+	}
+
+	//Closing always happens on the owning loop so listener callbacks stay single-threaded
+	public void close() {
+		if (loop.inEventLoop()) {
+			closeNow();
+		} else {
+			loop.execute(new Runnable() {
+				public void run() {
+					closeNow();
+				}
+			});
+		}
+	}
+
+	//The frame is written ahead of anything queued, as far as the socket takes it at once, before closing
+	public void closeWith(final ByteBuffer frame) {
+		if (!loop.inEventLoop()) {
+			loop.execute(new Runnable() {
+				public void run() {
+					closeWith(frame);
+				}
+			});
+			return;
+		}
+		if (!closed) {
+			try {
+				batch.add(frame, resets);
+				flushScheduled.set(true);
+				flush();
+			} catch (IOException e) {
+				System.err.println("Closed Connection : " + e);
+			}
+		}
+		closeNow();
+	}
+
+	void closeNow() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		queue.close();
+		batch.clear();
+		inbound = null;
+		if (key != null) {
+			key.cancel();
+		}
+		try {
+			channel.close();
+		} catch (IOException ignored) {
+		}
+		listener.closed(this);
+	}
+
+	//Called by the event loop when the channel is readable
+	void onReadable(ByteBuffer shared) throws IOException {
+		shared.clear();
+		int count = channel.read(shared);
+		if (count < 0) {
+			closeNow();
+			return;
+		}
+		readAt = MessageTracer.now();
+		listener.read(this, count);
+		shared.flip();
+		ByteBuffer in = shared;
+		if (inbound != null) {
+			inbound = append(inbound, shared);
+			in = inbound;
+		}
+		if (protocol == null && !detectProtocol(in)) {
+			keepPartial(in, shared);
+			return;
+		}
+		Object frame;
+		while (!closed && (frame = decode(in)) != null) {
+			dispatch(frame);
+		}
+		keepPartial(in, shared);
+	}
+
+	private Object decode(ByteBuffer in) throws IOException {
+		decodingAt = MessageTracer.now();
+		return decoder.decode(in);
+	}
+
+	private boolean detectProtocol(ByteBuffer in) throws IOException {
+		WireProtocol detected = WireProtocol.detect(in);
+		if (detected == null) {
+			return false;
+		}
+		decoder = detected.newDecoder();
+		if (detected == WireProtocol.LEGACY) {
+			resets = LegacyCodec.ResetTracker.fromSystemProperties();
+		}
+		queue.setProtocol(detected);
+		protocol = detected;
+		sendGreeting();
+		return true;
+	}
+
+	//Copies an incomplete frame out of the shared buffer, or drops the pending one once consumed
+	private void keepPartial(ByteBuffer in, ByteBuffer shared) {
+		if (closed || !in.hasRemaining()) {
+			inbound = null;
+		} else if (in == shared) {
+			inbound = ByteBuffer.allocate(Math.max(in.remaining(), required()));
+			inbound.put(in);
+			inbound.flip();
+		}
+	}
+
+	private void dispatch(Object frame) throws IOException {
+		if (username == null) {
+			if (!(frame instanceof String)) {
+				throw new StreamCorruptedException("expected username");
+			}
+			username = (String) frame;
+			//the hello has been read by now, so broadcasts can be encoded as negotiated
+			upgradeProtocol();
+			listener.joined(this);
+		} else if (frame instanceof MessageHandler) {
+			listener.received(this, (MessageHandler) frame);
+		} else {
+			throw new StreamCorruptedException("expected MessageHandler");
+		}
+	}
+
+	private void upgradeProtocol() {
+		WireProtocol negotiated = decoder.protocol();
+		if (negotiated != protocol) {
+			queue.setProtocol(negotiated);
+			protocol = negotiated;
+		}
+	}
+
+	//Loop thread only; for the message being received
+	long readAt() {
+		return readAt;
+	}
+
+	long decodingAt() {
+		return decodingAt;
+	}
+
+	private int required() {
+		return decoder == null ? WireProtocol.DETECT_LENGTH : decoder.required();
+	}
+
+	//Appends data after the pending bytes, compacting or growing the buffer as needed
+	private ByteBuffer append(ByteBuffer pending, ByteBuffer data) {
+		int needed = pending.remaining() + data.remaining();
+		if (pending.capacity() >= needed) {
+			pending.compact();
+			pending.put(data);
+			pending.flip();
+			return pending;
+		}
+		ByteBuffer grown = ByteBuffer.allocate(Math.max(needed, Math.max(required(), pending.capacity() * 2)));
+		grown.put(pending);
+		grown.put(data);
+		grown.flip();
+		return grown;
+	}
+
+	//Writes queued messages in batches until the socket is full or the queue is empty (loop thread only)
+	void flush() throws IOException {
+		while (!closed) {
+			ByteBuffer next;
+			while (batch.canAdd() && (next = queue.poll()) != null) {
+				batch.add(next, resets);
+			}
+			if (batch.isEmpty()) {
+				setWriteInterest(false);
+				flushScheduled.set(false);
+				//a message queued after poll() but before the flag was cleared must not be stranded
+				if (queue.depth() == 0 || !flushScheduled.compareAndSet(false, true)) {
+					return;
+				}
+				continue;
+			}
+			long linger = batch.lingerNanos(System.nanoTime());
+			if (linger > 0) {
+				//flushScheduled stays set, so new frames just queue up until the batch is written
+				if (!lingering) {
+					lingering = true;
+					loop.schedule(lingerTask, linger);
+				}
+				return;
+			}
+			if (!batch.write(channel)) {
+				setWriteInterest(true);
+				return;
+			}
+		}
+	}
+
+	private void setWriteInterest(boolean enabled) {
+		if (key != null && key.isValid()) {
+			int ops = enabled ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ;
+			if (key.interestOps() != ops) {
+				key.interestOps(ops);
+			}
+		}
+	}
+
+	//Called by the event loop when the channel can take more bytes
+	void onWritable() throws IOException {
+		flush();
+	}
+}
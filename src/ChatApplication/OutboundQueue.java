@@ -0,0 +1,262 @@
+/**
+ * Multiple Client Chat Application
+ * OutboundQueue holds the encoded broadcast frames waiting to be written to
+ * one client. Frames are shared between recipients and never modified here.
+ * transfer() only offers to it; the client's own writer (an event loop or a
+ * writer thread) drains it, so one client with a full TCP window can no
+ * longer stall every other sender. The queue is bounded, and what happens
+ * when a client falls behind is decided by the slow-consumer Policy. Its
+ * ring starts small and only grows towards the bound while the client lags,
+ * so idle connections stay cheap.
+ *
+ * A FramePool frame is handed over with the reference its sender retained
+ * for it: the queue releases it when the frame is refused or dropped, and
+ * otherwise passes it on to whoever polls the frame.
+ */
+
+package ChatApplication;
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+final class OutboundQueue {
+
+	enum Policy {
+		//discard the oldest queued message to make room
+		DROP_OLDEST,
+		//disconnect a client whose oldest queued message is older than the lag limit, or whose queue is full
+		DISCONNECT,
+		//merge everything queued into a single message to make room
+		COALESCE
+	}
+
+	static final String POLICY_PROPERTY = "chat.server.slowConsumer";
+	static final String CAPACITY_PROPERTY = "chat.server.queueCapacity";
+	static final String MAX_LAG_PROPERTY = "chat.server.maxLagMillis";
+
+	static final int DEFAULT_CAPACITY = 1024;
+	private static final int INITIAL_SLOTS = 8;
+	static final long DEFAULT_MAX_LAG_MILLIS = 5000;
+
+	private final Policy policy;
+	private final long maxLagNanos;
+	private final int capacity;
+	private ByteBuffer[] frames;
+	private long[] enqueuedAt;
+	private WireProtocol protocol = WireProtocol.LEGACY;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private int head;
+	private int size;
+	private boolean closed;
+	private long dropped;
+	private long coalesced;
+
+	OutboundQueue(Policy policy, int capacity, long maxLagMillis) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+		this.policy = policy;
+		this.maxLagNanos = TimeUnit.MILLISECONDS.toNanos(maxLagMillis);
+		this.capacity = capacity;
+		this.frames = new ByteBuffer[Math.min(capacity, INITIAL_SLOTS)];
+		this.enqueuedAt = new long[frames.length];
+	}
+
+	//Queue configured from the chat.server.* system properties
+	static OutboundQueue fromSystemProperties() {
+		Policy policy = Policy.valueOf(System.getProperty(POLICY_PROPERTY, Policy.DROP_OLDEST.name()).toUpperCase());
+		return new OutboundQueue(policy, Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+				Long.getLong(MAX_LAG_PROPERTY, DEFAULT_MAX_LAG_MILLIS));
+	}
+
+	/**
+	 * Queues a frame for the writer. Returns false when the DISCONNECT
+	 * policy decides the client is too slow to keep.
+	 */
+	boolean offer(ByteBuffer frame) {
+		long now = System.nanoTime();
+		lock.lock();
+		try {
+			if (closed) {
+				FramePool.SHARED.release(frame);
+				return true;
+			}
+			if (policy == Policy.DISCONNECT && size > 0 && now - enqueuedAt[head] > maxLagNanos) {
+				FramePool.SHARED.release(frame);
+				return false;
+			}
+			if (size == frames.length && size < capacity) {
+				grow();
+			}
+			if (size == capacity) {
+				switch (policy) {
+				case DISCONNECT:
+					FramePool.SHARED.release(frame);
+					return false;
+				case COALESCE:
+					coalesce(frame);
+					notEmpty.signal();
+					return true;
+				default:
+					FramePool.SHARED.release(poll());
+					dropped++;
+					break;
+				}
+			}
+			int tail = (head + size) % frames.length;
+			frames[tail] = frame;
+			enqueuedAt[tail] = now;
+			size++;
+			notEmpty.signal();
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Next frame for a non-blocking writer, or null if there is none
+	ByteBuffer poll() {
+		lock.lock();
+		try {
+			if (size == 0) {
+				return null;
+			}
+			ByteBuffer frame = frames[head];
+			frames[head] = null;
+			head = (head + 1) % frames.length;
+			size--;
+			return frame;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Next frame for a blocking writer thread, or null once the queue is closed
+	ByteBuffer take() throws InterruptedException {
+		lock.lock();
+		try {
+			while (size == 0 && !closed) {
+				notEmpty.await();
+			}
+			return closed ? null : poll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Next frame, waiting at most the timeout; null if none came or the queue is closed
+	ByteBuffer poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		lock.lock();
+		try {
+			while (size == 0 && !closed && nanos > 0) {
+				nanos = notEmpty.awaitNanos(nanos);
+			}
+			return closed ? null : poll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Drops everything and wakes a blocked writer
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			while (size > 0) {
+				FramePool.SHARED.release(poll());
+			}
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	int depth() {
+		lock.lock();
+		try {
+			return size;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Age of the oldest queued message
+	long lagMillis() {
+		long now = System.nanoTime();
+		lock.lock();
+		try {
+			return size == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(now - enqueuedAt[head]);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long droppedCount() {
+		lock.lock();
+		try {
+			return dropped;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	long coalescedCount() {
+		lock.lock();
+		try {
+			return coalesced;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	Policy policy() {
+		return policy;
+	}
+
+	//Frame format to coalesce in; the queue exists before the client has said which protocol it speaks
+	void setProtocol(WireProtocol protocol) {
+		lock.lock();
+		try {
+			this.protocol = protocol;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void grow() {
+		int slots = Math.min(capacity, frames.length * 2);
+		ByteBuffer[] grownFrames = new ByteBuffer[slots];
+		long[] grownEnqueuedAt = new long[slots];
+		for (int i = 0; i < size; i++) {
+			int index = (head + i) % frames.length;
+			grownFrames[i] = frames[index];
+			grownEnqueuedAt[i] = enqueuedAt[index];
+		}
+		frames = grownFrames;
+		enqueuedAt = grownEnqueuedAt;
+		head = 0;
+	}
+
+	//Broadcasts are whole lines, so joining them loses nothing the client displays
+	private void coalesce(ByteBuffer frame) {
+		long oldest = enqueuedAt[head];
+		int merged = size;
+		List<ByteBuffer> joined = new ArrayList<ByteBuffer>(size + 1);
+		ByteBuffer queued;
+		while ((queued = poll()) != null) {
+			joined.add(queued);
+		}
+		joined.add(frame);
+		frames[head] = protocol.concat(joined);
+		for (ByteBuffer each : joined) {
+			FramePool.SHARED.release(each);
+		}
+		enqueuedAt[head] = oldest;
+		size = 1;
+		coalesced += merged;
+	}
+}
@@ -0,0 +1,277 @@
+/**
+ * Multiple Client Chat Application
+ * SelectorEngine accepts clients on a ServerSocketChannel and hands each one
+ * to a small, fixed pool of event-loop threads. Every loop owns a Selector
+ * and the non-blocking connections registered with it, so the number of
+ * server threads no longer grows with the number of clients.
+ * The loops are also the server's shards: a broadcast reaches each loop as
+ * one task in its lock-free mailbox, and the loop fans it out to its own
+ * connections.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+final class SelectorEngine {
+
+	static final int READ_BUFFER_SIZE = 64 * 1024;
+	//pause after a failed accept, e.g. out of file descriptors, before trying again
+	static final long ACCEPT_BACKOFF_MILLIS = 100;
+
+	//Callbacks from the event loops; each one runs on the connection's own loop
+	interface Listener {
+
+		void connected(NioConnection connection);
+
+		void joined(NioConnection connection);
+
+		void received(NioConnection connection, MessageHandler message);
+
+		//Bytes read from a connection, before decoding
+		default void read(NioConnection connection, int bytes) {
+		}
+
+		void closed(NioConnection connection);
+	}
+
+	private final Listener listener;
+	private final EventLoop[] loops;
+	private ServerSocketChannel serverChannel;
+	private volatile boolean running;
+	private int nextLoop;
+
+	SelectorEngine(Listener listener, int loopCount) {
+		this.listener = listener;
+		this.loops = new EventLoop[Math.max(1, loopCount)];
+	}
+
+	void bind(InetSocketAddress address) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().setReuseAddress(true);
+		serverChannel.bind(address, 1024);
+		running = true;
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new EventLoop(i);
+			loops[i].start();
+		}
+	}
+
+	int getLocalPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	int getLoopCount() {
+		return loops.length;
+	}
+
+	//The loops by index, as the mailboxes of the shards broadcasts are fanned out on
+	Executor[] getLoops() {
+		return loops.clone();
+	}
+
+	/**
+	 * Accepts connections on the calling thread until the engine is closed.
+	 * A failed accept or a channel that cannot be set up is logged and the
+	 * loop carries on, so one error never stops the server taking clients.
+	 */
+	void acceptLoop() throws IOException {
+		while (running) {
+			SocketChannel channel;
+			try {
+				channel = serverChannel.accept();
+			} catch (ClosedChannelException closed) {
+				break;
+			} catch (IOException e) {
+				//the connection stays in the backlog, so retrying at once would only spin until descriptors free up
+				System.err.println("Accept error : " + e);
+				try {
+					Thread.sleep(ACCEPT_BACKOFF_MILLIS);
+				} catch (InterruptedException interrupted) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+				continue;
+			}
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				System.err.println("Closed Connection : " + e);
+				try {
+					channel.close();
+				} catch (IOException ignored) {
+				}
+				continue;
+			}
+			//floorMod, as the count wraps after Integer.MAX_VALUE accepts
+			EventLoop loop = loops[Math.floorMod(nextLoop++, loops.length)];
+			loop.register(channel);
+		}
+	}
+
+	void close() {
+		running = false;
+		try {
+			if (serverChannel != null) {
+				serverChannel.close();
+			}
+		} catch (IOException e) {
+			System.err.println("Server error : " + e);
+		}
+		for (EventLoop loop : loops) {
+			if (loop != null) {
+				loop.selector.wakeup();
+			}
+		}
+	}
+
+	final class EventLoop extends Thread implements Executor {
+
+		final int index;
+		private final Selector selector;
+		private final Mailbox tasks = new Mailbox();
+		//delayed tasks by deadline; only this loop touches them
+		private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>();
+		private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+
+		EventLoop(int index) throws IOException {
+			super("chat-event-loop-" + index);
+			this.index = index;
+			setDaemon(true);
+			selector = Selector.open();
+		}
+
+		public void execute(Runnable task) {
+			tasks.add(task);
+			if (!inEventLoop()) {
+				selector.wakeup();
+			}
+		}
+
+		boolean inEventLoop() {
+			return Thread.currentThread() == this;
+		}
+
+		//Runs a task on this loop after a delay; loop thread only. The selector waits in whole milliseconds
+		void schedule(Runnable task, long delayNanos) {
+			timers.add(new Timer(System.nanoTime() + delayNanos, task));
+		}
+
+		private void register(final SocketChannel channel) {
+			execute(new Runnable() {
+				public void run() {
+					NioConnection connection = new NioConnection(channel, EventLoop.this, listener,
+							OutboundQueue.fromSystemProperties());
+					try {
+						connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+					} catch (IOException e) {
+						System.err.println("Closed Connection : " + e);
+						connection.closeNow();
+						return;
+					}
+					listener.connected(connection);
+				}
+			});
+		}
+
+		public void run() {
+			while (running) {
+				try {
+					//tasks queued by this loop itself (no wakeup) must not wait for the next I/O event
+					if (!tasks.isEmpty()) {
+						selector.selectNow();
+					} else if (!timers.isEmpty()) {
+						long wait = timers.peek().deadline - System.nanoTime();
+						if (wait > 0) {
+							selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+						} else {
+							selector.selectNow();
+						}
+					} else {
+						selector.select();
+					}
+				} catch (IOException e) {
+					System.err.println("Server error : " + e);
+					break;
+				}
+				runTasks();
+				runTimers();
+				Set<SelectionKey> ready = selector.selectedKeys();
+				if (ready.isEmpty()) {
+					//woken for tasks only: no iterator to allocate
+					continue;
+				}
+				Iterator<SelectionKey> selected = ready.iterator();
+				while (selected.hasNext()) {
+					SelectionKey key = selected.next();
+					selected.remove();
+					NioConnection connection = (NioConnection) key.attachment();
+					try {
+						if (key.isValid() && key.isReadable()) {
+							connection.onReadable(readBuffer);
+						}
+						if (key.isValid() && key.isWritable()) {
+							connection.onWritable();
+						}
+					} catch (IOException | RuntimeException e) {
+						System.err.println("Closed Connection : " + e);
+						connection.closeNow();
+					}
+				}
+			}
+			for (SelectionKey key : selector.keys()) {
+				try {
+					key.channel().close();
+				} catch (IOException ignored) {
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException ignored) {
+			}
+		}
+
+		private void runTimers() {
+			long now = System.nanoTime();
+			while (!timers.isEmpty() && timers.peek().deadline - now <= 0) {
+				try {
+					timers.poll().task.run();
+				} catch (RuntimeException e) {
+					System.err.println("Server error : " + e);
+				}
+			}
+		}
+
+		private void runTasks() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					System.err.println("Server error : " + e);
+				}
+			}
+		}
+	}
+
+	private static final class Timer implements Comparable<Timer> {
+
+		final long deadline;
+		final Runnable task;
+
+		Timer(long deadline, Runnable task) {
+			this.deadline = deadline;
+			this.task = task;
+		}
+
+		public int compareTo(Timer other) {
+			return Long.signum(deadline - other.deadline);
+		}
+	}
+}
@@ -6,6 +6,7 @@
  * Multiple Client Chat Application
  * Server side of the application
  * Server class that serves multiple clients simultaneously.
+ * The window shows the log of a ChatServer, which does the serving.
  * @author :  Nimmikrishna Babu
  * @group : Group 15
  * @members : Nimmikrishna Babu
@@ -15,30 +16,37 @@
 package ChatApplication;
 
 import java.util.*;
-import java.text.*;
 import javax.swing.*;
 import java.awt.*;
 import java.io.*;
-import java.net.*; 
 
 
 
 
 public class Server extends JFrame {
 	
+	//lines the window keeps; older ones are dropped so it does not grow forever
+	static final String WINDOW_LINES_PROPERTY = "chat.server.windowLines";
+	
 	//Message box 
-	private SimpleDateFormat date;
-	private JTextArea textBox;
-	private int clientNo; //client number
-	private ArrayList<HandleAClient> listOfClients;
+	private LogView textBox;
+	//the server itself; the window only shows its log
+	private ChatServer core;
 	
 	public Server() {
 		
-		date = new SimpleDateFormat("hh:mm:ss");
-		textBox = new JTextArea();
-		textBox.append("Waiting for connections..........\n");
-		clientNo = 0; 
-		listOfClients = new ArrayList<HandleAClient>();
+		textBox = new LogView(Integer.getInteger(WINDOW_LINES_PROPERTY, LogView.DEFAULT_CAPACITY));
+		ServerLog log = ServerLog.fromSystemProperties();
+		log.addSink(new WindowSink());
+		try {
+			ServerLog.Sink file = ServerLog.fileSinkFromSystemProperties();
+			if (file != null) {
+				log.addSink(file);
+			}
+		} catch (IOException ex) {
+			System.err.println("Log error : " + ex);
+		}
+		core = new ChatServer(log);
 		//sever window 
         setLayout(new BorderLayout());
         add(new JScrollPane(textBox), BorderLayout.CENTER);
@@ -51,79 +59,30 @@ public class Server extends JFrame {
 	
 	//constructor sets up the server window
 	public void startServer() {
-		  
-	        try {
-	        	// Create a server socket
-	            ServerSocket serverSocket = new ServerSocket(8001);
-	            while (true) {
-	            	// Socket Listen for connection request
-	                Socket socket = serverSocket.accept();
-	                textBox.append("New Client connected..........\n");
-	                HandleAClient client = new HandleAClient(socket);
-	                listOfClients.add(client);
-	                client.start();
-	            }
-	        } catch (IOException ex) {
-	            System.err.println("Server error : " + ex);
-	        }
-	    }
+		ChatServer.closeOnExit(core.log());
+		core.startServer();
+	}
 	
-	  
-	    private synchronized void transfer(String message) {
-	        String transferMessage = date.format(new Date()) + " " + message + "\n";
-	        textBox.append(transferMessage);
-	        for (int i = listOfClients.size(); --i >= 0;) {
-	            HandleAClient clienti = listOfClients.get(i);
-	            clienti.sendMessage(transferMessage);
-	        }
-	    }
-	    class HandleAClient extends Thread {
-
-	        Socket socket;
-	        ObjectInputStream input;
-	        ObjectOutputStream output;
-	        String username;
-	        int numberOfClients;
-	        MessageHandler message;
-
-	        HandleAClient(Socket socket) {
-	            this.socket = socket;
-	            numberOfClients = clientNo++;
-	            try {
-	                output = new ObjectOutputStream(socket.getOutputStream());
-	                input = new ObjectInputStream(socket.getInputStream());
-	                username = (String) input.readObject();
-	                textBox.append(new Date() + " " + username + " connected\n");
-	            } catch (IOException | ClassNotFoundException e) {
-	                System.err.println(e);
-	            }
-	        }
-
-	        public void run() {
-	            while (true) {
-	                try {
-	                    message = (MessageHandler) input.readObject();
-	                } catch (IOException | ClassNotFoundException error) {
-	                    System.err.println("No client found" + error);
-	                }
-	                if (!message.diconnectClient()) {
-	                	transfer(username + ": " + message.getMessage());
-	                } else {
-	                    break;
-	                }
-	            }
-	            transfer(username + " disconnected.");
-	        }
-
-	        private void sendMessage(String msg) {
-	            try {
-	                output.writeObject(msg);
-	            } catch (IOException error) {
-	                System.err.println("Closed Connection : " + error);
-	            }
-	        }
-	    }//close Handle class
-
+	//Closing the window also stops its log
+	public void dispose() {
+		super.dispose();
+		core.log().close();
+	}
+	
+	//Shows each batch of log events; LogView moves it to the Event Dispatch Thread as one update
+	private class WindowSink implements ServerLog.Sink {
+		
+		public void write(java.util.List<String> events) {
+			StringBuilder text = new StringBuilder();
+			for (String event : events) {
+				text.append(event);
+			}
+			textBox.append(text.toString());
+		}
+		
+		public void close() {
+		}
+	}
 	
 	public static void main(String[] args) {
 		
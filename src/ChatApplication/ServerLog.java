@@ -0,0 +1,315 @@
+/**
+ * Multiple Client Chat Application
+ * ServerLog takes the server's events (connections, broadcast lines, queue
+ * reports) off the threads that produce them. log() only copies the event's
+ * UTF-8 bytes into a buffer that is kept from batch to batch, under a lock
+ * held for that copy alone, so logging a broadcast costs the keeper thread
+ * next to nothing and allocates nothing; a daemon thread wakes every few
+ * milliseconds, swaps in a spare buffer and hands what has gathered to each
+ * Sink as one batch of Strings. If the sinks fall so far behind that the
+ * buffer holds capacity events, further events are counted and dropped
+ * rather than held in memory or waited for.
+ *
+ * Sinks are pluggable: a rotating file, an in-memory ring of recent events,
+ * a console stream, or the server window, which is just another consumer.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+final class ServerLog implements Closeable {
+
+	//log file for the headless server; unset logs to standard output
+	static final String FILE_PROPERTY = "chat.server.logFile";
+	//size at which the log file is rotated, and how many old files are kept
+	static final String FILE_BYTES_PROPERTY = "chat.server.logFileBytes";
+	static final String FILE_COUNT_PROPERTY = "chat.server.logFiles";
+	//events waiting for the sinks before further ones are dropped
+	static final String CAPACITY_PROPERTY = "chat.server.logCapacity";
+	//how long events gather before a batch is written
+	static final String FLUSH_MILLIS_PROPERTY = "chat.server.logFlushMillis";
+	static final long DEFAULT_FILE_BYTES = 10L * 1024 * 1024;
+	static final int DEFAULT_FILE_COUNT = 5;
+	static final int DEFAULT_CAPACITY = 65536;
+	static final long DEFAULT_FLUSH_MILLIS = 50;
+
+	//Where batches of events end up; called only from the log's own thread
+	interface Sink extends Closeable {
+
+		void write(List<String> events) throws IOException;
+	}
+
+	//events as a 4-byte length and the UTF-8 text, oldest first; the drainer swaps in the spare
+	private LineBuffer pending = new LineBuffer(4096);
+	private LineBuffer spare = new LineBuffer(4096);
+	private final ReentrantLock lock = new ReentrantLock();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final int capacity;
+	private final long flushNanos;
+	private final List<Sink> sinks = new CopyOnWriteArrayList<Sink>();
+	private final Thread drainer;
+	private volatile boolean closed;
+
+	ServerLog(int capacity, long flushMillis) {
+		this.capacity = Math.max(1, capacity);
+		this.flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushMillis));
+		drainer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "chat-server-log");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	//Log sized by the chat.server.log* properties, with no sinks yet
+	static ServerLog fromSystemProperties() {
+		return new ServerLog(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY),
+				Long.getLong(FLUSH_MILLIS_PROPERTY, DEFAULT_FLUSH_MILLIS));
+	}
+
+	//The log file named by chat.server.logFile, or null if none is
+	static Sink fileSinkFromSystemProperties() throws IOException {
+		String file = System.getProperty(FILE_PROPERTY);
+		if (file == null || file.isEmpty()) {
+			return null;
+		}
+		return new RotatingFileSink(new File(file), Long.getLong(FILE_BYTES_PROPERTY, DEFAULT_FILE_BYTES),
+				Integer.getInteger(FILE_COUNT_PROPERTY, DEFAULT_FILE_COUNT));
+	}
+
+	ServerLog addSink(Sink sink) {
+		sinks.add(sink);
+		return this;
+	}
+
+	/**
+	 * Queues one event, normally a line ending in "\n". Never waits for the
+	 * sinks: if they are capacity events behind, the event is dropped.
+	 */
+	void log(String event) {
+		if (!reserve()) {
+			return;
+		}
+		lock.lock();
+		try {
+			int at = pending.length();
+			pending.appendInt(0).append(event);
+			pending.putInt(at, pending.length() - at - 4);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	//Queues an event already encoded as UTF-8, such as a broadcast line
+	void log(byte[] event, int offset, int length) {
+		if (!reserve()) {
+			return;
+		}
+		lock.lock();
+		try {
+			pending.appendInt(length).append(event, offset, length);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean reserve() {
+		if (size.incrementAndGet() > capacity) {
+			size.decrementAndGet();
+			dropped.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	long dropped() {
+		return dropped.get();
+	}
+
+	long written() {
+		return written.get();
+	}
+
+	//Writes what is queued and closes the sinks; events logged afterwards are dropped
+	public void close() {
+		closed = true;
+		LockSupport.unpark(drainer);
+		try {
+			drainer.join(TimeUnit.NANOSECONDS.toMillis(flushNanos) + 5000);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void drain() {
+		List<String> batch = new ArrayList<String>();
+		while (true) {
+			boolean last = closed;
+			LineBuffer events;
+			lock.lock();
+			try {
+				events = pending;
+				pending = spare.clear();
+				spare = events;
+			} finally {
+				lock.unlock();
+			}
+			byte[] bytes = events.array();
+			for (int at = 0; at < events.length();) {
+				int length = (bytes[at] & 0xFF) << 24 | (bytes[at + 1] & 0xFF) << 16
+						| (bytes[at + 2] & 0xFF) << 8 | bytes[at + 3] & 0xFF;
+				batch.add(new String(bytes, at + 4, length, StandardCharsets.UTF_8));
+				at += 4 + length;
+			}
+			size.addAndGet(-batch.size());
+			if (!batch.isEmpty()) {
+				for (Sink sink : sinks) {
+					try {
+						sink.write(batch);
+					} catch (IOException | RuntimeException e) {
+						System.err.println("Log error : " + e);
+					}
+				}
+				written.addAndGet(batch.size());
+				batch.clear();
+			}
+			if (last) {
+				break;
+			}
+			LockSupport.parkNanos(flushNanos);
+		}
+		for (Sink sink : sinks) {
+			try {
+				sink.close();
+			} catch (IOException e) {
+				System.err.println("Log error : " + e);
+			}
+		}
+	}
+
+	//Writes batches to a stream such as System.out; the stream is flushed per batch but not closed
+	static final class StreamSink implements Sink {
+
+		private final PrintStream out;
+
+		StreamSink(PrintStream out) {
+			this.out = out;
+		}
+
+		public void write(List<String> events) {
+			for (String event : events) {
+				out.print(event);
+			}
+			out.flush();
+		}
+
+		public void close() {
+			out.flush();
+		}
+	}
+
+	//Keeps the last few events in memory, for whatever wants to show or inspect them
+	static final class RingSink implements Sink {
+
+		private final String[] events;
+		private long count;
+
+		RingSink(int size) {
+			events = new String[Math.max(1, size)];
+		}
+
+		public synchronized void write(List<String> batch) {
+			for (String event : batch) {
+				events[(int) (count++ % events.length)] = event;
+			}
+		}
+
+		//Oldest first
+		synchronized List<String> recent() {
+			int kept = (int) Math.min(count, events.length);
+			List<String> recent = new ArrayList<String>(kept);
+			for (long i = count - kept; i < count; i++) {
+				recent.add(events[(int) (i % events.length)]);
+			}
+			return recent;
+		}
+
+		public void close() {
+		}
+	}
+
+	/**
+	 * Appends to a file, and once it has reached maxBytes renames it to
+	 * name.1, shifting older files up to name.(files) and deleting the one
+	 * beyond. Each batch is one buffered write.
+	 */
+	static final class RotatingFileSink implements Sink {
+
+		private final File file;
+		private final long maxBytes;
+		private final int files;
+		private Writer out;
+		private long bytes;
+
+		RotatingFileSink(File file, long maxBytes, int files) throws IOException {
+			this.file = file;
+			this.maxBytes = Math.max(1, maxBytes);
+			this.files = Math.max(0, files);
+			open();
+		}
+
+		public void write(List<String> events) throws IOException {
+			for (String event : events) {
+				if (bytes >= maxBytes) {
+					rotate();
+				}
+				out.write(event);
+				//close enough for rotation; chat lines are mostly ASCII
+				bytes += event.length();
+			}
+			out.flush();
+		}
+
+		public void close() throws IOException {
+			out.close();
+		}
+
+		private void open() throws IOException {
+			bytes = file.length();
+			out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+		}
+
+		private void rotate() throws IOException {
+			out.close();
+			File oldest = rotated(files);
+			if (files == 0 || oldest.exists() && !oldest.delete()) {
+				//nowhere to keep it: start the file again
+				new FileOutputStream(file).close();
+			} else {
+				for (int i = files - 1; i >= 1; i--) {
+					File older = rotated(i);
+					if (older.exists() && !older.renameTo(rotated(i + 1))) {
+						throw new IOException("cannot rotate " + older);
+					}
+				}
+				if (!file.renameTo(rotated(1))) {
+					throw new IOException("cannot rotate " + file);
+				}
+			}
+			open();
+		}
+
+		private File rotated(int index) {
+			return new File(file.getPath() + "." + index);
+		}
+	}
+}
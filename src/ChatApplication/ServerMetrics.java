@@ -0,0 +1,307 @@
+/**
+ * Multiple Client Chat Application
+ * ServerMetrics counts what a ChatServer does while it runs: clients,
+ * accepts, lines in and frames out, bytes both ways, and how long each
+ * broadcast takes to fan out, with the MessageTracer's stages of sampled
+ * lines. It is registered as a JMX MBean and, with
+ * chat.server.metricsPort, also served as text at
+ * http://127.0.0.1:PORT/metrics in the Prometheus exposition format.
+ *
+ * Recording never allocates or locks: counters are LongAdders, fan-out
+ * times go into a LatencyHistogram of atomic buckets, and gauges such as
+ * queue depth are read from the clients only when someone asks. A daemon
+ * thread turns the totals into per-second rates once a second.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import javax.management.*;
+import com.sun.net.httpserver.*;
+
+final class ServerMetrics implements ServerMetricsMBean {
+
+	//port of the text endpoint, on the loopback address only; off unless set
+	static final String HTTP_PORT_PROPERTY = "chat.server.metricsPort";
+	static final String JMX_DOMAIN = "ChatApplication";
+
+	final LongAdder accepts = new LongAdder();
+	final LongAdder messagesIn = new LongAdder();
+	final LongAdder bytesIn = new LongAdder();
+	final LongAdder broadcasts = new LongAdder();
+	final LatencyHistogram fanOut = new LatencyHistogram();
+
+	private final ClientRegistry clients;
+	private final WriteBatch.Stats writes;
+	private final MessageTracer tracer;
+	private final Rate acceptRate = new Rate();
+	private final Rate messagesInRate = new Rate();
+	private final Rate messagesOutRate = new Rate();
+	private final Rate bytesInRate = new Rate();
+	private final Rate bytesOutRate = new Rate();
+	private long lastSample = System.nanoTime();
+	private HttpServer http;
+	private ScheduledExecutorService sampler;
+	private ObjectName name;
+
+	ServerMetrics(ClientRegistry clients, WriteBatch.Stats writes, MessageTracer tracer) {
+		this.clients = clients;
+		this.writes = writes;
+		this.tracer = tracer;
+	}
+
+	//A total and how fast it grew over the last sample
+	private static final class Rate {
+
+		private long last;
+		private volatile double perSecond;
+
+		void sample(long total, double seconds) {
+			perSecond = seconds <= 0 ? 0 : (total - last) / seconds;
+			last = total;
+		}
+	}
+
+	/**
+	 * Registers the MBean under the server's port, starts the sampling
+	 * thread and, if chat.server.metricsPort is set, the text endpoint.
+	 * Failures are reported and leave the server running without them.
+	 */
+	void start(int serverPort) {
+		try {
+			name = objectName(serverPort);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, ServerMetricsMBean.class), name);
+		} catch (JMException ex) {
+			name = null;
+			System.err.println("Metrics error : " + ex);
+		}
+		sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable task) {
+				Thread thread = new Thread(task, "chat-server-metrics");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		sampler.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				long now = System.nanoTime();
+				sample((now - lastSample) / 1e9);
+				lastSample = now;
+			}
+		}, 1, 1, TimeUnit.SECONDS);
+		Integer httpPort = Integer.getInteger(HTTP_PORT_PROPERTY);
+		if (httpPort != null) {
+			try {
+				serveText(httpPort);
+			} catch (IOException ex) {
+				System.err.println("Metrics error : " + ex);
+			}
+		}
+	}
+
+	//Undoes start(), so the port's MBean name and the text endpoint's port are free again
+	void stop() {
+		if (name != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+			} catch (JMException ex) {
+				System.err.println("Metrics error : " + ex);
+			}
+			name = null;
+		}
+		if (sampler != null) {
+			sampler.shutdownNow();
+		}
+		if (http != null) {
+			http.stop(0);
+		}
+	}
+
+	static ObjectName objectName(int serverPort) throws MalformedObjectNameException {
+		return new ObjectName(JMX_DOMAIN + ":type=ServerMetrics,port=" + serverPort);
+	}
+
+	//Sampling thread only, or a test
+	void sample(double seconds) {
+		acceptRate.sample(getAccepts(), seconds);
+		messagesInRate.sample(getMessagesIn(), seconds);
+		messagesOutRate.sample(getMessagesOut(), seconds);
+		bytesInRate.sample(getBytesIn(), seconds);
+		bytesOutRate.sample(getBytesOut(), seconds);
+	}
+
+	//Answers GET /metrics on the loopback address; returns the port, which may have been 0
+	int serveText(int port) throws IOException {
+		http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		http.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+				exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				out.write(body);
+				out.close();
+			}
+		});
+		http.start();
+		return http.getAddress().getPort();
+	}
+
+	public int getConnectedClients() {
+		return clients.size();
+	}
+
+	public long getAccepts() {
+		return accepts.sum();
+	}
+
+	public double getAcceptsPerSecond() {
+		return acceptRate.perSecond;
+	}
+
+	public long getMessagesIn() {
+		return messagesIn.sum();
+	}
+
+	public double getMessagesInPerSecond() {
+		return messagesInRate.perSecond;
+	}
+
+	public long getMessagesOut() {
+		return writes.frames();
+	}
+
+	public double getMessagesOutPerSecond() {
+		return messagesOutRate.perSecond;
+	}
+
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	public double getBytesInPerSecond() {
+		return bytesInRate.perSecond;
+	}
+
+	public long getBytesOut() {
+		return writes.bytes();
+	}
+
+	public double getBytesOutPerSecond() {
+		return bytesOutRate.perSecond;
+	}
+
+	public long getBroadcasts() {
+		return broadcasts.sum();
+	}
+
+	public double getFanOutP50Micros() {
+		return fanOut.percentile(50) / 1e3;
+	}
+
+	public double getFanOutP99Micros() {
+		return fanOut.percentile(99) / 1e3;
+	}
+
+	public double getFanOutP999Micros() {
+		return fanOut.percentile(99.9) / 1e3;
+	}
+
+	public double getFanOutMaxMicros() {
+		return fanOut.max() / 1e3;
+	}
+
+	public long getQueuedFrames() {
+		long queued = 0;
+		for (ChatConnection client : clients) {
+			queued += client.getQueueDepth();
+		}
+		return queued;
+	}
+
+	public int getLaggingClients() {
+		int lagging = 0;
+		for (ChatConnection client : clients) {
+			if (client.getQueueDepth() > 0) {
+				lagging++;
+			}
+		}
+		return lagging;
+	}
+
+	public long getMaxOutboundLagMillis() {
+		long max = 0;
+		for (ChatConnection client : clients) {
+			max = Math.max(max, client.getLagMillis());
+		}
+		return max;
+	}
+
+	public String scrape() {
+		StringBuilder text = new StringBuilder();
+		metric(text, "chat_connected_clients", "gauge", getConnectedClients());
+		metric(text, "chat_accepts_total", "counter", getAccepts());
+		metric(text, "chat_accepts_per_second", "gauge", getAcceptsPerSecond());
+		metric(text, "chat_messages_in_total", "counter", getMessagesIn());
+		metric(text, "chat_messages_in_per_second", "gauge", getMessagesInPerSecond());
+		metric(text, "chat_messages_out_total", "counter", getMessagesOut());
+		metric(text, "chat_messages_out_per_second", "gauge", getMessagesOutPerSecond());
+		metric(text, "chat_bytes_in_total", "counter", getBytesIn());
+		metric(text, "chat_bytes_in_per_second", "gauge", getBytesInPerSecond());
+		metric(text, "chat_bytes_out_total", "counter", getBytesOut());
+		metric(text, "chat_bytes_out_per_second", "gauge", getBytesOutPerSecond());
+		metric(text, "chat_broadcasts_total", "counter", getBroadcasts());
+		text.append("# TYPE chat_fanout_latency_seconds summary\n");
+		for (double quantile : new double[] { 0.5, 0.99, 0.999, 1.0 }) {
+			text.append("chat_fanout_latency_seconds{quantile=\"").append(quantile).append("\"} ")
+				.append(fanOut.percentile(quantile * 100) / 1e9).append('\n');
+		}
+		text.append("chat_fanout_latency_seconds_sum ").append(fanOut.mean() * fanOut.count() / 1e9).append('\n');
+		text.append("chat_fanout_latency_seconds_count ").append(fanOut.count()).append('\n');
+		text.append("# TYPE chat_trace_stage_seconds summary\n");
+		for (MessageTracer.Stage stage : MessageTracer.Stage.values()) {
+			LatencyHistogram histogram = tracer.stage(stage);
+			if (histogram.count() > 0) {
+				String name = "chat_trace_stage_seconds{stage=\"" + stage.name().toLowerCase();
+				for (double quantile : new double[] { 0.5, 0.99, 0.999, 1.0 }) {
+					text.append(name).append("\",quantile=\"").append(quantile).append("\"} ")
+						.append(histogram.percentile(quantile * 100) / 1e9).append('\n');
+				}
+				text.append("chat_trace_stage_seconds_count{stage=\"").append(stage.name().toLowerCase()).append("\"} ")
+					.append(histogram.count()).append('\n');
+			}
+		}
+		//one sample per lagging client; the rest have nothing queued
+		text.append("# TYPE chat_client_outbound_queue_frames gauge\n");
+		StringBuilder lag = new StringBuilder("# TYPE chat_client_outbound_lag_milliseconds gauge\n");
+		long queued = 0;
+		for (ChatConnection client : clients) {
+			int depth = client.getQueueDepth();
+			if (depth > 0) {
+				String label = "{user=\"" + escape(client.getUsername()) + "\"} ";
+				text.append("chat_client_outbound_queue_frames").append(label).append(depth).append('\n');
+				lag.append("chat_client_outbound_lag_milliseconds").append(label).append(client.getLagMillis()).append('\n');
+				queued += depth;
+			}
+		}
+		text.append(lag);
+		metric(text, "chat_outbound_queued_frames", "gauge", queued);
+		metric(text, "chat_write_frames_per_call", "gauge", writes.framesPerWrite());
+		return text.toString();
+	}
+
+	private static void metric(StringBuilder text, String name, String type, Number value) {
+		text.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+		text.append(name).append(' ').append(value).append('\n');
+	}
+
+	//Label values escape backslash, quote and newline
+	private static String escape(String value) {
+		return String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+}
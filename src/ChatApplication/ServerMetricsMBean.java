@@ -0,0 +1,55 @@
+/**
+ * Multiple Client Chat Application
+ * ServerMetricsMBean is what ServerMetrics shows over JMX, e.g. in
+ * JConsole under ChatApplication:type=ServerMetrics. Rates are per second
+ * over the last second; totals count from when the server started.
+ */
+
+package ChatApplication;
+
+public interface ServerMetricsMBean {
+
+	int getConnectedClients();
+
+	long getAccepts();
+
+	double getAcceptsPerSecond();
+
+	long getMessagesIn();
+
+	double getMessagesInPerSecond();
+
+	//Frames written to clients: broadcasts, replies and backlogs
+	long getMessagesOut();
+
+	double getMessagesOutPerSecond();
+
+	long getBytesIn();
+
+	double getBytesInPerSecond();
+
+	long getBytesOut();
+
+	double getBytesOutPerSecond();
+
+	long getBroadcasts();
+
+	//From posting a broadcast until every shard has queued it for its members
+	double getFanOutP50Micros();
+
+	double getFanOutP99Micros();
+
+	double getFanOutP999Micros();
+
+	double getFanOutMaxMicros();
+
+	//Frames waiting in clients' outbound queues
+	long getQueuedFrames();
+
+	int getLaggingClients();
+
+	long getMaxOutboundLagMillis();
+
+	//Everything above, and each lagging client's queue, in the text format of the scrape endpoint
+	String scrape();
+}
@@ -0,0 +1,68 @@
+/**
+ * Multiple Client Chat Application
+ * ShardThread fans broadcasts out for one shard of the thread-per-client
+ * engines, the way an event loop does for its connections in the selector
+ * engine. Its Mailbox is a lock-free queue: posting a task never blocks and
+ * only wakes the thread when it has gone to sleep on an empty mailbox.
+ */
+
+package ChatApplication;
+
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
+final class ShardThread extends Thread implements Executor {
+
+	private final Mailbox mailbox = new Mailbox();
+	private volatile boolean parked;
+
+	ShardThread(int index) {
+		this("chat-shard-" + index);
+	}
+
+	//Any thread running tasks one at a time in the order posted, such as the server's keeper
+	ShardThread(String name) {
+		super(name);
+		setDaemon(true);
+	}
+
+	//Starts one shard thread per index
+	static ShardThread[] startAll(int count) {
+		ShardThread[] shards = new ShardThread[Math.max(1, count)];
+		for (int i = 0; i < shards.length; i++) {
+			shards[i] = new ShardThread(i);
+			shards[i].start();
+		}
+		return shards;
+	}
+
+	public void execute(Runnable task) {
+		mailbox.add(task);
+		//parked is written before the thread's last look at the mailbox, so either it sees this task or we see it parked
+		if (parked) {
+			LockSupport.unpark(this);
+		}
+	}
+
+	public void run() {
+		while (!isInterrupted()) {
+			Runnable task = mailbox.poll();
+			if (task != null) {
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					System.err.println("Server error : " + e);
+				}
+				continue;
+			}
+			parked = true;
+			if (mailbox.isEmpty()) {
+				LockSupport.park(this);
+			} else {
+				//a task is still being linked in; let its producer finish
+				Thread.yield();
+			}
+			parked = false;
+		}
+	}
+}
@@ -0,0 +1,79 @@
+/**
+ * Multiple Client Chat Application
+ * ThreadMode decides what kind of thread carries each blocking HandleAClient.
+ * PLATFORM starts one OS thread per client, as the server always has.
+ * VIRTUAL starts one Java 21 virtual thread per client; virtual threads are
+ * multiplexed over a small carrier pool, so blocking readObject/writeObject
+ * calls no longer tie up an OS thread each. The application still builds for
+ * older JDKs, so virtual threads are looked up reflectively and VIRTUAL falls
+ * back to PLATFORM where they do not exist.
+ */
+
+package ChatApplication;
+
+import java.lang.reflect.*;
+import java.util.concurrent.*;
+
+enum ThreadMode {
+
+	PLATFORM, VIRTUAL;
+
+	//Caps the carrier threads that virtual clients are scheduled on (defaults to one per core)
+	static final String CARRIERS_PROPERTY = "chat.server.carriers";
+
+	private static final String PARALLELISM_PROPERTY = "jdk.virtualThreadScheduler.parallelism";
+	private static final String MAX_POOL_PROPERTY = "jdk.virtualThreadScheduler.maxPoolSize";
+
+	boolean isSupported() {
+		return this == PLATFORM || virtualThreadBuilder() != null;
+	}
+
+	//Executor that starts a new thread of this kind for every submitted task
+	ExecutorService newExecutor(String name) {
+		if (this == VIRTUAL) {
+			ExecutorService executor = newVirtualExecutor(name);
+			if (executor != null) {
+				return executor;
+			}
+			System.err.println("Virtual threads need Java 21, using platform threads");
+		}
+		final String prefix = name;
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			private int count;
+
+			public synchronized Thread newThread(Runnable task) {
+				return new Thread(task, prefix + "-" + count++);
+			}
+		});
+	}
+
+	private static ExecutorService newVirtualExecutor(String name) {
+		String carriers = System.getProperty(CARRIERS_PROPERTY);
+		if (carriers != null && System.getProperty(PARALLELISM_PROPERTY) == null) {
+			//Only honoured if set before the first virtual thread is created
+			System.setProperty(PARALLELISM_PROPERTY, carriers);
+			System.setProperty(MAX_POOL_PROPERTY, carriers);
+		}
+		Object builder = virtualThreadBuilder();
+		if (builder == null) {
+			return null;
+		}
+		try {
+			Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+			builder = builderType.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+			ThreadFactory factory = (ThreadFactory) builderType.getMethod("factory").invoke(builder);
+			Method perTask = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) perTask.invoke(null, factory);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static Object virtualThreadBuilder() {
+		try {
+			return Thread.class.getMethod("ofVirtual").invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,460 @@
+/**
+ * Multiple Client Chat Application
+ * WireProtocol is the protocol one client speaks: the serialized object
+ * stream every existing Client uses, or the BinaryCodec framing. The server
+ * learns which from the first two bytes a client sends, so both kinds of
+ * client can share a chat while clients migrate. A binary client whose
+ * hello offers compression is switched to BINARY_DEFLATE once the hello
+ * has been read, and one whose hello offers tracing to BINARY_TRACED.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+enum WireProtocol {
+
+	LEGACY {
+		ByteBuffer greeting() {
+			return LegacyCodec.streamHeader();
+		}
+
+		ByteBuffer encode(String broadcast) {
+			return LegacyCodec.encodeString(broadcast);
+		}
+
+		ByteBuffer concat(List<ByteBuffer> frames) {
+			return LegacyCodec.concatStrings(frames);
+		}
+
+		Decoder newDecoder() {
+			return new LegacyCodec.Decoder();
+		}
+	},
+
+	BINARY {
+		ByteBuffer greeting() {
+			return BinaryCodec.hello();
+		}
+
+		ByteBuffer encode(String broadcast) {
+			return BinaryCodec.encode(BinaryCodec.TYPE_CHAT, broadcast);
+		}
+
+		ByteBuffer encode(byte[] line, int length, MessageTracer.Trace trace) {
+			return BinaryCodec.pooledChat(line, length);
+		}
+
+		ByteBuffer concat(List<ByteBuffer> frames) {
+			return BinaryCodec.concatChats(frames);
+		}
+
+		Decoder newDecoder() {
+			return new BinaryCodec.Decoder(true);
+		}
+	},
+
+	//BINARY with long lines deflated; only decided by a client's hello, never detected
+	BINARY_DEFLATE {
+		ByteBuffer greeting() {
+			return BinaryCodec.hello();
+		}
+
+		ByteBuffer encode(String broadcast) {
+			return BinaryCodec.encodeChat(broadcast, ChatCompression.THRESHOLD);
+		}
+
+		//lines long enough to compress take the allocating way
+		ByteBuffer encode(byte[] line, int length, MessageTracer.Trace trace) {
+			return length < ChatCompression.THRESHOLD ? BinaryCodec.pooledChat(line, length) : null;
+		}
+
+		ByteBuffer concat(List<ByteBuffer> frames) {
+			return BinaryCodec.concatFrames(frames);
+		}
+
+		Decoder newDecoder() {
+			return new BinaryCodec.Decoder(true);
+		}
+	},
+
+	//BINARY_DEFLATE, with traced lines sent with their stamps; only decided by a client's hello
+	BINARY_TRACED {
+		ByteBuffer greeting() {
+			return BinaryCodec.hello();
+		}
+
+		ByteBuffer encode(String broadcast) {
+			return BinaryCodec.encodeChat(broadcast, ChatCompression.THRESHOLD);
+		}
+
+		ByteBuffer encode(String broadcast, MessageTracer.Trace trace) {
+			return trace == null ? encode(broadcast) : BinaryCodec.encodeTraced(trace, broadcast);
+		}
+
+		ByteBuffer encode(byte[] line, int length, MessageTracer.Trace trace) {
+			if (trace != null) {
+				return BinaryCodec.pooledTraced(trace, line, length);
+			}
+			return length < ChatCompression.THRESHOLD ? BinaryCodec.pooledChat(line, length) : null;
+		}
+
+		ByteBuffer concat(List<ByteBuffer> frames) {
+			return BinaryCodec.concatFrames(frames);
+		}
+
+		Decoder newDecoder() {
+			return new BinaryCodec.Decoder(true);
+		}
+	};
+
+	//Bytes the server needs to see before it can tell the protocols apart
+	static final int DETECT_LENGTH = 2;
+
+	//Turns the bytes one client sends into its username String and MessageHandler objects;
+	//the server's may hand out one message again and again, each valid until the next decode()
+	interface Decoder {
+
+		//Next complete object, or null (position unchanged) if only part of one is buffered
+		Object decode(ByteBuffer in) throws IOException;
+
+		//Minimum number of buffered bytes before decode() can make progress
+		int required();
+
+		//Estimated heap kept between frames, such as a serialized stream's handle table
+		long retainedBytes();
+
+		//Protocol to encode for this client, final once the username has been decoded
+		WireProtocol protocol();
+	}
+
+	/**
+	 * One broadcast line, encoded (and compressed) on first use at most once
+	 * per protocol and shared by every shard sending it. Broadcasts from a
+	 * Pool are used again once every shard has sent them: they keep their
+	 * line's UTF-8, their frames come from the FramePool and go back to it,
+	 * and their shard tasks are kept, so the steady broadcast path allocates
+	 * nothing. Other broadcasts are one-offs.
+	 * A broadcast may also be handed to a Sink once posted, to be logged,
+	 * journalled and relayed on the sink's own thread rather than under the
+	 * lock that orders the room's broadcasts.
+	 */
+	static final class Broadcast {
+
+		//What else is done with a line once it is posted, off the lock that ordered it
+		interface Sink {
+
+			//The line is the first length bytes of line, as UTF-8, valid until this returns
+			void posted(String room, byte[] line, int length);
+		}
+
+		private static final AtomicIntegerFieldUpdater<Broadcast> SHARDS_LEFT =
+				AtomicIntegerFieldUpdater.newUpdater(Broadcast.class, "shardsLeft");
+		private static final AtomicIntegerFieldUpdater<Broadcast> USERS_LEFT =
+				AtomicIntegerFieldUpdater.newUpdater(Broadcast.class, "usersLeft");
+
+		//where it goes back to once fanned out, or null for a one-off
+		private final Pool pool;
+		private final AtomicReferenceArray<ByteBuffer> frames = new AtomicReferenceArray<ByteBuffer>(values().length);
+		//the line as text; made from its bytes only if a protocol needs a String
+		private volatile String line;
+		//a pooled broadcast's line is the first length bytes, as UTF-8
+		private byte[] bytes;
+		private int length;
+		//time from posting until the last shard has queued the frame for its members, or null if not timed
+		private LatencyHistogram fanOut;
+		//stamps of a sampled line, or null
+		private MessageTracer.Trace trace;
+		private long postedAt;
+		private volatile int shardsLeft;
+		//the shards as one, and the sink if there is one; the last to finish gives a pooled broadcast back
+		private volatile int usersLeft;
+		//the task sending it on each shard, kept for the next time it is posted; poster only
+		private ShardTask[] tasks = new ShardTask[0];
+		//where it goes once posted, on which thread and for which room, or null
+		private Sink sink;
+		private Executor sinkThread;
+		private String room;
+		private SinkTask sinkTask;
+		//next in the pool's free list
+		private Broadcast nextFree;
+
+		Broadcast(String line) {
+			this(line, null);
+		}
+
+		Broadcast(String line, LatencyHistogram fanOut) {
+			this(line, fanOut, null);
+		}
+
+		Broadcast(String line, LatencyHistogram fanOut, MessageTracer.Trace trace) {
+			this.pool = null;
+			this.line = line;
+			this.fanOut = fanOut;
+			this.trace = trace;
+		}
+
+		private Broadcast(Pool pool) {
+			this.pool = pool;
+		}
+
+		String line() {
+			String text = line;
+			if (text == null) {
+				//shards racing here make equal Strings
+				text = new String(bytes, 0, length, StandardCharsets.UTF_8);
+				line = text;
+			}
+			return text;
+		}
+
+		//Hands the line to sink on sinkThread once posted, in posting order if sinkThread runs its tasks in order; poster only
+		Broadcast then(Executor sinkThread, Sink sink, String room) {
+			this.sinkThread = sinkThread;
+			this.sink = sink;
+			this.room = room;
+			return this;
+		}
+
+		//Before the first shard is given it; the count starts at one, for the poster, so it cannot reach 0 mid-post
+		void posting() {
+			postedAt = System.nanoTime();
+			if (trace != null) {
+				//before any frame is encoded, so every recipient gets the stamp
+				trace.serverPosted = MessageTracer.now();
+			}
+			shardsLeft = 1;
+			usersLeft = sink == null ? 1 : 2;
+			if (sink != null) {
+				if (sinkTask == null) {
+					sinkTask = new SinkTask(this);
+				}
+				sinkThread.execute(sinkTask);
+			}
+		}
+
+		//Before each shard is given it
+		void postingTo() {
+			SHARDS_LEFT.incrementAndGet(this);
+		}
+
+		//The task that sends it to one shard's members and then calls shardDone(); poster only
+		Runnable to(int shard, ChatRooms.Members members) {
+			if (shard >= tasks.length) {
+				tasks = Arrays.copyOf(tasks, shard + 1);
+			}
+			ShardTask task = tasks[shard];
+			if (task == null) {
+				task = new ShardTask(this);
+				tasks[shard] = task;
+			}
+			task.members = members;
+			return task;
+		}
+
+		//Each shard, once it has queued the broadcast for its members, and the poster once all are posted;
+		//the last one records the fan-out time and gives a pooled broadcast back
+		void shardDone() {
+			if (SHARDS_LEFT.decrementAndGet(this) == 0) {
+				if (fanOut != null) {
+					fanOut.record(System.nanoTime() - postedAt);
+				}
+				if (trace != null) {
+					trace.fannedOut();
+				}
+				done();
+			}
+		}
+
+		//The shards, or the sink, are finished with it
+		private void done() {
+			if (USERS_LEFT.decrementAndGet(this) == 0 && pool != null) {
+				recycle();
+			}
+		}
+
+		//Queues the frame for one member, which holds a reference to it until written or dropped
+		void sendTo(ChatConnection member) {
+			ByteBuffer frame = frame(member.getProtocol());
+			FramePool.SHARED.retain(frame);
+			member.sendFrame(frame);
+		}
+
+		ByteBuffer frame(WireProtocol protocol) {
+			ByteBuffer frame = frames.get(protocol.ordinal());
+			if (frame == null) {
+				//two shards racing encode twice, and both keep the first frame stored
+				ByteBuffer encoded = encode(protocol);
+				if (frames.compareAndSet(protocol.ordinal(), null, encoded)) {
+					frame = encoded;
+				} else {
+					FramePool.SHARED.release(encoded);
+					frame = frames.get(protocol.ordinal());
+				}
+			}
+			return frame;
+		}
+
+		private ByteBuffer encode(WireProtocol protocol) {
+			if (bytes != null) {
+				ByteBuffer pooled = protocol.encode(bytes, length, trace);
+				if (pooled != null) {
+					return pooled;
+				}
+			}
+			return protocol.encode(line(), trace);
+		}
+
+		//Copies the line, so its buffer can be reused as soon as this returns
+		private void set(LineBuffer text, LatencyHistogram fanOut, MessageTracer.Trace trace) {
+			if (bytes == null || bytes.length < text.length()) {
+				bytes = new byte[Math.max(text.length(), bytes == null ? 128 : bytes.length * 2)];
+			}
+			System.arraycopy(text.array(), 0, bytes, 0, text.length());
+			length = text.length();
+			this.fanOut = fanOut;
+			this.trace = trace;
+		}
+
+		//Every shard, and the sink, is done with it: its frames go back to the FramePool, where recipients may still hold them
+		private void recycle() {
+			for (int i = 0; i < frames.length(); i++) {
+				ByteBuffer frame = frames.get(i);
+				if (frame != null) {
+					FramePool.SHARED.release(frame);
+					frames.set(i, null);
+				}
+			}
+			line = null;
+			fanOut = null;
+			trace = null;
+			sink = null;
+			sinkThread = null;
+			room = null;
+			pool.give(this);
+		}
+
+		//Hands the line to the sink, then lets the broadcast go
+		private static final class SinkTask extends Mailbox.Task {
+
+			private final Broadcast broadcast;
+
+			SinkTask(Broadcast broadcast) {
+				this.broadcast = broadcast;
+			}
+
+			public void run() {
+				try {
+					if (broadcast.bytes != null) {
+						broadcast.sink.posted(broadcast.room, broadcast.bytes, broadcast.length);
+					} else {
+						byte[] line = broadcast.line().getBytes(StandardCharsets.UTF_8);
+						broadcast.sink.posted(broadcast.room, line, line.length);
+					}
+				} finally {
+					broadcast.done();
+				}
+			}
+		}
+
+		//Sends the broadcast to one shard's members
+		private static final class ShardTask extends Mailbox.Task {
+
+			private final Broadcast broadcast;
+			private ChatRooms.Members members;
+
+			ShardTask(Broadcast broadcast) {
+				this.broadcast = broadcast;
+			}
+
+			public void run() {
+				members.send(broadcast);
+				//the last thing done with it: from here on it may be taken for another line
+				broadcast.shardDone();
+			}
+		}
+
+		/**
+		 * Broadcasts to use again, once the pool holds as many as are in
+		 * flight at a time. take() is called under the lock that orders
+		 * the room's broadcasts, each lock having its own pool, so by one
+		 * thread at a time, and that keeps the free
+		 * list safe from a node being taken and given back mid-take; the
+		 * shards give back from any thread.
+		 */
+		static final class Pool {
+
+			private final AtomicReference<Broadcast> free = new AtomicReference<Broadcast>();
+
+			Broadcast take(LineBuffer line, LatencyHistogram fanOut, MessageTracer.Trace trace) {
+				Broadcast broadcast = free.get();
+				while (broadcast != null && !free.compareAndSet(broadcast, broadcast.nextFree)) {
+					broadcast = free.get();
+				}
+				if (broadcast == null) {
+					broadcast = new Broadcast(this);
+				}
+				broadcast.nextFree = null;
+				broadcast.set(line, fanOut, trace);
+				return broadcast;
+			}
+
+			private void give(Broadcast broadcast) {
+				Broadcast head;
+				do {
+					head = free.get();
+					broadcast.nextFree = head;
+				} while (!free.compareAndSet(head, broadcast));
+			}
+		}
+	}
+
+	//What the server sends first, once it knows the client's protocol
+	abstract ByteBuffer greeting();
+
+	//Encodes a broadcast line into a frame that can be shared between recipients
+	abstract ByteBuffer encode(String broadcast);
+
+	//As encode(broadcast), with the line's trace stamps for protocols that carry them
+	ByteBuffer encode(String broadcast, MessageTracer.Trace trace) {
+		return encode(broadcast);
+	}
+
+	/**
+	 * As encode(broadcast, trace), from the first length bytes of the line's
+	 * UTF-8 into a FramePool frame, holding one reference. Null where the
+	 * protocol, the line's length or a full pool rule that out, and the
+	 * caller falls back to encoding a String.
+	 */
+	ByteBuffer encode(byte[] line, int length, MessageTracer.Trace trace) {
+		return null;
+	}
+
+	//Merges queued broadcast frames into one, for the COALESCE slow-consumer policy
+	abstract ByteBuffer concat(List<ByteBuffer> frames);
+
+	abstract Decoder newDecoder();
+
+	//Looks at, without consuming, the first bytes of a connection; null until enough have arrived
+	static WireProtocol detect(ByteBuffer in) throws StreamCorruptedException {
+		if (in.remaining() < DETECT_LENGTH) {
+			return null;
+		}
+		return detect(in.get(in.position()) & 0xFF, in.get(in.position() + 1) & 0xFF);
+	}
+
+	static WireProtocol detect(int first, int second) throws StreamCorruptedException {
+		if (first == 0xAC && second == 0xED) {
+			return LEGACY;
+		}
+		if (first == BinaryCodec.MAGIC[0] && second == BinaryCodec.MAGIC[1]) {
+			return BINARY;
+		}
+		throw new StreamCorruptedException(String.format("unknown protocol 0x%02X%02X", first, second));
+	}
+}
@@ -0,0 +1,209 @@
+/**
+ * Multiple Client Chat Application
+ * WriteBatch collects the frames waiting for one client and hands them to
+ * the socket in a single gathering write, so a burst of broadcasts costs one
+ * system call instead of one per frame. A batch is written once it holds
+ * chat.server.batchFrames frames or chat.server.batchBytes bytes, or once
+ * its first frame has waited chat.server.lingerMicros (by default it does
+ * not wait, and takes whatever is queued when the writer gets to it).
+ * Only the connection's single writer uses a batch.
+ *
+ * Each frame is read through a view of its own, as frames are shared: a
+ * FramePool frame through a cursor the batch keeps for that position and
+ * reuses, anything else through a duplicate. A pooled frame is released
+ * once it has been written, or when the batch is cleared.
+ */
+
+package ChatApplication;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+final class WriteBatch {
+
+	static final String FRAMES_PROPERTY = "chat.server.batchFrames";
+	static final String BYTES_PROPERTY = "chat.server.batchBytes";
+	//how long a batch that is not full may wait for more frames
+	static final String LINGER_PROPERTY = "chat.server.lingerMicros";
+	static final int DEFAULT_FRAMES = 64;
+	static final int DEFAULT_BYTES = 64 * 1024;
+
+	//Totals over every batch of a server, for the queue report
+	static final Stats STATS = new Stats();
+
+	static final class Stats {
+
+		private final LongAdder frames = new LongAdder();
+		private final LongAdder writes = new LongAdder();
+		private final LongAdder batches = new LongAdder();
+		private final LongAdder delayNanos = new LongAdder();
+		private final LongAdder bytes = new LongAdder();
+
+		long frames() {
+			return frames.sum();
+		}
+
+		//Bytes of finished batches, stream resets included
+		long bytes() {
+			return bytes.sum();
+		}
+
+		//Gathering writes issued, i.e. system calls
+		long writes() {
+			return writes.sum();
+		}
+
+		long batches() {
+			return batches.sum();
+		}
+
+		double framesPerWrite() {
+			long writes = writes();
+			return writes == 0 ? 0 : (double) frames() / writes;
+		}
+
+		//Average time from a batch's first frame to the write that finished it: what batching adds to latency
+		long averageDelayMicros() {
+			long batches = batches();
+			return batches == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(delayNanos.sum() / batches);
+		}
+
+		String report() {
+			return String.format("Writes: %d frames in %d system calls, %.1f per call, %d us average batch delay%n",
+					frames(), writes(), framesPerWrite(), averageDelayMicros());
+		}
+	}
+
+	private final ByteBuffer[] buffers;
+	//FramePool slot of each frame, or -1, and the cursors kept for reading pooled frames
+	private final int[] slots;
+	private final ByteBuffer[] cursors;
+	private final int maxBytes;
+	private final long lingerNanos;
+	private final Stats stats;
+	private int count;
+	private int written;
+	private boolean started;
+	private int frames;
+	private long bytes;
+	private long firstAddedAt;
+
+	WriteBatch(int maxFrames, int maxBytes, long lingerMicros, Stats stats) {
+		//one slot more than the frame limit, for a stream reset following the last frame
+		this.buffers = new ByteBuffer[Math.max(1, maxFrames) + 1];
+		this.slots = new int[buffers.length];
+		this.cursors = new ByteBuffer[buffers.length];
+		this.maxBytes = maxBytes;
+		this.lingerNanos = TimeUnit.MICROSECONDS.toNanos(lingerMicros);
+		this.stats = stats;
+	}
+
+	static WriteBatch fromSystemProperties() {
+		return new WriteBatch(Integer.getInteger(FRAMES_PROPERTY, DEFAULT_FRAMES), Integer.getInteger(BYTES_PROPERTY, DEFAULT_BYTES),
+				Long.getLong(LINGER_PROPERTY, 0L), STATS);
+	}
+
+	int maxFrames() {
+		return buffers.length - 1;
+	}
+
+	boolean isEmpty() {
+		return count == 0;
+	}
+
+	boolean isFull() {
+		return count >= buffers.length - 1 || bytes >= maxBytes;
+	}
+
+	//False once full, or once a write has sent part of it: the rest goes out before anything new is added
+	boolean canAdd() {
+		return !started && !isFull();
+	}
+
+	/**
+	 * Adds a shared frame (only a view's position moves), taking over the
+	 * caller's reference if it is pooled. A tracker, for serialized-stream
+	 * clients, may follow it with a stream reset.
+	 */
+	void add(ByteBuffer frame, LegacyCodec.ResetTracker resets) {
+		if (count == 0) {
+			firstAddedAt = System.nanoTime();
+		}
+		int slot = FramePool.SHARED.slotOf(frame);
+		ByteBuffer view;
+		if (slot >= 0) {
+			view = FramePool.SHARED.cursor(slot, frame, cursors[count]);
+			cursors[count] = view;
+		} else {
+			view = frame.duplicate();
+		}
+		slots[count] = slot;
+		buffers[count++] = view;
+		bytes += view.remaining();
+		frames++;
+		ByteBuffer reset = resets == null ? null : resets.written(view.remaining());
+		if (reset != null) {
+			slots[count] = -1;
+			buffers[count++] = reset;
+			bytes += reset.remaining();
+		}
+	}
+
+	//How much longer the batch should wait for more frames before it is written; 0 to write now
+	long lingerNanos(long now) {
+		if (lingerNanos == 0 || count == 0 || started || isFull()) {
+			return 0;
+		}
+		return Math.max(0, firstAddedAt + lingerNanos - now);
+	}
+
+	/**
+	 * One gathering write of everything not yet written. Returns true once
+	 * the whole batch has gone out, false if the socket took only part.
+	 */
+	boolean write(GatheringByteChannel channel) throws IOException {
+		channel.write(buffers, written, count - written);
+		stats.writes.increment();
+		while (written < count && !buffers[written].hasRemaining()) {
+			release(written);
+			buffers[written++] = null;
+		}
+		if (written < count) {
+			started = true;
+			return false;
+		}
+		stats.frames.add(frames);
+		stats.bytes.add(bytes);
+		stats.batches.increment();
+		stats.delayNanos.add(System.nanoTime() - firstAddedAt);
+		reset();
+		return true;
+	}
+
+	//Drops what is not written yet, e.g. once the connection has closed
+	void clear() {
+		while (written < count) {
+			release(written);
+			buffers[written++] = null;
+		}
+		reset();
+	}
+
+	private void release(int index) {
+		if (slots[index] >= 0) {
+			FramePool.SHARED.release(slots[index]);
+			slots[index] = -1;
+		}
+	}
+
+	private void reset() {
+		count = 0;
+		written = 0;
+		started = false;
+		frames = 0;
+		bytes = 0;
+	}
+}
@@ -0,0 +1,245 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * JUnit test cases for the allocation-free broadcast path
+ * Tests that, once warm, the server's threads allocate next to nothing per
+ * chat line received and broadcast, and reports the bytes per line
+ */
+public class AllocationTest {
+
+    private static final int WARM_UP = 5000;
+    private static final int MEASURED = 5000;
+    private static final int BURST = 50;
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounting() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        org.junit.Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        return threads;
+    }
+
+    //Live threads whose names start with prefix
+    private static Set<Thread> threads(String prefix) {
+        Set<Thread> named = new HashSet<>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(prefix)) {
+                named.add(thread);
+            }
+        }
+        return named;
+    }
+
+    private static long allocated(com.sun.management.ThreadMXBean threads, Collection<Thread> of) {
+        long total = 0;
+        for (Thread thread : of) {
+            total += Math.max(0, threads.getThreadAllocatedBytes(thread.getId()));
+        }
+        return total;
+    }
+
+    //Discards what is written, as a socket with room to spare would take it
+    private static class DiscardingChannel implements GatheringByteChannel {
+        long written;
+
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            long bytes = 0;
+            for (int i = offset; i < offset + length; i++) {
+                bytes += sources[i].remaining();
+                sources[i].position(sources[i].limit());
+            }
+            written += bytes;
+            return bytes;
+        }
+
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        public int write(ByteBuffer source) {
+            return (int) write(new ByteBuffer[] { source }, 0, 1);
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    //A member with the queue and write batch a real connection has
+    private static class QueuedConnection implements ChatConnection {
+        final OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DROP_OLDEST, 1024, 5000);
+        final WriteBatch batch = new WriteBatch(64, 64 * 1024, 0, new WriteBatch.Stats());
+        final DiscardingChannel channel = new DiscardingChannel();
+        final String username;
+        final int shard;
+        long id = -1;
+
+        QueuedConnection(String username, int shard) {
+            this.username = username;
+            this.shard = shard;
+        }
+
+        //What the connection's writer does
+        void flush() throws IOException {
+            ByteBuffer frame;
+            while ((frame = queue.poll()) != null) {
+                batch.add(frame, null);
+                if (!batch.canAdd()) {
+                    batch.write(channel);
+                }
+            }
+            if (!batch.isEmpty()) {
+                batch.write(channel);
+            }
+        }
+
+        public String getUsername() { return username; }
+        public long getClientId() { return id; }
+        public void setClientId(long id) { this.id = id; }
+        public int getShard() { return shard; }
+        public WireProtocol getProtocol() { return WireProtocol.BINARY; }
+        public void sendFrame(ByteBuffer frame) { queue.offer(frame); }
+        public int getQueueDepth() { return queue.depth(); }
+        public long getLagMillis() { return queue.lagMillis(); }
+        public long getRetainedBytes() { return 0; }
+        public void close() { queue.close(); }
+    }
+
+    @Test
+    public void testFanOutDoesNotAllocate() throws Exception {
+        // Test that building, posting, queueing and writing a line allocates nothing once warm
+        com.sun.management.ThreadMXBean threads = allocationCounting();
+        ChatRooms rooms = new ChatRooms(2);
+        QueuedConnection[] members = new QueuedConnection[4];
+        for (int i = 0; i < members.length; i++) {
+            members[i] = new QueuedConnection("User" + i, i % 2);
+            rooms.join(members[i], ChatRooms.LOBBY);
+        }
+        ChatRooms.Room lobby = rooms.get(ChatRooms.LOBBY);
+        Executor inline = task -> task.run();
+        Executor[] shards = { inline, inline };
+        WireProtocol.Broadcast.Pool pool = new WireProtocol.Broadcast.Pool();
+        LineClock clock = new LineClock();
+        LineBuffer line = new LineBuffer(64);
+        byte[] text = "Alice: The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+        int pooled = FramePool.SHARED.inUse();
+        long misses = FramePool.SHARED.misses();
+
+        broadcast(lobby, shards, pool, clock, line, text, members, WARM_UP);
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        broadcast(lobby, shards, pool, clock, line, text, members, 100000);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        System.out.println("Allocation Test:");
+        System.out.println("100000 lines to 4 members allocated " + allocated + " bytes");
+        // a new second's stamp, and reading the counter itself, are all that may allocate
+        assertTrue("Fanning out should not allocate per line, allocated " + allocated, allocated < 10000);
+        assertEquals("Every line should have been written", (WARM_UP + 100000L) * (text.length + 10 + BinaryCodec.HEADER_LENGTH),
+                members[0].channel.written);
+        assertEquals("Every frame should have gone back to the pool", pooled, FramePool.SHARED.inUse());
+        assertEquals("Every frame should have come from the pool", misses, FramePool.SHARED.misses());
+    }
+
+    private static void broadcast(ChatRooms.Room room, Executor[] shards, WireProtocol.Broadcast.Pool pool, LineClock clock,
+            LineBuffer line, byte[] text, QueuedConnection[] members, int lines) throws IOException {
+        for (int i = 0; i < lines; i++) {
+            line.clear().append(clock.bytes()).append((byte) ' ').append(text).append((byte) '\n');
+            room.post(shards, pool.take(line, null, null));
+            for (QueuedConnection member : members) {
+                member.flush();
+            }
+        }
+    }
+
+    @Test
+    public void testBroadcastPathDoesNotAllocate() throws Exception {
+        // Test that the selector engine's loop allocates next to nothing per line once warm
+        com.sun.management.ThreadMXBean threads = allocationCounting();
+        Set<Thread> otherLoops = threads("chat-event-loop-");
+        int port = freePort();
+        System.setProperty(ChatServer.ENGINE_PROPERTY, "selector");
+        System.setProperty(ChatServer.TRACE_EVERY_PROPERTY, "0");
+        System.setProperty(ChatClient.TRACE_EVERY_PROPERTY, "0");
+        ChatClient.Group group;
+        try {
+            LoadGenerator.startServer(port);
+            group = new ChatClient.Group(1);
+        } finally {
+            System.clearProperty(ChatServer.ENGINE_PROPERTY);
+            System.clearProperty(ChatServer.TRACE_EVERY_PROPERTY);
+            System.clearProperty(ChatClient.TRACE_EVERY_PROPERTY);
+        }
+        try {
+            final AtomicLong delivered = new AtomicLong();
+            ChatClient.Listener listener = new ChatClient.Listener() {
+                public void received(ChatClient client, String message) {
+                    delivered.incrementAndGet();
+                }
+
+                public void closed(ChatClient client, IOException cause) {
+                }
+            };
+            ChatClient alice = group.connect("localhost", port, "Alice", listener);
+            ChatClient bob = group.connect("localhost", port, "Bob", listener);
+            // the answer to a command means both have joined
+            assertTrue(bob.send("/rooms"));
+            awaitDelivered(delivered, 1);
+            Set<Thread> loops = threads("chat-event-loop-");
+            loops.removeAll(otherLoops);
+            assertFalse("The server should run an event loop", loops.isEmpty());
+
+            chat(alice, delivered, WARM_UP);
+            long before = allocated(threads, loops);
+            chat(alice, delivered, MEASURED);
+            long perLine = (allocated(threads, loops) - before) / MEASURED;
+
+            System.out.println("Allocation Test:");
+            System.out.println(MEASURED + " lines to 2 clients: " + perLine + " bytes allocated per line on the event loop");
+            // what is left is the JDK selector's bookkeeping per wakeup, not the lines
+            assertTrue("Broadcasting should allocate next to nothing per line, was " + perLine, perLine < 100);
+        } finally {
+            group.close();
+        }
+    }
+
+    //Sends lines in bursts the client's outbox can take, each delivered to both clients before the next
+    private static void chat(ChatClient sender, AtomicLong delivered, int lines) throws Exception {
+        String text = "The quick brown fox jumps over the lazy dog";
+        for (int sent = 0; sent < lines; sent += BURST) {
+            long target = delivered.get() + 2 * BURST;
+            for (int i = 0; i < BURST; i++) {
+                assertTrue(sender.send(text));
+            }
+            awaitDelivered(delivered, target);
+        }
+    }
+
+    private static void awaitDelivered(AtomicLong delivered, long target) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (delivered.get() < target) {
+            assertTrue("Lines should be delivered, got " + delivered.get() + " of " + target, System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * JUnit test cases for BinaryCodec and WireProtocol
+ * Tests the framing, the hello, compression and tracing negotiation and telling the protocols apart
+ */
+public class BinaryCodecTest {
+
+    private BinaryCodec.Decoder decoder;
+
+    @Before
+    public void setUp() {
+        decoder = new BinaryCodec.Decoder();
+    }
+
+    // What Client writes: a hello, the username and some messages
+    private static byte[] clientStream(String username, String... messages) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        BinaryCodec.writeHello(out);
+        BinaryCodec.writeFrame(out, BinaryCodec.TYPE_USERNAME, username);
+        for (String message : messages) {
+            BinaryCodec.writeFrame(out, BinaryCodec.TYPE_CHAT, message);
+        }
+        BinaryCodec.writeFrame(out, BinaryCodec.TYPE_DISCONNECT, null);
+        out.close();
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testDecodeUsernameAndMessages() throws IOException {
+        // Test that frames decode to the same objects the serialized protocol carried
+        ByteBuffer in = ByteBuffer.wrap(clientStream("TestUser", "Hello", "World"));
+
+        assertEquals("First frame should be the username", "TestUser", decoder.decode(in));
+        assertEquals("Version should be negotiated", BinaryCodec.VERSION, decoder.version());
+        assertEquals("First message should match", "Hello", ((MessageHandler) decoder.decode(in)).getMessage());
+        assertEquals("Second message should match", "World", ((MessageHandler) decoder.decode(in)).getMessage());
+        MessageHandler disconnect = (MessageHandler) decoder.decode(in);
+        assertTrue("Last frame should be disconnect", disconnect.diconnectClient());
+        assertNull("Nothing should be left to decode", decoder.decode(in));
+    }
+
+    @Test
+    public void testDecodeByteAtATime() throws IOException {
+        // Test that partial frames are retried and required() tracks what is missing
+        String special = "Special chars: !@#$%^&*() \u00e9\u4e2d\u0000\ud83d\ude00";
+        byte[] bytes = clientStream("User1", special, "Next");
+        ByteBuffer in = ByteBuffer.allocateDirect(bytes.length);
+        in.flip();
+        List<Object> decoded = new ArrayList<>();
+        for (byte b : bytes) {
+            in.compact();
+            in.put(b);
+            in.flip();
+            Object frame;
+            while ((frame = decoder.decode(in)) != null) {
+                decoded.add(frame);
+            }
+            if (in.hasRemaining()) {
+                assertTrue("Required should exceed what is buffered", decoder.required() > in.remaining());
+            }
+        }
+
+        assertEquals("Four frames should be decoded", 4, decoded.size());
+        assertEquals("Username should match", "User1", decoded.get(0));
+        assertEquals("Special characters should survive", special, ((MessageHandler) decoded.get(1)).getMessage());
+        assertEquals("Second message should match", "Next", ((MessageHandler) decoded.get(2)).getMessage());
+    }
+
+    @Test
+    public void testEncodedBroadcastsReadByStream() throws IOException {
+        // Test that server-encoded broadcasts are readable by Client's blocking reader
+        String[] messages = { "10:00:00 User: Hello\n", "", "\u00e9\u4e2d\u0000" };
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(toArray(BinaryCodec.hello()));
+        for (String message : messages) {
+            baos.write(toArray(BinaryCodec.encode(BinaryCodec.TYPE_CHAT, message)));
+        }
+        baos.write(toArray(BinaryCodec.concatChats(Arrays.asList(
+                BinaryCodec.encode(BinaryCodec.TYPE_CHAT, "one\n"), BinaryCodec.encode(BinaryCodec.TYPE_CHAT, "two\n")))));
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        assertEquals("Hello should negotiate the version", BinaryCodec.VERSION, BinaryCodec.readHello(in));
+        for (String message : messages) {
+            assertEquals("Decoded broadcast should match", message, ((MessageHandler) BinaryCodec.readFrame(in)).getMessage());
+        }
+        assertEquals("Joined frames should read as one", "one\ntwo\n", ((MessageHandler) BinaryCodec.readFrame(in)).getMessage());
+    }
+
+    @Test
+    public void testNewerPeerVersionIsNegotiatedDown() throws IOException {
+        // Test that a peer announcing a later version is answered with ours
+        byte[] hello = { 'C', 'H', 'A', 'T', (byte) (BinaryCodec.VERSION + 1) };
+        assertEquals("Lower version should win", BinaryCodec.VERSION,
+                     BinaryCodec.readHello(new DataInputStream(new ByteArrayInputStream(hello))));
+    }
+
+    @Test
+    public void testCompressionFollowsTheHello() throws IOException {
+        // Test that only a version 2 client is switched to compressed broadcasts and may send them
+        String paste = longLine();
+        ByteBuffer in = ByteBuffer.wrap(clientStream("TestUser"));
+        assertEquals("TestUser", decoder.decode(in));
+        assertEquals("A version 3 hello should enable compression and tracing", WireProtocol.BINARY_TRACED, decoder.protocol());
+
+        BinaryCodec.Decoder version2 = new BinaryCodec.Decoder();
+        version2.decode(ByteBuffer.wrap(new byte[] { 'C', 'H', 'A', 'T', 2, 0, 0, 0, 1, BinaryCodec.TYPE_USERNAME, 'V' }));
+        assertEquals("A version 2 hello should enable compression", WireProtocol.BINARY_DEFLATE, version2.protocol());
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.write(new byte[] { 'C', 'H', 'A', 'T', 1 });
+        BinaryCodec.writeFrame(out, BinaryCodec.TYPE_USERNAME, "OldClient");
+        BinaryCodec.writeChat(out, 1, paste);
+        ByteBuffer old = ByteBuffer.wrap(baos.toByteArray());
+        BinaryCodec.Decoder oldDecoder = new BinaryCodec.Decoder();
+        assertEquals("OldClient", oldDecoder.decode(old));
+        assertEquals("A version 1 hello should not", WireProtocol.BINARY, oldDecoder.protocol());
+        assertEquals("Version 1 lines go uncompressed", paste, ((MessageHandler) oldDecoder.decode(old)).getMessage());
+
+        ByteBuffer deflated = BinaryCodec.encodeChat(paste, ChatCompression.THRESHOLD);
+        assertEquals("Long lines should be deflated", BinaryCodec.TYPE_DEFLATED, deflated.get(4));
+        ByteBuffer early = ByteBuffer.allocate(BinaryCodec.HELLO_LENGTH + deflated.remaining());
+        early.put(new byte[] { 'C', 'H', 'A', 'T', 1 }).put(deflated.duplicate()).flip();
+        try {
+            new BinaryCodec.Decoder().decode(early);
+            fail("A version 1 client cannot send compressed frames");
+        } catch (StreamCorruptedException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testCompressedFramesRoundTrip() throws IOException {
+        // Test that compressed lines decode on both sides, byte at a time and joined with plain frames
+        String paste = longLine();
+        String shortLine = "10:00:00 User: Hello\n";
+        assertEquals("Short lines should stay plain", BinaryCodec.TYPE_CHAT,
+                     WireProtocol.BINARY_DEFLATE.encode(shortLine).get(4));
+
+        // Client to server, fed to the decoder one byte at a time
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        BinaryCodec.writeHello(out);
+        BinaryCodec.writeFrame(out, BinaryCodec.TYPE_USERNAME, "User1");
+        BinaryCodec.writeChat(out, BinaryCodec.VERSION, paste);
+        BinaryCodec.writeChat(out, BinaryCodec.VERSION, shortLine);
+        byte[] bytes = baos.toByteArray();
+        assertTrue("The paste should travel compressed", bytes.length < paste.length() / 2);
+        ByteBuffer in = ByteBuffer.allocate(bytes.length);
+        in.flip();
+        List<Object> decoded = new ArrayList<>();
+        for (byte b : bytes) {
+            in.compact();
+            in.put(b);
+            in.flip();
+            Object frame;
+            while ((frame = decoder.decode(in)) != null) {
+                decoded.add(frame);
+            }
+        }
+        assertEquals(3, decoded.size());
+        assertEquals("Paste should be inflated", paste, ((MessageHandler) decoded.get(1)).getMessage());
+        assertEquals(shortLine, ((MessageHandler) decoded.get(2)).getMessage());
+
+        // Server to client, including frames the COALESCE policy has joined
+        WireProtocol.Broadcast broadcast = new WireProtocol.Broadcast(paste);
+        assertSame("A broadcast should be compressed once for every recipient",
+                   broadcast.frame(WireProtocol.BINARY_DEFLATE), broadcast.frame(WireProtocol.BINARY_DEFLATE));
+        ByteBuffer joined = WireProtocol.BINARY_DEFLATE.concat(Arrays.asList(
+                broadcast.frame(WireProtocol.BINARY_DEFLATE), WireProtocol.BINARY_DEFLATE.encode(shortLine)));
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(toArray(joined)));
+        assertEquals(paste, ((MessageHandler) BinaryCodec.readFrame(stream)).getMessage());
+        assertEquals(shortLine, ((MessageHandler) BinaryCodec.readFrame(stream)).getMessage());
+    }
+
+    @Test
+    public void testTracedFramesCarryTheirStamps() throws IOException {
+        // Test that stamps survive both directions, and only version 3 peers may send or get them
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        BinaryCodec.writeHello(out);
+        BinaryCodec.writeFrame(out, BinaryCodec.TYPE_USERNAME, "Tracer");
+        BinaryCodec.writeTraced(out, 123456789L, "Hello \u00e9");
+        ByteBuffer in = ByteBuffer.wrap(baos.toByteArray());
+        assertEquals("Tracer", decoder.decode(in));
+        MessageTracer.TracedMessage sent = (MessageTracer.TracedMessage) decoder.decode(in);
+        assertEquals("Hello \u00e9", sent.getMessage());
+        assertEquals(123456789L, sent.trace.clientSent);
+        assertEquals("The server has not stamped it yet", 0, sent.trace.serverPosted);
+
+        MessageTracer.Trace trace = new MessageTracer.Trace(1);
+        trace.serverReceived = 2;
+        trace.serverDecoding = 3;
+        trace.serverDecoded = 4;
+        trace.serverLocked = 5;
+        trace.serverPosted = 6;
+        WireProtocol.Broadcast broadcast = new WireProtocol.Broadcast("10:00:00 Tracer: Hello\n", null, trace);
+        ByteBuffer frame = broadcast.frame(WireProtocol.BINARY_TRACED);
+        assertEquals(BinaryCodec.TYPE_TRACED, frame.get(4));
+        assertEquals("Older clients get the plain line", BinaryCodec.TYPE_CHAT, broadcast.frame(WireProtocol.BINARY_DEFLATE).get(4));
+        ByteBuffer joined = WireProtocol.BINARY_TRACED.concat(Arrays.asList(frame, WireProtocol.BINARY_TRACED.encode("Next\n")));
+        DataInputStream stream = new DataInputStream(new ByteArrayInputStream(toArray(joined)));
+        MessageTracer.TracedMessage received = (MessageTracer.TracedMessage) BinaryCodec.readFrame(stream);
+        assertEquals("10:00:00 Tracer: Hello\n", received.getMessage());
+        assertEquals(1, received.trace.clientSent);
+        assertEquals(3, received.trace.serverDecoding);
+        assertEquals(5, received.trace.serverLocked);
+        assertEquals(6, received.trace.serverPosted);
+        assertEquals("Next\n", ((MessageHandler) BinaryCodec.readFrame(stream)).getMessage());
+
+        baos.reset();
+        out.write(new byte[] { 'C', 'H', 'A', 'T', 2 });
+        BinaryCodec.writeFrame(out, BinaryCodec.TYPE_USERNAME, "Older");
+        BinaryCodec.writeTraced(out, 1, "Hello");
+        BinaryCodec.Decoder older = new BinaryCodec.Decoder();
+        in = ByteBuffer.wrap(baos.toByteArray());
+        older.decode(in);
+        try {
+            older.decode(in);
+            fail("A version 2 client cannot send traced frames");
+        } catch (StreamCorruptedException expected) {
+            // Expected
+        }
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testRejectsOversizedFrame() throws IOException {
+        // Test that a bogus length is refused instead of buffered
+        ByteBuffer in = ByteBuffer.allocate(16);
+        in.put(toArray(BinaryCodec.hello())).putInt(BinaryCodec.MAX_PAYLOAD_LENGTH + 1).put(BinaryCodec.TYPE_CHAT);
+        in.flip();
+        decoder.decode(in);
+    }
+
+    @Test
+    public void testDetectProtocol() throws IOException {
+        // Test that the first two bytes tell serialized and binary clients apart
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        new ObjectOutputStream(baos).close();
+        assertEquals("Object stream should be legacy", WireProtocol.LEGACY, WireProtocol.detect(ByteBuffer.wrap(baos.toByteArray())));
+        assertEquals("Hello should be binary", WireProtocol.BINARY, WireProtocol.detect(BinaryCodec.hello()));
+        assertNull("One byte is not enough to tell", WireProtocol.detect(ByteBuffer.wrap(new byte[] { 'C' })));
+        try {
+            WireProtocol.detect(ByteBuffer.wrap("GET /".getBytes("US-ASCII")));
+            fail("Unknown protocol should be refused");
+        } catch (StreamCorruptedException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testBinaryFramesAreSmallerThanSerialized() throws IOException {
+        // Test that a chat message costs a fraction of its serialized form
+        ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(serialized);
+        oos.writeObject(new MessageHandler("Hello"));
+        oos.close();
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        BinaryCodec.writeFrame(new DataOutputStream(binary), BinaryCodec.TYPE_CHAT, "Hello");
+
+        assertEquals("Binary frame should be header plus payload", BinaryCodec.HEADER_LENGTH + 5, binary.size());
+        assertTrue("Serialized message should be much larger", serialized.size() > 5 * binary.size());
+    }
+
+    // A pasted block well over the compression threshold
+    private static String longLine() {
+        StringBuilder paste = new StringBuilder("10:00:00 User: ");
+        for (int i = 0; i < 200; i++) {
+            paste.append("Large message content ").append(i).append(". ");
+        }
+        return paste.append('\n').toString();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,207 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * JUnit test cases for ChatClient
+ * Tests joining and chatting without a window, lines sent before the server
+ * has answered, closing from either side, and many clients sharing a few
+ * threads
+ */
+public class ChatClientTest {
+
+    private static final String TEST_HOST = "localhost";
+
+    private SelectorEngine engine;
+    private ServerListener server;
+    private ChatClient.Group group;
+
+    // Broadcasts like ChatServer, except "/echo" lines, which only go back to their sender
+    private static class ServerListener implements SelectorEngine.Listener {
+        final List<NioConnection> clients = new CopyOnWriteArrayList<>();
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        public void connected(NioConnection connection) {
+        }
+
+        public void joined(NioConnection connection) {
+            clients.add(connection);
+            events.add("joined " + connection.getUsername());
+        }
+
+        public void received(NioConnection connection, MessageHandler message) {
+            if (message.diconnectClient()) {
+                connection.close();
+                return;
+            }
+            if (message.getMessage().startsWith("/echo ")) {
+                connection.sendFrame(connection.getProtocol().encode(message.getMessage().substring(6)));
+                return;
+            }
+            String broadcast = connection.getUsername() + ": " + message.getMessage() + "\n";
+            for (NioConnection client : clients) {
+                client.sendFrame(client.getProtocol().encode(broadcast));
+            }
+        }
+
+        public void closed(NioConnection connection) {
+            if (clients.remove(connection)) {
+                events.add("closed " + connection.getUsername());
+            }
+        }
+    }
+
+    // Records what a client hears
+    private static class Inbox implements ChatClient.Listener {
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+        final BlockingQueue<String> closes = new LinkedBlockingQueue<>();
+
+        public void received(ChatClient client, String message) {
+            lines.add(message);
+        }
+
+        public void closed(ChatClient client, IOException cause) {
+            closes.add(cause == null ? "closed" : "failed " + cause.getMessage());
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerListener();
+        engine = new SelectorEngine(server, 2);
+        engine.bind(new InetSocketAddress(TEST_HOST, 0));
+        Thread acceptor = new Thread(() -> {
+            try {
+                engine.acceptLoop();
+            } catch (IOException e) {
+                // Expected when the engine is closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        group = new ChatClient.Group(2);
+    }
+
+    @After
+    public void tearDown() {
+        group.close();
+        engine.close();
+    }
+
+    private ChatClient connect(String username, ChatClient.Listener listener) throws IOException {
+        return group.connect(TEST_HOST, engine.getLocalPort(), username, listener);
+    }
+
+    @Test
+    public void testJoinChatAndClose() throws Exception {
+        // Test that two headless clients join, see each other's lines and leave cleanly
+        Inbox aliceInbox = new Inbox();
+        Inbox bobInbox = new Inbox();
+        ChatClient alice = connect("Alice", aliceInbox);
+        assertEquals("joined Alice", server.events.poll(5, TimeUnit.SECONDS));
+        ChatClient bob = connect("Bob", bobInbox);
+        assertEquals("joined Bob", server.events.poll(5, TimeUnit.SECONDS));
+        assertEquals("Alice", alice.getUsername());
+
+        assertTrue(alice.send("Hello Bob"));
+        assertEquals("Alice: Hello Bob\n", aliceInbox.lines.poll(5, TimeUnit.SECONDS));
+        assertEquals("Alice: Hello Bob\n", bobInbox.lines.poll(5, TimeUnit.SECONDS));
+        assertEquals(BinaryCodec.VERSION, alice.version());
+
+        // Long enough to be sent compressed
+        StringBuilder paste = new StringBuilder();
+        while (paste.length() < 4 * ChatCompression.THRESHOLD) {
+            paste.append("a long pasted line that is sent deflated ");
+        }
+        assertTrue(bob.send(paste.toString()));
+        assertEquals("Bob: " + paste + "\n", aliceInbox.lines.poll(5, TimeUnit.SECONDS));
+        assertEquals(2, alice.received());
+
+        bob.close();
+        assertEquals("closed Bob", server.events.poll(5, TimeUnit.SECONDS));
+        assertEquals("Closing should be reported without a cause", "closed", bobInbox.closes.poll(5, TimeUnit.SECONDS));
+        assertFalse(bob.isOpen());
+        assertEquals(1, bob.sent());
+        assertFalse("Nothing should be sent after closing", bob.send("Too late"));
+        assertTrue(alice.isOpen());
+    }
+
+    @Test
+    public void testLinesSentBeforeTheServerAnswers() throws Exception {
+        // Test that lines queued straight after connecting wait for the hello and arrive in order
+        Inbox inbox = new Inbox();
+        ChatClient client = connect("Early", inbox);
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(client.send("/echo Line " + i));
+        }
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("Line " + i, inbox.lines.poll(5, TimeUnit.SECONDS));
+        }
+        assertEquals(0, client.pending());
+        assertEquals(1000, client.sent());
+    }
+
+    @Test
+    public void testServerClosingIsReported() throws Exception {
+        // Test that the server going away reaches the listener with a cause
+        Inbox inbox = new Inbox();
+        ChatClient client = connect("Dropped", inbox);
+        assertEquals("joined Dropped", server.events.poll(5, TimeUnit.SECONDS));
+        server.clients.get(0).close();
+        String closed = inbox.closes.poll(5, TimeUnit.SECONDS);
+        assertNotNull("The listener should be told", closed);
+        assertTrue("A dropped connection should have a cause", closed.startsWith("failed"));
+        assertFalse(client.isOpen());
+        assertFalse(client.send("Anyone there?"));
+    }
+
+    @Test
+    public void testManyClientsShareFewThreads() throws Exception {
+        // Test and report that a thousand clients chatting at once cost no thread each
+        final int clients = 1000;
+        int initialThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        final AtomicInteger echoes = new AtomicInteger();
+        final CountDownLatch allEchoed = new CountDownLatch(clients);
+        ChatClient.Listener counter = new ChatClient.Listener() {
+            public void received(ChatClient client, String message) {
+                if (message.equals(client.getUsername())) {
+                    echoes.incrementAndGet();
+                    allEchoed.countDown();
+                }
+            }
+
+            public void closed(ChatClient client, IOException cause) {
+            }
+        };
+
+        long start = System.nanoTime();
+        List<ChatClient> connected = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            ChatClient client = connect("Bot" + i, counter);
+            client.send("/echo Bot" + i);
+            connected.add(client);
+        }
+        assertTrue("Every client should hear its echo", allEchoed.await(30, TimeUnit.SECONDS));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        int finalThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        System.out.println("Chat Client Test:");
+        System.out.println(clients + " headless clients connected and echoed in " + millis + "ms on "
+                + group.loopCount() + " loops; thread increase: " + (finalThreads - initialThreads));
+
+        assertEquals(clients, echoes.get());
+        assertTrue("Thread count should not grow per client", finalThreads - initialThreads < 10);
+        for (ChatClient client : connected) {
+            client.close();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.zip.Deflater;
+
+/**
+ * JUnit test cases for ChatCompression
+ * Tests round trips, what the preset dictionary saves on chat-sized lines,
+ * refusing corrupt payloads, and the bytes-on-wire against CPU tradeoff
+ */
+public class ChatCompressionTest {
+
+    // The paste PerformanceTest.testLargeMessagePerformance sends
+    private static String largePaste() {
+        StringBuilder largeMessage = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            largeMessage.append("Large message content ").append(i).append(". ");
+        }
+        return largeMessage.toString();
+    }
+
+    // A line just over the threshold, of the kind of thing people say in a chat
+    private static final String CHAT_LINE = "10:00:00 #java Alice: hey everyone, has anyone seen this error before? "
+            + "I think it is because the server was restarted, but I would like to know what you think about it, "
+            + "thanks. It happens when I join the room and then leave, and it says disconnected. Any ideas? lol\n";
+
+    private static byte[] compress(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        byte[] out = new byte[ChatCompression.LENGTH_PREFIX + payload.length];
+        int end = ChatCompression.compress(payload, out, 0);
+        return end < 0 ? null : Arrays.copyOf(out, end);
+    }
+
+    // zlib at the given level, with or without the preset dictionary
+    private static int deflatedSize(byte[] payload, int level, boolean dictionary) {
+        Deflater deflater = new Deflater(level);
+        try {
+            if (dictionary) {
+                deflater.setDictionary(ChatCompression.DICTIONARY);
+            }
+            deflater.setInput(payload);
+            deflater.finish();
+            byte[] out = new byte[payload.length + 64];
+            int size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(out);
+            }
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        // Test that text of every kind comes back exactly
+        String[] texts = { CHAT_LINE, largePaste(), CHAT_LINE + "\u00e9\u4e2d\u0000\ud83d\ude00" + CHAT_LINE };
+        for (String text : texts) {
+            byte[] compressed = compress(text);
+            assertNotNull("Repetitive text should compress", compressed);
+            assertEquals(text, ChatCompression.decompress(compressed, 0, compressed.length, BinaryCodec.MAX_PAYLOAD_LENGTH));
+        }
+        assertNull("Text that does not shrink should be left alone", compress("x"));
+    }
+
+    @Test
+    public void testDictionaryHelpsChatLines() {
+        // Test that the preset dictionary shrinks a chat-sized line further than plain deflate
+        byte[] payload = CHAT_LINE.getBytes(StandardCharsets.UTF_8);
+        int plain = deflatedSize(payload, ChatCompression.LEVEL, false);
+        int primed = compress(CHAT_LINE).length - ChatCompression.LENGTH_PREFIX;
+
+        System.out.println("Chat Line Dictionary Test:");
+        System.out.println("Line: " + payload.length + " bytes, deflated: " + plain + " bytes, with dictionary: " + primed + " bytes");
+
+        assertTrue("The dictionary should save at least a tenth", primed < plain * 0.9);
+        assertTrue("A chat line should compress well below its size", primed < payload.length * 0.75);
+    }
+
+    @Test
+    public void testRejectsCorruptPayloads() {
+        // Test that a payload lying about its length, cut short or garbled is refused rather than buffered
+        byte[] good = compress(CHAT_LINE);
+        List<byte[]> bad = new ArrayList<>();
+        byte[] longer = good.clone();
+        ByteBuffer.wrap(longer).putInt(CHAT_LINE.length() + 1);
+        bad.add(longer);
+        byte[] shorter = good.clone();
+        ByteBuffer.wrap(shorter).putInt(CHAT_LINE.length() - 1);
+        bad.add(shorter);
+        bad.add(Arrays.copyOf(good, good.length - 3));
+        byte[] garbled = good.clone();
+        garbled[garbled.length / 2] ^= 0x55;
+        bad.add(garbled);
+        byte[] bomb = good.clone();
+        ByteBuffer.wrap(bomb).putInt(BinaryCodec.MAX_PAYLOAD_LENGTH + 1);
+        bad.add(bomb);
+        bad.add(new byte[] { 0, 0 });
+
+        for (byte[] payload : bad) {
+            try {
+                ChatCompression.decompress(payload, 0, payload.length, BinaryCodec.MAX_PAYLOAD_LENGTH);
+                fail("Corrupt payload should be refused: " + Arrays.toString(Arrays.copyOf(payload, 8)));
+            } catch (StreamCorruptedException expected) {
+                // Expected
+            }
+        }
+    }
+
+    @Test
+    public void testBytesOnWireAgainstCpu() throws IOException {
+        // Test and report what compressing a broadcast once saves on the wire for what it costs in CPU
+        int recipients = 100;
+        String[] names = { "Chat line", "Large paste" };
+        String[] texts = { CHAT_LINE, largePaste() };
+        int[] rounds = { 20000, 20 };
+        System.out.println("Compression Tradeoff Test (level " + ChatCompression.LEVEL
+                + ", threshold " + ChatCompression.THRESHOLD + " bytes):");
+        for (int t = 0; t < texts.length; t++) {
+            byte[] payload = texts[t].getBytes(StandardCharsets.UTF_8);
+            // Warm up, then time compressing once per broadcast and inflating once per recipient
+            byte[] compressed = null;
+            for (int i = 0; i < rounds[t]; i++) {
+                compressed = compress(texts[t]);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < rounds[t]; i++) {
+                compressed = compress(texts[t]);
+            }
+            long compressNanos = (System.nanoTime() - start) / rounds[t];
+            start = System.nanoTime();
+            for (int i = 0; i < rounds[t]; i++) {
+                ChatCompression.decompress(compressed, 0, compressed.length, BinaryCodec.MAX_PAYLOAD_LENGTH);
+            }
+            long inflateNanos = (System.nanoTime() - start) / rounds[t];
+
+            long plainWire = (long) (BinaryCodec.HEADER_LENGTH + payload.length) * recipients;
+            long compressedWire = (long) (BinaryCodec.HEADER_LENGTH + compressed.length) * recipients;
+            System.out.println(String.format("%s: %d bytes -> %d bytes (%.1f%%), to %d recipients %d KB -> %d KB",
+                    names[t], payload.length, compressed.length, 100.0 * compressed.length / payload.length,
+                    recipients, plainWire / 1024, compressedWire / 1024));
+            System.out.println(String.format("  compressed once by the server in %.1f us (%.1f MB/s), inflated by each client in %.1f us",
+                    compressNanos / 1e3, payload.length / (compressNanos / 1e9) / (1024 * 1024), inflateNanos / 1e3));
+            for (int level : new int[] { Deflater.BEST_SPEED, 6, Deflater.BEST_COMPRESSION }) {
+                int size = 0;
+                long levelStart = System.nanoTime();
+                for (int i = 0; i < rounds[t] / 10; i++) {
+                    size = deflatedSize(payload, level, true);
+                }
+                System.out.println(String.format("  level %d: %d bytes in %.1f us", level, size,
+                        (System.nanoTime() - levelStart) / 1e3 / (rounds[t] / 10)));
+            }
+
+            assertTrue(names[t] + " should be smaller on the wire", compressedWire < plainWire);
+        }
+        assertTrue("A repetitive paste should shrink to a fraction", compress(largePaste()).length * 10 < largePaste().length());
+    }
+}
@@ -0,0 +1,327 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * JUnit test cases for ChatRooms
+ * Tests joining, leaving, room cleanup, that fan-out follows room size and
+ * that sharded fan-out reaches every member in the same order
+ */
+public class ChatRoomsTest {
+
+    private ChatRooms rooms;
+
+    // A connection that only counts the frames sent to it
+    private static class CountingConnection implements ChatConnection {
+        final String username;
+        final AtomicInteger frames = new AtomicInteger();
+        final int shard;
+
+        CountingConnection(String username) {
+            this(username, 0);
+        }
+
+        CountingConnection(String username, int shard) {
+            this.username = username;
+            this.shard = shard;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public long getClientId() {
+            return -1;
+        }
+
+        public void setClientId(long id) {
+        }
+
+        public WireProtocol getProtocol() {
+            return WireProtocol.BINARY;
+        }
+
+        public void sendFrame(ByteBuffer frame) {
+            frames.incrementAndGet();
+        }
+
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        public long getLagMillis() {
+            return 0;
+        }
+
+        public long getRetainedBytes() {
+            return 0;
+        }
+
+        public void close() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        rooms = new ChatRooms();
+    }
+
+    @Test
+    public void testJoinMovesBetweenRooms() {
+        // Test that a client is in exactly one room at a time
+        CountingConnection client = new CountingConnection("User1");
+        assertNull("First join should have no previous room", rooms.join(client, ChatRooms.LOBBY));
+        assertTrue("Client should start in the lobby", rooms.roomOf(client).isLobby());
+
+        ChatRooms.Room lobby = rooms.join(client, "java");
+        assertEquals("Previous room should be the lobby", ChatRooms.LOBBY, lobby.name);
+        assertEquals("Client should now be in java", "java", rooms.roomOf(client).name);
+        assertEquals("Java should have one member", 1, rooms.get("java").size());
+        assertNull("Empty lobby should be removed", rooms.get(ChatRooms.LOBBY));
+
+        assertNull("Joining the current room should do nothing", rooms.join(client, "java"));
+        assertEquals("Leaving should report the room", "java", rooms.leave(client).name);
+        assertNull("Left client should be in no room", rooms.roomOf(client));
+        assertTrue("No rooms should remain", rooms.sizes().isEmpty());
+    }
+
+    @Test
+    public void testRoomNames() {
+        // Test which room names are accepted
+        assertTrue("Simple name should be valid", ChatRooms.isValidName("java-help_2"));
+        assertFalse("Empty name should be invalid", ChatRooms.isValidName(""));
+        assertFalse("Name with spaces should be invalid", ChatRooms.isValidName("two words"));
+        assertFalse("Name with a hash should be invalid", ChatRooms.isValidName("#java"));
+        assertFalse("Overlong name should be invalid", ChatRooms.isValidName(new String(new char[ChatRooms.MAX_NAME_LENGTH + 1]).replace('\0', 'x')));
+        try {
+            rooms.join(new CountingConnection("User1"), "bad name");
+            fail("Joining an invalid room should be refused");
+        } catch (IllegalArgumentException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testFanOutFollowsRoomSize() {
+        // Test that a broadcast to one room reaches only its members on a busy server
+        List<CountingConnection> clients = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            CountingConnection client = new CountingConnection("User" + i);
+            clients.add(client);
+            rooms.join(client, "room" + (i % 100));
+        }
+        ByteBuffer frame = ByteBuffer.allocate(1);
+        int writes = 0;
+        for (ChatConnection member : rooms.get("room7")) {
+            member.sendFrame(frame);
+            writes++;
+        }
+
+        assertEquals("One broadcast should cost one write per room member", 100, writes);
+        assertEquals("Every room should be listed", 100, rooms.sizes().size());
+        for (int i = 0; i < clients.size(); i++) {
+            assertEquals("Only room7 members should receive the line", i % 100 == 7 ? 1 : 0, clients.get(i).frames.get());
+        }
+    }
+
+    @Test
+    public void testMembershipChurnDuringBroadcast() throws Exception {
+        // Test that joins and leaves neither block nor break a broadcast in flight
+        List<CountingConnection> stable = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            CountingConnection client = new CountingConnection("Stable" + i);
+            stable.add(client);
+            rooms.join(client, "busy");
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<?>> churners = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            final int thread = t;
+            churners.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    CountingConnection client = new CountingConnection("Churn" + thread);
+                    while (running.get()) {
+                        rooms.join(client, "busy");
+                        rooms.join(client, "quiet" + thread);
+                        rooms.leave(client);
+                    }
+                    return null;
+                }
+            }));
+        }
+        ByteBuffer frame = ByteBuffer.allocate(1);
+        try {
+            for (int b = 0; b < 1000; b++) {
+                for (ChatConnection member : rooms.get("busy")) {
+                    member.sendFrame(frame);
+                }
+            }
+        } finally {
+            running.set(false);
+            for (Future<?> churner : churners) {
+                churner.get(5, TimeUnit.SECONDS);
+            }
+            executor.shutdownNow();
+        }
+        for (CountingConnection client : stable) {
+            assertEquals("Every stable member should get every broadcast", 1000, client.frames.get());
+        }
+        assertEquals("Only stable members should remain", 100, rooms.get("busy").size());
+        assertEquals("Churned rooms should be cleaned up", 1, rooms.sizes().size());
+    }
+
+    // A connection that keeps the lines sent to it, in order
+    private static class RecordingConnection extends CountingConnection {
+        final List<String> lines = Collections.synchronizedList(new ArrayList<String>());
+
+        RecordingConnection(String username, int shard) {
+            super(username, shard);
+        }
+
+        public void sendFrame(ByteBuffer frame) {
+            super.sendFrame(frame);
+            ByteBuffer copy = frame.duplicate();
+            copy.position(BinaryCodec.HEADER_LENGTH);
+            byte[] payload = new byte[copy.remaining()];
+            copy.get(payload);
+            lines.add(new String(payload, java.nio.charset.StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testMembersSplitByShard() {
+        // Test that each shard sees only its own members while the room as a whole sees them all
+        rooms = new ChatRooms(4);
+        for (int i = 0; i < 40; i++) {
+            rooms.join(new CountingConnection("User" + i, i % 4), "java");
+        }
+        ChatRooms.Room java = rooms.get("java");
+        assertEquals("Room should count every member", 40, java.size());
+        int iterated = 0;
+        for (ChatConnection member : java) {
+            iterated++;
+        }
+        assertEquals("Iterating the room should visit every member", 40, iterated);
+        for (int shard = 0; shard < 4; shard++) {
+            for (ChatConnection member : java.members(shard)) {
+                assertEquals("Shard should only hold its own members", shard, member.getShard());
+            }
+        }
+    }
+
+    @Test
+    public void testShardedPostKeepsOneOrder() throws Exception {
+        // Test that broadcasts posted by several threads reach every member once and in the same order
+        int shardCount = 4;
+        rooms = new ChatRooms(shardCount);
+        ShardThread[] shards = ShardThread.startAll(shardCount);
+        List<RecordingConnection> members = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            RecordingConnection member = new RecordingConnection("User" + i, i % shardCount);
+            members.add(member);
+            rooms.join(member, "java");
+        }
+        final ChatRooms.Room java = rooms.get("java");
+        final Executor[] mailboxes = shards;
+        final Object postLock = new Object();
+        ExecutorService senders = Executors.newFixedThreadPool(4);
+        List<Future<?>> sent = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            sent.add(senders.submit(new Callable<Void>() {
+                public Void call() {
+                    for (int i = 0; i < 500; i++) {
+                        synchronized (postLock) {
+                            java.post(mailboxes, new WireProtocol.Broadcast("T" + thread + " " + i + "\n"));
+                        }
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<?> future : sent) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        senders.shutdown();
+        awaitMailboxes(shards);
+        for (ShardThread shard : shards) {
+            shard.interrupt();
+        }
+
+        List<String> first = members.get(0).lines;
+        assertEquals("Every broadcast should arrive once", 2000, first.size());
+        for (RecordingConnection member : members) {
+            assertEquals("Every member should see the same order", first, member.lines);
+        }
+    }
+
+    @Test
+    public void testShardedFanOutThroughput() throws Exception {
+        // Test fan-out of a large room on one shard against one shard per core
+        int cores = Runtime.getRuntime().availableProcessors();
+        long single = timeShardedFanOut(1);
+        long sharded = timeShardedFanOut(Math.max(2, cores));
+
+        System.out.println("Sharded Fan-Out Test:");
+        System.out.println("Cores: " + cores);
+        System.out.println("1 shard: " + single + "ms, " + Math.max(2, cores) + " shards: " + sharded + "ms");
+
+        // Only a machine with several cores can show the gain
+        if (cores >= 4) {
+            assertTrue("Fan-out should get faster with more shards", sharded < single);
+        }
+    }
+
+    private long timeShardedFanOut(int shardCount) throws Exception {
+        ChatRooms sharded = new ChatRooms(shardCount);
+        ShardThread[] shards = ShardThread.startAll(shardCount);
+        List<CountingConnection> members = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            CountingConnection member = new CountingConnection("User" + i, i % shardCount);
+            members.add(member);
+            sharded.join(member, "busy");
+        }
+        ChatRooms.Room busy = sharded.get("busy");
+        int broadcasts = 200;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 3; run++) {
+            long start = System.nanoTime();
+            for (int b = 0; b < broadcasts; b++) {
+                busy.post(shards, new WireProtocol.Broadcast("10:00:00 Sender: hello\n"));
+            }
+            awaitMailboxes(shards);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        for (ShardThread shard : shards) {
+            shard.interrupt();
+        }
+        for (CountingConnection member : members) {
+            assertEquals("Every member should get every broadcast", 3 * broadcasts, member.frames.get());
+        }
+        return TimeUnit.NANOSECONDS.toMillis(best);
+    }
+
+    // Waits until every shard has run everything posted to it so far
+    private static void awaitMailboxes(Executor[] shards) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(shards.length);
+        for (Executor shard : shards) {
+            shard.execute(new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue("Shards should drain their mailboxes", done.await(30, TimeUnit.SECONDS));
+    }
+}
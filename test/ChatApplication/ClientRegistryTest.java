@@ -0,0 +1,265 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * JUnit test cases for ClientRegistry
+ * Tests registration, removal, username lookup and refusal of names in use,
+ * direct messages and iteration under churn
+ */
+public class ClientRegistryTest {
+
+    private ClientRegistry registry;
+
+    // A connection that only counts the frames sent to it
+    private static class CountingConnection implements ChatConnection {
+        final String username;
+        final AtomicInteger frames = new AtomicInteger();
+        volatile long clientId = -1;
+
+        CountingConnection(String username) {
+            this.username = username;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public long getClientId() {
+            return clientId;
+        }
+
+        public void setClientId(long id) {
+            clientId = id;
+        }
+
+        public WireProtocol getProtocol() {
+            return WireProtocol.BINARY;
+        }
+
+        public void sendFrame(ByteBuffer frame) {
+            frames.incrementAndGet();
+        }
+
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        public long getLagMillis() {
+            return 0;
+        }
+
+        public long getRetainedBytes() {
+            return 0;
+        }
+
+        public void close() {
+        }
+    }
+
+    @Before
+    public void setUp() {
+        registry = new ClientRegistry();
+    }
+
+    @Test
+    public void testRegisterAndUnregister() {
+        // Test that clients get distinct ids and can be removed once
+        CountingConnection user1 = new CountingConnection("User1");
+        CountingConnection user2 = new CountingConnection("User2");
+        long id1 = registry.register(user1);
+        long id2 = registry.register(user2);
+
+        assertNotEquals("Ids should be distinct", id1, id2);
+        assertEquals("Id should be given to the connection", id1, user1.getClientId());
+        assertSame("Lookup by id should work", user2, registry.get(id2));
+        assertEquals("Both clients should be registered", 2, registry.size());
+
+        assertTrue("First removal should succeed", registry.unregister(user1));
+        assertFalse("Second removal should report nothing removed", registry.unregister(user1));
+        assertNull("Removed client should not be found", registry.get(id1));
+        assertEquals("One client should remain", 1, registry.size());
+        assertEquals("Issued ids should count every join", 2, registry.issuedIds());
+    }
+
+    @Test
+    public void testFindByUsername() {
+        // Test username lookup, and that a name is free again once its client leaves
+        CountingConnection alice = new CountingConnection("Alice");
+        registry.register(alice);
+        assertSame("Client should be found by name", alice, registry.find("Alice"));
+        registry.unregister(alice);
+        assertNull("Name should be free once its client left", registry.find("Alice"));
+        assertNull("Unknown name should not be found", registry.find("Bob"));
+
+        CountingConnection again = new CountingConnection("Alice");
+        assertTrue("A freed name should be taken again", registry.register(again) >= 0);
+        assertSame(again, registry.find("Alice"));
+    }
+
+    @Test
+    public void testDuplicateUsernameIsRefused() {
+        // Test that a second client asking for a name in use is refused and direct messages still reach the first
+        CountingConnection first = new CountingConnection("Alice");
+        CountingConnection second = new CountingConnection("Alice");
+        registry.register(first);
+        assertEquals("A name in use should be refused", -1, registry.register(second));
+        assertEquals("The refused client should get no id", -1, second.getClientId());
+        assertEquals("Only the first client should be registered", 1, registry.size());
+        assertSame("The name should stay with the first client", first, registry.find("Alice"));
+
+        assertSame(first, registry.sendTo("Alice", "Hello\n"));
+        assertEquals("The direct message should reach the first client", 1, first.frames.get());
+        assertEquals(0, second.frames.get());
+
+        assertFalse("Removing the refused client should change nothing", registry.unregister(second));
+        assertSame(first, registry.find("Alice"));
+    }
+
+    @Test
+    public void testUnregisterBeforeRegisterIsHarmless() {
+        // Test that a client closing before it joined does not remove anyone else
+        CountingConnection joined = new CountingConnection("Joined");
+        registry.register(joined);
+        assertFalse("Unjoined client should not be removed", registry.unregister(new CountingConnection("Never")));
+        assertEquals("Joined client should remain", 1, registry.size());
+    }
+
+    @Test
+    public void testBroadcastDuringChurn() throws Exception {
+        // Test that iterating while clients join and leave never fails and reaches stable clients
+        List<CountingConnection> stable = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            CountingConnection client = new CountingConnection("Stable" + i);
+            stable.add(client);
+            registry.register(client);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        final AtomicBoolean running = new AtomicBoolean(true);
+        List<Future<?>> churners = new ArrayList<>();
+        for (int t = 0; t < 3; t++) {
+            final int thread = t;
+            churners.add(executor.submit(new Callable<Void>() {
+                public Void call() {
+                    for (int i = 0; running.get(); i++) {
+                        CountingConnection client = new CountingConnection("Churn" + thread + "-" + i);
+                        registry.register(client);
+                        registry.unregister(client);
+                    }
+                    return null;
+                }
+            }));
+        }
+        ByteBuffer frame = ByteBuffer.allocate(1);
+        int broadcasts = 1000;
+        try {
+            for (int b = 0; b < broadcasts; b++) {
+                for (ChatConnection client : registry) {
+                    client.sendFrame(frame);
+                }
+            }
+        } finally {
+            running.set(false);
+            for (Future<?> churner : churners) {
+                churner.get(5, TimeUnit.SECONDS);
+            }
+            executor.shutdownNow();
+        }
+        for (CountingConnection client : stable) {
+            assertEquals("Every stable client should get every broadcast", broadcasts, client.frames.get());
+        }
+        assertEquals("Only stable clients should remain", stable.size(), registry.size());
+    }
+
+    @Test
+    public void testBroadcastCostAfterMillionChurnedConnections() {
+        // Test that clients which have come and gone do not slow down later broadcasts
+        for (int i = 0; i < 100; i++) {
+            registry.register(new CountingConnection("Stable" + i));
+        }
+        ByteBuffer frame = ByteBuffer.allocate(1);
+        long before = timeBroadcasts(frame);
+        for (int i = 0; i < 1000000; i++) {
+            CountingConnection client = new CountingConnection("Churn" + i);
+            registry.register(client);
+            registry.unregister(client);
+        }
+        long after = timeBroadcasts(frame);
+
+        System.out.println("Client Registry Churn Test:");
+        System.out.println("Churned connections: 1000000");
+        System.out.println("Broadcast time before: " + TimeUnit.NANOSECONDS.toMicros(before) + "us, after: "
+                + TimeUnit.NANOSECONDS.toMicros(after) + "us");
+
+        assertEquals("Only stable clients should remain", 100, registry.size());
+        assertTrue("Broadcast cost should not grow with churn", after < before * 3 + TimeUnit.MILLISECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testDirectMessageReachesOnlyRecipient() {
+        // Test that a direct message is routed to the named client alone
+        List<CountingConnection> clients = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            CountingConnection client = new CountingConnection("User" + i);
+            clients.add(client);
+            registry.register(client);
+        }
+        assertSame("Recipient should be returned", clients.get(3), registry.sendTo("User3", "User1 -> User3: hi\n"));
+        for (int i = 0; i < clients.size(); i++) {
+            assertEquals("Only the recipient should get a frame", i == 3 ? 1 : 0, clients.get(i).frames.get());
+        }
+        assertNull("Unknown user should not be found", registry.sendTo("Nobody", "hi\n"));
+    }
+
+    @Test
+    public void testDirectMessageLatencyIndependentOfUserCount() {
+        // Test that routing a direct message costs the same with 100 or 100000 users online
+        long small = timeDirectMessages(100);
+        long large = timeDirectMessages(100000);
+
+        System.out.println("Direct Message Latency Test:");
+        System.out.println("100 users: " + small + "ns per message");
+        System.out.println("100000 users: " + large + "ns per message");
+
+        assertTrue("Direct message latency should not grow with user count", large < small * 3 + 1000);
+    }
+
+    private long timeDirectMessages(int users) {
+        ClientRegistry online = new ClientRegistry();
+        for (int i = 0; i < users; i++) {
+            online.register(new CountingConnection("User" + i));
+        }
+        Random random = new Random(42);
+        int messages = 200000;
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            for (int m = 0; m < messages; m++) {
+                online.sendTo("User" + random.nextInt(users), "10:00:00 Sender -> Someone: hello\n");
+            }
+            best = Math.min(best, (System.nanoTime() - start) / messages);
+        }
+        return best;
+    }
+
+    private long timeBroadcasts(ByteBuffer frame) {
+        // Warm up, then take the best of several runs
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 20; run++) {
+            long start = System.nanoTime();
+            for (int b = 0; b < 1000; b++) {
+                for (ChatConnection client : registry) {
+                    client.sendFrame(frame);
+                }
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
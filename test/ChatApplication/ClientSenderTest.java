@@ -0,0 +1,189 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * JUnit test cases for ClientSender
+ * Tests that frames go out in order, that a stalled socket never blocks the
+ * thread sending, the bound on waiting messages, closing, and the latency
+ * and pending figures shown in the Client window, and that nothing is
+ * queued behind the disconnect
+ */
+public class ClientSenderTest {
+
+    // A socket stream that can be made to stall, counting flushes
+    private static class StallingStream extends OutputStream {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        final AtomicInteger flushes = new AtomicInteger();
+        volatile CountDownLatch stall = new CountDownLatch(0);
+
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            try {
+                stall.await();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            synchronized (written) {
+                written.write(b, off, len);
+            }
+        }
+
+        public void flush() {
+            flushes.incrementAndGet();
+        }
+
+        DataInputStream frames() {
+            synchronized (written) {
+                return new DataInputStream(new ByteArrayInputStream(written.toByteArray()));
+            }
+        }
+    }
+
+    private static final ClientSender.Listener QUIET = new ClientSender.Listener() {
+        public void changed(ClientSender sender) {
+        }
+    };
+
+    private static void awaitSent(ClientSender sender, long messages) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.sent() < messages && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testFramesInOrder() throws Exception {
+        // Test that the username and chat lines reach the stream in the order they were queued
+        StallingStream socket = new StallingStream();
+        ClientSender sender = new ClientSender(new DataOutputStream(socket), BinaryCodec.VERSION, 100, QUIET);
+        assertTrue(sender.sendUsername("Alice"));
+        for (int i = 0; i < 50; i++) {
+            assertTrue(sender.send("Message " + i));
+        }
+        sender.close(5000);
+        assertFalse("Nothing should be queued after closing", sender.send("Too late"));
+
+        DataInputStream in = socket.frames();
+        assertEquals("Alice", BinaryCodec.readFrame(in));
+        for (int i = 0; i < 50; i++) {
+            assertEquals("Message " + i, ((MessageHandler) BinaryCodec.readFrame(in)).getMessage());
+        }
+        assertTrue("Disconnect should come last", ((MessageHandler) BinaryCodec.readFrame(in)).diconnectClient());
+        assertEquals("Everything should have been written", 0, in.available());
+        assertEquals(0, sender.pending());
+    }
+
+    @Test
+    public void testStalledSocketNeverBlocksSending() throws Exception {
+        // Test that sending returns at once while the socket is stuck, and the wait shows up as latency
+        StallingStream socket = new StallingStream();
+        socket.stall = new CountDownLatch(1);
+        final AtomicInteger updates = new AtomicInteger();
+        ClientSender sender = new ClientSender(new DataOutputStream(socket), BinaryCodec.VERSION, 1000,
+                new ClientSender.Listener() {
+                    public void changed(ClientSender s) {
+                        updates.incrementAndGet();
+                    }
+                });
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 500; i++) {
+            assertTrue("Sending should be accepted while the socket is stuck", sender.send("Message " + i));
+        }
+        long sendingMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertEquals("Every message should be pending", 500, sender.pending());
+        assertTrue("Status should show a pending count", Client.status(sender).contains("Sending 500"));
+        Thread.sleep(100);
+        socket.stall.countDown();
+        awaitSent(sender, 500);
+
+        System.out.println("Client Sender Test:");
+        System.out.println("500 sends with the socket stalled took " + sendingMillis + "ms; " + Client.status(sender).trim()
+                + "; " + socket.flushes.get() + " flushes");
+
+        assertEquals(500, sender.sent());
+        assertEquals(0, sender.pending());
+        assertTrue("Sending should not have waited for the socket", sendingMillis < 100);
+        assertTrue("The stall should show as latency", sender.maxLatencyNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue("Queued messages should be flushed together", socket.flushes.get() < 50);
+        assertTrue("The window should hear about changes", updates.get() >= 501);
+    }
+
+    @Test
+    public void testNothingQueuedBehindDisconnect() throws Exception {
+        // Test that lines sent while another thread closes are either written before the disconnect or refused
+        for (int run = 0; run < 200; run++) {
+            StallingStream socket = new StallingStream();
+            final ClientSender sender = new ClientSender(new DataOutputStream(socket), BinaryCodec.VERSION, 100000, QUIET);
+            final CountDownLatch started = new CountDownLatch(1);
+            final AtomicInteger accepted = new AtomicInteger();
+            Thread typing = new Thread(() -> {
+                started.countDown();
+                for (int i = 0; i < 2000; i++) {
+                    if (sender.send("Message " + i)) {
+                        accepted.incrementAndGet();
+                    }
+                }
+            });
+            typing.start();
+            started.await();
+            sender.close(5000);
+            typing.join();
+
+            assertEquals("Nothing should be left pending after closing", 0, sender.pending());
+            DataInputStream in = socket.frames();
+            for (int i = 0; i < accepted.get(); i++) {
+                assertEquals("Message " + i, ((MessageHandler) BinaryCodec.readFrame(in)).getMessage());
+            }
+            assertTrue("Disconnect should come last", ((MessageHandler) BinaryCodec.readFrame(in)).diconnectClient());
+            assertEquals("Nothing should follow the disconnect", 0, in.available());
+        }
+    }
+
+    @Test
+    public void testQueueIsBounded() throws Exception {
+        // Test that a full queue refuses messages instead of growing
+        StallingStream socket = new StallingStream();
+        socket.stall = new CountDownLatch(1);
+        ClientSender sender = new ClientSender(new DataOutputStream(socket), BinaryCodec.VERSION, 10, QUIET);
+        int accepted = 0;
+        for (int i = 0; i < 100; i++) {
+            if (sender.send("Message " + i)) {
+                accepted++;
+            }
+        }
+        assertEquals("Only the capacity should be accepted, counting what is being written", 10, accepted);
+        socket.stall.countDown();
+        awaitSent(sender, accepted);
+        assertTrue("Room should free up once sent", sender.send("After"));
+    }
+
+    @Test
+    public void testFailedSocketIsReported() throws Exception {
+        // Test that a broken connection stops sending and is shown instead of latencies
+        OutputStream broken = new OutputStream() {
+            public void write(int b) throws IOException {
+                throw new IOException("Connection reset");
+            }
+        };
+        ClientSender sender = new ClientSender(new DataOutputStream(broken), BinaryCodec.VERSION, 10, QUIET);
+        sender.send("Lost");
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.failure() == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertNotNull("The failure should be kept", sender.failure());
+        assertFalse("Nothing more should be accepted", sender.send("Again"));
+        assertEquals(0, sender.pending());
+        assertEquals(" Not connected: Connection reset", Client.status(sender));
+    }
+}
@@ -167,10 +167,10 @@ public class ClientTest {
             java.lang.reflect.Field chatLogAreaField = Client.class.getDeclaredField("chatLogArea");
             chatLogAreaField.setAccessible(true);
             
-            JTextArea chatLogArea = (JTextArea) chatLogAreaField.get(client);
+            LogView chatLogArea = (LogView) chatLogAreaField.get(client);
             
             assertNotNull("Chat log area should not be null", chatLogArea);
-            assertTrue("Chat log area should be instance of JTextArea", chatLogArea instanceof JTextArea);
+            assertTrue("Chat log area should be a bounded log view", chatLogArea.capacity() > 0);
             assertFalse("Chat log area should not be editable", chatLogArea.isEditable());
             
         } catch (Exception e) {
@@ -415,7 +415,7 @@ public class ClientTest {
             java.lang.reflect.Field chatLogAreaField = Client.class.getDeclaredField("chatLogArea");
             chatLogAreaField.setAccessible(true);
             
-            JTextArea chatLogArea = (JTextArea) chatLogAreaField.get(client);
+            LogView chatLogArea = (LogView) chatLogAreaField.get(client);
             
             // Test appending text
             chatLogArea.append("Test chat message\n");
@@ -0,0 +1,213 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.After;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * JUnit test cases for ClusterNode
+ * Runs several nodes in process on loopback and tests membership, relaying,
+ * dedup of relayed lines, per-origin ordering, gaps, resending over a
+ * link that came back, and forgetting nodes that are gone
+ */
+public class ClusterNodeTest {
+
+    private final List<ClusterNode> nodes = new ArrayList<>();
+
+    // Records every line relayed to a node
+    private static class RecordingListener implements ClusterNode.Listener {
+        final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+
+        public void relayed(String origin, String room, String line) {
+            lines.add(origin + " " + room + " " + line);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for (ClusterNode node : nodes) {
+            node.close();
+        }
+    }
+
+    private ClusterNode start(String nodeId, RecordingListener listener, String... seeds) throws IOException {
+        ClusterNode node = new ClusterNode(nodeId, listener);
+        node.start("127.0.0.1", 0, Arrays.asList(seeds));
+        nodes.add(node);
+        return node;
+    }
+
+    private static void awaitPeers(ClusterNode node, String... peers) throws InterruptedException {
+        Set<String> expected = new TreeSet<>(Arrays.asList(peers));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!node.peers().equals(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals("Node " + node.getNodeId() + " should be linked to its peers", expected, node.peers());
+    }
+
+    @Test
+    public void testMembershipLearnedFromSeed() throws Exception {
+        // Test that nodes seeded only with the first node find each other
+        ClusterNode a = start("A", new RecordingListener());
+        ClusterNode b = start("B", new RecordingListener(), a.getAddress());
+        ClusterNode c = start("C", new RecordingListener(), a.getAddress());
+
+        awaitPeers(a, "B", "C");
+        awaitPeers(b, "A", "C");
+        awaitPeers(c, "A", "B");
+    }
+
+    @Test
+    public void testRelayReachesEveryPeerOnceInOrder() throws Exception {
+        // Test that every line from one node reaches each other node once, in the order sent
+        RecordingListener atA = new RecordingListener();
+        RecordingListener atB = new RecordingListener();
+        RecordingListener atC = new RecordingListener();
+        ClusterNode a = start("A", atA);
+        ClusterNode b = start("B", atB, a.getAddress());
+        ClusterNode c = start("C", atC, a.getAddress(), b.getAddress());
+        awaitPeers(a, "B", "C");
+        awaitPeers(b, "A", "C");
+        awaitPeers(c, "A", "B");
+
+        int messages = 10000;
+        for (int i = 0; i < messages; i++) {
+            a.relay("lobby", "line " + i + "\n");
+        }
+        for (RecordingListener peer : Arrays.asList(atB, atC)) {
+            for (int i = 0; i < messages; i++) {
+                assertEquals("Lines should arrive once and in order", "A lobby line " + i + "\n", peer.lines.poll(10, TimeUnit.SECONDS));
+            }
+        }
+        Thread.sleep(200);
+        assertTrue("No line should arrive twice", atB.lines.isEmpty() && atC.lines.isEmpty());
+        assertTrue("The sender should not get its own lines back", atA.lines.isEmpty());
+    }
+
+    @Test
+    public void testDuplicateRelayDropped() throws Exception {
+        // Test that a line with a sequence number already seen from its origin is dropped
+        RecordingListener atA = new RecordingListener();
+        ClusterNode a = start("A", atA);
+        String address = a.getAddress();
+        try (Socket socket = new Socket("127.0.0.1", Integer.parseInt(address.substring(address.lastIndexOf(':') + 1)))) {
+            OutputStream out = socket.getOutputStream();
+            write(out, ClusterNode.encode(ClusterNode.TYPE_HELLO, "X", "127.0.0.1:1"));
+            write(out, ClusterNode.encode(ClusterNode.TYPE_RELAY, "X", 7L, 1L, "java", "first\n"));
+            write(out, ClusterNode.encode(ClusterNode.TYPE_RELAY, "X", 7L, 1L, "java", "first\n"));
+            write(out, ClusterNode.encode(ClusterNode.TYPE_RELAY, "X", 7L, 2L, "java", "second\n"));
+            write(out, ClusterNode.encode(ClusterNode.TYPE_RELAY, "X", 7L, 1L, "java", "stale\n"));
+            // A restarted origin starts counting again
+            write(out, ClusterNode.encode(ClusterNode.TYPE_RELAY, "X", 8L, 1L, "java", "restarted\n"));
+
+            assertEquals("X java first\n", atA.lines.poll(5, TimeUnit.SECONDS));
+            assertEquals("X java second\n", atA.lines.poll(5, TimeUnit.SECONDS));
+            assertEquals("X java restarted\n", atA.lines.poll(5, TimeUnit.SECONDS));
+            assertNull("Duplicates should not be delivered", atA.lines.poll(200, TimeUnit.MILLISECONDS));
+            assertEquals("Both repeats should be counted", 2, a.duplicateCount());
+        }
+    }
+
+    @Test
+    public void testGapIsCounted() throws Exception {
+        // Test that lines missing from an origin's sequence are counted, while the lines around them are delivered
+        RecordingListener atA = new RecordingListener();
+        ClusterNode a = start("A", atA);
+        String address = a.getAddress();
+        try (Socket socket = new Socket("127.0.0.1", Integer.parseInt(address.substring(address.lastIndexOf(':') + 1)))) {
+            OutputStream out = socket.getOutputStream();
+            write(out, ClusterNode.encode(ClusterNode.TYPE_HELLO, "X", "127.0.0.1:1"));
+            write(out, ClusterNode.encode(ClusterNode.TYPE_RELAY, "X", 7L, 1L, "java", "first\n"));
+            write(out, ClusterNode.encode(ClusterNode.TYPE_RELAY, "X", 7L, 4L, "java", "fourth\n"));
+
+            assertEquals("X java first\n", atA.lines.poll(5, TimeUnit.SECONDS));
+            assertEquals("X java fourth\n", atA.lines.poll(5, TimeUnit.SECONDS));
+            assertEquals("The two lines in between should be counted as lost", 2, a.gapCount());
+        }
+    }
+
+    @Test
+    public void testLinesRelayedWhileLinkDownAreResent() throws Exception {
+        // Test that lines relayed while a link is down reach the peer once it is back, once each and in order
+        RecordingListener atB = new RecordingListener();
+        ClusterNode a = start("A", new RecordingListener());
+        ClusterNode b = start("B", atB, a.getAddress());
+        awaitPeers(a, "B");
+        awaitPeers(b, "A");
+        a.relay("lobby", "before\n");
+        assertEquals("A lobby before\n", atB.lines.poll(5, TimeUnit.SECONDS));
+
+        a.dropLinks();
+        for (int i = 0; i < 100; i++) {
+            a.relay("lobby", "while down " + i + "\n");
+        }
+        awaitPeers(a, "B");
+        a.relay("lobby", "after\n");
+        for (int i = 0; i < 100; i++) {
+            assertEquals("Missed lines should be resent in order", "A lobby while down " + i + "\n", atB.lines.poll(10, TimeUnit.SECONDS));
+        }
+        assertEquals("A lobby after\n", atB.lines.poll(5, TimeUnit.SECONDS));
+        assertNull("No line should arrive twice", atB.lines.poll(200, TimeUnit.MILLISECONDS));
+        assertEquals("Nothing should be lost", 0, b.gapCount());
+    }
+
+    @Test
+    public void testGoneNodeIsForgotten() throws Exception {
+        // Test that an address failing every dial is dropped, and not passed on to peers
+        String gone;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            gone = "127.0.0.1:" + socket.getLocalPort();
+        }
+        ClusterNode a = new ClusterNode("A", new RecordingListener(), ClusterNode.DEFAULT_RESEND_LINES, 2);
+        a.start("127.0.0.1", 0, Arrays.asList(gone));
+        nodes.add(a);
+        assertTrue("A seed should be known at first", a.knownAddresses().contains(gone));
+        ClusterNode b = start("B", new RecordingListener(), a.getAddress());
+        awaitPeers(a, "B");
+        awaitPeers(b, "A");
+
+        long deadline = System.currentTimeMillis() + 15000;
+        while (a.knownAddresses().contains(gone) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse("An address that keeps failing should be forgotten", a.knownAddresses().contains(gone));
+        assertFalse("Only linked nodes should be passed on", b.knownAddresses().contains(gone));
+        assertEquals("Live peers should stay known", Collections.singleton(b.getAddress()), a.knownAddresses());
+    }
+
+    @Test
+    public void testRestartedPeerRejoins() throws Exception {
+        // Test that a node coming back on a new port is linked again and its new lines are delivered
+        RecordingListener atA = new RecordingListener();
+        ClusterNode a = start("A", atA);
+        ClusterNode b = start("B", new RecordingListener(), a.getAddress());
+        awaitPeers(a, "B");
+        b.relay("lobby", "before\n");
+        assertEquals("B lobby before\n", atA.lines.poll(5, TimeUnit.SECONDS));
+
+        b.close();
+        awaitPeers(a);
+        RecordingListener atRestarted = new RecordingListener();
+        ClusterNode restarted = start("B", atRestarted, a.getAddress());
+        awaitPeers(a, "B");
+        // lines a node relays before its first link to a peer are not resent to it
+        awaitPeers(restarted, "A");
+        restarted.relay("lobby", "after\n");
+        assertEquals("Restarted node should not be taken for a duplicate", "B lobby after\n", atA.lines.poll(5, TimeUnit.SECONDS));
+        a.relay("lobby", "welcome back\n");
+        assertEquals("A lobby welcome back\n", atRestarted.lines.poll(5, TimeUnit.SECONDS));
+    }
+
+    private static void write(OutputStream out, ByteBuffer frame) throws IOException {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        out.write(bytes);
+        out.flush();
+    }
+}
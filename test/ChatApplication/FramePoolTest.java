@@ -0,0 +1,128 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * JUnit test cases for FramePool
+ * Tests taking and giving back slots, telling pooled frames from others,
+ * and that queues and write batches give back every frame they are handed
+ */
+public class FramePoolTest {
+
+    private static ByteBuffer frame(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = BinaryCodec.pooledChat(bytes, bytes.length);
+        assertNotNull("A short line should get a pooled frame", frame);
+        return frame;
+    }
+
+    @Test
+    public void testSlotsTakenAndGivenBack() {
+        // Test that slots run out, are counted as misses, and come back once released as often as retained
+        FramePool pool = new FramePool(4, 64);
+        int[] slots = new int[4];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = pool.acquire(10);
+            assertTrue("There should be a free slot", slots[i] >= 0);
+        }
+        assertEquals(4, pool.inUse());
+        assertEquals("No slot should be left", -1, pool.acquire(10));
+        assertEquals("Too long for a slot", -1, new FramePool(4, 64).acquire(65));
+        assertEquals(1, pool.misses());
+
+        pool.writer(slots[0]).put("Hello".getBytes(StandardCharsets.UTF_8));
+        ByteBuffer frame = pool.frame(slots[0], 5);
+        assertTrue(frame.isDirect());
+        assertTrue("Recipients should not be able to write to a shared frame", frame.isReadOnly());
+        assertEquals(slots[0], pool.slotOf(frame));
+        assertEquals("Other buffers are not pooled", -1, pool.slotOf(ByteBuffer.allocateDirect(64).asReadOnlyBuffer()));
+        assertEquals(-1, pool.slotOf(frame.duplicate()));
+
+        ByteBuffer cursor = pool.cursor(slots[0], frame, null);
+        byte[] read = new byte[cursor.remaining()];
+        cursor.get(read);
+        assertEquals("Hello", new String(read, StandardCharsets.UTF_8));
+        assertEquals("Reading through a cursor should not move the frame", 0, frame.position());
+
+        pool.retain(frame);
+        pool.release(frame);
+        assertEquals(4, pool.inUse());
+        pool.release(frame);
+        assertEquals(3, pool.inUse());
+        assertTrue("A released slot should be taken again", pool.acquire(10) >= 0);
+        try {
+            pool.release(slots[1]);
+            pool.release(slots[1]);
+            fail("Releasing more often than retained should fail");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testQueueGivesBackDroppedFrames() {
+        // Test that frames a queue drops, refuses or still holds when closed go back to the pool
+        int inUse = FramePool.SHARED.inUse();
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DROP_OLDEST, 2, 5000);
+        for (int i = 0; i < 5; i++) {
+            queue.offer(frame("Line " + i));
+        }
+        assertEquals("Only the frames still queued should be held", inUse + 2, FramePool.SHARED.inUse());
+        queue.close();
+        queue.offer(frame("After close"));
+        assertEquals(inUse, FramePool.SHARED.inUse());
+
+        OutboundQueue coalescing = new OutboundQueue(OutboundQueue.Policy.COALESCE, 2, 5000);
+        coalescing.setProtocol(WireProtocol.BINARY);
+        for (int i = 0; i < 5; i++) {
+            coalescing.offer(frame("Line " + i));
+        }
+        coalescing.close();
+        assertEquals("Merged frames should go back", inUse, FramePool.SHARED.inUse());
+
+        OutboundQueue disconnecting = new OutboundQueue(OutboundQueue.Policy.DISCONNECT, 1, 5000);
+        assertTrue(disconnecting.offer(frame("First")));
+        assertFalse(disconnecting.offer(frame("Refused")));
+        disconnecting.close();
+        assertEquals("A refused frame should go back", inUse, FramePool.SHARED.inUse());
+    }
+
+    @Test
+    public void testBatchGivesBackWrittenFrames() throws Exception {
+        // Test that a write batch gives frames back once written, or when cleared unwritten
+        int inUse = FramePool.SHARED.inUse();
+        Pipe pipe = Pipe.open();
+        try {
+            WriteBatch batch = new WriteBatch(8, 64 * 1024, 0, new WriteBatch.Stats());
+            for (int i = 0; i < 3; i++) {
+                batch.add(frame("Line " + i), null);
+            }
+            assertEquals(inUse + 3, FramePool.SHARED.inUse());
+            assertTrue(batch.write(pipe.sink()));
+            assertEquals("Written frames should go back", inUse, FramePool.SHARED.inUse());
+
+            ByteBuffer received = ByteBuffer.allocate(1024);
+            pipe.source().read(received);
+            received.flip();
+            for (int i = 0; i < 3; i++) {
+                byte[] payload = new byte[received.getInt()];
+                assertEquals(BinaryCodec.TYPE_CHAT, received.get());
+                received.get(payload);
+                assertEquals("Pooled frames should be written as encoded", "Line " + i,
+                        new String(payload, StandardCharsets.UTF_8));
+            }
+            assertFalse(received.hasRemaining());
+
+            batch.add(frame("Never written"), null);
+            batch.clear();
+            assertTrue(batch.isEmpty());
+            assertEquals("Cleared frames should go back", inUse, FramePool.SHARED.inUse());
+        } finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * JUnit test cases for HistoryRing
+ * Tests replay by room, overwriting of old lines, reading only lines added
+ * since a point, readers copying while broadcasts keep arriving, and that a
+ * server's busy rooms do not push the lobby's lines out
+ */
+public class HistoryRingTest {
+
+    @Test
+    public void testLinesOfOneRoomInOrder() {
+        // Test that only the asked-for room's lines come back, oldest first
+        HistoryRing history = new HistoryRing(100, 64 * 1024);
+        for (int i = 0; i < 30; i++) {
+            history.add(i % 3 == 0 ? "java" : ChatRooms.LOBBY, "Line " + i + "\n");
+        }
+        List<String> java = history.lines("java", 0, history.count());
+        assertEquals("Every java line should be kept", 10, java.size());
+        for (int i = 0; i < java.size(); i++) {
+            assertEquals("Lines should be oldest first", "Line " + (i * 3) + "\n", java.get(i));
+        }
+        assertEquals("Lobby should have the rest", 20, history.lines(ChatRooms.LOBBY, 0, history.count()).size());
+        assertTrue("Unknown room should have no history", history.lines("nobody", 0, history.count()).isEmpty());
+    }
+
+    @Test
+    public void testOldLinesAreOverwritten() {
+        // Test that the ring keeps the newest lines within both its line and byte limits
+        HistoryRing byLines = new HistoryRing(10, 64 * 1024);
+        for (int i = 0; i < 25; i++) {
+            byLines.add(ChatRooms.LOBBY, "Line " + i + "\n");
+        }
+        List<String> kept = byLines.lines(ChatRooms.LOBBY, 0, byLines.count());
+        assertEquals("Only the line limit should be kept", 10, kept.size());
+        assertEquals("Line 15\n", kept.get(0));
+        assertEquals("Line 24\n", kept.get(9));
+
+        HistoryRing byBytes = new HistoryRing(1000, 200);
+        for (int i = 0; i < 100; i++) {
+            byBytes.add(ChatRooms.LOBBY, String.format("Line %03d\n", i));
+        }
+        kept = byBytes.lines(ChatRooms.LOBBY, 0, byBytes.count());
+        assertTrue("Only what fits in the buffer should be kept", kept.size() > 5 && kept.size() < 15);
+        assertEquals("Newest line should be kept", "Line 099\n", kept.get(kept.size() - 1));
+
+        byBytes.add(ChatRooms.LOBBY, new String(new char[300]).replace('\0', 'x'));
+        assertEquals("A line larger than the buffer should count but not be kept", 101, byBytes.count());
+        assertEquals("Line 099\n", byBytes.lines(ChatRooms.LOBBY, 0, byBytes.count()).get(kept.size() - 1));
+    }
+
+    @Test
+    public void testRangeReadsOnlyNewerLines() {
+        // Test reading just the lines added after a point, as a joining client does under the broadcast lock
+        HistoryRing history = new HistoryRing(100, 64 * 1024);
+        for (int i = 0; i < 10; i++) {
+            history.add(ChatRooms.LOBBY, "Before " + i + "\n");
+        }
+        long upTo = history.count();
+        history.add(ChatRooms.LOBBY, "After 0\n");
+        history.add("java", "Elsewhere\n");
+        history.add(ChatRooms.LOBBY, "After 1\n");
+
+        assertEquals(Arrays.asList("After 0\n", "After 1\n"), history.lines(ChatRooms.LOBBY, upTo, history.count()));
+        assertEquals("Backlog should stop at the point", 10, history.lines(ChatRooms.LOBBY, 0, upTo).size());
+    }
+
+    @Test
+    public void testReadersCopyWhileBroadcasting() throws Exception {
+        // Test that many joiners reading at once always get an unbroken run of the newest lines and barely slow the writer
+        final HistoryRing history = new HistoryRing(100, 16 * 1024);
+        long alone = timeWrites(history, 200000);
+
+        final AtomicBoolean running = new AtomicBoolean(true);
+        final AtomicLong reads = new AtomicLong();
+        ExecutorService joiners = Executors.newFixedThreadPool(8);
+        List<Future<?>> readers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            readers.add(joiners.submit(new Callable<Void>() {
+                public Void call() {
+                    while (running.get()) {
+                        List<String> lines = history.lines(ChatRooms.LOBBY, 0, history.count());
+                        int previous = -1;
+                        for (String line : lines) {
+                            int number = Integer.parseInt(line.trim());
+                            assertTrue("Lines should be consecutive", previous < 0 || number == previous + 1);
+                            previous = number;
+                        }
+                        reads.incrementAndGet();
+                    }
+                    return null;
+                }
+            }));
+        }
+        long contended;
+        try {
+            contended = timeWrites(history, 200000);
+        } finally {
+            running.set(false);
+            for (Future<?> reader : readers) {
+                reader.get(10, TimeUnit.SECONDS);
+            }
+            joiners.shutdownNow();
+        }
+
+        System.out.println("History Ring Contention Test:");
+        System.out.println("200000 lines alone: " + alone + "ms, with 8 readers: " + contended + "ms");
+        System.out.println("Reads: " + reads.get() + ", fell back to the read lock: " + history.fallbacks());
+
+        assertTrue("Readers should get copies", reads.get() > 0);
+    }
+
+    private static long timeWrites(HistoryRing history, int lines) {
+        long start = System.nanoTime();
+        long base = history.count();
+        for (int i = 0; i < lines; i++) {
+            history.add(ChatRooms.LOBBY, (base + i) + "\n");
+        }
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // Collects everything one client is sent, and its own lines separately
+    private static class Recorder implements ChatClient.Listener {
+        final StringBuffer text = new StringBuffer();
+        final Semaphore own = new Semaphore(0);
+        final String prefix;
+
+        Recorder(String username) {
+            prefix = username + ": ";
+        }
+
+        public void received(ChatClient client, String message) {
+            text.append(message);
+            if (message.contains(prefix)) {
+                own.release();
+            }
+        }
+
+        public void closed(ChatClient client, IOException cause) {
+        }
+    }
+
+    @Test
+    public void testOtherRoomsDoNotShrinkLobbyReplay() throws Exception {
+        // Test that a flood in another room leaves the lobby lines a joining client is sent
+        int port = freePort();
+        System.setProperty(HistoryRing.LINES_PROPERTY, "10");
+        ChatClient.Group group;
+        try {
+            LoadGenerator.startServer(port);
+            group = new ChatClient.Group(1);
+        } finally {
+            System.clearProperty(HistoryRing.LINES_PROPERTY);
+        }
+        try {
+            Recorder alice = new Recorder("Alice");
+            ChatClient aliceClient = group.connect("localhost", port, "Alice", alice);
+            for (int i = 0; i < 5; i++) {
+                assertTrue(aliceClient.send("lobby " + i));
+            }
+            assertTrue("Alice should get her lines", alice.own.tryAcquire(5, 10, TimeUnit.SECONDS));
+
+            Recorder bob = new Recorder("Bob");
+            ChatClient bobClient = group.connect("localhost", port, "Bob", bob);
+            assertTrue(bobClient.send("/join busy"));
+            for (int i = 0; i < 50; i++) {
+                assertTrue(bobClient.send("busy " + i));
+            }
+            assertTrue("Bob should get his lines", bob.own.tryAcquire(50, 10, TimeUnit.SECONDS));
+
+            Recorder carol = new Recorder("Carol");
+            group.connect("localhost", port, "Carol", carol);
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (!carol.text.toString().contains("Alice: lobby 4") && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            String replay = carol.text.toString();
+            for (int i = 0; i < 5; i++) {
+                assertTrue("Every lobby line should be replayed, got " + replay, replay.contains("Alice: lobby " + i + "\n"));
+            }
+            assertFalse("Lines of other rooms should not be replayed", replay.contains("busy 0"));
+        } finally {
+            group.close();
+        }
+    }
+}
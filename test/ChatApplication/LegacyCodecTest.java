@@ -0,0 +1,297 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JUnit test cases for LegacyCodec
+ * Tests that the hand-rolled codec interoperates with real object streams
+ */
+public class LegacyCodecTest {
+
+    private LegacyCodec.Decoder decoder;
+
+    @Before
+    public void setUp() {
+        decoder = new LegacyCodec.Decoder();
+    }
+
+    private static byte[] clientStream(Object... objects) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        for (Object object : objects) {
+            if (object == null) {
+                oos.reset();
+            } else {
+                oos.writeObject(object);
+            }
+        }
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    @Test
+    public void testDecodeUsernameAndMessages() throws IOException {
+        // Test decoding what Client writes: a username followed by messages
+        byte[] bytes = clientStream("TestUser", new MessageHandler("Hello"), new MessageHandler("World"), new MessageHandler());
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+
+        assertEquals("First object should be the username", "TestUser", decoder.decode(in));
+        MessageHandler first = (MessageHandler) decoder.decode(in);
+        assertEquals("First message should match", "Hello", first.getMessage());
+        assertFalse("First message should not be disconnect", first.diconnectClient());
+        MessageHandler second = (MessageHandler) decoder.decode(in);
+        assertEquals("Second message should match", "World", second.getMessage());
+        MessageHandler disconnect = (MessageHandler) decoder.decode(in);
+        assertTrue("Last message should be disconnect", disconnect.diconnectClient());
+        assertNull("Disconnect message should have null text", disconnect.getMessage());
+        assertNull("Nothing should be left to decode", decoder.decode(in));
+    }
+
+    @Test
+    public void testDecodeByteAtATime() throws IOException {
+        // Test that partial frames are retried without losing state
+        String special = "Special chars: !@#$%^&*() \u00e9\u4e2d\u0000";
+        byte[] bytes = clientStream("User1", new MessageHandler(special), new MessageHandler("Next"));
+        ByteBuffer in = ByteBuffer.allocate(bytes.length);
+        in.flip();
+        java.util.List<Object> decoded = new java.util.ArrayList<>();
+        for (byte b : bytes) {
+            in.compact();
+            in.put(b);
+            in.flip();
+            Object frame;
+            while ((frame = decoder.decode(in)) != null) {
+                decoded.add(frame);
+            }
+        }
+
+        assertEquals("Three objects should be decoded", 3, decoded.size());
+        assertEquals("Username should match", "User1", decoded.get(0));
+        assertEquals("Special characters should survive", special, ((MessageHandler) decoded.get(1)).getMessage());
+        assertEquals("Second message should match", "Next", ((MessageHandler) decoded.get(2)).getMessage());
+    }
+
+    @Test
+    public void testDecodeSharedStringReference() throws IOException {
+        // Test that back-references to an already written String are resolved
+        String shared = "repeated";
+        byte[] bytes = clientStream("User", new MessageHandler(shared), new MessageHandler(shared));
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+
+        decoder.decode(in);
+        assertEquals("First message should match", shared, ((MessageHandler) decoder.decode(in)).getMessage());
+        assertEquals("Referenced message should match", shared, ((MessageHandler) decoder.decode(in)).getMessage());
+    }
+
+    @Test
+    public void testDecodeAfterReset() throws IOException {
+        // Test that TC_RESET clears the handle table and decoding continues
+        byte[] bytes = clientStream("User", new MessageHandler("Before"), null, new MessageHandler("After"));
+        ByteBuffer in = ByteBuffer.wrap(bytes);
+
+        decoder.decode(in);
+        decoder.decode(in);
+        assertTrue("Handles should be retained before reset", decoder.handleCount() > 0);
+        assertEquals("Message after reset should match", "After", ((MessageHandler) decoder.decode(in)).getMessage());
+    }
+
+    @Test
+    public void testRequiredBytesForLargeMessage() throws IOException {
+        // Test that a truncated large message reports how much must be buffered
+        StringBuilder large = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            large.append("This is a large message part ").append(i).append(". ");
+        }
+        byte[] bytes = clientStream("User", new MessageHandler(large.toString()));
+        ByteBuffer in = ByteBuffer.wrap(bytes, 0, bytes.length - 10);
+
+        decoder.decode(in);
+        assertNull("Truncated message should not decode", decoder.decode(in));
+        assertEquals("Required bytes should cover the whole message", in.remaining() + 10, decoder.required());
+    }
+
+    @Test
+    public void testEncodedStringsReadByObjectInputStream() throws IOException, ClassNotFoundException {
+        // Test that server-encoded broadcasts are readable by Client's ObjectInputStream
+        StringBuilder huge = new StringBuilder();
+        for (int i = 0; i < 70000; i++) {
+            huge.append('x');
+        }
+        String[] messages = { "10:00:00 User: Hello\n", "", "\u00e9\u4e2d\u0000", huge.toString() };
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(toArray(LegacyCodec.streamHeader()));
+        for (String message : messages) {
+            baos.write(toArray(LegacyCodec.encodeString(message)));
+        }
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        for (String message : messages) {
+            assertEquals("Decoded broadcast should match", message, ois.readObject());
+        }
+    }
+
+    @Test(expected = InvalidClassException.class)
+    public void testRejectsUnexpectedClasses() throws IOException {
+        // Test that arbitrary serialized classes are refused
+        decoder.decode(ByteBuffer.wrap(clientStream(new java.util.Date())));
+    }
+
+    @Test
+    public void testOversizedLongStringIsRejected() throws IOException {
+        // Test that a peer cannot make the server buffer a frame larger than a binary payload
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeShort(LegacyCodec.STREAM_MAGIC);
+        out.writeShort(LegacyCodec.STREAM_VERSION);
+        out.writeByte(LegacyCodec.TC_LONGSTRING);
+        out.writeLong(Integer.MAX_VALUE - 16);
+        try {
+            decoder.decode(ByteBuffer.wrap(baos.toByteArray()));
+            fail("A string longer than a frame may be should be refused");
+        } catch (StreamCorruptedException expected) {
+        }
+        assertTrue("Nothing that large should be asked for", decoder.required() <= LegacyCodec.MAX_FRAME_LENGTH);
+    }
+
+    @Test(expected = StreamCorruptedException.class)
+    public void testFieldOfWrongTypeIsRejected() throws IOException {
+        // Test that a class descriptor declaring the message field as an int is refused, not cast
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        out.writeShort(LegacyCodec.STREAM_MAGIC);
+        out.writeShort(LegacyCodec.STREAM_VERSION);
+        out.writeByte(LegacyCodec.TC_OBJECT);
+        out.writeByte(LegacyCodec.TC_CLASSDESC);
+        out.writeUTF(LegacyCodec.MESSAGE_CLASS);
+        out.writeLong(1);
+        out.writeByte(LegacyCodec.SC_SERIALIZABLE);
+        out.writeShort(1);
+        out.writeByte('I');
+        out.writeUTF("message");
+        out.writeByte(LegacyCodec.TC_ENDBLOCKDATA);
+        out.writeByte(LegacyCodec.TC_NULL);
+        out.writeInt(42);
+        decoder.decode(ByteBuffer.wrap(baos.toByteArray()));
+    }
+
+    @Test
+    public void testBackReferenceOutsideWindowIsRejected() throws IOException {
+        // Test that only a window of recent handles is kept for back-references
+        String shared = "repeated";
+        Object[] objects = new Object[13];
+        objects[0] = "User";
+        objects[1] = new MessageHandler(shared);
+        for (int i = 2; i < 12; i++) {
+            objects[i] = new MessageHandler("Message " + i);
+        }
+        objects[12] = new MessageHandler(shared);
+        ByteBuffer in = ByteBuffer.wrap(clientStream(objects));
+        LegacyCodec.Decoder windowed = new LegacyCodec.Decoder(4);
+        for (int i = 0; i < 12; i++) {
+            assertNotNull("Messages before the stale reference should decode", windowed.decode(in));
+        }
+        try {
+            windowed.decode(in);
+            fail("A reference to an evicted handle should be refused");
+        } catch (StreamCorruptedException expected) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testResetsAreReadByObjectInputStream() throws IOException, ClassNotFoundException {
+        // Test that resets between broadcasts are invisible to Client's ObjectInputStream
+        LegacyCodec.ResetTracker resets = new LegacyCodec.ResetTracker(100);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        baos.write(toArray(LegacyCodec.streamHeader()));
+        int resetCount = 0;
+        for (int i = 0; i < 50; i++) {
+            ByteBuffer frame = LegacyCodec.encodeString("10:00:00 User: Message " + i + "\n");
+            int length = frame.remaining();
+            baos.write(toArray(frame));
+            ByteBuffer reset = resets.written(length);
+            if (reset != null) {
+                baos.write(toArray(reset));
+                resetCount++;
+            }
+            assertTrue("Retained bytes should stay under the limit", resets.retainedBytes() < 100);
+        }
+        assertTrue("Resets should have been sent", resetCount > 10);
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        for (int i = 0; i < 50; i++) {
+            assertEquals("Broadcast should survive resets", "10:00:00 User: Message " + i + "\n", ois.readObject());
+        }
+    }
+
+    @Test
+    public void testSoakNeverResettingClientKeepsHeapFlat() throws IOException {
+        // Test that a client which never resets its stream cannot grow the server's heap
+        int messages = Integer.getInteger("chat.soak.messages", 10000000);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject("SoakUser");
+        oos.writeObject(new MessageHandler(new String("Soak message")));
+        oos.flush();
+        int templateStart = baos.size();
+        oos.writeObject(new MessageHandler(new String("Soak message")));
+        oos.flush();
+        byte[] prefix = baos.toByteArray();
+        // A later message from the same stream: a new object and String each time, never a reset
+        byte[] template = java.util.Arrays.copyOfRange(prefix, templateStart, prefix.length);
+
+        ByteBuffer in = ByteBuffer.allocate(template.length * 1000);
+        in.put(prefix);
+        in.flip();
+        int decoded = 0;
+        long baselineHeap = 0;
+        long maxRetained = 0;
+        long start = System.nanoTime();
+        while (decoded < messages) {
+            Object frame;
+            while ((frame = decoder.decode(in)) != null) {
+                decoded++;
+            }
+            in.clear();
+            for (int i = 0; i < 1000; i++) {
+                in.put(template);
+            }
+            in.flip();
+            maxRetained = Math.max(maxRetained, decoder.retainedBytes());
+            if (decoded == 100000) {
+                baselineHeap = usedHeap();
+            }
+        }
+        long heapGrowth = usedHeap() - baselineHeap;
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        System.out.println("Legacy Stream Soak Test:");
+        System.out.println("Messages: " + decoded + " in " + elapsed + "ms");
+        System.out.println("Handles assigned: " + decoder.handleCount());
+        System.out.println("Max retained: " + maxRetained + " bytes");
+        System.out.println("Heap growth: " + heapGrowth / 1024 + " KB");
+
+        assertTrue("Every handle should have been assigned", decoder.handleCount() > messages);
+        assertTrue("Retained state should stay within the handle window", maxRetained < 256 * 1024);
+        assertTrue("Heap should stay flat", heapGrowth < 16 * 1024 * 1024);
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,86 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.net.*;
+
+/**
+ * JUnit test cases for LoadGenerator and LatencyHistogram
+ * Tests percentiles within the histogram's precision, and short runs
+ * against a real headless ChatServer in both engines, with every measured
+ * line delivered to every member of its room
+ */
+public class LoadGeneratorTest {
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        // Test that percentiles of a uniform spread are within 1%, from nanoseconds to seconds
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals("An empty histogram reports 0", 0, histogram.percentile(99));
+        for (long value = 1; value <= 1000000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(1000000, histogram.count());
+        assertEquals(1000000000L, histogram.max());
+        assertEquals(500000500.0, histogram.mean(), 1.0);
+        for (double percent : new double[] { 50, 90, 99, 99.9 }) {
+            double expected = percent / 100 * 1e9;
+            double actual = histogram.percentile(percent);
+            assertTrue("p" + percent + " should be within 1%, was " + actual, Math.abs(actual - expected) <= expected / 100);
+        }
+        assertEquals("p100 should be the maximum", 1000000000L, histogram.percentile(100));
+
+        LatencyHistogram small = new LatencyHistogram();
+        small.record(-5);
+        small.record(3);
+        assertEquals("Small values should be exact, negatives 0", 0, small.percentile(50));
+        assertEquals(3, small.percentile(100));
+        for (long value : new long[] { 0, 255, 256, 1000, 123456789, Long.MAX_VALUE }) {
+            int bucket = LatencyHistogram.bucket(value);
+            assertTrue("Bucket should hold " + value, LatencyHistogram.highestIn(bucket) >= value);
+            assertTrue("Bucket should be tight for " + value,
+                       bucket == 0 || LatencyHistogram.highestIn(bucket - 1) < value);
+        }
+    }
+
+    @Test
+    public void testSelectorEngineUnderLoad() throws Exception {
+        runAgainst("selector");
+    }
+
+    @Test
+    public void testThreadPerClientUnderLoad() throws Exception {
+        runAgainst("threads");
+    }
+
+    // Test that every line sent in the measured window reaches every member of its room
+    private void runAgainst(String engine) throws Exception {
+        int port = freePort();
+        System.setProperty(ChatServer.ENGINE_PROPERTY, engine);
+        try {
+            LoadGenerator.startServer(port);
+        } finally {
+            System.clearProperty(ChatServer.ENGINE_PROPERTY);
+        }
+        LoadGenerator generator = new LoadGenerator(60, 600, 300, 120, 3, 1, 0.5);
+        LoadGenerator.Report report = generator.run("localhost", port);
+
+        System.out.println("Load Generator Test (" + engine + " engine, 60 clients, 3 rooms, 300 lines/s):");
+        System.out.println(report);
+
+        assertEquals("Every client should connect", 60, report.connected);
+        assertEquals("No client should be dropped", 0, report.dropped.get());
+        assertEquals("No line should be refused", 0, report.refused);
+        assertEquals("One second at 300 lines/s should be measured", 300, report.sent);
+        assertEquals("Each line should reach the 20 members of its room", 300 * 20, report.expected);
+        assertEquals("Every expected delivery should arrive", report.expected, report.delivered.get());
+        assertEquals(report.expected, report.latency.count());
+        assertTrue("Latency should be measured", report.latency.percentile(50) > 0);
+    }
+}
@@ -0,0 +1,252 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import javax.swing.*;
+import javax.swing.event.*;
+
+/**
+ * JUnit test cases for LogView
+ * Tests rows split like JTextArea text, the cap on scrollback, that list
+ * events describe each burst correctly, that appending costs the same
+ * however long the session has run, and that a fast incoming stream is
+ * added about once a frame
+ */
+public class LogViewTest {
+
+    // Runs on the Event Dispatch Thread, where Swing components are used
+    private static void onEdt(final Runnable task) throws Exception {
+        SwingUtilities.invokeAndWait(task);
+    }
+
+    private static List<String> rows(LogView view) {
+        List<String> rows = new ArrayList<>();
+        for (int i = 0; i < view.getModel().getSize(); i++) {
+            rows.add(view.getModel().getElementAt(i));
+        }
+        return rows;
+    }
+
+    @Test
+    public void testRowsFollowNewlines() throws Exception {
+        // Test that text is split into rows as a JTextArea would show it, continuing an unfinished line
+        final LogView view = new LogView(100);
+        onEdt(new Runnable() {
+            public void run() {
+                view.append("Connected............. \nYou can start sending messages.");
+                view.append("10:00:00 Alice: hi\n10:00:01 Bob: hello\n");
+                view.append("");
+            }
+        });
+        assertEquals(Arrays.asList("Connected............. ", "You can start sending messages.10:00:00 Alice: hi",
+                                   "10:00:01 Bob: hello"), rows(view));
+        assertEquals("Connected............. \nYou can start sending messages.10:00:00 Alice: hi\n10:00:01 Bob: hello\n",
+                     view.getText());
+
+        // Appended from another thread, visible in the text at once and in the list once the EDT has run
+        view.append("Later\n");
+        assertTrue("Queued text should be part of the text", view.getText().endsWith("Bob: hello\nLater\n"));
+        onEdt(new Runnable() {
+            public void run() {
+            }
+        });
+        assertEquals("Later", rows(view).get(3));
+        assertFalse("The log should be read-only", view.isEditable());
+        assertTrue("Rows should have a fixed height", view.getFixedCellHeight() > 0);
+    }
+
+    @Test
+    public void testScrollbackIsCapped() throws Exception {
+        // Test that only the newest lines are kept, however many arrive
+        final LogView view = new LogView(100);
+        onEdt(new Runnable() {
+            public void run() {
+                for (int i = 0; i < 100000; i++) {
+                    view.append("Line " + i + "\n");
+                }
+            }
+        });
+        List<String> rows = rows(view);
+        assertEquals("Only the capacity should be kept", 100, rows.size());
+        assertEquals("Line 99900", rows.get(0));
+        assertEquals("Line 99999", rows.get(99));
+        assertEquals("Text should be bounded too", 100 * "Line 99999\n".length(), view.getText().length());
+    }
+
+    @Test
+    public void testEventsDescribeEachBurst() throws Exception {
+        // Test that a listener replaying the list's events ends up with the same rows, with few events per burst
+        final LogView view = new LogView(10);
+        final List<String> shadow = new ArrayList<>();
+        final AtomicInteger events = new AtomicInteger();
+        final ListModel<String> model = view.getModel();
+        model.addListDataListener(new ListDataListener() {
+            public void intervalAdded(ListDataEvent e) {
+                events.incrementAndGet();
+                for (int i = e.getIndex0(); i <= e.getIndex1(); i++) {
+                    shadow.add(i, model.getElementAt(i));
+                }
+            }
+            public void intervalRemoved(ListDataEvent e) {
+                events.incrementAndGet();
+                for (int i = e.getIndex1(); i >= e.getIndex0(); i--) {
+                    shadow.remove(i);
+                }
+            }
+            public void contentsChanged(ListDataEvent e) {
+                events.incrementAndGet();
+                for (int i = e.getIndex0(); i <= e.getIndex1(); i++) {
+                    shadow.set(i, model.getElementAt(i));
+                }
+            }
+        });
+
+        Random random = new Random(42);
+        for (int burst = 0; burst < 500; burst++) {
+            // Bursts from a network thread, made while the EDT is busy: whole lines, partial lines and several lines at once
+            final CountDownLatch busy = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            SwingUtilities.invokeLater(new Runnable() {
+                public void run() {
+                    busy.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            busy.await();
+            events.set(0);
+            int appends = 1 + random.nextInt(25);
+            for (int a = 0; a < appends; a++) {
+                StringBuilder text = new StringBuilder();
+                int parts = 1 + random.nextInt(3);
+                for (int p = 0; p < parts; p++) {
+                    text.append("b").append(burst).append('.').append(a).append('.').append(p);
+                    if (random.nextInt(3) > 0) {
+                        text.append('\n');
+                    }
+                }
+                view.append(text.toString());
+            }
+            release.countDown();
+            onEdt(new Runnable() {
+                public void run() {
+                }
+            });
+            assertTrue("A burst should be at most three list events", events.get() <= 3);
+            assertEquals("Replayed events should match the rows after burst " + burst, rows(view), shadow);
+        }
+    }
+
+    @Test
+    public void testAppendCostIsConstant() throws Exception {
+        // Test and report that appending to a full view costs what it did to an empty one, unlike a JTextArea
+        final int lines = 100000;
+        final int sample = 5000;
+        final long[] view = new long[2];
+        final long[] area = new long[2];
+        onEdt(new Runnable() {
+            public void run() {
+                LogView log = new LogView(LogView.DEFAULT_CAPACITY);
+                JTextArea text = new JTextArea();
+                view[0] = time(log, null, 0, sample);
+                area[0] = time(null, text, 0, sample);
+                time(log, null, sample, lines);
+                time(null, text, sample, lines);
+                view[1] = time(log, null, lines, lines + sample);
+                area[1] = time(null, text, lines, lines + sample);
+            }
+        });
+
+        System.out.println("Log View Append Test:");
+        System.out.println(String.format("LogView: %.2f us per line at the start, %.2f us after %d lines",
+                view[0] / 1e3 / sample, view[1] / 1e3 / sample, lines));
+        System.out.println(String.format("JTextArea: %.2f us per line at the start, %.2f us after %d lines",
+                area[0] / 1e3 / sample, area[1] / 1e3 / sample, lines));
+
+        assertTrue("Appending should not slow down as the session grows", view[1] < view[0] * 5 + 50_000_000L);
+    }
+
+    @Test
+    public void testIncomingStreamIsPacedToFrames() throws Exception {
+        // Test and report that 10k messages a second from a network thread reach the list about once a frame, with the EDT free
+        final LogView view = new LogView(LogView.DEFAULT_CAPACITY, LogView.DEFAULT_FRAME_MILLIS);
+        final AtomicInteger updates = new AtomicInteger();
+        view.getModel().addListDataListener(new ListDataListener() {
+            public void intervalAdded(ListDataEvent e) {
+                updates.incrementAndGet();
+            }
+            public void intervalRemoved(ListDataEvent e) {
+            }
+            public void contentsChanged(ListDataEvent e) {
+            }
+        });
+        final int messages = 10000;
+        Thread network = new Thread(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                for (int i = 0; i < messages; i++) {
+                    view.append("10:00:00 Sender: incoming message " + i + "\n");
+                    // 10 messages per millisecond
+                    if (i % 10 == 9) {
+                        LockSupport.parkNanos(start + TimeUnit.MILLISECONDS.toNanos(i / 10 + 1) - System.nanoTime());
+                    }
+                }
+            }
+        });
+
+        // Let the EDT finish whatever earlier tests left it
+        onEdt(new Runnable() {
+            public void run() {
+            }
+        });
+        long start = System.nanoTime();
+        network.start();
+        long slowestProbe = 0;
+        while (network.isAlive()) {
+            // What a key press would wait for while the messages arrive
+            long probe = System.nanoTime();
+            onEdt(new Runnable() {
+                public void run() {
+                }
+            });
+            slowestProbe = Math.max(slowestProbe, System.nanoTime() - probe);
+            Thread.sleep(5);
+        }
+        network.join();
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Thread.sleep(5 * LogView.DEFAULT_FRAME_MILLIS);
+        onEdt(new Runnable() {
+            public void run() {
+            }
+        });
+
+        System.out.println("Log View Frame Test:");
+        System.out.println(String.format("%d messages in %d ms reached the list in %d updates; slowest EDT response %.1f ms",
+                messages, millis, updates.get(), slowestProbe / 1e6));
+
+        assertEquals("10:00:00 Sender: incoming message " + (messages - 1),
+                     view.getModel().getElementAt(view.getModel().getSize() - 1));
+        assertTrue("Updates should be at most one per frame", updates.get() <= millis / LogView.DEFAULT_FRAME_MILLIS + 3);
+        assertTrue("The EDT should stay responsive", slowestProbe < TimeUnit.MILLISECONDS.toNanos(250));
+    }
+
+    private static long time(LogView log, JTextArea text, int from, int to) {
+        long start = System.nanoTime();
+        for (int i = from; i < to; i++) {
+            String line = "10:00:00 Sender: chat line number " + i + "\n";
+            if (log != null) {
+                log.append(line);
+            } else {
+                text.append(line);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
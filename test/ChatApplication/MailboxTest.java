@@ -0,0 +1,120 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * JUnit test cases for Mailbox
+ * Tests ordering, several producers and one consumer, and that a Task
+ * waiting in the mailbox is only queued once
+ */
+public class MailboxTest {
+
+    private static class CountingTask extends Mailbox.Task {
+        final AtomicInteger runs = new AtomicInteger();
+
+        public void run() {
+            runs.incrementAndGet();
+        }
+    }
+
+    @Test
+    public void testOldestFirst() {
+        // Test that tasks come out in the order they went in, wrapped or not
+        Mailbox mailbox = new Mailbox();
+        assertTrue("A new mailbox should be empty", mailbox.isEmpty());
+        assertNull(mailbox.poll());
+        final List<Integer> ran = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            final int index = i;
+            if (i % 2 == 0) {
+                mailbox.add(() -> ran.add(index));
+            } else {
+                mailbox.add(new Mailbox.Task() {
+                    public void run() {
+                        ran.add(index);
+                    }
+                });
+            }
+        }
+        assertFalse(mailbox.isEmpty());
+        Runnable task;
+        while ((task = mailbox.poll()) != null) {
+            task.run();
+        }
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), ran);
+        assertTrue("A drained mailbox should be empty", mailbox.isEmpty());
+    }
+
+    @Test
+    public void testWaitingTaskQueuedOnce() {
+        // Test that adding a task still waiting does nothing, and that it can be added again once it runs
+        Mailbox mailbox = new Mailbox();
+        CountingTask task = new CountingTask();
+        mailbox.add(task);
+        mailbox.add(task);
+        mailbox.poll().run();
+        assertNull("The second add should not have queued it again", mailbox.poll());
+        mailbox.add(task);
+        Runnable next = mailbox.poll();
+        assertSame("Once taken it can be queued again", task, next);
+        next.run();
+        assertEquals(2, task.runs.get());
+        assertTrue(mailbox.isEmpty());
+    }
+
+    @Test
+    public void testManyProducers() throws Exception {
+        // Test that every task added from several threads is taken once, in each producer's order
+        final Mailbox mailbox = new Mailbox();
+        final int producers = 4;
+        final int perProducer = 50000;
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(producers);
+        final int[] last = new int[producers];
+        Arrays.fill(last, -1);
+        final AtomicBoolean ordered = new AtomicBoolean(true);
+        try {
+            for (int p = 0; p < producers; p++) {
+                final int producer = p;
+                threads.execute(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perProducer; i++) {
+                        final int sequence = i;
+                        mailbox.add(() -> {
+                            if (last[producer] != sequence - 1) {
+                                ordered.set(false);
+                            }
+                            last[producer] = sequence;
+                        });
+                    }
+                });
+            }
+            start.countDown();
+            int taken = 0;
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while (taken < producers * perProducer) {
+                Runnable task = mailbox.poll();
+                if (task == null) {
+                    assertTrue("Every task should arrive, took " + taken, System.nanoTime() < deadline);
+                    Thread.yield();
+                    continue;
+                }
+                task.run();
+                taken++;
+            }
+            assertTrue("Each producer's tasks should run in the order added", ordered.get());
+            assertNull(mailbox.poll());
+            assertTrue(mailbox.isEmpty());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+}
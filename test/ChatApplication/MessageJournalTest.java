@@ -0,0 +1,211 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JUnit test cases for MessageJournal
+ * Tests appending and scanning, segment rolling and retention, recovery after
+ * a restart, a torn write or a missing segment, group commit and append throughput
+ */
+public class MessageJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static List<MessageJournal.Entry> scan(MessageJournal journal, long from) {
+        List<MessageJournal.Entry> entries = new ArrayList<>();
+        for (MessageJournal.Entry entry : journal.from(from)) {
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    @Test
+    public void testAppendAndScan() throws IOException {
+        // Test that lines come back in order, from any starting point
+        try (MessageJournal journal = new MessageJournal(folder.newFolder(), 1024 * 1024, MessageJournal.SyncPolicy.NONE, 0)) {
+            for (int i = 1; i <= 1000; i++) {
+                assertEquals("Sequence numbers should count appends", i, journal.append(i % 2 == 0 ? "lobby" : "java", "Line " + i + "\n"));
+            }
+            List<MessageJournal.Entry> all = scan(journal, 1);
+            assertEquals("Every line should be scanned", 1000, all.size());
+            assertEquals("Line 1\n", all.get(0).line);
+            assertEquals("java", all.get(0).room);
+            assertEquals("lobby", all.get(1).room);
+
+            List<MessageJournal.Entry> tail = scan(journal, 901);
+            assertEquals("Scan should start at the given line", 100, tail.size());
+            assertEquals(901, tail.get(0).sequence);
+            assertEquals("Line 1000\n", tail.get(99).line);
+            assertTrue("Scan past the end should be empty", scan(journal, 1001).isEmpty());
+        }
+    }
+
+    @Test
+    public void testSegmentsRollAndRecover() throws IOException {
+        // Test that small segments roll over and a reopened journal carries on where it stopped
+        File directory = folder.newFolder();
+        try (MessageJournal journal = new MessageJournal(directory, 4096, MessageJournal.SyncPolicy.GROUP, 10)) {
+            for (int i = 1; i <= 1000; i++) {
+                journal.append("lobby", "Line " + i + "\n");
+            }
+        }
+        assertTrue("Lines should be spread over several segments", directory.list().length > 5);
+
+        try (MessageJournal reopened = new MessageJournal(directory, 4096, MessageJournal.SyncPolicy.GROUP, 10)) {
+            assertEquals("Reopened journal should find the last line", 1000, reopened.lastSequence());
+            assertEquals("Appending should carry on after it", 1001, reopened.append("lobby", "Line 1001\n"));
+            List<MessageJournal.Entry> all = scan(reopened, 1);
+            assertEquals(1001, all.size());
+            for (int i = 0; i < all.size(); i++) {
+                assertEquals("Lines should stay in order across segments", "Line " + (i + 1) + "\n", all.get(i).line);
+            }
+            assertEquals("Scan from the middle should skip whole segments", 501, scan(reopened, 501).size());
+        }
+    }
+
+    @Test
+    public void testOldSegmentsAreDeleted() throws IOException {
+        // Test that only the newest segments are kept, and a reopened journal starts at the oldest one left
+        File directory = folder.newFolder();
+        try (MessageJournal journal = new MessageJournal(directory, 4096, MessageJournal.SyncPolicy.NONE, 0, 3)) {
+            for (int i = 1; i <= 1000; i++) {
+                journal.append("lobby", "Line " + i + "\n");
+            }
+            assertEquals("Only the newest segments should be kept", 3, directory.list().length);
+            List<MessageJournal.Entry> kept = scan(journal, 1);
+            assertTrue("Older lines should be gone", kept.get(0).sequence > 1);
+            assertEquals(1000, kept.get(kept.size() - 1).sequence);
+        }
+
+        try (MessageJournal reopened = new MessageJournal(directory, 4096, MessageJournal.SyncPolicy.NONE, 0, 3)) {
+            assertEquals("Reopened journal should find the last line", 1000, reopened.lastSequence());
+            assertEquals(1001, reopened.append("lobby", "Line 1001\n"));
+        }
+    }
+
+    @Test
+    public void testSegmentsAfterAGapAreDropped() throws IOException {
+        // Test that segments past a missing one are deleted, and lines written after reopening never meet their old records
+        File directory = folder.newFolder();
+        try (MessageJournal journal = new MessageJournal(directory, 4096, MessageJournal.SyncPolicy.NONE, 0)) {
+            for (int i = 1; i <= 1000; i++) {
+                journal.append("lobby", "Line " + i + "\n");
+            }
+        }
+        File[] files = directory.listFiles();
+        Arrays.sort(files);
+        assertTrue(files[1].delete());
+
+        long resumed;
+        try (MessageJournal reopened = new MessageJournal(directory, 4096, MessageJournal.SyncPolicy.NONE, 0)) {
+            resumed = reopened.lastSequence();
+            assertTrue("Only the lines before the gap should be found", resumed > 0 && resumed < 1000);
+            assertEquals("Segments past the gap should be deleted", 1, directory.list().length);
+            for (int i = 1; i <= 1000; i++) {
+                reopened.append("lobby", "Again " + i + "\n");
+            }
+        }
+
+        try (MessageJournal reopened = new MessageJournal(directory, 4096, MessageJournal.SyncPolicy.NONE, 0)) {
+            assertEquals(resumed + 1000, reopened.lastSequence());
+            List<MessageJournal.Entry> all = scan(reopened, resumed + 1);
+            assertEquals(1000, all.size());
+            for (int i = 0; i < all.size(); i++) {
+                assertEquals("Only the new lines should follow the gap", "Again " + (i + 1) + "\n", all.get(i).line);
+            }
+        }
+    }
+
+    @Test
+    public void testTornRecordIsOverwritten() throws IOException {
+        // Test that a record cut short by a crash is dropped on reopening and written over
+        File directory = folder.newFolder();
+        try (MessageJournal journal = new MessageJournal(directory, 1024 * 1024, MessageJournal.SyncPolicy.NONE, 0)) {
+            for (int i = 1; i <= 10; i++) {
+                journal.append("lobby", "Line " + i + "\n");
+            }
+        }
+        File segment = directory.listFiles()[0];
+        try (FileChannel channel = new RandomAccessFile(segment, "rw").getChannel()) {
+            // Damage the last byte of the tenth record's line
+            long end = 0;
+            ByteBuffer length = ByteBuffer.allocate(4);
+            for (int i = 0; i < 10; i++) {
+                length.clear();
+                channel.read(length, end);
+                end += 8 + length.getInt(0);
+            }
+            channel.write(ByteBuffer.wrap(new byte[] { 0x7f }), end - 1);
+        }
+
+        try (MessageJournal reopened = new MessageJournal(directory, 1024 * 1024, MessageJournal.SyncPolicy.NONE, 0)) {
+            assertEquals("Torn record should be dropped", 9, reopened.lastSequence());
+            assertEquals(10, reopened.append("lobby", "Line 10 again\n"));
+            List<MessageJournal.Entry> all = scan(reopened, 1);
+            assertEquals(10, all.size());
+            assertEquals("Line 10 again\n", all.get(9).line);
+        }
+    }
+
+    @Test
+    public void testGroupCommitCatchesUp() throws Exception {
+        // Test that group commit makes appended lines durable shortly after, without forcing each one
+        try (MessageJournal journal = new MessageJournal(folder.newFolder(), 1024 * 1024, MessageJournal.SyncPolicy.GROUP, 10)) {
+            for (int i = 1; i <= 100; i++) {
+                journal.append("lobby", "Line " + i + "\n");
+            }
+            long deadline = System.currentTimeMillis() + 5000;
+            while (journal.durableSequence() < 100 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            assertEquals("Group commit should cover every line", 100, journal.durableSequence());
+        }
+        try (MessageJournal always = new MessageJournal(folder.newFolder(), 1024 * 1024, MessageJournal.SyncPolicy.ALWAYS, 0)) {
+            always.append("lobby", "Forced\n");
+            assertEquals("ALWAYS should be durable on return", 1, always.durableSequence());
+        }
+    }
+
+    @Test
+    public void testAppendThroughput() throws IOException {
+        // Test that journalling keeps up with 100k messages per second with group commit
+        int messages = 1000000;
+        String line = "10:00:00 #java Sender: a typical chat line of around eighty characters\n";
+        double groupRate;
+        try (MessageJournal journal = new MessageJournal(folder.newFolder(), MessageJournal.DEFAULT_SEGMENT_BYTES,
+                MessageJournal.SyncPolicy.GROUP, MessageJournal.DEFAULT_SYNC_MILLIS)) {
+            for (int i = 0; i < 100000; i++) {
+                journal.append("java", line);
+            }
+            long start = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                journal.append("java", line);
+            }
+            groupRate = messages / ((System.nanoTime() - start) / 1e9);
+        }
+        int forced = 200;
+        double alwaysRate;
+        try (MessageJournal journal = new MessageJournal(folder.newFolder(), 1024 * 1024, MessageJournal.SyncPolicy.ALWAYS, 0)) {
+            long start = System.nanoTime();
+            for (int i = 0; i < forced; i++) {
+                journal.append("java", line);
+            }
+            alwaysRate = forced / ((System.nanoTime() - start) / 1e9);
+        }
+
+        System.out.println("Message Journal Append Test:");
+        System.out.println(String.format("Group commit: %.0f messages/s", groupRate));
+        System.out.println(String.format("Force every append: %.0f messages/s", alwaysRate));
+
+        assertTrue("Group commit should sustain 100k messages per second", groupRate > 100000);
+    }
+}
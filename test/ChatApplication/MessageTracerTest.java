@@ -0,0 +1,138 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.*;
+
+/**
+ * JUnit test cases for MessageTracer
+ * Tests the clock, sampling, which stages the server and clients record,
+ * and traced lines going through a real ChatServer
+ */
+public class MessageTracerTest {
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testClockIsWallTimeInNanoseconds() {
+        // Test that stamps follow the wall clock and never go backwards
+        long millis = System.currentTimeMillis();
+        long now = MessageTracer.now();
+        assertTrue("Stamps should be epoch nanoseconds", Math.abs(now / 1000000 - millis) < 1000);
+        long last = now;
+        for (int i = 0; i < 100000; i++) {
+            long next = MessageTracer.now();
+            assertTrue("The clock should not go backwards", next >= last);
+            last = next;
+        }
+    }
+
+    @Test
+    public void testSampling() {
+        // Test that about one line in every is picked, and 0 picks none
+        assertFalse(new MessageTracer(0).sample());
+        assertTrue(new MessageTracer(1).sample());
+        MessageTracer tracer = new MessageTracer(100);
+        int sampled = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (tracer.sample()) {
+                sampled++;
+            }
+        }
+        assertTrue("About 1000 of 100000 should be sampled, was " + sampled, sampled > 700 && sampled < 1300);
+    }
+
+    @Test
+    public void testStagesRecorded() {
+        // Test that the server records its stages once fanned out, and a client the whole path
+        MessageTracer server = new MessageTracer(0);
+        MessageTracer.Trace trace = server.received(new MessageTracer.TracedMessage("Hi", new MessageTracer.Trace(1000)), 3000, 3200);
+        assertNotNull("Lines traced by their client are always traced", trace);
+        assertNull("Others are not, when sampling is off", server.received(new MessageHandler("Hi"), 3000, 3200));
+        trace.serverDecoded = 3500;
+        trace.serverLocked = 6000;
+        trace.serverPosted = 6100;
+        assertEquals("Nothing is recorded before fan-out", "", server.report());
+        trace.fannedOut();
+        assertEquals(2000, server.stage(MessageTracer.Stage.NETWORK_IN).max());
+        assertEquals(200, server.stage(MessageTracer.Stage.INBOUND_QUEUE).max());
+        assertEquals(300, server.stage(MessageTracer.Stage.DECODE).max());
+        assertEquals(2500, server.stage(MessageTracer.Stage.LOCK_WAIT).max());
+        assertEquals(100, server.stage(MessageTracer.Stage.UNDER_LOCK).max());
+        assertEquals(1, server.stage(MessageTracer.Stage.FAN_OUT).count());
+        assertEquals("Delivery is only seen by clients", 0, server.stage(MessageTracer.Stage.DELIVERY).count());
+
+        MessageTracer client = new MessageTracer(0);
+        client.delivered(trace, 9100);
+        assertEquals(3000, client.stage(MessageTracer.Stage.DELIVERY).max());
+        assertEquals(8100, client.stage(MessageTracer.Stage.END_TO_END).max());
+        assertEquals(0, client.stage(MessageTracer.Stage.FAN_OUT).count());
+
+        // A line the server chose to trace has no send time, so no stage starting there
+        MessageTracer sampled = new MessageTracer(1);
+        MessageTracer.Trace serverOnly = sampled.received(new MessageHandler("Hi"), MessageTracer.now(), MessageTracer.now());
+        client.delivered(serverOnly, MessageTracer.now());
+        assertEquals(1, client.stage(MessageTracer.Stage.NETWORK_IN).count());
+        assertEquals(1, client.stage(MessageTracer.Stage.END_TO_END).count());
+        assertTrue(client.report().contains("Trace DELIVERY"));
+    }
+
+    @Test
+    public void testLinesTracedThroughServer() throws Exception {
+        // Test and report where the time of traced lines goes on a real server, in both engines
+        for (String engine : new String[] { "selector", "threads" }) {
+            int port = freePort();
+            System.setProperty(ChatServer.ENGINE_PROPERTY, engine);
+            System.setProperty(ChatClient.TRACE_EVERY_PROPERTY, "1");
+            ChatClient.Group group;
+            try {
+                LoadGenerator.startServer(port);
+                group = new ChatClient.Group(1);
+            } finally {
+                System.clearProperty(ChatServer.ENGINE_PROPERTY);
+                System.clearProperty(ChatClient.TRACE_EVERY_PROPERTY);
+            }
+            try {
+                final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+                ChatClient.Listener listener = new ChatClient.Listener() {
+                    public void received(ChatClient client, String message) {
+                        lines.add(client.getUsername() + " " + message);
+                    }
+
+                    public void closed(ChatClient client, IOException cause) {
+                    }
+                };
+                ChatClient alice = group.connect("localhost", port, "Alice", listener);
+                ChatClient bob = group.connect("localhost", port, "Bob", listener);
+                assertTrue(bob.send("/rooms"));
+                assertNotNull("Bob should have joined", lines.poll(5, TimeUnit.SECONDS));
+                for (int i = 0; i < 100; i++) {
+                    assertTrue(alice.send("Line " + i));
+                }
+                for (int i = 0; i < 200; i++) {
+                    assertNotNull("Every line should reach both clients", lines.poll(5, TimeUnit.SECONDS));
+                }
+                MessageTracer tracer = group.tracer();
+
+                System.out.println("Message Tracer Test (" + engine + " engine, 100 traced lines to 2 clients):");
+                System.out.print(tracer.report());
+
+                for (MessageTracer.Stage stage : MessageTracer.Stage.values()) {
+                    if (stage != MessageTracer.Stage.FAN_OUT) {
+                        assertEquals("Each delivery should time " + stage, 200, tracer.stage(stage).count());
+                    }
+                }
+                assertTrue("A line should take time end to end", tracer.stage(MessageTracer.Stage.END_TO_END).max() > 0);
+                assertEquals("The server's fan-out is not sent to clients", 0, tracer.stage(MessageTracer.Stage.FAN_OUT).count());
+            } finally {
+                group.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.*;
+
+/**
+ * JUnit test cases for OutboundQueue
+ * Tests ordering, the bound and each slow-consumer policy
+ */
+public class OutboundQueueTest {
+
+    private static ByteBuffer frame(String text) {
+        return LegacyCodec.encodeString(text);
+    }
+
+    // Decodes a frame the way a client's ObjectInputStream would see it
+    private static String text(ByteBuffer frame) throws IOException {
+        ByteBuffer stream = ByteBuffer.allocate(4 + frame.remaining());
+        stream.put(LegacyCodec.streamHeader()).put(frame.duplicate());
+        stream.flip();
+        return (String) new LegacyCodec.Decoder().decode(stream);
+    }
+
+    @Test
+    public void testMessagesAreDeliveredInOrder() throws IOException {
+        // Test FIFO order, including across ring growth
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DROP_OLDEST, 100, 1000);
+        for (int i = 0; i < 50; i++) {
+            assertTrue("Offer should succeed", queue.offer(frame("Message " + i)));
+        }
+        assertEquals("Depth should count queued messages", 50, queue.depth());
+        for (int i = 0; i < 50; i++) {
+            assertEquals("Messages should come out in order", "Message " + i, text(queue.poll()));
+        }
+        assertNull("Queue should be empty", queue.poll());
+        assertEquals("Depth should be zero when drained", 0, queue.depth());
+    }
+
+    @Test
+    public void testDropOldestPolicy() throws IOException {
+        // Test that a full queue discards its oldest message
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DROP_OLDEST, 3, 1000);
+        for (int i = 0; i < 5; i++) {
+            assertTrue("Drop-oldest never disconnects", queue.offer(frame("Message " + i)));
+        }
+        assertEquals("Depth should stay at the bound", 3, queue.depth());
+        assertEquals("Two messages should be dropped", 2, queue.droppedCount());
+        assertEquals("Oldest survivor should be Message 2", "Message 2", text(queue.poll()));
+    }
+
+    @Test
+    public void testDisconnectPolicyWhenFull() {
+        // Test that a full queue asks for the client to be disconnected
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DISCONNECT, 2, 60000);
+        assertTrue("First offer should succeed", queue.offer(frame("a")));
+        assertTrue("Second offer should succeed", queue.offer(frame("b")));
+        assertFalse("Third offer should report a slow consumer", queue.offer(frame("c")));
+    }
+
+    @Test
+    public void testDisconnectPolicyWhenLagging() throws InterruptedException {
+        // Test that a client more than the lag limit behind is disconnected
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DISCONNECT, 100, 20);
+        assertTrue("First offer should succeed", queue.offer(frame("old")));
+        Thread.sleep(50);
+        assertTrue("Lag should be reported", queue.lagMillis() >= 20);
+        assertFalse("Offer behind a stale message should report a slow consumer", queue.offer(frame("new")));
+    }
+
+    @Test
+    public void testCoalescePolicy() throws IOException {
+        // Test that a full queue merges its messages instead of losing them
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.COALESCE, 2, 1000);
+        assertTrue(queue.offer(frame("one\n")));
+        assertTrue(queue.offer(frame("two\n")));
+        assertTrue(queue.offer(frame("three\n")));
+        assertEquals("Everything should be merged into one message", 1, queue.depth());
+        assertEquals("Merged message should keep the order", "one\ntwo\nthree\n", text(queue.poll()));
+        assertEquals("Coalesced count should be reported", 2, queue.coalescedCount());
+    }
+
+    @Test
+    public void testCoalesceLongStrings() throws IOException {
+        // Test that merging crosses into the long string encoding correctly
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 40000) {
+            big.append("0123456789");
+        }
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.COALESCE, 1, 1000);
+        queue.offer(frame(big.toString()));
+        queue.offer(frame(big.toString()));
+        assertEquals("Merged long string should match", big.toString() + big, text(queue.poll()));
+    }
+
+    @Test
+    public void testCoalesceBinaryFrames() throws IOException {
+        // Test that a queue for a binary-protocol client merges in its frame format
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.COALESCE, 1, 1000);
+        queue.setProtocol(WireProtocol.BINARY);
+        queue.offer(WireProtocol.BINARY.encode("one\n"));
+        queue.offer(WireProtocol.BINARY.encode("two\n"));
+        ByteBuffer merged = queue.poll();
+        assertEquals("Merged frame should carry both lines", "one\ntwo\n",
+                     ((MessageHandler) new BinaryCodec.Decoder().decode(withHello(merged))).getMessage());
+    }
+
+    private static ByteBuffer withHello(ByteBuffer frame) {
+        ByteBuffer stream = ByteBuffer.allocate(BinaryCodec.HELLO_LENGTH + frame.remaining());
+        stream.put(BinaryCodec.hello()).put(frame.duplicate());
+        stream.flip();
+        return stream;
+    }
+
+    @Test
+    public void testTakeBlocksUntilOfferOrClose() throws Exception {
+        // Test the blocking writer side
+        OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DROP_OLDEST, 10, 1000);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<ByteBuffer> taken = executor.submit(queue::take);
+            Thread.sleep(50);
+            assertFalse("Take should wait for a message", taken.isDone());
+            queue.offer(frame("hello"));
+            assertEquals("Take should return the offered message", "hello", text(taken.get(1, TimeUnit.SECONDS)));
+
+            Future<ByteBuffer> closed = executor.submit(queue::take);
+            queue.close();
+            assertNull("Take should return null once closed", closed.get(1, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
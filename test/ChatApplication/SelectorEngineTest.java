@@ -0,0 +1,248 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+import org.junit.After;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.lang.management.ManagementFactory;
+
+/**
+ * JUnit test cases for SelectorEngine
+ * Tests that unmodified object-stream clients can join, chat and disconnect
+ * through the non-blocking engine
+ */
+public class SelectorEngineTest {
+
+    private static final String TEST_HOST = "localhost";
+
+    private SelectorEngine engine;
+    private RecordingListener listener;
+    private List<Socket> sockets;
+
+    // Broadcasts like Server.transfer() and records what happened
+    private static class RecordingListener implements SelectorEngine.Listener {
+        final List<NioConnection> clients = new CopyOnWriteArrayList<>();
+        final BlockingQueue<String> events = new LinkedBlockingQueue<>();
+
+        public void connected(NioConnection connection) {
+        }
+
+        public void joined(NioConnection connection) {
+            clients.add(connection);
+            events.add("joined " + connection.getUsername());
+        }
+
+        public void received(NioConnection connection, MessageHandler message) {
+            if (message.diconnectClient()) {
+                connection.close();
+                return;
+            }
+            String broadcast = connection.getUsername() + ": " + message.getMessage() + "\n";
+            for (NioConnection client : clients) {
+                client.sendFrame(client.getProtocol().encode(broadcast));
+            }
+        }
+
+        public void closed(NioConnection connection) {
+            if (clients.remove(connection)) {
+                events.add("closed " + connection.getUsername());
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        listener = new RecordingListener();
+        sockets = new ArrayList<>();
+        engine = new SelectorEngine(listener, 2);
+        engine.bind(new InetSocketAddress(TEST_HOST, 0));
+        Thread acceptor = new Thread(() -> {
+            try {
+                engine.acceptLoop();
+            } catch (IOException e) {
+                // Expected when the engine is closed
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        engine.close();
+    }
+
+    private Socket connect() throws IOException {
+        Socket socket = new Socket(TEST_HOST, engine.getLocalPort());
+        socket.setSoTimeout(5000);
+        sockets.add(socket);
+        return socket;
+    }
+
+    @Test
+    public void testJoinChatAndDisconnect() throws Exception {
+        // Test the join/chat/disconnect flow with real object streams
+        Socket socket1 = connect();
+        ObjectOutputStream output1 = new ObjectOutputStream(socket1.getOutputStream());
+        ObjectInputStream input1 = new ObjectInputStream(socket1.getInputStream());
+        output1.writeObject("User1");
+        assertEquals("User1 should join", "joined User1", listener.events.poll(5, TimeUnit.SECONDS));
+
+        Socket socket2 = connect();
+        ObjectOutputStream output2 = new ObjectOutputStream(socket2.getOutputStream());
+        ObjectInputStream input2 = new ObjectInputStream(socket2.getInputStream());
+        output2.writeObject("User2");
+        assertEquals("User2 should join", "joined User2", listener.events.poll(5, TimeUnit.SECONDS));
+
+        output1.writeObject(new MessageHandler("Hello from User1"));
+        assertEquals("User1 should receive its broadcast", "User1: Hello from User1\n", input1.readObject());
+        assertEquals("User2 should receive the broadcast", "User1: Hello from User1\n", input2.readObject());
+
+        output2.writeObject(new MessageHandler());
+        assertEquals("User2 should be closed", "closed User2", listener.events.poll(5, TimeUnit.SECONDS));
+        assertEquals("Only User1 should remain", 1, listener.clients.size());
+    }
+
+    @Test
+    public void testBinaryAndLegacyClientsShareChat() throws Exception {
+        // Test that a migrated client and an unmodified one see each other's messages
+        Socket legacySocket = connect();
+        ObjectOutputStream legacyOutput = new ObjectOutputStream(legacySocket.getOutputStream());
+        ObjectInputStream legacyInput = new ObjectInputStream(legacySocket.getInputStream());
+        legacyOutput.writeObject("Legacy");
+        assertEquals("Legacy client should join", "joined Legacy", listener.events.poll(5, TimeUnit.SECONDS));
+
+        Socket binarySocket = connect();
+        DataOutputStream binaryOutput = new DataOutputStream(binarySocket.getOutputStream());
+        DataInputStream binaryInput = new DataInputStream(binarySocket.getInputStream());
+        BinaryCodec.writeHello(binaryOutput);
+        assertEquals("Server should answer the hello", BinaryCodec.VERSION, BinaryCodec.readHello(binaryInput));
+        BinaryCodec.writeFrame(binaryOutput, BinaryCodec.TYPE_USERNAME, "Binary");
+        assertEquals("Binary client should join", "joined Binary", listener.events.poll(5, TimeUnit.SECONDS));
+
+        BinaryCodec.writeFrame(binaryOutput, BinaryCodec.TYPE_CHAT, "Hello from Binary");
+        assertEquals("Binary client should receive its broadcast", "Binary: Hello from Binary\n",
+                     ((MessageHandler) BinaryCodec.readFrame(binaryInput)).getMessage());
+        assertEquals("Legacy client should receive the broadcast", "Binary: Hello from Binary\n", legacyInput.readObject());
+
+        legacyOutput.writeObject(new MessageHandler("Hello from Legacy"));
+        assertEquals("Legacy client should receive its broadcast", "Legacy: Hello from Legacy\n", legacyInput.readObject());
+        assertEquals("Binary client should receive the broadcast", "Legacy: Hello from Legacy\n",
+                     ((MessageHandler) BinaryCodec.readFrame(binaryInput)).getMessage());
+
+        BinaryCodec.writeFrame(binaryOutput, BinaryCodec.TYPE_DISCONNECT, null);
+        assertEquals("Binary client should be closed", "closed Binary", listener.events.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testLegacyClientIsResetPeriodically() throws Exception {
+        // Test that an unmodified client keeps working while the stream state on both sides stays bounded
+        System.setProperty(LegacyCodec.RESET_BYTES_PROPERTY, "64");
+        System.setProperty(LegacyCodec.HANDLE_WINDOW_PROPERTY, "4");
+        try {
+            Socket socket = connect();
+            ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+            ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+            output.writeObject("Resetter");
+            assertEquals("Client should join", "joined Resetter", listener.events.poll(5, TimeUnit.SECONDS));
+
+            for (int i = 0; i < 20; i++) {
+                output.writeObject(new MessageHandler("Message " + i));
+                assertEquals("Broadcast should arrive intact", "Resetter: Message " + i + "\n", input.readObject());
+            }
+            long retained = listener.clients.get(0).getRetainedBytes();
+            assertTrue("Retained state should be bounded by the reset limit and window", retained > 0 && retained < 64 + 512);
+        } finally {
+            System.clearProperty(LegacyCodec.RESET_BYTES_PROPERTY);
+            System.clearProperty(LegacyCodec.HANDLE_WINDOW_PROPERTY);
+        }
+    }
+
+    @Test
+    public void testLargeMessageAcrossReads() throws Exception {
+        // Test a message larger than the shared read buffer
+        StringBuilder large = new StringBuilder();
+        while (large.length() < SelectorEngine.READ_BUFFER_SIZE * 3) {
+            large.append("This is a large message part ").append(large.length()).append(". ");
+        }
+        Socket socket = connect();
+        ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+        ObjectInputStream input = new ObjectInputStream(socket.getInputStream());
+        output.writeObject("TestUser");
+        output.writeObject(new MessageHandler(large.toString()));
+
+        assertEquals("Large message should be broadcast intact", "TestUser: " + large + "\n", input.readObject());
+    }
+
+    @Test
+    public void testAbruptCloseIsReported() throws Exception {
+        // Test that a client dropping its socket is treated as a disconnect
+        Socket socket = connect();
+        ObjectOutputStream output = new ObjectOutputStream(socket.getOutputStream());
+        output.writeObject("Dropper");
+        assertEquals("Client should join", "joined Dropper", listener.events.poll(5, TimeUnit.SECONDS));
+
+        socket.close();
+        assertEquals("Client should be closed", "closed Dropper", listener.events.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testManyIdleConnectionsUseFixedThreads() throws Exception {
+        // Test that idle connections do not each cost a thread
+        int initialThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+        for (int i = 0; i < 500; i++) {
+            ObjectOutputStream output = new ObjectOutputStream(connect().getOutputStream());
+            output.writeObject("Idle" + i);
+        }
+        for (int i = 0; i < 500; i++) {
+            assertNotNull("Every idle client should join", listener.events.poll(5, TimeUnit.SECONDS));
+        }
+        int finalThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+        System.out.println("Selector Engine Idle Connections Test:");
+        System.out.println("Connections: 500");
+        System.out.println("Thread increase: " + (finalThreads - initialThreads));
+
+        assertTrue("Thread count should not grow per connection", finalThreads - initialThreads < 10);
+    }
+
+    @Test
+    public void testSlowConsumerDoesNotStallOthers() throws Exception {
+        // Test that a client that never reads is disconnected without holding up a reading client
+        System.setProperty(OutboundQueue.POLICY_PROPERTY, "DISCONNECT");
+        System.setProperty(OutboundQueue.CAPACITY_PROPERTY, "16");
+        try {
+            Socket slowSocket = connect();
+            ObjectOutputStream slowOutput = new ObjectOutputStream(slowSocket.getOutputStream());
+            slowOutput.writeObject("Slow");
+            assertEquals("Slow client should join", "joined Slow", listener.events.poll(5, TimeUnit.SECONDS));
+
+            Socket fastSocket = connect();
+            ObjectOutputStream fastOutput = new ObjectOutputStream(fastSocket.getOutputStream());
+            ObjectInputStream fastInput = new ObjectInputStream(fastSocket.getInputStream());
+            fastOutput.writeObject("Fast");
+            assertEquals("Fast client should join", "joined Fast", listener.events.poll(5, TimeUnit.SECONDS));
+
+            StringBuilder chunk = new StringBuilder();
+            while (chunk.length() < 64 * 1024) {
+                chunk.append("0123456789");
+            }
+            for (int i = 0; i < 200; i++) {
+                fastOutput.writeObject(new MessageHandler(i + " " + chunk));
+                String broadcast = (String) fastInput.readObject();
+                assertTrue("Fast client should keep receiving its broadcasts", broadcast.startsWith("Fast: " + i + " "));
+            }
+            assertEquals("Slow client should be disconnected", "closed Slow", listener.events.poll(5, TimeUnit.SECONDS));
+        } finally {
+            System.clearProperty(OutboundQueue.POLICY_PROPERTY);
+            System.clearProperty(OutboundQueue.CAPACITY_PROPERTY);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Rule;
+import org.junit.rules.TemporaryFolder;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * JUnit test cases for ServerLog and the headless ChatServer
+ * Tests batching off the logging thread, dropping instead of blocking when
+ * the sinks fall behind, the in-memory ring, file rotation, and that the
+ * server runs without a window
+ */
+public class ServerLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Waits for the log's thread to hand events to the sinks
+    private static void awaitWritten(ServerLog log, long events) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (log.written() + log.dropped() < events && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void testEventsArriveInBatches() throws Exception {
+        // Test that events reach every sink in order, gathered into few batches
+        final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> seen = Collections.synchronizedList(new ArrayList<String>());
+        ServerLog log = new ServerLog(100000, 20);
+        ServerLog.RingSink ring = new ServerLog.RingSink(10);
+        log.addSink(new ServerLog.Sink() {
+            public void write(List<String> events) {
+                batchSizes.add(events.size());
+                seen.addAll(events);
+            }
+            public void close() {
+            }
+        }).addSink(ring);
+
+        for (int i = 0; i < 10000; i++) {
+            log.log("Line " + i + "\n");
+        }
+        awaitWritten(log, 10000);
+        log.close();
+
+        assertEquals("Every event should arrive", 10000, seen.size());
+        for (int i = 0; i < seen.size(); i++) {
+            assertEquals("Events should stay in order", "Line " + i + "\n", seen.get(i));
+        }
+        assertTrue("Events should be written in batches, not one by one", batchSizes.size() < 100);
+        List<String> recent = ring.recent();
+        assertEquals("Ring should keep only its size", 10, recent.size());
+        assertEquals("Line 9990\n", recent.get(0));
+        assertEquals("Line 9999\n", recent.get(9));
+    }
+
+    @Test
+    public void testSlowSinkNeverBlocksLogging() throws Exception {
+        // Test that a stalled sink makes the log drop events instead of holding up the thread logging them
+        final CountDownLatch release = new CountDownLatch(1);
+        ServerLog log = new ServerLog(1000, 1);
+        log.addSink(new ServerLog.Sink() {
+            public void write(List<String> events) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            public void close() {
+            }
+        });
+
+        int events = 200000;
+        long start = System.nanoTime();
+        for (int i = 0; i < events; i++) {
+            log.log("10:00:00 Sender: a typical chat line\n");
+        }
+        long nanos = System.nanoTime() - start;
+        release.countDown();
+        awaitWritten(log, events);
+        log.close();
+
+        System.out.println("Server Log Test:");
+        System.out.println(String.format("%d events logged in %.1f ms (%.0f ns each) with a stalled sink, %d dropped",
+                events, nanos / 1e6, (double) nanos / events, log.dropped()));
+
+        assertTrue("Events beyond the capacity should be dropped", log.dropped() >= events - 1000 - log.written());
+        assertEquals("Every event should be written or dropped", events, log.written() + log.dropped());
+        assertTrue("Logging should not wait for the sink", TimeUnit.NANOSECONDS.toMillis(nanos) < 2000);
+    }
+
+    @Test
+    public void testFileRotation() throws Exception {
+        // Test that the log file is rotated at its size, keeping a fixed number of old files
+        File file = new File(folder.getRoot(), "server.log");
+        ServerLog log = new ServerLog(100000, 5);
+        log.addSink(new ServerLog.RotatingFileSink(file, 1000, 2));
+        for (int i = 0; i < 1000; i++) {
+            log.log(String.format("Line %04d\n", i));
+        }
+        log.close();
+
+        assertTrue("Current file should exist", file.exists());
+        assertTrue("First rotation should exist", new File(file.getPath() + ".1").exists());
+        assertTrue("Second rotation should exist", new File(file.getPath() + ".2").exists());
+        assertFalse("Only two old files should be kept", new File(file.getPath() + ".3").exists());
+        assertTrue("Files should stay near their size", file.length() <= 1000 + 10);
+        List<String> last = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+        assertEquals("Newest line should be in the current file", "Line 0999", last.get(last.size() - 1));
+        List<String> previous = Files.readAllLines(new File(file.getPath() + ".1").toPath(), StandardCharsets.UTF_8);
+        assertEquals("Rotated file should end where the current one starts",
+                     String.format("Line %04d", Integer.parseInt(last.get(0).substring(5)) - 1), previous.get(previous.size() - 1));
+    }
+
+    @Test
+    public void testHeadlessServerLogs() throws Exception {
+        // Test that the server starts without a window and logs through its sinks
+        ServerLog log = new ServerLog(1000, 5);
+        ServerLog.RingSink ring = new ServerLog.RingSink(100);
+        log.addSink(ring);
+        ChatServer server = new ChatServer(log);
+        assertSame(log, server.log());
+        awaitWritten(log, 1);
+        log.close();
+
+        assertEquals(Arrays.asList("Waiting for connections..........\n"), ring.recent());
+        // write totals are process-wide, so only this server's queues are checked
+        assertFalse("No client should have anything queued", server.queueReport().contains("Queue "));
+    }
+}
@@ -0,0 +1,240 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.management.*;
+
+/**
+ * JUnit test cases for ServerMetrics
+ * Tests counters and rates, per-client lag in the text scrape, that each
+ * broadcast's fan-out is timed once, that recording allocates nothing, and
+ * the JMX bean and /metrics endpoint of a running server
+ */
+public class ServerMetricsTest {
+
+    // A connection with a fixed outbound queue
+    private static class QueuedConnection implements ChatConnection {
+        final String username;
+        final int depth;
+        final int shard;
+        long clientId = -1;
+
+        QueuedConnection(String username, int depth, int shard) {
+            this.username = username;
+            this.depth = depth;
+            this.shard = shard;
+        }
+
+        public int getShard() {
+            return shard;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public long getClientId() {
+            return clientId;
+        }
+
+        public void setClientId(long id) {
+            clientId = id;
+        }
+
+        public WireProtocol getProtocol() {
+            return WireProtocol.BINARY;
+        }
+
+        public void sendFrame(ByteBuffer frame) {
+        }
+
+        public int getQueueDepth() {
+            return depth;
+        }
+
+        public long getLagMillis() {
+            return depth * 10L;
+        }
+
+        public long getRetainedBytes() {
+            return 0;
+        }
+
+        public void close() {
+        }
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testCountersRatesAndLag() {
+        // Test that totals, rates over a sample and lagging clients are reported
+        ClientRegistry registry = new ClientRegistry();
+        registry.register(new QueuedConnection("Idle", 0, 0));
+        registry.register(new QueuedConnection("Slow \"one\"", 3, 0));
+        registry.register(new QueuedConnection("Slower", 5, 0));
+        ServerMetrics metrics = new ServerMetrics(registry, new WriteBatch.Stats(), new MessageTracer(0));
+
+        metrics.accepts.add(4);
+        metrics.messagesIn.add(100);
+        metrics.bytesIn.add(5000);
+        metrics.sample(2.0);
+        assertEquals(3, metrics.getConnectedClients());
+        assertEquals(4, metrics.getAccepts());
+        assertEquals(50.0, metrics.getMessagesInPerSecond(), 0.001);
+        assertEquals(2500.0, metrics.getBytesInPerSecond(), 0.001);
+        metrics.messagesIn.add(10);
+        metrics.sample(1.0);
+        assertEquals("Rates should cover only the last sample", 10.0, metrics.getMessagesInPerSecond(), 0.001);
+        assertEquals(0.0, metrics.getAcceptsPerSecond(), 0.001);
+
+        assertEquals(8, metrics.getQueuedFrames());
+        assertEquals(2, metrics.getLaggingClients());
+        assertEquals(50, metrics.getMaxOutboundLagMillis());
+
+        String text = metrics.scrape();
+        assertTrue(text, text.contains("chat_connected_clients 3\n"));
+        assertTrue(text, text.contains("chat_messages_in_total 110\n"));
+        assertTrue(text, text.contains("chat_client_outbound_queue_frames{user=\"Slower\"} 5\n"));
+        assertTrue("Label values should be escaped", text.contains("{user=\"Slow \\\"one\\\"\"} 30\n"));
+        assertFalse("Clients with nothing queued should not be listed", text.contains("Idle"));
+    }
+
+    @Test
+    public void testFanOutIsTimedOncePerBroadcast() throws Exception {
+        // Test that a broadcast over two shards is recorded once, after both have run
+        ChatRooms rooms = new ChatRooms(2);
+        for (int i = 0; i < 10; i++) {
+            rooms.join(new QueuedConnection("User" + i, 0, i % 2), "busy");
+        }
+        ShardThread[] shards = ShardThread.startAll(2);
+        LatencyHistogram fanOut = new LatencyHistogram();
+        try {
+            for (int i = 0; i < 100; i++) {
+                rooms.get("busy").post(shards, new WireProtocol.Broadcast("line " + i + "\n", fanOut));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (fanOut.count() < 100 && System.nanoTime() - deadline < 0) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(50);
+        } finally {
+            for (ShardThread shard : shards) {
+                shard.interrupt();
+            }
+        }
+        assertEquals("Each broadcast should be recorded exactly once", 100, fanOut.count());
+        assertTrue(fanOut.max() > 0);
+
+        // Untimed broadcasts, as in benchmarks and older callers, still post
+        ChatRooms.Room room = rooms.get("busy");
+        room.post(new Executor[] { Runnable::run, Runnable::run }, new WireProtocol.Broadcast("untimed\n"));
+    }
+
+    @Test
+    public void testRecordingDoesNotAllocate() {
+        // Test that the counters and histogram used while broadcasting allocate nothing once warm
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        assumeAllocationCounting(threads);
+        ServerMetrics metrics = new ServerMetrics(new ClientRegistry(), new WriteBatch.Stats(), new MessageTracer(0));
+        record(metrics, 100000);
+        long thread = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(thread);
+        record(metrics, 1000000);
+        long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+        System.out.println("Server Metrics Test:");
+        System.out.println("Recording 1000000 broadcasts allocated " + allocated + " bytes");
+        assertTrue("Recording should not allocate per broadcast, allocated " + allocated, allocated < 10000);
+    }
+
+    private static void assumeAllocationCounting(com.sun.management.ThreadMXBean threads) {
+        org.junit.Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    private static void record(ServerMetrics metrics, int times) {
+        for (int i = 0; i < times; i++) {
+            metrics.messagesIn.increment();
+            metrics.bytesIn.add(120);
+            metrics.broadcasts.increment();
+            metrics.fanOut.record(i * 37L);
+        }
+    }
+
+    @Test
+    public void testRunningServerIsObservable() throws Exception {
+        // Test that a live server's clients show up over JMX and in the /metrics text
+        int port = freePort();
+        int metricsPort = freePort();
+        System.setProperty(ServerMetrics.HTTP_PORT_PROPERTY, Integer.toString(metricsPort));
+        ChatServer server;
+        try {
+            server = LoadGenerator.startServer(port);
+        } finally {
+            System.clearProperty(ServerMetrics.HTTP_PORT_PROPERTY);
+        }
+        ChatClient.Group group = new ChatClient.Group(1);
+        try {
+            final BlockingQueue<String> lines = new LinkedBlockingQueue<>();
+            ChatClient.Listener listener = new ChatClient.Listener() {
+                public void received(ChatClient client, String message) {
+                    lines.add(message);
+                }
+
+                public void closed(ChatClient client, IOException cause) {
+                }
+            };
+            ChatClient alice = group.connect("localhost", port, "Alice", listener);
+            group.connect("localhost", port, "Bob", listener);
+            assertTrue(alice.send("Hello"));
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while ((server.metrics().getConnectedClients() < 2 || server.metrics().fanOut.count() == 0)
+                    && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+
+            MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = ServerMetrics.objectName(port);
+            assertEquals(2, beans.getAttribute(name, "ConnectedClients"));
+            // startServer's probe connection is accepted too
+            assertEquals(3L, beans.getAttribute(name, "Accepts"));
+            assertTrue((Long) beans.getAttribute(name, "BytesIn") > 0);
+
+            String text = fetch(new URL("http://127.0.0.1:" + metricsPort + "/metrics"));
+            assertTrue(text, text.contains("chat_connected_clients 2\n"));
+            assertTrue(text, text.contains("chat_messages_in_total 1\n"));
+            assertTrue(text, text.contains("chat_fanout_latency_seconds_count "));
+            assertTrue("The chat line should have been timed", server.metrics().fanOut.count() >= 1);
+        } finally {
+            group.close();
+        }
+    }
+
+    private static String fetch(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int count;
+            while ((count = in.read(buffer)) > 0) {
+                body.write(buffer, 0, count);
+            }
+            assertEquals(200, connection.getResponseCode());
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -9,7 +9,6 @@ import org.junit.BeforeClass;
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.text.SimpleDateFormat;
 import java.awt.*;
 import javax.swing.*;
 import ChatApplication.Server;
@@ -49,6 +48,13 @@ public class ServerTest {
         }
     }
     
+    // The headless server behind the window, which now holds the server's state
+    private ChatServer core() throws Exception {
+        java.lang.reflect.Field coreField = Server.class.getDeclaredField("core");
+        coreField.setAccessible(true);
+        return (ChatServer) coreField.get(server);
+    }
+    
     @Test
     public void testServerInitialization() {
         // Test that server initializes properly
@@ -116,28 +122,28 @@ public class ServerTest {
         
         assertNotNull("Server should have a JScrollPane", scrollPane);
         
-        // Get the text area from the scroll pane
+        // Get the log view from the scroll pane
         Component viewportView = scrollPane.getViewport().getView();
-        assertTrue("ScrollPane should contain a JTextArea", viewportView instanceof JTextArea);
+        assertTrue("ScrollPane should contain a LogView", viewportView instanceof LogView);
         
-        JTextArea textArea = (JTextArea) viewportView;
+        LogView textArea = (LogView) viewportView;
         assertNotNull("TextArea should not be null", textArea);
-        assertTrue("TextArea should be editable", textArea.isEditable());
+        assertFalse("The log should be read-only", textArea.isEditable());
     }
     
     @Test
     public void testServerDateFormat() {
-        // Test that server has proper date format
-        // This test accesses the private date field through reflection
+        // Test that server stamps lines as 'hh:mm:ss'
+        // This test accesses the private clock field through reflection
         try {
-            java.lang.reflect.Field dateField = Server.class.getDeclaredField("date");
-            dateField.setAccessible(true);
-            SimpleDateFormat date = (SimpleDateFormat) dateField.get(server);
+            java.lang.reflect.Field clockField = ChatServer.class.getDeclaredField("clock");
+            clockField.setAccessible(true);
+            LineClock clock = (LineClock) clockField.get(core());
             
-            assertNotNull("Date format should not be null", date);
-            assertEquals("Date format should be 'hh:mm:ss'", "hh:mm:ss", date.toPattern());
+            assertNotNull("Clock should not be null", clock);
+            assertTrue("Time should be formatted as 'hh:mm:ss'", clock.text().matches("\\d\\d:\\d\\d:\\d\\d"));
         } catch (Exception e) {
-            fail("Could not access date field: " + e.getMessage());
+            fail("Could not access clock field: " + e.getMessage());
         }
     }
     
@@ -145,9 +151,9 @@ public class ServerTest {
     public void testServerClientList() {
         // Test that server has a client list
         try {
-            java.lang.reflect.Field clientListField = Server.class.getDeclaredField("listOfClients");
+            java.lang.reflect.Field clientListField = ChatServer.class.getDeclaredField("clientRegistry");
             clientListField.setAccessible(true);
-            ArrayList<?> clientList = (ArrayList<?>) clientListField.get(server);
+            ClientRegistry clientList = (ClientRegistry) clientListField.get(core());
             
             assertNotNull("Client list should not be null", clientList);
             assertTrue("Client list should be empty initially", clientList.isEmpty());
@@ -160,9 +166,9 @@ public class ServerTest {
     public void testServerClientCounter() {
         // Test that server has a client counter
         try {
-            java.lang.reflect.Field clientNoField = Server.class.getDeclaredField("clientNo");
+            java.lang.reflect.Field clientNoField = ChatServer.class.getDeclaredField("clientRegistry");
             clientNoField.setAccessible(true);
-            int clientNo = (int) clientNoField.get(server);
+            long clientNo = ((ClientRegistry) clientNoField.get(core())).issuedIds();
             
             assertEquals("Client counter should start at 0", 0, clientNo);
         } catch (Exception e) {
@@ -14,7 +14,29 @@ import org.junit.runners.Suite.SuiteClasses;
     ServerTest.class,
     ClientTest.class,
     IntegrationTest.class,
-    PerformanceTest.class
+    PerformanceTest.class,
+    LegacyCodecTest.class,
+    SelectorEngineTest.class,
+    ThreadModeTest.class,
+    OutboundQueueTest.class,
+    BinaryCodecTest.class,
+    ClientRegistryTest.class,
+    ChatRoomsTest.class,
+    ClusterNodeTest.class,
+    WriteBatchTest.class,
+    MessageJournalTest.class,
+    HistoryRingTest.class,
+    ChatCompressionTest.class,
+    ServerLogTest.class,
+    LogViewTest.class,
+    ClientSenderTest.class,
+    ChatClientTest.class,
+    LoadGeneratorTest.class,
+    ServerMetricsTest.class,
+    MessageTracerTest.class,
+    MailboxTest.class,
+    FramePoolTest.class,
+    AllocationTest.class
 })
 public class TestSuite {
     // This class remains empty, it is used only as a holder for the above annotations
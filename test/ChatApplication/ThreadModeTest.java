@@ -0,0 +1,156 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.After;
+import org.junit.Test;
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * JUnit test cases for ThreadMode
+ * Tests thread creation for each mode and benchmarks platform against
+ * virtual threads on a real ChatServer running HandleAClient, printing the
+ * Java version measured on; the virtual run needs Java 21. Each server is
+ * closed after its test, so its threads and port do not outlive it
+ */
+public class ThreadModeTest {
+
+    private static final String TEST_HOST = "localhost";
+    private static final int BENCH_CLIENTS = Integer.getInteger("chat.bench.clients", 200);
+    private static final int BENCH_MESSAGES = Integer.getInteger("chat.bench.messages", 50);
+
+    // Servers started by the running test, with their ports
+    private final Map<ChatServer, Integer> servers = new LinkedHashMap<>();
+
+    @After
+    public void closeServers() throws Exception {
+        for (Map.Entry<ChatServer, Integer> server : servers.entrySet()) {
+            assertTrue("Server threads should stop", server.getKey().close(10000));
+            new ServerSocket(server.getValue()).close(); // the port is free again
+        }
+        servers.clear();
+    }
+
+    private static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException e) {
+            return false;
+        }
+    }
+
+    private static Thread threadOf(ExecutorService executor) throws Exception {
+        try {
+            return executor.submit(Thread::currentThread).get(5, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPlatformModeStartsPlatformThreads() throws Exception {
+        // Test that PLATFORM keeps the original one-OS-thread-per-client behaviour
+        Thread thread = threadOf(ThreadMode.PLATFORM.newExecutor("test-platform"));
+
+        assertTrue("Platform mode should always be supported", ThreadMode.PLATFORM.isSupported());
+        assertFalse("Platform mode should not start virtual threads", isVirtual(thread));
+        assertTrue("Thread should be named after the executor", thread.getName().startsWith("test-platform-"));
+    }
+
+    @Test
+    public void testVirtualModeStartsVirtualThreads() throws Exception {
+        // Test that VIRTUAL uses virtual threads where the JDK has them, and falls back otherwise
+        Thread thread = threadOf(ThreadMode.VIRTUAL.newExecutor("test-virtual"));
+
+        assertEquals("Virtual threads should be used exactly when supported",
+                     ThreadMode.VIRTUAL.isSupported(), isVirtual(thread));
+        assertTrue("Thread should be named after the executor", thread.getName().startsWith("test-virtual-"));
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // A real ChatServer running HandleAClient under the mode's engine
+    private int startServer(String engine) throws Exception {
+        int port = freePort();
+        System.setProperty(ChatServer.ENGINE_PROPERTY, engine);
+        try {
+            servers.put(LoadGenerator.startServer(port), port);
+        } finally {
+            System.clearProperty(ChatServer.ENGINE_PROPERTY);
+        }
+        return port;
+    }
+
+    // Each client moves to a room of its own, then sends its messages one at a time, each echoed back by the server
+    private static long runWorkload(int port, String run) throws Exception {
+        final Map<ChatClient, Semaphore> echoes = new ConcurrentHashMap<>();
+        ChatClient.Listener listener = new ChatClient.Listener() {
+            public void received(ChatClient client, String message) {
+                if (message.contains(": Message ")) {
+                    echoes.get(client).release();
+                }
+            }
+
+            public void closed(ChatClient client, IOException cause) {
+            }
+        };
+        ChatClient.Group group = new ChatClient.Group(2);
+        ExecutorService clientThreads = Executors.newFixedThreadPool(8);
+        try {
+            List<ChatClient> clients = new ArrayList<>();
+            for (int c = 0; c < BENCH_CLIENTS; c++) {
+                ChatClient client = group.connect(TEST_HOST, port, run + "User" + c, listener);
+                echoes.put(client, new Semaphore(0));
+                clients.add(client);
+                assertTrue(client.send("/join " + run + "-" + c));
+            }
+
+            long start = System.nanoTime();
+            List<Future<?>> sending = new ArrayList<>();
+            for (final ChatClient client : clients) {
+                sending.add(clientThreads.submit(() -> {
+                    for (int m = 0; m < BENCH_MESSAGES; m++) {
+                        assertTrue(client.send("Message " + m));
+                        assertTrue("Message should be echoed", echoes.get(client).tryAcquire(30, TimeUnit.SECONDS));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> client : sending) {
+                client.get(60, TimeUnit.SECONDS);
+            }
+            return System.nanoTime() - start;
+        } finally {
+            clientThreads.shutdownNow();
+            group.close();
+        }
+    }
+
+    @Test
+    public void testPlatformVersusVirtualBenchmark() throws Exception {
+        // Benchmark the same chatty workload on the thread-per-client server with platform and with virtual threads
+        long messages = (long) BENCH_CLIENTS * BENCH_MESSAGES;
+        int platformPort = startServer("threads");
+        runWorkload(platformPort, "WarmUp"); // warm up
+        long platform = runWorkload(platformPort, "Platform");
+
+        System.out.println("Thread Mode Benchmark:");
+        System.out.println("Java " + System.getProperty("java.version") + ", cores: " + Runtime.getRuntime().availableProcessors());
+        System.out.println("Clients: " + BENCH_CLIENTS + ", messages per client: " + BENCH_MESSAGES);
+        System.out.println("Platform threads: " + TimeUnit.NANOSECONDS.toMillis(platform) + "ms, "
+                           + (messages * 1_000_000_000L / platform) + " msgs/sec");
+        if (!ThreadMode.VIRTUAL.isSupported()) {
+            System.out.println("Virtual threads: not measured, they need Java 21");
+            return;
+        }
+        long virtual = runWorkload(startServer("virtual"), "Virtual");
+        System.out.println("Virtual threads: " + TimeUnit.NANOSECONDS.toMillis(virtual) + "ms, "
+                           + (messages * 1_000_000_000L / virtual) + " msgs/sec");
+    }
+}
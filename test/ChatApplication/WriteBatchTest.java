@@ -0,0 +1,236 @@
+package ChatApplication;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.*;
+
+/**
+ * JUnit test cases for WriteBatch
+ * Tests batching limits, partial writes, stream resets, the linger and
+ * frames per system call over a real socket
+ */
+public class WriteBatchTest {
+
+    // A channel that records every byte and each write call, taking at most a given number of bytes per call
+    private static class RecordingChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final int maxPerCall;
+        int calls;
+
+        RecordingChannel(int maxPerCall) {
+            this.maxPerCall = maxPerCall;
+        }
+
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            calls++;
+            long taken = 0;
+            for (int i = offset; i < offset + length && taken < maxPerCall; i++) {
+                while (srcs[i].hasRemaining() && taken < maxPerCall) {
+                    bytes.write(srcs[i].get());
+                    taken++;
+                }
+            }
+            return taken;
+        }
+
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] { src }, 0, 1);
+        }
+
+        public boolean isOpen() {
+            return true;
+        }
+
+        public void close() {
+        }
+    }
+
+    private static ByteBuffer frame(String text) {
+        return BinaryCodec.encode(BinaryCodec.TYPE_CHAT, text);
+    }
+
+    private static byte[] bytes(ByteBuffer frame) {
+        byte[] bytes = new byte[frame.remaining()];
+        frame.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testBurstGoesOutInFewWrites() throws IOException {
+        // Test that a burst of 100 frames costs one write per full batch, in order, without touching the shared frames
+        WriteBatch.Stats stats = new WriteBatch.Stats();
+        WriteBatch batch = new WriteBatch(64, 1024 * 1024, 0, stats);
+        RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        ByteBuffer shared = frame("Shared message");
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer frame = i % 2 == 0 ? shared : frame("Message " + i);
+            expected.write(bytes(frame));
+            if (!batch.canAdd()) {
+                assertTrue("Batch should be written in one call", batch.write(channel));
+            }
+            batch.add(frame, null);
+        }
+        assertTrue("Last batch should be written in one call", batch.write(channel));
+
+        assertEquals("100 frames should take two writes", 2, channel.calls);
+        assertArrayEquals("Bytes should go out in order", expected.toByteArray(), channel.bytes.toByteArray());
+        assertEquals("Shared frame should be untouched", 0, shared.position());
+        assertEquals("Frames should be counted", 100, stats.frames());
+        assertEquals(50.0, stats.framesPerWrite(), 0.001);
+    }
+
+    @Test
+    public void testByteLimitEndsBatch() {
+        // Test that a batch is full once it holds the byte limit, whatever its frame count
+        WriteBatch batch = new WriteBatch(64, 100, 0, new WriteBatch.Stats());
+        batch.add(frame(new String(new char[60]).replace('\0', 'x')), null);
+        assertTrue("One frame under the limit should leave room", batch.canAdd());
+        batch.add(frame(new String(new char[60]).replace('\0', 'y')), null);
+        assertFalse("Frames past the byte limit should fill the batch", batch.canAdd());
+    }
+
+    @Test
+    public void testPartialWritesResume() throws IOException {
+        // Test that a socket taking a few bytes at a time still gets every byte once, in order
+        WriteBatch batch = new WriteBatch(16, 1024 * 1024, 0, new WriteBatch.Stats());
+        RecordingChannel channel = new RecordingChannel(7);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 10; i++) {
+            ByteBuffer frame = frame("Message " + i);
+            expected.write(bytes(frame));
+            batch.add(frame, null);
+        }
+        int calls = 0;
+        while (!batch.write(channel)) {
+            assertFalse("Nothing may be added to a partly written batch", batch.canAdd());
+            calls++;
+        }
+        assertTrue("Small writes should take several calls", calls > 1);
+        assertArrayEquals("Bytes should go out once and in order", expected.toByteArray(), channel.bytes.toByteArray());
+        assertTrue("Written batch should be empty", batch.isEmpty());
+    }
+
+    @Test
+    public void testResetFollowsFrame() throws IOException {
+        // Test that a serialized-stream reset goes out right after the frame that crossed the limit
+        LegacyCodec.ResetTracker resets = new LegacyCodec.ResetTracker(1);
+        WriteBatch batch = new WriteBatch(4, 1024 * 1024, 0, new WriteBatch.Stats());
+        RecordingChannel channel = new RecordingChannel(Integer.MAX_VALUE);
+        ByteBuffer first = LegacyCodec.encodeString("First");
+        ByteBuffer second = LegacyCodec.encodeString("Second");
+        batch.add(first, resets);
+        assertTrue("A frame and its reset should leave room", batch.canAdd());
+        batch.add(second, resets);
+        assertFalse("Resets should take slots in the batch", batch.canAdd());
+        assertTrue(batch.write(channel));
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        expected.write(bytes(first));
+        expected.write(LegacyCodec.TC_RESET);
+        expected.write(bytes(second));
+        expected.write(LegacyCodec.TC_RESET);
+        assertArrayEquals("Each frame should be followed by its reset", expected.toByteArray(), channel.bytes.toByteArray());
+    }
+
+    @Test
+    public void testLingerWaitsUntilFullOrExpired() throws Exception {
+        // Test that a lingering batch waits for more frames, but not once full or past the linger
+        WriteBatch batch = new WriteBatch(4, 1024 * 1024, 20000, new WriteBatch.Stats());
+        assertEquals("Empty batch should not wait", 0, batch.lingerNanos(System.nanoTime()));
+        batch.add(frame("One"), null);
+        assertTrue("Fresh batch should wait", batch.lingerNanos(System.nanoTime()) > 0);
+        assertEquals("Batch should stop waiting after the linger", 0,
+                batch.lingerNanos(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(21)));
+        for (int i = 0; i < 3; i++) {
+            batch.add(frame("More"), null);
+        }
+        assertEquals("Full batch should not wait", 0, batch.lingerNanos(System.nanoTime()));
+
+        WriteBatch eager = new WriteBatch(4, 1024 * 1024, 0, new WriteBatch.Stats());
+        eager.add(frame("One"), null);
+        assertEquals("Without a linger nothing waits", 0, eager.lingerNanos(System.nanoTime()));
+    }
+
+    @Test
+    public void testFramesPerSystemCallOverSocket() throws Exception {
+        // Test a burst over loopback one write per frame against gathering writes, and the linger's cost
+        int frames = 100000;
+        long single = timeBurst(frames, 1, 0);
+        WriteBatch.Stats batched = new WriteBatch.Stats();
+        long gathered = timeBurst(frames, WriteBatch.DEFAULT_FRAMES, 0, batched);
+        WriteBatch.Stats lingered = new WriteBatch.Stats();
+        timeBurst(1000, WriteBatch.DEFAULT_FRAMES, 200, lingered);
+
+        System.out.println("Write Batch Test:");
+        System.out.println("One write per frame: " + single + "ms");
+        System.out.println("Gathering writes: " + gathered + "ms, " + String.format("%.1f", batched.framesPerWrite()) + " frames per call");
+        System.out.println("With 200us linger: " + lingered.report().trim());
+
+        assertEquals("Every frame should be counted", frames, batched.frames());
+        assertTrue("Gathering writes should carry several frames per call", batched.framesPerWrite() > 1);
+    }
+
+    private static long timeBurst(int frames, int maxFrames, long lingerMicros) throws Exception {
+        return timeBurst(frames, maxFrames, lingerMicros, new WriteBatch.Stats());
+    }
+
+    // Queues a burst of frames, then drains it the way a thread-per-client writer does while a reader counts bytes
+    private static long timeBurst(int frames, int maxFrames, long lingerMicros, WriteBatch.Stats stats) throws Exception {
+        try (ServerSocketChannel server = ServerSocketChannel.open()) {
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            try (SocketChannel writer = SocketChannel.open(server.getLocalAddress());
+                 SocketChannel reader = server.accept()) {
+                ByteBuffer frame = frame("10:00:00 Sender: hello");
+                final long total = (long) frame.remaining() * frames;
+                ExecutorService readerThread = Executors.newSingleThreadExecutor();
+                Future<?> drained = readerThread.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+                        long read = 0;
+                        while (read < total) {
+                            in.clear();
+                            read += reader.read(in);
+                        }
+                        return null;
+                    }
+                });
+                OutboundQueue queue = new OutboundQueue(OutboundQueue.Policy.DROP_OLDEST, frames, 60000);
+                for (int i = 0; i < frames; i++) {
+                    queue.offer(frame);
+                }
+                WriteBatch batch = new WriteBatch(maxFrames, 1024 * 1024, lingerMicros, stats);
+                long start = System.nanoTime();
+                ByteBuffer next;
+                while ((next = queue.poll()) != null) {
+                    batch.add(next, null);
+                    while (batch.canAdd()) {
+                        next = queue.poll();
+                        if (next == null) {
+                            long linger = batch.lingerNanos(System.nanoTime());
+                            next = linger > 0 ? queue.poll(linger, TimeUnit.NANOSECONDS) : null;
+                            if (next == null) {
+                                break;
+                            }
+                        }
+                        batch.add(next, null);
+                    }
+                    while (!batch.write(writer)) {
+                        // blocking channel
+                    }
+                }
+                drained.get(30, TimeUnit.SECONDS);
+                readerThread.shutdown();
+                return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            }
+        }
+    }
+}